@@ -14,7 +14,11 @@ import java.util.Set;
 
 import javax.swing.*;
 import javax.swing.border.BevelBorder;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
+import network.MessageReader;
+import network.MessageWriter;
 import network.NetworkConstants;
 
 /**
@@ -26,8 +30,8 @@ public class ClientGUI extends JFrame {
 
     // How we communicate with the server
     private final Socket socket;
-    private final BufferedReader in;
-    private final PrintWriter out;
+    private final MessageReader in;
+    private final MessageWriter out;
 
     // Human-readable name of server
     private final String serverName;
@@ -47,6 +51,16 @@ public class ClientGUI extends JFrame {
 
     protected final ConversationHistory conversationHistory;
 
+    // Whether the server refused to send only the participants changed since
+    // a membership version
+    private boolean participantsDiffRefused;
+
+    // The conversation whose tab is selected, if any, which we ask the
+    // server to send every IM of; and whether the server refused to withhold
+    // the IMs of the conversations we are not looking at
+    private ConversationPanel focused;
+    private boolean levelsRefused;
+
     private final IncomingMessageManager incomingMessageManager;
     protected final OutgoingMessageManager outgoingMessageManager;
 
@@ -56,11 +70,11 @@ public class ClientGUI extends JFrame {
      * @param _socket
      *            Socket to use for communication with server
      * @param _in
-     *            BufferedReader to read messages from server (should be derived
-     *            from _socket)
+     *            MessageReader to read messages from server (should be derived
+     *            from _socket, and set to the framing negotiated at login)
      * @param _out
-     *            PrintWriter to send messages to server (should be derived from
-     *            _socket)
+     *            MessageWriter to send messages to server (should be derived
+     *            from _socket, and set to the framing negotiated at login)
      * @param _serverName
      *            Human-readable name of server
      * @param _myUsername
@@ -69,7 +83,7 @@ public class ClientGUI extends JFrame {
      *            Tab-delimited list of other users connected to the server at
      *            time of initiation
      */
-    public ClientGUI(Socket _socket, BufferedReader _in, PrintWriter _out,
+    public ClientGUI(Socket _socket, MessageReader _in, MessageWriter _out,
             String _serverName, String _myUsername, String initUserList) {
         socket = _socket;
         in = _in;
@@ -97,6 +111,11 @@ public class ClientGUI extends JFrame {
         for (String username : otherUsersSet) {
             topLevelPanel.otherUsersModel.addElement(username);
         }
+        tabbedPane.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                focusChanged();
+            }
+        });
         conversationHistory = new ConversationHistory(
                 topLevelPanel.pastConversationsModel, myUsername);
 
@@ -139,6 +158,69 @@ public class ClientGUI extends JFrame {
     			tabbedPane, conv));
     }
 
+    /**
+     * Called when another tab is selected. Asks the server to send only counts
+     * of the IMs of the conversation we were looking at, if we are still in
+     * it, and every IM of the one we are now looking at, which it follows
+     * with those it withheld; and clears the latter's unread count.
+     */
+    private void focusChanged() {
+        Object selected = tabbedPane.getSelectedComponent();
+        if (selected == focused) {
+            return;
+        }
+        if (focused != null
+                && conversations.get(focused.getConvName()) == focused) {
+            sendLevel(focused.getConvName(), NetworkConstants.LEVEL_COUNTS);
+        }
+        focused = null;
+        if (selected instanceof ConversationPanel) {
+            focused = (ConversationPanel) selected;
+            sendLevel(focused.getConvName(), NetworkConstants.LEVEL_FULL);
+            if (focused.unread > 0) {
+                focused.unread = 0;
+                setTabTitle(focused);
+            }
+        }
+    }
+
+    /**
+     * Asks the server to send us the IMs of the given conversation at the
+     * given level, unless it has refused to before.
+     * 
+     * @param convName
+     *            Name of the conversation
+     * @param level
+     *            One of the levels in NetworkConstants
+     */
+    private void sendLevel(String convName, String level) {
+        if (levelsRefused) {
+            return;
+        }
+        outgoingMessageManager.add(new DefaultMessageToServer(
+                NetworkConstants.SET_LEVEL + "\t" + convName + "\t" + level));
+    }
+
+    /**
+     * Sets the title of panel's tab to its conversation name, followed by
+     * its unread count, if any.
+     * 
+     * @param panel
+     *            ConversationPanel whose tab to retitle
+     */
+    private void setTabTitle(ConversationPanel panel) {
+        int i = tabbedPane.indexOfComponent(panel);
+        if (i == -1) {
+            return;
+        }
+        String title = panel.getConvName();
+        if (panel.unread > 0) {
+            title += " (" + panel.unread + ")";
+        }
+        tabbedPane.setTitleAt(i, title);
+        tabbedPane.repaint();
+    }
+
     /**
      * Removes convName from the collection of names of conversations that we
      * think we are in. (Does not perform any GUI modifications.)
@@ -293,6 +375,211 @@ public class ClientGUI extends JFrame {
         }
     }
 
+    /**
+     * Handles a PRESENCE message from the server, which lists the users that
+     * have come online and the users that have gone offline since its last
+     * news of either. The message says how things stand now rather than what
+     * happened, so users we already knew to be online (or offline) are skipped
+     * without complaint, as is our own name.
+     * 
+     * @param presence
+     *            The number of users online, then their names, then the names
+     *            of the users offline, all tab-delimited
+     */
+    void handlePresenceMessage(String presence) {
+        String[] fields = presence.split("\t", -1);
+        int online;
+        try {
+            online = Integer.parseInt(fields[0]);
+        } catch (NumberFormatException e) {
+            online = -1;
+        }
+        if (online < 0 || online > fields.length - 1) {
+            setStatusText("Received malformed PRESENCE message from server: "
+                    + presence);
+            return;
+        }
+        for (int i = 1; i < fields.length; ++i) {
+            String username = fields[i];
+            if (username.equals(myUsername)) {
+                continue;
+            }
+            if (i <= online) {
+                if (!otherUsersSet.contains(username)) {
+                    handleConnectedMessage(username);
+                }
+            } else if (otherUsersSet.contains(username)) {
+                handleDisconnectedMessage(username);
+            }
+        }
+    }
+
+    /**
+     * Handles a USERS_PAGE message from the server, one page of the list of
+     * users that were connected when we logged in, which we asked to be sent
+     * in pages so that we could show this window before all of it arrived.
+     * Users may have come and gone since; we have been told of those, so users
+     * we already know of are skipped without complaint. Asks for the next page
+     * unless this one is the last.
+     * 
+     * @param page
+     *            Count of other users, cursor of the next page (empty if
+     *            none), and names, tab-delimited
+     */
+    void handleUsersPageMessage(String page) {
+        String[] fields = page.split("\t", -1);
+        if (fields.length < 2) {
+            setStatusText("Received malformed USERS_PAGE message from server: "
+                    + page);
+            return;
+        }
+        for (int i = 2; i < fields.length; ++i) {
+            String username = fields[i];
+            if (!username.equals(myUsername)
+                    && !otherUsersSet.contains(username)) {
+                handleConnectedMessage(username);
+            }
+        }
+        String cursor = fields[1];
+        if (!cursor.isEmpty()) {
+            outgoingMessageManager.add(new DefaultMessageToServer(
+                    NetworkConstants.NEXT_USERS_PAGE + "\t" + cursor));
+        }
+    }
+
+    /**
+     * Handles a MEMBERSHIP message from the server, which lists the users that
+     * have joined a conversation and the users that have left it since its
+     * last news of either. Like a PRESENCE message, it says how things stand
+     * now rather than what happened, so users we already knew to be in (or
+     * out of) the conversation are skipped without complaint, as is our own
+     * name.
+     * 
+     * @param membership
+     *            The conversation name, the number of users in it, then their
+     *            names, then the names of the users out of it, all
+     *            tab-delimited
+     */
+    void handleMembershipMessage(String membership) {
+        String[] fields = membership.split("\t", -1);
+        int in;
+        try {
+            in = fields.length < 2 ? -1 : Integer.parseInt(fields[1]);
+        } catch (NumberFormatException e) {
+            in = -1;
+        }
+        if (in < 0 || in > fields.length - 2) {
+            setStatusText("Received malformed MEMBERSHIP message from server: "
+                    + membership);
+            return;
+        }
+        String convName = fields[0];
+        ConversationPanel panel = conversations.get(convName);
+        if (panel == null) {
+            setStatusText("Tried to update participants list for conversation "
+                    + convName
+                    + ", but we didn't think we were in that conversation");
+            return;
+        }
+        for (int i = 2; i < fields.length; ++i) {
+            String username = fields[i];
+            if (username.equals(myUsername)) {
+                continue;
+            }
+            if (i < in + 2) {
+                if (!panel.otherUsersSet.contains(username)) {
+                    tryToAddUserToConv(username, convName);
+                }
+            } else if (panel.otherUsersSet.contains(username)) {
+                tryToRemoveUserFromConv(username, convName);
+            }
+        }
+    }
+
+    /**
+     * Handles a PARTICIPANTS_DIFF message from the server, which answers our
+     * request for the participants of a conversation changed since the
+     * membership version we last heard of. It lists how each changed user
+     * stands now, as a MEMBERSHIP message does; or, if the server could not
+     * tell what changed, it has empty lists, and the whole list follows in
+     * MEMBERS_PAGE messages, so we forget the participants we knew.
+     * 
+     * @param diff
+     *            The conversation name, the version the diff is relative to
+     *            (0 if the whole list follows), the current version, the
+     *            number of users in the conversation, then their names, then
+     *            the names of the users out of it, all tab-delimited
+     */
+    void handleParticipantsDiffMessage(String diff) {
+        String[] fields = diff.split("\t", -1);
+        long since;
+        long version;
+        try {
+            since = Long.parseLong(fields[1]);
+            version = Long.parseLong(fields[2]);
+        } catch (RuntimeException e) {
+            setStatusText("Received malformed PARTICIPANTS_DIFF message from server: "
+                    + diff);
+            return;
+        }
+        ConversationPanel panel = conversations.get(fields[0]);
+        if (panel == null) {
+            // We left the conversation before the answer arrived
+            return;
+        }
+        panel.participantsRequested = false;
+        panel.participantsVersion = version;
+        if (since == 0) {
+            panel.otherUsersSet.clear();
+            panel.otherUsersModel.clear();
+            return;
+        }
+        StringBuilder membership = new StringBuilder(fields[0]);
+        for (int i = 3; i < fields.length; ++i) {
+            membership.append("\t").append(fields[i]);
+        }
+        handleMembershipMessage(membership.toString());
+    }
+
+    /**
+     * Handles a MEMBERS_PAGE message from the server, one page of the users
+     * that were in a conversation when we entered it, which the server sends
+     * in pages when there are many. Users may have come and gone since; we
+     * have been told of those, so users we already know of are skipped
+     * without complaint. Asks for the next page unless this one is the last.
+     * 
+     * @param page
+     *            Conversation name, count of other users in it, cursor of the
+     *            next page (empty if none), and names, tab-delimited
+     */
+    void handleMembersPageMessage(String page) {
+        String[] fields = page.split("\t", -1);
+        if (fields.length < 3) {
+            setStatusText("Received malformed MEMBERS_PAGE message from server: "
+                    + page);
+            return;
+        }
+        String convName = fields[0];
+        ConversationPanel panel = conversations.get(convName);
+        if (panel == null) {
+            // We left the conversation before the page arrived
+            return;
+        }
+        for (int i = 3; i < fields.length; ++i) {
+            String username = fields[i];
+            if (!username.equals(myUsername)
+                    && !panel.otherUsersSet.contains(username)) {
+                tryToAddUserToConv(username, convName);
+            }
+        }
+        String cursor = fields[2];
+        if (!cursor.isEmpty()) {
+            outgoingMessageManager.add(new DefaultMessageToServer(
+                    NetworkConstants.NEXT_MEMBERS_PAGE + "\t" + convName
+                            + "\t" + cursor));
+        }
+    }
+
     /**
      * Handles a PARTICIPANTS message from the server, which tells us which
      * users are participating in a given conversation. We already have some
@@ -353,6 +640,23 @@ public class ClientGUI extends JFrame {
      *            The bad previous message to server
      */
     void handleErrorMessage(String rejectedInput) {
+        String[] fields = rejectedInput.split("\t", -1);
+        if (fields.length == 3
+                && fields[0].equals(NetworkConstants.RETRIEVE_PARTICIPANTS)) {
+            // The server doesn't number memberships; ask for the whole list
+            participantsDiffRefused = true;
+            outgoingMessageManager.add(new DefaultMessageToServer(
+                    NetworkConstants.RETRIEVE_PARTICIPANTS + "\t" + fields[1]));
+            return;
+        }
+        if (fields.length == 3 && fields[0].equals(NetworkConstants.SET_LEVEL)) {
+            // The server sends every IM whatever we ask, unless we were no
+            // longer in the conversation
+            if (conversations.containsKey(fields[1])) {
+                levelsRefused = true;
+            }
+            return;
+        }
         setStatusText("Server rejected the following message: "
                 + rejectedInput);
     }
@@ -388,14 +692,117 @@ public class ClientGUI extends JFrame {
         conversationHistory.logNew(message);
 
         // If we didn't think this user was in the conversation, refresh our
-        // list of participants
+        // list of participants, asking only for what changed since we last
+        // did, unless we are waiting to hear that already
         if (!username.equals(myUsername)
                 && !panel.otherUsersSet.contains(username)) {
             String content = NetworkConstants.RETRIEVE_PARTICIPANTS + "\t" + convName;
+            if (!participantsDiffRefused) {
+                if (panel.participantsRequested) {
+                    return;
+                }
+                panel.participantsRequested = true;
+                content += "\t" + panel.participantsVersion;
+            }
             outgoingMessageManager.add(new DefaultMessageToServer(content));
         }
     }
 
+    /**
+     * Takes in data about an ACK message as received from the server, which
+     * stands in for the echo of one of our own IM messages, and unpends and
+     * logs the message if it was still pending.
+     * 
+     * @param convName
+     *            Name of conversation the message was sent to
+     * @param _messageId
+     *            Message ID (see design doc)
+     */
+    void registerAck(String convName, String _messageId) {
+        ConversationPanel panel = conversations.get(convName);
+        if (panel == null) {
+            // We left the conversation after sending the message
+            return;
+        }
+
+        IMMessage message = panel.messagesDoc.acknowledge(Integer
+                .parseInt(_messageId));
+        if (message != null) {
+            conversationHistory.logNew(message);
+        }
+    }
+
+    /**
+     * Handles an UNREAD message from the server, which tells us how many IMs
+     * of a conversation we are not looking at it has withheld, and shows the
+     * count in the conversation's tab.
+     * 
+     * @param content
+     *            Content of the message, after its type
+     */
+    void handleUnreadMessage(String content) {
+        String[] args = content.split("\t", -1);
+        if (args.length != 3) {
+            setStatusText("Received malformed UNREAD message from server: "
+                    + content);
+            return;
+        }
+        ConversationPanel panel = conversations.get(args[0]);
+        if (panel == null) {
+            return;
+        }
+        panel.unread = Long.parseLong(args[1]);
+        if (panel != focused) {
+            setTabTitle(panel);
+        }
+    }
+
+    /**
+     * Handles a HISTORY message from the server, which replays an IM we were
+     * not sent when it was sent, as after we came back to a conversation we
+     * were not looking at. Our own IMs were sent to us at the time, so they
+     * are skipped.
+     * 
+     * @param content
+     *            Content of the message, after its type
+     */
+    void handleHistoryMessage(String content) {
+        String[] args = content.split("\t", 6);
+        if (args.length != 6) {
+            setStatusText("Received malformed HISTORY message from server: "
+                    + content);
+            return;
+        }
+        ConversationPanel panel = conversations.get(args[0]);
+        if (panel == null || args[3].equals(myUsername)) {
+            return;
+        }
+        IMMessage message = new IMMessage(args[3], args[5], args[0], false,
+                Integer.parseInt(args[4]));
+        panel.messagesDoc.receiveMessage(message);
+        conversationHistory.logNew(message);
+    }
+
+    /**
+     * Handles a HISTORY_END message from the server, which follows each chunk
+     * of a replayed history, asking for the next chunk if there is one.
+     * 
+     * @param content
+     *            Content of the message, after its type
+     */
+    void handleHistoryEndMessage(String content) {
+        String[] args = content.split("\t", -1);
+        if (args.length != 3) {
+            setStatusText("Received malformed HISTORY_END message from server: "
+                    + content);
+            return;
+        }
+        if (Long.parseLong(args[2]) > 0 && conversations.containsKey(args[0])) {
+            outgoingMessageManager.add(new DefaultMessageToServer(
+                    NetworkConstants.NEXT_HISTORY + "\t" + args[0]));
+        }
+    }
+
     /**
      * Prompts the user to enter a new conversation.
      */
@@ -417,6 +824,29 @@ public class ClientGUI extends JFrame {
         outgoingMessageManager.add(new DefaultMessageToServer(messageContent));
     }
 
+    /**
+     * Prompts the user to enter a new broadcast channel, in which only we (and
+     * whoever we make publishers) may post, and the listeners who join it are
+     * not announced.
+     */
+    void promptForNewChannel() {
+        String name = JOptionPane
+                .showInputDialog("Enter desired name of the new channel and we will try to make it.\nIf you give an empty name then the server will autogenerate a name for you.");
+        if (name == null) {
+            // user closed the prompt
+            return;
+        }
+        if (name.length() > 256 || name.contains("\t") || name.contains("\n")) {
+            JOptionPane
+                    .showMessageDialog(
+                            this,
+                            "Channel name must be at most 256 characters and cannot contain tabs or newlines.");
+            return;
+        }
+        String messageContent = NetworkConstants.NEW_CHANNEL + "\t" + name;
+        outgoingMessageManager.add(new DefaultMessageToServer(messageContent));
+    }
+
     /**
      * Prompts the user to start a new two-way conversation.
      */
@@ -439,6 +869,30 @@ public class ClientGUI extends JFrame {
         outgoingMessageManager.add(new DefaultMessageToServer(messageContent));
     }
 
+    /**
+     * Prompts the user to follow another user's presence. A server that only
+     * tells us about users we share a conversation with will then also tell
+     * us whenever this user connects or disconnects.
+     */
+    void promptToWatchUser() {
+        String username = JOptionPane
+                .showInputDialog("Enter name of a user and we will tell you when they connect or disconnect:");
+        if (username == null) {
+            // user closed the prompt
+            return;
+        }
+        if (username.isEmpty() || username.length() > 256
+                || username.contains("\t") || username.contains("\n")) {
+            JOptionPane
+                    .showMessageDialog(
+                            this,
+                            "Username must be nonempty, at most 256 characters, and cannot contain tabs or newlines.");
+            return;
+        }
+        String messageContent = NetworkConstants.SUBSCRIBE_PRESENCE + "\t" + username;
+        outgoingMessageManager.add(new DefaultMessageToServer(messageContent));
+    }
+
     /**
      * Prompts the user to choose a conversation to join.
      */
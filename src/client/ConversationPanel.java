@@ -46,6 +46,20 @@ public class ConversationPanel extends JPanel {
      */
     protected Set<String> otherUsersSet;
 
+    /**
+     * Membership version of the conversation as of the last participants
+     * diff we were sent, or 0 if none, and whether we have asked for the
+     * participants changed since and not yet been answered.
+     */
+    protected long participantsVersion;
+    protected boolean participantsRequested;
+
+    /**
+     * Number of IMs the server has told us it withheld while we were not
+     * looking at the conversation, shown in its tab's title.
+     */
+    protected long unread;
+
     /**
      * Constructor for ConversationPanel.
      * 
@@ -188,6 +202,15 @@ public class ConversationPanel extends JPanel {
         clientGUI.removeConversation(convName);
     }
 
+    /**
+     * Returns the name of the conversation.
+     * 
+     * @return Name of the conversation
+     */
+    public String getConvName() {
+        return convName;
+    }
+
     /**
      * Invites the user whose name is in the "invite" field to this
      * conversation. Complains if the contents of the field are invalid. Upon
@@ -1,23 +1,26 @@
 package client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import network.MessageReader;
+
 /**
  * Handles incoming communication from the server. Enqueues messages and handles
- * them (from the Swing event dispatch thread) when we are able.
+ * them (from the Swing event dispatch thread) when we are able. Messages are
+ * decoded by the MessageReader into their text form, whether they arrived as
+ * lines or as binary frames, so the rest of the client handles both alike.
  */
 public class IncomingMessageManager {
     private final BlockingQueue<String> incomingMessages;
-    private final BufferedReader in;
+    private final MessageReader in;
     private volatile boolean running = true;
 
     // The GUI for this session
     private final ClientGUI clientGUI;
 
-    public IncomingMessageManager(BufferedReader _in, ClientGUI _clientGUI) {
+    public IncomingMessageManager(MessageReader _in, ClientGUI _clientGUI) {
         in = _in;
         incomingMessages = new LinkedBlockingQueue<String>();
         clientGUI = _clientGUI;
@@ -65,7 +68,7 @@ public class IncomingMessageManager {
         public void run() {
             while (running) {
                 try {
-                    String next = in.readLine();
+                    String next = in.readMessage();
                     if (next == null) { // Server closed!
                         clientGUI.disconnect();
                         clientGUI.dispose();
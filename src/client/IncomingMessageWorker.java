@@ -55,6 +55,15 @@ class IncomingMessageWorker extends SwingWorker<Void, Void> {
                                 + message);
             }
             clientGUI.registerIM(args[0], args[1], args[2], args[3]);
+        } else if (messageType.equals(NetworkConstants.ACK)) {
+            args = data[1].split("\t", 3);
+            if (args.length < 3) {
+                clientGUI
+                        .setStatusText("Received malformed ACK message from server: "
+                                + message);
+                return;
+            }
+            clientGUI.registerAck(args[0], args[1]);
         } else if (messageType.equals(NetworkConstants.ADDED_TO_CONV)) {
             args = data[1].split("\t", 2);
             if (args.length < 2) {
@@ -83,6 +92,22 @@ class IncomingMessageWorker extends SwingWorker<Void, Void> {
             clientGUI.handleConnectedMessage(data[1]);
         } else if (messageType.equals(NetworkConstants.DISCONNECTED)) {
             clientGUI.handleDisconnectedMessage(data[1]);
+        } else if (messageType.equals(NetworkConstants.PRESENCE)) {
+            clientGUI.handlePresenceMessage(data[1]);
+        } else if (messageType.equals(NetworkConstants.USERS_PAGE)) {
+            clientGUI.handleUsersPageMessage(data[1]);
+        } else if (messageType.equals(NetworkConstants.MEMBERSHIP)) {
+            clientGUI.handleMembershipMessage(data[1]);
+        } else if (messageType.equals(NetworkConstants.MEMBERS_PAGE)) {
+            clientGUI.handleMembersPageMessage(data[1]);
+        } else if (messageType.equals(NetworkConstants.PARTICIPANTS_DIFF)) {
+            clientGUI.handleParticipantsDiffMessage(data[1]);
+        } else if (messageType.equals(NetworkConstants.UNREAD)) {
+            clientGUI.handleUnreadMessage(data[1]);
+        } else if (messageType.equals(NetworkConstants.HISTORY)) {
+            clientGUI.handleHistoryMessage(data[1]);
+        } else if (messageType.equals(NetworkConstants.HISTORY_END)) {
+            clientGUI.handleHistoryEndMessage(data[1]);
         } else if (messageType.equals(NetworkConstants.PARTICIPANTS)) {
             args = data[1].split("\t", 2);
             if (args.length < 2) {
@@ -101,10 +101,12 @@ class MessagesDoc extends DefaultStyledDocument {
      * 
      * @param messageId
      *            messageId of the message to unpend.
+     * @return The message as now displayed, no longer pending
      * @throws BadLocationException
      *            If messageId is not an entry in this.pending.
      */
-    public synchronized void unpend(int messageID) throws BadLocationException {
+    public synchronized IMMessage unpend(int messageID)
+            throws BadLocationException {
         if (!pending.containsKey(messageID)) {
             throw new RuntimeException(
                     "Tried to unpend a message that doesn't exist");
@@ -122,6 +124,29 @@ class MessagesDoc extends DefaultStyledDocument {
         for (IMMessage m : pending.values()) {
             addMessage(m);
         }
+        return newMessage;
+    }
+
+    /**
+     * Registers an acknowledgement from the server of one of our own messages,
+     * sent in place of the message itself. Unpends the message, if it is still
+     * pending; does nothing otherwise, since the server acknowledges a message
+     * sent again after a timeout as well.
+     * 
+     * @param messageId
+     *            messageId of the acknowledged message
+     * @return The message as now displayed, or null if it was not pending
+     */
+    public synchronized IMMessage acknowledge(int messageId) {
+        if (!pending.containsKey(messageId)) {
+            return null;
+        }
+        try {
+            return unpend(messageId);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     /**
@@ -1,19 +1,21 @@
 package client;
 
-import java.io.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import network.MessageWriter;
+
 /**
  * Handles outgoing communication to the server. Enqueues messages and sends
- * them off as it is able.
+ * them off as it is able, encoded by the MessageWriter as lines or as binary
+ * frames, whichever was negotiated at login.
  */
 public class OutgoingMessageManager {
     private final BlockingQueue<MessageToServer> outgoingMessages;
-    private final PrintWriter out;
+    private final MessageWriter out;
     private volatile boolean running = true;
 
-    public OutgoingMessageManager(PrintWriter _out) {
+    public OutgoingMessageManager(MessageWriter _out) {
         outgoingMessages = new LinkedBlockingQueue<MessageToServer>();
         out = _out;
     }
@@ -23,7 +25,7 @@ public class OutgoingMessageManager {
      */
     private void send(MessageToServer message) {
         if (!message.isCanceled()) {
-            out.println(message.getMessageText());
+            out.writeMessage(message.getMessageText());
         }
     }
 
@@ -26,8 +26,10 @@ public class TopLevelPanel extends JPanel {
 
     private final JPanel taskButtons;
     private final JButton newRoomButton;
+    private final JButton newChannelButton;
     private final JButton oneOnOneButton;
     private final JButton joinConvButton;
+    private final JButton watchUserButton;
     private final JButton disconnectButton;
 
     private final JLabel pastConversationsHeading;
@@ -65,6 +67,14 @@ public class TopLevelPanel extends JPanel {
             }
         });
 
+        newChannelButton = new JButton("New Channel");
+        newChannelButton.setName("newChannelButton");
+        newChannelButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                clientGUI.promptForNewChannel();
+            }
+        });
+
         oneOnOneButton = new JButton("New One-on-One Chat");
         oneOnOneButton.setName("oneOnOneButton");
         oneOnOneButton.addActionListener(new ActionListener() {
@@ -81,6 +91,14 @@ public class TopLevelPanel extends JPanel {
             }
         });
 
+        watchUserButton = new JButton("Watch User");
+        watchUserButton.setName("watchUserButton");
+        watchUserButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                clientGUI.promptToWatchUser();
+            }
+        });
+
         disconnectButton = new JButton("Disconnect");
         disconnectButton.setName("disconnectButton");
         disconnectButton.addActionListener(new DisconnectListener(clientGUI));
@@ -88,8 +106,10 @@ public class TopLevelPanel extends JPanel {
         taskButtons = new JPanel();
         taskButtons.setLayout(new BoxLayout(taskButtons, BoxLayout.LINE_AXIS));
         taskButtons.add(newRoomButton);
+        taskButtons.add(newChannelButton);
         taskButtons.add(oneOnOneButton);
         taskButtons.add(joinConvButton);
+        taskButtons.add(watchUserButton);
         taskButtons.add(disconnectButton);
 
         pastConversationsHeading = new JLabel("Past Conversations");
@@ -7,6 +7,10 @@ import java.io.*;
 
 import javax.swing.*;
 
+import network.MessageReader;
+import network.MessageWriter;
+import network.NetworkConstants;
+
 /**
  * Window which prompts the user for a username to use on the server. Complains
  * if the user input is invalid; spawns a ClientGUI upon success.
@@ -14,9 +18,25 @@ import javax.swing.*;
 public class UsernameSelectWindow extends JFrame {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * System property which, if "true", makes us ask the server for binary
+     * framing when registering a username.
+     */
+    public static final String BINARY_PROPERTY = "guichat.client.binaryProtocol";
+
     private final Socket socket;
-    private final BufferedReader in;
-    private final PrintWriter out;
+    private final MessageReader in;
+    private final MessageWriter out;
+    // Whether to ask for binary framing, whether the server refused it (by not
+    // understanding the request), and whether we are already using it
+    private final boolean wantBinary;
+    private boolean binaryRefused;
+    private boolean binary;
+    // Whether the server refused to send the users list in pages
+    private boolean pagesRefused;
+    // Whether the server refused to acknowledge our IMs in place of echoing
+    // them
+    private boolean acksRefused;
     // Human-readable name of server
     private final String serverName;
 
@@ -35,8 +55,10 @@ public class UsernameSelectWindow extends JFrame {
     public UsernameSelectWindow(Socket _socket, String _serverName)
             throws IOException {
         socket = _socket;
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+        in = new MessageReader(socket.getInputStream(), true,
+                Integer.MAX_VALUE);
+        out = new MessageWriter(socket.getOutputStream());
+        wantBinary = Boolean.getBoolean(BINARY_PROPERTY);
         serverName = _serverName;
 
         connectedTo = new JLabel();
@@ -202,18 +224,47 @@ public class UsernameSelectWindow extends JFrame {
         usernamePrompt.setText("Attempting to register username " + desiredName
                 + "...");
 
-        String messageOut = network.NetworkConstants.CONNECT + "\t"
-                + desiredName;
-        out.println(messageOut);
+        String messageOut = NetworkConstants.CONNECT + "\t" + desiredName;
+        boolean askBinary = wantBinary && !binaryRefused && !binary;
+        boolean askPages = !pagesRefused;
+        boolean askAcks = !acksRefused;
+        String options = (askBinary ? "\t" + NetworkConstants.BINARY_PROTOCOL
+                : "")
+                + (askPages ? "\t" + NetworkConstants.PAGED_USERS_LIST : "")
+                + (askAcks ? "\t" + NetworkConstants.ACKS : "");
+        out.writeMessage(messageOut + options);
 
         String messageIn = null;
         try {
-            messageIn = in.readLine();
+            messageIn = in.readMessage();
+            if (askBinary && messageIn != null
+                    && messageIn.equals(NetworkConstants.PROTOCOL_ACCEPTED
+                            + "\t" + NetworkConstants.BINARY_PROTOCOL)) {
+                // Everything after the acceptance is binary, both ways
+                in.useBinary();
+                out.useBinary();
+                binary = true;
+                messageIn = in.readMessage();
+            } else if (!options.isEmpty() && messageIn != null
+                    && messageIn.startsWith(NetworkConstants.ERROR + "\t")) {
+                // The server doesn't know what we asked for; connect in
+                // text, take the users list all at once, and have our IMs
+                // echoed
+                binaryRefused = true;
+                pagesRefused = true;
+                acksRefused = true;
+                out.writeMessage(messageOut);
+                messageIn = in.readMessage();
+            }
         } catch (IOException e) {
             e.printStackTrace();
             dialogAndReenable("I/O error, see stderr for stack trace.");
             return;
         }
+        if (messageIn == null) {
+            dialogAndReenable("The server closed the connection.");
+            return;
+        }
 
         String[] message = messageIn.split("\t", 2);
         if (message.length < 2) {
@@ -222,14 +273,14 @@ public class UsernameSelectWindow extends JFrame {
         }
 
         String messageType = message[0];
-        if (messageType.equals(network.NetworkConstants.INIT_USERS_LIST)) {
+        if (messageType.equals(NetworkConstants.INIT_USERS_LIST)) {
             // We were successfully assigned the username
             ClientGUI clientGUI = new ClientGUI(socket, in, out, serverName,
                     message[1].split("\t", 2)[0], message[1]);
             clientGUI.setVisible(true);
             this.dispose();
             return;
-        } else if (messageType.equals(network.NetworkConstants.DISCONNECTED)) {
+        } else if (messageType.equals(NetworkConstants.DISCONNECTED)) {
             dialogAndReenable("Could not login with username " + desiredName
                     + ". It was taken.");
             return;
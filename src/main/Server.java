@@ -5,6 +5,7 @@ import java.io.IOException;
 import network.NetworkConstants;
 
 import server.IMServer;
+import server.ServerConfig;
 
 /**
  * Chat server runner.
@@ -12,11 +13,13 @@ import server.IMServer;
 public class Server {
 
     /**
-     * Start a chat server.
+     * Start a chat server, configured from the guichat.server.* system
+     * properties (see ServerConfig).
      */
 	public static void main(String[] args) {
 		try {
-			IMServer server = new IMServer(NetworkConstants.DEFAULT_PORT);
+			IMServer server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					ServerConfig.fromProperties(System.getProperties()));
 			server.run();
 		} catch(IOException e) {
 			e.printStackTrace();
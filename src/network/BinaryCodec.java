@@ -0,0 +1,223 @@
+package network;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Converts protocol messages between their text form, a line of tab-separated
+ * fields, and the binary form used by connections that negotiated
+ * BINARY_PROTOCOL at CONNECT (see NetworkConstants).  A binary frame is:
+ *
+ *   length   varint   the number of bytes that follow
+ *   opcode   byte     the message type, e.g. 1 for NetworkConstants.IM
+ *   fields   ...      each remaining field of the line, in order
+ *
+ * where a varint is an unsigned integer in little-endian groups of seven bits,
+ * the high bit of each byte set on all but the last.  A field is a varint byte
+ * count followed by that many bytes of UTF-8, except for a message's IM ID,
+ * which is the varint of the ID itself.  The number of fields is implied by the
+ * frame's length, so the frame for "6" (no fields) differs from the frame for
+ * "6\t" (one empty field), and every line converts to a frame and back to
+ * the same line, but for leading zeros in an IM ID.  A field may hold no tab,
+ * "\n", or "\r", which its line could not carry, so a frame never decodes to
+ * more fields, or more lines, than it has.
+ *
+ * Messages keep their text-protocol meaning and grammar in binary form; only
+ * the framing differs, so that a frame can be read without scanning for
+ * delimiters or decoding decimal IDs, and a server can relay the same message
+ * to text and binary clients alike.
+ */
+public final class BinaryCodec {
+
+	private static final Charset UTF8 = Charset.forName(NetworkConstants.CHARSET);
+
+	/**
+	 * The most bytes a varint for an int can take.
+	 */
+	private static final int MAX_VARINT_BYTES = 5;
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * Returns the index of the field holding the IM ID in lines of the given
+	 * type, counting the type as field 0, or -1 if such lines have no ID.
+	 *
+	 * @param opcode The message type.
+	 * @param fromServer True for server-to-client messages, false for
+	 * 		  client-to-server ones.
+	 * @return The index of the ID field, or -1.
+	 */
+	private static int idField(int opcode, boolean fromServer) {
+		if(opcode != 1) // NetworkConstants.IM, in both directions
+			return -1;
+		return fromServer ? 3 : 2;
+	}
+
+	/**
+	 * Encodes a line as a binary frame.
+	 *
+	 * @param line The line, without its terminator.  Its first field must be a
+	 * 		  message type between 0 and 255 written without leading zeros, and its
+	 * 		  IM ID, if it is an IM, must match NetworkConstants.IM_ID.
+	 * @param fromServer True if line is a server-to-client message, false if it
+	 * 		  is a client-to-server one.
+	 * @return The frame, length prefix included.
+	 * @throws IllegalArgumentException If the type or IM ID is malformed.
+	 */
+	public static byte[] encode(String line, boolean fromServer) {
+		byte[] text = line.getBytes(UTF8);
+		// A tab is ASCII, so it never occurs inside a multi-byte character.
+		int fields = 1;
+		for(byte b : text)
+			if(b == '\t')
+				++fields;
+		int[] ends = new int[fields];
+		for(int i = 0, field = 0; i < text.length; ++i)
+			if(text[i] == '\t')
+				ends[field++] = i;
+		ends[fields - 1] = text.length;
+
+		int opcode = parseDecimal(text, 0, ends[0], 3, "message type");
+		if(opcode > 255 || (ends[0] > 1 && text[0] == '0'))
+			throw new IllegalArgumentException("malformed message type: " + line);
+		int id = idField(opcode, fromServer);
+		int idValue = 0;
+		int body = 1;
+		for(int field = 1; field < fields; ++field) {
+			int n = ends[field] - ends[field - 1] - 1;
+			if(field == id) {
+				idValue = parseDecimal(text, ends[field - 1] + 1, ends[field],
+						NetworkConstants.MAX_IM_ID_DIGITS, "IM ID");
+				body += varintLength(idValue);
+			} else
+				body += varintLength(n) + n;
+		}
+
+		byte[] frame = new byte[varintLength(body) + body];
+		int pos = writeVarint(frame, 0, body);
+		frame[pos++] = (byte) opcode;
+		for(int field = 1; field < fields; ++field) {
+			int start = ends[field - 1] + 1;
+			int n = ends[field] - start;
+			if(field == id)
+				pos = writeVarint(frame, pos, idValue);
+			else {
+				pos = writeVarint(frame, pos, n);
+				System.arraycopy(text, start, frame, pos, n);
+				pos += n;
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Decodes the body of a binary frame, everything after its length prefix,
+	 * into the line it encodes.
+	 *
+	 * @param frame The array holding the body.
+	 * @param offset Where in frame the body starts.
+	 * @param length The length of the body, as given by its prefix.
+	 * @param fromServer True if the frame is a server-to-client message, false if
+	 * 		  it is a client-to-server one.
+	 * @return The line, without a terminator.
+	 * @throws ProtocolException If the body is empty, a field runs past its
+	 * 		   end, or a field holds a tab or line terminator.
+	 */
+	public static String decode(byte[] frame, int offset, int length, boolean fromServer)
+			throws ProtocolException {
+		if(length < 1)
+			throw new ProtocolException("empty frame");
+		ByteBuffer in = ByteBuffer.wrap(frame, offset, length);
+		int opcode = in.get() & 0xff;
+		int id = idField(opcode, fromServer);
+		StringBuilder line = new StringBuilder(length + 8);
+		line.append(opcode);
+		for(int field = 1; in.hasRemaining(); ++field) {
+			line.append('\t');
+			int value = readVarint(in);
+			if(field == id) {
+				line.append(value);
+				continue;
+			}
+			if(value > in.remaining())
+				throw new ProtocolException("field runs past end of frame");
+			// Every byte of a multi-byte character is above 0x7f.
+			for(int i = in.position(); i < in.position() + value; ++i) {
+				if(frame[i] == '\t' || frame[i] == '\n' || frame[i] == '\r')
+					throw new ProtocolException("field holds a tab or line terminator");
+			}
+			line.append(new String(frame, in.position(), value, UTF8));
+			in.position(in.position() + value);
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Returns the value of text[start..end), which must be one to maxDigits ASCII
+	 * digits.
+	 *
+	 * @throws IllegalArgumentException If it is not, naming it what.
+	 */
+	private static int parseDecimal(byte[] text, int start, int end, int maxDigits, String what) {
+		if(end == start || end - start > maxDigits)
+			throw new IllegalArgumentException("malformed " + what + ": "
+					+ new String(text, start, end - start, UTF8));
+		int value = 0;
+		for(int i = start; i < end; ++i) {
+			if(text[i] < '0' || text[i] > '9')
+				throw new IllegalArgumentException("malformed " + what + ": "
+						+ new String(text, start, end - start, UTF8));
+			value = 10 * value + (text[i] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the number of bytes in the varint for value, which must not be
+	 * negative.
+	 */
+	private static int varintLength(int value) {
+		int n = 1;
+		while((value >>>= 7) != 0)
+			++n;
+		return n;
+	}
+
+	/**
+	 * Writes value, which must not be negative, into frame at pos as a varint.
+	 *
+	 * @return The index in frame just past the varint.
+	 */
+	private static int writeVarint(byte[] frame, int pos, int value) {
+		while((value & ~0x7f) != 0) {
+			frame[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		frame[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * Reads a varint from in.
+	 *
+	 * @throws ProtocolException If in ends inside the varint, or it does not fit
+	 * 		   in a non-negative int.
+	 */
+	private static int readVarint(ByteBuffer in) throws ProtocolException {
+		long value = 0;
+		for(int shift = 0; shift < 7 * MAX_VARINT_BYTES; shift += 7) {
+			if(!in.hasRemaining())
+				throw new ProtocolException("varint runs past end of frame");
+			int b = in.get() & 0xff;
+			value |= (long) (b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				if(value > Integer.MAX_VALUE)
+					break;
+				return (int) value;
+			}
+		}
+		throw new ProtocolException("varint too large");
+	}
+}
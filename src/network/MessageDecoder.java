@@ -0,0 +1,213 @@
+package network;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a stream of bytes into protocol messages, whichever way they are
+ * framed: as text lines, or, once useBinary has been called, as the binary
+ * frames described in BinaryCodec.  Bytes are fed in through next as they
+ * arrive, in buffers of any size, so the same decoder serves a blocking reader
+ * (see MessageReader) and a non-blocking one alike.  Instances of MessageDecoder
+ * have the following instance variables:
+ *
+ *  - fromServer is true if the messages decoded are server-to-client ones.
+ *  - maxBytes is the longest line or frame body accepted.
+ *  - binary is true once useBinary has been called.
+ *  - bytes[0..length) holds the current, incomplete line or frame body.
+ *  - skipLineFeed is true if the last line ended with "\r", so that a "\n"
+ *    right after it belongs to the same terminator.
+ *  - overlong is true while the rest of a line longer than maxBytes is being
+ *    discarded; bytes[0..length) then holds the line's first maxBytes bytes.
+ *  - frameLength is the length of the current frame's body, or -1 while its
+ *    length prefix, whose value so far is header and whose next seven bits go
+ *    at headerShift, is still being read.
+ *
+ * Text lines are terminated by "\n", "\r", or "\r\n", as for
+ * BufferedReader.readLine, and decoded with NetworkConstants.CHARSET.  A line
+ * longer than maxBytes is not buffered past maxBytes: the rest of it is
+ * discarded as it arrives, and then an OverlongLineException is thrown with
+ * its start, after which the next line is decoded as usual.  A binary frame
+ * longer than maxBytes cannot be skipped safely, and leaves the decoder
+ * unusable.  A MessageDecoder is not safe for use by more than one thread at
+ * a time.
+ */
+public final class MessageDecoder {
+
+	private static final Charset UTF8 = Charset.forName(NetworkConstants.CHARSET);
+
+	private final boolean fromServer;
+	private final int maxBytes;
+	private boolean binary;
+	private byte[] bytes;
+	private int length;
+	private boolean skipLineFeed;
+	private boolean overlong;
+	private int frameLength = -1;
+	private long header;
+	private int headerShift;
+
+	/**
+	 * Creates a MessageDecoder for text lines.
+	 *
+	 * @param fromServer True to decode server-to-client messages, false to
+	 * 		  decode client-to-server ones.
+	 * @param maxBytes The longest line or frame body to accept.
+	 */
+	public MessageDecoder(boolean fromServer, int maxBytes) {
+		this.fromServer = fromServer;
+		this.maxBytes = maxBytes;
+		this.bytes = new byte[Math.min(128, maxBytes)];
+	}
+
+	/**
+	 * Makes every message after the one last returned by next a binary frame.
+	 * If that message was a line ended by "\r", a "\n" immediately following it
+	 * is still taken as part of its terminator.
+	 */
+	public void useBinary() {
+		binary = true;
+	}
+
+	/**
+	 * Accessor method for this.binary.
+	 *
+	 * @return True if messages are read as binary frames.
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Consumes bytes from in until a message is complete, and returns it.  If in
+	 * runs out first, the bytes consumed are kept towards the next call.
+	 *
+	 * @param in The bytes received, between in's position and limit.
+	 * @return The next message, in its text form and without a terminator, or
+	 * 		   null if in was used up without completing one.
+	 * @throws ProtocolException If a frame is longer than maxBytes or
+	 * 		   malformed, or, as an OverlongLineException, once a line longer
+	 * 		   than maxBytes has been consumed.
+	 */
+	public String next(ByteBuffer in) throws ProtocolException {
+		return binary ? nextFrame(in) : nextLine(in);
+	}
+
+	/**
+	 * Returns the incomplete line consumed so far, if any, for when the stream
+	 * ends without terminating it; a partial binary frame, or the start of an
+	 * overlong line, is discarded.
+	 *
+	 * @return The unterminated last line, or null.
+	 */
+	public String finish() {
+		String rest = !binary && !overlong && length > 0 ? new String(bytes, 0, length, UTF8) : null;
+		length = 0;
+		overlong = false;
+		frameLength = -1;
+		return rest;
+	}
+
+	/**
+	 * Implements next for text lines.
+	 */
+	private String nextLine(ByteBuffer in) throws ProtocolException {
+		while(in.hasRemaining()) {
+			byte b = in.get();
+			if(skipLineFeed) {
+				skipLineFeed = false;
+				if(b == '\n')
+					continue;
+			}
+			if(b == '\n' || b == '\r') {
+				skipLineFeed = b == '\r';
+				if(overlong) {
+					overlong = false;
+					String start = new String(bytes, 0, wholeCharacters(), UTF8);
+					length = 0;
+					throw new OverlongLineException(maxBytes, start);
+				}
+				String line = new String(bytes, 0, length, UTF8);
+				length = 0;
+				return line;
+			}
+			if(overlong)
+				continue;
+			if(length == bytes.length) {
+				if(length >= maxBytes) {
+					overlong = true;
+					continue;
+				}
+				grow(Math.min(2 * (long) length, maxBytes));
+			}
+			bytes[length++] = b;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the length of bytes[0..length) cut back to the end of its last
+	 * whole UTF-8 character.
+	 */
+	private int wholeCharacters() {
+		int start = length - 1;
+		while(start > 0 && (bytes[start] & 0xc0) == 0x80)
+			--start;
+		if(start < 0)
+			return 0;
+		int lead = bytes[start] & 0xff;
+		int size = lead >= 0xf0 ? 4 : lead >= 0xe0 ? 3 : lead >= 0xc0 ? 2 : 1;
+		return length - start >= size ? length : start;
+	}
+
+	/**
+	 * Implements next for binary frames.
+	 */
+	private String nextFrame(ByteBuffer in) throws ProtocolException {
+		while(in.hasRemaining()) {
+			if(frameLength >= 0) {
+				int n = Math.min(in.remaining(), frameLength - length);
+				in.get(bytes, length, n);
+				length += n;
+				if(length < frameLength)
+					return null;
+				int body = frameLength;
+				frameLength = -1;
+				length = 0;
+				return BinaryCodec.decode(bytes, 0, body, fromServer);
+			}
+			int b = in.get() & 0xff;
+			if(skipLineFeed) {
+				skipLineFeed = false;
+				if(b == '\n')
+					continue;
+			}
+			header |= (long) (b & 0x7f) << headerShift;
+			headerShift += 7;
+			if((b & 0x80) != 0) {
+				if(headerShift >= 35)
+					throw new ProtocolException("frame length too large");
+				continue;
+			}
+			if(header < 1 || header > maxBytes)
+				throw new ProtocolException("frame length " + header + " out of range");
+			frameLength = (int) header;
+			header = 0;
+			headerShift = 0;
+			length = 0;
+			if(bytes.length < frameLength)
+				grow(frameLength);
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces this.bytes with a copy of the given size.
+	 */
+	private void grow(long size) {
+		byte[] bigger = new byte[(int) size];
+		System.arraycopy(bytes, 0, bigger, 0, length);
+		bytes = bigger;
+	}
+}
@@ -0,0 +1,82 @@
+package network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads protocol messages from a blocking InputStream with a MessageDecoder, so
+ * that a reader can switch from text lines to binary frames at a message
+ * boundary without losing bytes to read-ahead, as a BufferedReader over the
+ * same stream would.  Instances of MessageReader have the following instance
+ * variables:
+ *
+ *  - in is the stream read from.
+ *  - decoder frames the bytes read from in.
+ *  - buffer holds bytes read from in, between its position and limit, that have
+ *    not yet been passed to decoder.
+ *
+ * A MessageReader is not safe for use by more than one thread at a time.
+ */
+public final class MessageReader {
+
+	private static final int BUFFER_BYTES = 4096;
+
+	private final InputStream in;
+	private final MessageDecoder decoder;
+	private final ByteBuffer buffer;
+
+	/**
+	 * Creates a MessageReader for text lines from in.
+	 *
+	 * @param in The stream to read from.
+	 * @param fromServer True to read server-to-client messages, false to read
+	 * 		  client-to-server ones.
+	 * @param maxBytes The longest line or frame body to accept.
+	 */
+	public MessageReader(InputStream in, boolean fromServer, int maxBytes) {
+		this.in = in;
+		this.decoder = new MessageDecoder(fromServer, maxBytes);
+		this.buffer = ByteBuffer.allocate(BUFFER_BYTES);
+		buffer.flip();
+	}
+
+	/**
+	 * Reads the next message, blocking until one arrives.
+	 *
+	 * @return The message in its text form, without a terminator, or null if the
+	 * 		   stream ended.  A last line not terminated before the end is returned
+	 * 		   as it is, as BufferedReader.readLine would.
+	 * @throws IOException If reading fails, or the message is malformed or longer
+	 * 		   than maxBytes (a java.net.ProtocolException).
+	 */
+	public String readMessage() throws IOException {
+		while(true) {
+			String message = decoder.next(buffer);
+			if(message != null)
+				return message;
+			int n = in.read(buffer.array(), 0, buffer.capacity());
+			if(n < 0)
+				return decoder.finish();
+			buffer.position(0);
+			buffer.limit(n);
+		}
+	}
+
+	/**
+	 * Makes every message after the one last returned by readMessage a binary
+	 * frame.  See MessageDecoder.useBinary.
+	 */
+	public void useBinary() {
+		decoder.useBinary();
+	}
+
+	/**
+	 * Closes the underlying stream.
+	 *
+	 * @throws IOException If closing it fails.
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
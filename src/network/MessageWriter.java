@@ -0,0 +1,80 @@
+package network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes client-to-server protocol messages to a blocking OutputStream, as text
+ * lines or, once useBinary has been called, as the binary frames described in
+ * BinaryCodec.  Like a PrintWriter, a MessageWriter never throws; a failed write
+ * is recorded for checkError.  Each message is written and flushed in a single
+ * call to the stream.  Instances of MessageWriter have the following instance
+ * variables:
+ *
+ *  - out is the stream written to.
+ *  - binary is true once useBinary has been called.
+ *  - error is true once a write has failed.
+ *
+ * All methods are synchronized, so a MessageWriter may be shared by threads.
+ */
+public final class MessageWriter {
+
+	private static final Charset UTF8 = Charset.forName(NetworkConstants.CHARSET);
+
+	private final OutputStream out;
+	private boolean binary;
+	private boolean error;
+
+	/**
+	 * Creates a MessageWriter for text lines to out.
+	 *
+	 * @param out The stream to write to.
+	 */
+	public MessageWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes message and flushes it.
+	 *
+	 * @param message The message in its text form, without a terminator.
+	 */
+	public synchronized void writeMessage(String message) {
+		byte[] bytes = binary ? BinaryCodec.encode(message, false)
+				: (message + "\n").getBytes(UTF8);
+		try {
+			out.write(bytes);
+			out.flush();
+		} catch(IOException e) {
+			error = true;
+		}
+	}
+
+	/**
+	 * Writes every message after this call as a binary frame.
+	 */
+	public synchronized void useBinary() {
+		binary = true;
+	}
+
+	/**
+	 * Returns whether any write has failed.
+	 *
+	 * @return True if a write has failed.
+	 */
+	public synchronized boolean checkError() {
+		return error;
+	}
+
+	/**
+	 * Closes the underlying stream.
+	 */
+	public synchronized void close() {
+		try {
+			out.close();
+		} catch(IOException e) {
+			error = true;
+		}
+	}
+}
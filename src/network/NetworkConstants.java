@@ -3,11 +3,77 @@ package network;
 /**
  * Contains constants involved in network communications.
  *
+ * Besides the messages of the original protocol, a client may ask for the
+ * following when it connects, by adding the options, in the order they are
+ * declared here, as further fields of its CONNECT line.  A server that does
+ * not offer one answers with an ERROR, and the client may connect again
+ * without it.
+ *
+ *  - BINARY_PROTOCOL: the server answers with a text PROTOCOL_ACCEPTED line,
+ *    and every message after, in either direction, is a binary frame (see
+ *    BinaryCodec) with the same fields as its line.
+ *  - PAGED_USERS_LIST: the initial users list names only the client, and the
+ *    other users follow in USERS_PAGE messages, in order of name.  The client
+ *    asks for the page after one with NEXT_USERS_PAGE and the page's cursor;
+ *    an empty cursor marks the last page.  Such a client entering a
+ *    conversation with more members than fit in a page is sent an
+ *    ENTERED_CONV naming only itself, then MEMBERS_PAGE messages, and asks
+ *    for more with NEXT_MEMBERS_PAGE.
+ *  - SEQUENCED_IMS: IMs carry the sequence number and timestamp their
+ *    conversation gave them.  Each conversation numbers its IMs from 1 with
+ *    no gaps, so a client that sees a number skipped has missed an IM, and
+ *    timestamps never decrease within a conversation.
+ *  - ACKS: the client is sent an ACK for each of its IMs, once the IM has
+ *    been numbered and queued for the other members, instead of the IM.
+ *  - RESUMABLE: the client is sent a SESSION token.  If its connection drops,
+ *    the server holds what is sent to it for a grace period and tells no one
+ *    it has gone; the client resumes on a new connection with RESUME, is sent
+ *    RESUMED with a new token and then what it missed.  A token resumes a
+ *    session once, within the grace period, and only if the server held
+ *    everything sent meanwhile; otherwise the client must connect again.
+ *
+ * An IM sent again with an IM ID already relayed to its conversation, as
+ * after a timeout, is not relayed twice: the client is sent its echo, or its
+ * ACK, again, with sequence number 0.  Clients should number their IMs to
+ * each conversation upwards from when they enter it.
+ *
+ * A member may ask for IMs sent to a conversation before, with HISTORY_AFTER
+ * and a sequence number, or HISTORY_LAST and a count.  The server sends them
+ * as HISTORY messages, a chunk at a time, each chunk followed by a
+ * HISTORY_END naming the last sequence number sent and how many remain, and
+ * sends the next chunk when asked with NEXT_HISTORY.  A new request for the
+ * same conversation replaces the one being answered.
+ *
+ * A server may collect a conversation's joins and leaves over a short window
+ * and send one MEMBERSHIP message listing the users now in it and those now
+ * out of it, instead of ADDED_TO_CONV and REMOVED_FROM_CONV.  Each
+ * conversation numbers its membership from 1, counting each join and leave,
+ * and a member that adds a version to RETRIEVE_PARTICIPANTS is sent a
+ * PARTICIPANTS_DIFF of the changes since.  If the server no longer remembers
+ * that version, or it is 0, the diff names version 0 with empty lists, and
+ * every other participant follows in MEMBERS_PAGE messages.
+ *
+ * A member sets how much of a conversation's IMs it is sent with SET_LEVEL.
+ * At LEVEL_FULL, where every member starts, it is sent every IM; at
+ * LEVEL_COUNTS, now and then an UNREAD message instead; at LEVEL_NONE,
+ * nothing.  Its own IMs are echoed or acknowledged at every level.  Going
+ * back to LEVEL_FULL, it is sent the IMs withheld as HISTORY, or one UNREAD
+ * if the server keeps no history.
+ *
+ * NEW_CHANNEL creates a broadcast channel, which users enter, leave, and are
+ * added to as a conversation.  Only its publishers, its creator and those
+ * named with ADD_PUBLISHER, may send IMs to it; the others are listeners,
+ * whose joins and leaves are told to no one, and who are left out of the
+ * participants every member is sent.
  */
 public class NetworkConstants {
 	
 	public static final int DEFAULT_PORT = 4445;
 	
+	// Character encoding of every message, in both directions.
+	
+	public static final String CHARSET = "UTF-8";
+	
 	// Server to client messages.
 	
 	public static final String INIT_USERS_LIST = "0";
@@ -19,6 +85,18 @@ public class NetworkConstants {
 	public static final String DISCONNECTED = "6";
 	public static final String PARTICIPANTS = "7";
 	public static final String ERROR = "8";
+	public static final String PROTOCOL_ACCEPTED = "9";
+	public static final String PRESENCE = "10";
+	public static final String USERS_PAGE = "11";
+	public static final String HISTORY = "12";
+	public static final String HISTORY_END = "13";
+	public static final String SESSION = "14";
+	public static final String RESUMED = "15";
+	public static final String ACK = "16";
+	public static final String MEMBERSHIP = "17";
+	public static final String MEMBERS_PAGE = "18";
+	public static final String PARTICIPANTS_DIFF = "19";
+	public static final String UNREAD = "20";
 	
 	// Client to server messages.
 	
@@ -32,14 +110,83 @@ public class NetworkConstants {
 	public static final String DISCONNECT = "6\t";
 	public static final String RETRIEVE_PARTICIPANTS = "7";
 	public static final String TWO_WAY_CONV = "8";
+	public static final String SUBSCRIBE_PRESENCE = "9";
+	public static final String UNSUBSCRIBE_PRESENCE = "10";
+	public static final String NEXT_USERS_PAGE = "11";
+	public static final String HISTORY_AFTER = "12";
+	public static final String HISTORY_LAST = "13";
+	public static final String NEXT_HISTORY = "14";
+	public static final String RESUME = "15";
+	public static final String NEXT_MEMBERS_PAGE = "16";
+	public static final String SET_LEVEL = "17";
+	public static final String NEW_CHANNEL = "18";
+	public static final String ADD_PUBLISHER = "19";
 
+	// CONNECT \t <username> \t BINARY_PROTOCOL  ->  PROTOCOL_ACCEPTED \t BINARY_PROTOCOL
+	// Every message after those two, in either direction, is a binary frame.
+	
+	public static final String BINARY_PROTOCOL = "binary";
+	
+	// USERS_PAGE \t <number of other users> \t <cursor> \t <names>...;  NEXT_USERS_PAGE \t <cursor>
+	// A client that connects with PAGED_USERS_LIST is sent the other users in these pages.
+	
+	public static final String PAGED_USERS_LIST = "paged";
+	
+	// IM \t <sender> \t <conversation> \t <IM ID> \t <sequence number> \t <millis> \t <text>
+	// The form in which IMs are sent to a client that connects with SEQUENCED_IMS.
+	
+	public static final String SEQUENCED_IMS = "sequenced";
+	
+	// ACK \t <conversation> \t <IM ID> \t <sequence number>
+	// Sent to a client that connects with ACKS in place of each of its own IMs.
+	
+	public static final String ACKS = "acks";
+	
+	// SESSION \t <token>;  RESUME \t <token> [\t BINARY_PROTOCOL]  ->  RESUMED \t <username> \t <new token>
+	// A client that connects with RESUMABLE may resume its session on a new connection.
+	
+	public static final String RESUMABLE = "resumable";
+	
+	// MEMBERSHIP \t <conversation> \t <n> \t <n names now in>... \t <names now out>...
+	// MEMBERS_PAGE \t <conversation> \t <number of other members> \t <cursor> \t <names>...
+	// PARTICIPANTS_DIFF \t <conversation> \t <version asked for> \t <version> \t <n> \t <n names in>... \t <names out>...
+	// Membership sent in bulk; the class comment says when each is sent.
+	
+	// HISTORY_AFTER \t <conversation> \t <sequence number>;  HISTORY_LAST \t <conversation> \t <count>
+	//   ->  HISTORY \t <conversation> \t <sequence number> \t <millis> \t <sender> \t <IM ID> \t <text>
+	//   ->  HISTORY_END \t <conversation> \t <last sequence number sent> \t <number still to send>
+	// Each chunk of history after the first is sent on NEXT_HISTORY \t <conversation>.
+	
+	// SET_LEVEL \t <conversation> \t <level>  ->  UNREAD \t <conversation> \t <count> \t <latest sequence number>
+	// Sets how much of a conversation's IMs a member is sent, to one of these levels.
+	
+	public static final String LEVEL_FULL = "full";
+	public static final String LEVEL_COUNTS = "counts";
+	public static final String LEVEL_NONE = "none";
+	
+	// NEW_CHANNEL \t <channel>;  ADD_PUBLISHER \t <username> \t <channel>
+	// A channel is a conversation to which only its publishers may send IMs.
+	
+	// The most bytes of a request line or frame body a server accepts.
+	
+	public static final int MAX_REQUEST_BYTES = 16 * 1024;
+	
+	// Limits on portions of network messages, in code points (digits for IDs).
+	
+	public static final int MAX_USERNAME_LENGTH = 256;
+	public static final int MAX_CONV_NAME_LENGTH = 256;
+	public static final int MAX_IM_ID_DIGITS = 9;
+	public static final int MAX_SEQUENCE_DIGITS = 18;
+	public static final int MAX_MESSAGE_LENGTH = 512;
+	
 	// Regular expressions for portions of network messages.
 	
-	public static final String USERNAME = "[^\t\n]{1,256}";
-	public static final String NEW_USERNAME = "[^\t\n]{0,256}";
-	public static final String CONV_NAME = "[^\t\n]{1,256}";
-	public static final String NEW_CONV_NAME = "[^\t\n]{0,256}";
-	public static final String IM_ID = "[0-9]{1,9}";
-	public static final String MESSAGE = "[^\t\n]{1,512}";
+	public static final String USERNAME = "[^\t\n]{1," + MAX_USERNAME_LENGTH + "}";
+	public static final String NEW_USERNAME = "[^\t\n]{0," + MAX_USERNAME_LENGTH + "}";
+	public static final String CONV_NAME = "[^\t\n]{1," + MAX_CONV_NAME_LENGTH + "}";
+	public static final String NEW_CONV_NAME = "[^\t\n]{0," + MAX_CONV_NAME_LENGTH + "}";
+	public static final String IM_ID = "[0-9]{1," + MAX_IM_ID_DIGITS + "}";
+	public static final String SEQUENCE = "[0-9]{1," + MAX_SEQUENCE_DIGITS + "}";
+	public static final String MESSAGE = "[^\t\n]{1," + MAX_MESSAGE_LENGTH + "}";
 	
 }
@@ -0,0 +1,42 @@
+package network;
+
+import java.net.ProtocolException;
+
+/**
+ * Thrown by MessageDecoder for a text line longer than it accepts, once the
+ * rest of the line, up to and including its terminator, has been discarded,
+ * so that the decoder may go on to the next line.  A reader that closes the
+ * connection on any ProtocolException may let it pass as one; a server that
+ * answers bad lines with an error message may take getLine as the line
+ * instead.  Instances of OverlongLineException have the following instance
+ * variables:
+ *
+ *  - line is the start of the line: as many whole characters as fit in the
+ *    decoder's limit.
+ */
+public final class OverlongLineException extends ProtocolException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String line;
+
+	/**
+	 * Creates an OverlongLineException.
+	 *
+	 * @param maxBytes The longest line the decoder accepts.
+	 * @param line The start of the line, non-null.
+	 */
+	OverlongLineException(int maxBytes, String line) {
+		super("line longer than " + maxBytes + " bytes");
+		this.line = line;
+	}
+
+	/**
+	 * Accessor method for this.line.
+	 *
+	 * @return The start of the overlong line, without its terminator.
+	 */
+	public String getLine() {
+		return line;
+	}
+}
@@ -0,0 +1,259 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import network.BinaryCodec;
+import network.MessageDecoder;
+import network.MessageReader;
+import network.NetworkConstants;
+import network.OverlongLineException;
+
+import org.junit.Test;
+
+import test.TestClient;
+
+/**
+ * JUnit tests for binary framing: the codec, the decoder that switches to it
+ * mid-stream, and its negotiation at CONNECT with a running server.
+ *
+ * @category no_didit
+ */
+public class BinaryProtocolTest {
+
+	/**
+	 * Returns the concatenation of the given arrays.
+	 */
+	private static byte[] concat(byte[]... arrays) {
+		int n = 0;
+		for(byte[] a : arrays)
+			n += a.length;
+		byte[] all = new byte[n];
+		n = 0;
+		for(byte[] a : arrays) {
+			System.arraycopy(a, 0, all, n, a.length);
+			n += a.length;
+		}
+		return all;
+	}
+
+	/**
+	 * Encodes line and decodes it again, body only, as the decoder would.
+	 */
+	private static String roundTrip(String line, boolean fromServer) throws ProtocolException {
+		byte[] frame = BinaryCodec.encode(line, fromServer);
+		ByteBuffer in = ByteBuffer.wrap(frame);
+		MessageDecoder decoder = new MessageDecoder(fromServer, Integer.MAX_VALUE);
+		decoder.useBinary();
+		String decoded = decoder.next(in);
+		assertFalse(in.hasRemaining());
+		return decoded;
+	}
+
+	/**
+	 * Expect every line to survive encoding and decoding unchanged, whatever its
+	 * fields, and IM IDs to be sent as varints.
+	 */
+	@Test public void roundTripTest() throws ProtocolException {
+		String[] fromServer = { NetworkConstants.IM + "\talice\tconv\t123456789\thello",
+				NetworkConstants.IM + "\t\u00e9\u4e2d\tc\t0\t\ud83d\ude00",
+				NetworkConstants.IM + "\talice\tconv\t7\t9223372036854775807\t1700000000000\thello",
+				NetworkConstants.INIT_USERS_LIST + "\ta\tb\tc", NetworkConstants.INIT_USERS_LIST + "\t",
+				NetworkConstants.ERROR + "\t" + NetworkConstants.DISCONNECT,
+				NetworkConstants.PARTICIPANTS + "\tconv\t\t\t" };
+		for(String line : fromServer)
+			assertEquals(line, roundTrip(line, true));
+		String[] fromClient = { NetworkConstants.IM + "\tconv\t42\thi", NetworkConstants.DISCONNECT,
+				NetworkConstants.DISCONNECT_NO_TAB, NetworkConstants.CONNECT + "\t",
+				NetworkConstants.IM + "\tconv", "255" };
+		for(String line : fromClient)
+			assertEquals(line, roundTrip(line, false));
+
+		byte[] im = BinaryCodec.encode(NetworkConstants.IM + "\tc\t300\tm", false);
+		// length, opcode, "c", ID 300 as two varint bytes, "m"
+		assertArrayEquals(new byte[] { 7, 1, 1, 'c', (byte) 0xac, 0x02, 1, 'm' }, im);
+	}
+
+	/**
+	 * Expect lines the codec cannot represent to be refused.
+	 */
+	@Test public void encodeRejectsTest() {
+		String[] bad = { "", "x", "01", "256", NetworkConstants.IM + "\tconv\tabc\thi",
+				NetworkConstants.IM + "\tconv\t1234567890\thi" };
+		for(String line : bad) {
+			try {
+				BinaryCodec.encode(line, false);
+				fail("encoded " + line);
+			} catch(IllegalArgumentException e) {
+			}
+		}
+	}
+
+	/**
+	 * Expect a decoder to switch from lines to frames right after the line that
+	 * negotiated them, even when both arrive in one buffer, and the line ends in
+	 * "\r\n"; and to reassemble frames fed a byte at a time.
+	 */
+	@Test public void switchMidBufferTest() throws ProtocolException {
+		String connect = NetworkConstants.CONNECT + "\tname\t" + NetworkConstants.BINARY_PROTOCOL;
+		String im = NetworkConstants.IM + "\tconv\t7\thello";
+		byte[] bytes = concat((connect + "\r\n").getBytes(Frame.CHARSET),
+				BinaryCodec.encode(im, false), BinaryCodec.encode(NetworkConstants.DISCONNECT_NO_TAB, false));
+
+		MessageDecoder decoder = new MessageDecoder(false, NetworkConstants.MAX_REQUEST_BYTES);
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		assertEquals(connect, decoder.next(in));
+		decoder.useBinary();
+		assertEquals(im, decoder.next(in));
+		assertEquals(NetworkConstants.DISCONNECT_NO_TAB, decoder.next(in));
+		assertNull(decoder.next(in));
+
+		decoder = new MessageDecoder(false, NetworkConstants.MAX_REQUEST_BYTES);
+		StringBuilder got = new StringBuilder();
+		for(int i = 0; i < bytes.length; ++i) {
+			String s = decoder.next(ByteBuffer.wrap(bytes, i, 1));
+			if(s != null)
+				got.append(s).append('|');
+			if(connect.equals(s))
+				decoder.useBinary();
+		}
+		assertEquals(connect + "|" + im + "|" + NetworkConstants.DISCONNECT_NO_TAB + "|", got.toString());
+	}
+
+	/**
+	 * Expect malformed or oversized frames, frames whose fields hold a tab or
+	 * line terminator, and overlong lines, to be refused.
+	 */
+	@Test public void malformedFramesTest() {
+		byte[][] bad = { { 0 }, { 3, 2, 5, 'a' }, { (byte) 0x81, (byte) 0x80, 0x01 },
+				{ (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f },
+				{ 8, 1, 3, 'a', '\t', 'b', 0, 1, 'x' }, { 5, 0, 3, 'a', '\n', 'b' },
+				{ 5, 0, 3, 'a', '\r', 'b' } };
+		for(byte[] frame : bad) {
+			MessageDecoder decoder = new MessageDecoder(false, NetworkConstants.MAX_REQUEST_BYTES);
+			decoder.useBinary();
+			try {
+				decoder.next(ByteBuffer.wrap(frame));
+				fail("decoded " + java.util.Arrays.toString(frame));
+			} catch(ProtocolException e) {
+			}
+		}
+		MessageDecoder decoder = new MessageDecoder(false, 4);
+		try {
+			decoder.next(ByteBuffer.wrap("12345\n".getBytes(Frame.CHARSET)));
+			fail("decoded an overlong line");
+		} catch(ProtocolException e) {
+		}
+	}
+
+	/**
+	 * Expect a client asking for binary framing at CONNECT to be answered with a
+	 * text acceptance and then binary frames, and to be able to talk with text
+	 * clients, over both blocking and selector connections.
+	 */
+	@Test(timeout=10000) public void negotiationTest() throws IOException {
+		for(ConnectionMode mode : new ConnectionMode[] { ConnectionMode.THREAD_PER_USER, ConnectionMode.SELECTOR }) {
+			IMServer server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setConnectionMode(mode));
+			Thread serverThread = new Thread(server);
+			serverThread.start();
+			TestClient text = null;
+			Socket socket = null;
+			try {
+				text = new TestClient(NetworkConstants.DEFAULT_PORT);
+				text.send(NetworkConstants.CONNECT + "\tt");
+				assertEquals(NetworkConstants.INIT_USERS_LIST + "\tt", text.readLine());
+
+				socket = new Socket("localhost", NetworkConstants.DEFAULT_PORT);
+				socket.setSoTimeout(5000);
+				OutputStream out = socket.getOutputStream();
+				MessageReader in = new MessageReader(socket.getInputStream(), true, Integer.MAX_VALUE);
+				out.write((NetworkConstants.CONNECT + "\tb\t" + NetworkConstants.BINARY_PROTOCOL + "\n")
+						.getBytes(Frame.CHARSET));
+				out.flush();
+				assertEquals(NetworkConstants.PROTOCOL_ACCEPTED + "\t" + NetworkConstants.BINARY_PROTOCOL,
+						in.readMessage());
+				in.useBinary();
+				String init = in.readMessage();
+				assertTrue(init, init.equals(NetworkConstants.INIT_USERS_LIST + "\tb\tt")
+						|| init.equals(NetworkConstants.INIT_USERS_LIST + "\tt\tb"));
+				assertEquals(NetworkConstants.CONNECTED + "\tb", text.readLine());
+
+				out.write(BinaryCodec.encode(NetworkConstants.TWO_WAY_CONV + "\tt", false));
+				out.flush();
+				String entered = in.readMessage();
+				assertTrue(entered, entered.startsWith(NetworkConstants.ENTERED_CONV + "\t"));
+				String conv = entered.split("\t")[1];
+				text.readLine(); // ENTERED_CONV
+				out.write(BinaryCodec.encode(NetworkConstants.IM + "\t" + conv + "\t300\th\u00e9llo", false));
+				out.flush();
+				String im = NetworkConstants.IM + "\tb\t" + conv + "\t300\th\u00e9llo";
+				assertEquals(im, in.readMessage());
+				assertEquals(im, text.readLine());
+
+				text.send(NetworkConstants.IM + "\t" + conv + "\t9\tback");
+				assertEquals(NetworkConstants.IM + "\tt\t" + conv + "\t9\tback", in.readMessage());
+
+				out.write(BinaryCodec.encode(NetworkConstants.IM + "\t" + conv + "\t1\ta\tb", false));
+				out.flush();
+				assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.IM + "\t" + conv + "\t1\ta\tb",
+						in.readMessage());
+			} finally {
+				if(socket != null)
+					socket.close();
+				if(text != null)
+					text.close();
+				server.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect a line longer than a decoder accepts to be skipped to its end and
+	 * reported with as many whole characters as fit, and the next line to be
+	 * decoded as usual; and a server to answer such a line with an error
+	 * message, as it does any other bad line, and go on serving the client,
+	 * over both blocking and selector connections.
+	 */
+	@Test(timeout=10000) public void overlongLineTest() throws IOException {
+		MessageDecoder decoder = new MessageDecoder(false, 4);
+		ByteBuffer in = ByteBuffer.wrap("a\u00e9\u00e9xyz\r\nab\n".getBytes(Frame.CHARSET));
+		try {
+			decoder.next(in);
+			fail("decoded an overlong line");
+		} catch(OverlongLineException e) {
+			assertEquals("a\u00e9", e.getLine());
+		}
+		assertEquals("ab", decoder.next(in));
+
+		StringBuilder text = new StringBuilder();
+		while(text.length() < NetworkConstants.MAX_REQUEST_BYTES + 1000)
+			text.append("overlong ");
+		String line = NetworkConstants.IM + "\troom\t1\t" + text;
+		for(ConnectionMode mode : new ConnectionMode[] { ConnectionMode.THREAD_PER_USER, ConnectionMode.SELECTOR }) {
+			IMServer server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setConnectionMode(mode));
+			new Thread(server).start();
+			TestClient a = null;
+			try {
+				a = new TestClient(NetworkConstants.DEFAULT_PORT);
+				a.send(NetworkConstants.CONNECT + "\ta");
+				a.readLine();
+				a.send(NetworkConstants.NEW_CONV + "\troom");
+				a.readLine();
+				a.send(line);
+				assertEquals(NetworkConstants.ERROR + "\t" + line.substring(0, NetworkConstants.MAX_REQUEST_BYTES),
+						a.readLine());
+				a.send(NetworkConstants.IM + "\troom\t2\tshort");
+				assertEquals(NetworkConstants.IM + "\ta\troom\t2\tshort", a.readLine());
+			} finally {
+				if(a != null)
+					a.close();
+				server.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import network.MessageDecoder;
+import network.NetworkConstants;
+import network.OverlongLineException;
+
+/**
+ * A Connection over a non-blocking SocketChannel serviced by one of a
+ * SelectorEngine's event loops.  All reads, and all writes to the channel,
+ * happen on that loop's thread; other threads only enqueue outgoing data.  The
+ * requests read are handled on the SelectorEngine's request workers, never on
+ * the loop.  Instances of ChannelConnection have the following instance
+ * variables:
+ *
+ *  - channel is the channel over which the server communicates with the client.
+ *  - loop is the EventLoop that services channel.
+ *  - key is channel's SelectionKey with loop's Selector, or null until the
+ *    channel has been registered.
+ *  - user is the User that requests read from channel are passed to.
+ *  - workers is the Executor on which requests are handled.
+ *  - readBuffer holds bytes read from channel that have not yet been framed.
+ *    While reading is paused, it holds those left over, in write mode.
+ *  - decoder frames the bytes read into requests, as text lines or, once the
+ *    client has negotiated them, binary frames.  Only loop's thread uses it.
+ *  - pending is the bounded queue of buffers over Frames waiting to be written to
+ *    channel, each in the framing that was in use when it was sent.  If it
+ *    overflows, the connection is closed on loop's thread.
+ *  - binary is true once useBinary has been called.
+ *  - batch[batchStart..batchEnd) are the lines, taken from pending, that are being
+ *    written to channel together; only batch[batchStart] may be partly written.
+ *    batchBytes is the number of bytes in them not yet written, and batchReason
+ *    is why they are being written.  Only loop's thread uses these.
+ *  - batchDeadline is when lines first entered the (then empty) batch, plus the
+ *    flush delay; a batch short of the threshold is not written before then.
+ *  - flushThresholdBytes, flushDelayNanos, and stats are the server's coalescing
+ *    settings and the counters that writes are added to.
+ *  - writeScheduled is true while a flush of pending is queued on, running on, or
+ *    scheduled by a timer on loop; it keeps senders from waking the loop once
+ *    per line.
+ *  - requests holds the requests framed by loop and not yet handled, in the
+ *    order they were read, and queued counts them, along with the one being
+ *    handled, if any.
+ *  - handling is true while a task handling requests is queued on, or running
+ *    on, workers.  There is never more than one, so this.user is passed one
+ *    request at a time, in order.
+ *  - paused is true while loop has stopped reading from channel until every
+ *    request in requests has been handled: when MAX_QUEUED_REQUESTS are
+ *    waiting, or a request that may switch framing is (see mayChangeFraming).
+ *  - ended is true once this.user has asked to disconnect; the requests after
+ *    are dropped.  Only the task handling requests uses it.
+ *  - told is true once this.user has been told its client is gone.  Only the
+ *    task handling requests uses it.
+ *
+ * Requests are framed by the same MessageDecoder as in THREAD_PER_USER mode.  A
+ * request longer than NetworkConstants.MAX_REQUEST_BYTES is not valid under the
+ * protocol grammar: a line that long is cut to that length, the rest of it
+ * discarded, and handled, and so refused, like any other bad line, while a
+ * frame that long closes the connection, as does a malformed one, so that a
+ * client cannot make the server buffer unbounded input.  For the same reason,
+ * no more than MAX_QUEUED_REQUESTS are held waiting for the workers.
+ * this.user is told its client is gone by the task handling requests, after
+ * the last of them, so that it never leaves while a request is being handled.
+ *
+ * Output is coalesced: a flush gathers queued lines until they add up to
+ * flushThresholdBytes or the queue is empty, and hands them to the channel in a
+ * single gathering write, without copying them.
+ */
+class ChannelConnection implements Connection {
+
+	private static final int READ_BUFFER_BYTES = 4096;
+
+	/**
+	 * How many requests may wait to be handled before reading stops.
+	 */
+	static final int MAX_QUEUED_REQUESTS = 64;
+
+	private final SocketChannel channel;
+	private final SelectorEngine.EventLoop loop;
+	private SelectionKey key;
+	private User user;
+	private final Executor workers;
+	private final ByteBuffer readBuffer;
+	private final MessageDecoder decoder;
+	private final OutboundQueue<ByteBuffer> pending;
+	private volatile boolean binary;
+	private ByteBuffer[] batch;
+	private int batchStart;
+	private int batchEnd;
+	private long batchBytes;
+	private ServerStats.FlushReason batchReason;
+	private long batchDeadline;
+	private final int flushThresholdBytes;
+	private final long flushDelayNanos;
+	private final ServerStats stats;
+	private final AtomicBoolean writeScheduled;
+	private final AtomicBoolean closed;
+	private final Queue<String> requests = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicBoolean handling = new AtomicBoolean();
+	private final AtomicBoolean paused = new AtomicBoolean();
+	private boolean ended;
+	private boolean told;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	private final Runnable closeTask = new Runnable() {
+		public void run() {
+			close();
+		}
+	};
+
+	private final Runnable handleTask = new Runnable() {
+		public void run() {
+			handleRequests();
+		}
+	};
+
+	private final Runnable resumeTask = new Runnable() {
+		public void run() {
+			resumeReading();
+		}
+	};
+
+	/**
+	 * Creates a ChannelConnection for channel, to be serviced by loop.
+	 *
+	 * @param channel A connected SocketChannel.
+	 * @param loop The event loop that will service channel.
+	 * @param workers The Executor on which to handle requests, non-null.
+	 * @param config The settings for the outbound queue and coalescing, non-null.
+	 * @param stats The counters to which writes are added, non-null.
+	 */
+	ChannelConnection(SocketChannel channel, SelectorEngine.EventLoop loop, Executor workers,
+			ServerConfig config, ServerStats stats) {
+		this.channel = channel;
+		this.loop = loop;
+		this.workers = workers;
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+		this.decoder = new MessageDecoder(false, NetworkConstants.MAX_REQUEST_BYTES);
+		this.pending = new OutboundQueue<ByteBuffer>(config, new Runnable() {
+			public void run() {
+				ChannelConnection.this.loop.execute(closeTask);
+			}
+		});
+		this.batch = new ByteBuffer[16];
+		this.flushThresholdBytes = config.getFlushThresholdBytes();
+		this.flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushDelayMillis());
+		this.stats = stats;
+		this.writeScheduled = new AtomicBoolean(false);
+		this.closed = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Sets the User that requests from this connection are passed to.  Must be
+	 * called before the channel is registered with loop.
+	 *
+	 * @param user The User for this connection, non-null.
+	 */
+	void setUser(User user) {
+		this.user = user;
+	}
+
+	/**
+	 * Sets this.key once the channel has been registered, and writes out anything
+	 * sent in the meantime.  Called on loop's thread.
+	 *
+	 * @param key The channel's SelectionKey.
+	 */
+	void setKey(SelectionKey key) {
+		this.key = key;
+		if(closed.get()) {
+			key.cancel();
+			return;
+		}
+		if(!pending.isEmpty() && writeScheduled.compareAndSet(false, true))
+			flush();
+	}
+
+	/**
+	 * Queues frame to be written to the client by loop, as a buffer of its own over
+	 * the Frame's shared bytes.  Under OverflowPolicy.BLOCK, waits for room unless
+	 * the calling thread may not wait, as an event loop may not (see NonBlocking).
+	 */
+	@Override
+	public void send(Frame frame) {
+		if(closed.get())
+			return;
+		if(pending.offer(frame.buffer(binary), NonBlocking.mayWait()) && writeScheduled.compareAndSet(false, true))
+			loop.execute(flushTask);
+	}
+
+	/**
+	 * Called on a worker while the request that negotiated binary framing is
+	 * being handled, while loop has paused reading, so that the requests after
+	 * it are framed as binary when reading resumes.
+	 */
+	@Override
+	public void useBinary() {
+		decoder.useBinary();
+		binary = true;
+	}
+
+	/**
+	 * Reads whatever is available on the channel, and queues each complete
+	 * request to be handled (see decode).  Closes this connection on end of
+	 * stream or on an I/O error.  Called on loop's thread.
+	 */
+	void readReady() {
+		int n;
+		try {
+			n = channel.read(readBuffer);
+		} catch(IOException e) {
+			n = -1;
+		}
+		if(n < 0) {
+			close();
+			return;
+		}
+		readBuffer.flip();
+		decode();
+	}
+
+	/**
+	 * Frames the requests in readBuffer and queues them for this.workers to
+	 * pass to this.user, until readBuffer runs out or reading has to pause,
+	 * in which case what is left is kept for resumeReading.  Queues an overlong
+	 * line cut short, and closes this connection on an overlong or malformed
+	 * frame.  Called on loop's thread, with readBuffer in read mode; leaves it
+	 * in write mode.
+	 */
+	private void decode() {
+		try {
+			while(!paused.get()) {
+				String req;
+				try {
+					req = decoder.next(readBuffer);
+				} catch(OverlongLineException e) {
+					req = e.getLine();
+				}
+				if(req == null)
+					break;
+				if(queued.incrementAndGet() >= MAX_QUEUED_REQUESTS || mayChangeFraming(req)) {
+					paused.set(true);
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				}
+				requests.add(req);
+				handle();
+			}
+		} catch(IOException e) {
+			close();
+		} finally {
+			readBuffer.compact();
+		}
+	}
+
+	/**
+	 * Returns whether req is a connect or resume request, either of which may
+	 * switch the framing of the requests after it, so that they must not be
+	 * framed until it has been handled.
+	 */
+	private static boolean mayChangeFraming(String req) {
+		return req.startsWith(NetworkConstants.CONNECT + "\t") || req.startsWith(NetworkConstants.RESUME + "\t");
+	}
+
+	/**
+	 * Frames what was left in readBuffer when reading paused, and, unless that
+	 * pauses it again, starts reading from the channel again.  Does nothing
+	 * unless reading is paused and every request queued has been handled.
+	 * Called on loop's thread.
+	 */
+	private void resumeReading() {
+		if(!paused.get() || queued.get() > 0 || closed.get())
+			return;
+		paused.set(false);
+		readBuffer.flip();
+		decode();
+		if(!paused.get() && !closed.get())
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Hands this.handleTask to this.workers, unless it is queued or running
+	 * already.  If the workers have stopped, as the server shuts down, handles
+	 * the requests on this thread.
+	 */
+	private void handle() {
+		if(!handling.compareAndSet(false, true))
+			return;
+		try {
+			workers.execute(handleTask);
+		} catch(RejectedExecutionException e) {
+			handleRequests();
+		}
+	}
+
+	/**
+	 * Passes each request queued to this.user in turn, closing this connection
+	 * if one asks to disconnect, and dropping those after it.  Once this has
+	 * been closed and every request handled, tells this.user that its client
+	 * is gone.  If reading is paused, asks loop to resume it once the queue is
+	 * empty.  Run on this.workers, by one task at a time.
+	 */
+	private void handleRequests() {
+		while(true) {
+			for(String req = requests.poll(); req != null; req = requests.poll()) {
+				if(!ended && user != null && !user.handleLine(req)) {
+					ended = true;
+					loop.execute(closeTask);
+				}
+				queued.decrementAndGet();
+			}
+			if(closed.get()) {
+				if(!told) {
+					told = true;
+					if(user != null)
+						user.disconnected();
+				}
+			}
+			else if(paused.get())
+				loop.execute(resumeTask);
+			handling.set(false);
+			if(requests.isEmpty() && (told || !closed.get()))
+				return;
+			if(!handling.compareAndSet(false, true))
+				return;
+		}
+	}
+
+	/**
+	 * Called on loop's thread when the channel can accept more bytes.
+	 */
+	void writeReady() {
+		flush();
+	}
+
+	/**
+	 * Writes as much of this.pending to the channel as it will accept without
+	 * blocking, a batch at a time.  If the channel fills up, asks to be told when
+	 * it is writable again.  If the queue runs empty while a short batch is still
+	 * within its flush delay, sets a timer to come back at batchDeadline.
+	 * Otherwise clears writeScheduled.  Called on loop's thread.
+	 */
+	private void flush() {
+		if(key == null || !key.isValid())
+			return; // setKey or close will take care of pending.
+		try {
+			while(true) {
+				if(batchReason == null && !gather())
+					return;
+				while(batchStart < batchEnd) {
+					long n = channel.write(batch, batchStart, batchEnd - batchStart);
+					int done = 0;
+					while(batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+						batch[batchStart++] = null;
+						++done;
+					}
+					batchBytes -= n;
+					stats.flushed(batchReason, done, n);
+					if(batchStart < batchEnd) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				batchStart = batchEnd = 0;
+				batchReason = null;
+			}
+		} catch(IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Moves lines from this.pending into this.batch until it holds
+	 * flushThresholdBytes or pending is empty, and decides whether the batch
+	 * should be written now.  Called on loop's thread.
+	 *
+	 * @return True if the batch is to be written now, with batchReason set; false
+	 * 		   if there is nothing to write, or the batch is waiting out its delay.
+	 */
+	private boolean gather() {
+		while(batchBytes < flushThresholdBytes) {
+			ByteBuffer buf = pending.poll();
+			if(buf == null)
+				break;
+			if(batchStart == batchEnd)
+				batchDeadline = System.nanoTime() + flushDelayNanos;
+			if(batchEnd == batch.length) {
+				ByteBuffer[] bigger = new ByteBuffer[2 * batch.length];
+				System.arraycopy(batch, 0, bigger, 0, batchEnd);
+				batch = bigger;
+			}
+			batch[batchEnd++] = buf;
+			batchBytes += buf.remaining();
+		}
+		if(batchBytes >= flushThresholdBytes) {
+			batchReason = ServerStats.FlushReason.SIZE;
+			return true;
+		}
+		if(batchStart < batchEnd) {
+			long wait = flushDelayNanos > 0 ? batchDeadline - System.nanoTime() : 0;
+			if(wait > 0) {
+				loop.schedule(flushTask, wait);
+				return false;
+			}
+			batchReason = flushDelayNanos > 0 ? ServerStats.FlushReason.DELAY : ServerStats.FlushReason.IDLE;
+			return true;
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		writeScheduled.set(false);
+		// A sender may have enqueued after we saw pending empty but before
+		// writeScheduled was cleared; if so, nobody has scheduled a flush.
+		if(pending.isEmpty() || !writeScheduled.compareAndSet(false, true))
+			return false;
+		return gather();
+	}
+
+	/**
+	 * Closes the channel, and has this.user told that its client is gone once
+	 * the requests read before have been handled.  Only the first call has any
+	 * effect.
+	 */
+	@Override
+	public void close() {
+		if(!closed.compareAndSet(false, true))
+			return;
+		if(key != null)
+			key.cancel();
+		try { channel.close(); }
+		catch(IOException ee) {}
+		pending.close();
+		handle();
+	}
+}
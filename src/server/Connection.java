@@ -0,0 +1,36 @@
+package server;
+
+/**
+ * The transport over which a User talks to its client.  A Connection knows how
+ * to deliver encoded protocol lines (Frames) to the client and how to tear itself down; reading
+ * requests is left to whatever drives the User (its own thread for a
+ * SocketConnection, or an event loop for a ChannelConnection).
+ *
+ * Implementations must be safe to call from any thread.
+ */
+interface Connection {
+
+	/**
+	 * Sends a message to the client.  The Frame is only queued (see OutboundQueue);
+	 * send never writes to the socket itself.  If the queue is full, the configured
+	 * OverflowPolicy applies, and the connection may be closed, but not on the
+	 * calling thread.  The same Frame may be sent over any number of Connections.
+	 *
+	 * @param frame The encoded message to send, non-null.
+	 */
+	void send(Frame frame);
+
+	/**
+	 * Switches this Connection to binary framing (see network.BinaryCodec): every
+	 * Frame sent after this call is written as a binary frame, and every request
+	 * after the one being handled is read as one.  Must be called by whatever
+	 * reads requests from this Connection, while it handles the request that
+	 * negotiated binary framing, so that no request is read in the wrong framing.
+	 */
+	void useBinary();
+
+	/**
+	 * Closes this Connection.  Calling close more than once has no further effect.
+	 */
+	void close();
+}
@@ -0,0 +1,20 @@
+package server;
+
+/**
+ * The ways in which an IMServer can service its client connections.
+ *
+ *  - THREAD_PER_USER starts a dedicated thread for each accepted socket, which
+ *    blocks reading requests from that client.  This is the default.
+ *  - VIRTUAL_THREAD is like THREAD_PER_USER, but runs each User on a virtual
+ *    thread, so that idle connections cost a small heap object rather than a
+ *    platform thread and its stack.  Requires Java 21 or later.
+ *  - SELECTOR multiplexes every connection over a small, fixed pool of
+ *    Selector-driven event loops (see SelectorEngine), which hand the requests
+ *    they read to a fixed pool of workers, so that the number of connected
+ *    clients is bounded by memory rather than by threads.
+ */
+public enum ConnectionMode {
+	THREAD_PER_USER,
+	VIRTUAL_THREAD,
+	SELECTOR
+}
@@ -1,41 +1,275 @@
 package server;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Conversations in guichat are represented by instances of Conversation.
  * Instances of Conversation have the following instance variables:
  * 
- *  - users is a set of Users that represents the clients currently participating
- *    in the conversation
+ *  - members is an array of the Users that represents the clients currently
+ *    participating in the conversation, in the order in which they joined.  It
+ *    has no null or duplicate (equal) elements.  The array itself is never
+ *    modified: add and remove build a new array and replace members with it, so
+ *    a thread that reads members gets a stable snapshot of the membership
+ *    without taking any lock.  If this is a broadcast channel, members holds
+ *    only its publishers; its listeners are kept in listeners instead.
  *  - name is the name of the conversation as a String.  name is globally unique
  *    among all conversations in any IMServer, and is the String corresponding to
  *    the conversation in the conversations map in IMServer.  It is non-null.
+ *  - lock serializes changes to this.members, so that no add or remove is lost
+ *    and every member sees the membership messages in the same order.  Sending a
+ *    message only reads this.members, so it neither takes lock nor waits for a
+ *    join or leave, and a join or leave never waits for a large fan-out.
+ *    It is a NonBlocking.Lock, so the membership messages sent under it never
+ *    wait for room in a slow member's queue, which would hold up every join
+ *    and leave behind that member: under OverflowPolicy.BLOCK, a member whose
+ *    queue is full is disconnected instead.
+ *  - log is the ConversationLog each message is appended to before it is sent,
+ *    or null if the server keeps no MessageLog.
+ *  - cache is the MessageCache bounding the memory taken by recent, or null if
+ *    the server keeps no recent messages.
+ *  - recent holds this conversation's latest messages, as the history Frames a
+ *    client replaying them is sent, or is null if cache is.
+ *  - lastSequence is the sequence number of the latest message sent, or 0 if
+ *    there has been none.  Messages are numbered consecutively from 1, carrying
+ *    on from the numbers in log, if there is one.
+ *  - lastTimestamp is the time the latest message was stamped with, in
+ *    milliseconds since the epoch, or 0.  Each message is stamped with the
+ *    system clock's time, or lastTimestamp if that is later, so that
+ *    timestamps never decrease along the sequence.
+ *  - recordLock serializes numbering and stamping each message, appending it
+ *    to log, and adding it to recent, so that both have the messages in
+ *    order.  The message is sent, or handed to fanout, under it too, so that
+ *    every member receives the messages in the order they were numbered.  It
+ *    is a NonBlocking.Lock, so that neither those sends nor the Mailbox a
+ *    returning member is caught up from under it ever wait for room in a
+ *    member's queue, which would hold up every message here behind the one
+ *    member.
+ *  - mailboxes is the MailboxStore holding messages for members who have
+ *    left the server, or null if the server keeps none.
+ *  - absent holds the names of the members who have left the server, and whose
+ *    Mailboxes each message is posted to, until they come back or their
+ *    Mailboxes are discarded.  Like members, it is replaced rather than
+ *    modified; it is only changed, and read along with members, while
+ *    recordLock is held, so that each message either reaches a member's
+ *    Mailbox or is sent to it, never both or neither.
+ *  - roster holds the names of the Users in this.members, in order of name, so
+ *    that the members may be sent to a client in pages.  It is guarded by lock.
+ *  - membersPageSize is the most names sent in one page of this.roster.  A
+ *    User that asked for the users list in pages and enters this conversation
+ *    with more than that many other members is sent them in pages, after an
+ *    entered conversation message naming only itself.
+ *  - membership is the MembershipCoalescer timing the windows over which
+ *    joins and leaves are collected, or null if each is sent right away.
+ *  - wasMember maps the name of each user that joined or left during the
+ *    current window to whether it was a member when the window began, in the
+ *    order the names first changed.
+ *  - fresh holds the Users, by identity, that entered or were sent a page of
+ *    this.roster during the current window and are still members.  Like a
+ *    user that logs in partway through a PresenceCoalescer's window, such a
+ *    User has seen some of the window's changes and not others, so it is sent
+ *    how things stand for every user that changed, rather than the net change.
+ *  - flushScheduled is true while a flush of the current window is pending.
+ *  - version is the membership version, which starts at 1 and counts up with
+ *    each join and leave, so that a client that has been told one version may
+ *    ask for only what has changed since.
+ *  - changedNames and changedJoined hold the latest joins and leaves, as many
+ *    as they have room for: the change that made version v is the user named
+ *    changedNames[v % changedNames.length] joining, if
+ *    changedJoined[v % changedNames.length] is true, or leaving.  Versions
+ *    from max(1, version - changedNames.length) on can be told as changes.
+ *  - quiet maps each member that has set its SubscriptionLevel to the
+ *    Subscription deciding which IMs it is sent.  Members not in it are sent
+ *    every IM, and a send checks it only if it is non-empty.  Entries are
+ *    added under lock and recordLock, and removed under lock as their members
+ *    leave.
+ *  - publishers holds the names of the users that may post here, if this is
+ *    a broadcast channel, or is null if this is an ordinary conversation, in
+ *    which every member may post.  The other members of a channel are its
+ *    listeners: they are sent what is posted, but their joins and leaves are
+ *    told to no one, and they are left out of the participants every member
+ *    is told of, so that a channel with a great many listeners costs its
+ *    members no more membership messages than one with none.  Only the
+ *    publishers among the members are in this.roster and count towards
+ *    this.version.
+ *  - listeners holds, for each shard of fanout, the listeners of a channel
+ *    that fall in it, in the order in which they joined, or is null if this
+ *    is not a channel.  Each shard's set is read and changed only by that
+ *    shard's worker, in tasks handed to it under recordLock, in order with
+ *    the IMs handed to it, so that a listener joins or leaves in constant
+ *    time however many there are, and is sent exactly the IMs numbered while
+ *    it listens.
+ *  - memberSet holds the members of a channel, publishers and listeners, so
+ *    that whether a user is one may be told without searching; it is null if
+ *    this is not a channel.  It is changed under lock, along with members and
+ *    listeners.
+ *  - fanout is the FanoutPool a channel's IMs, and those of a conversation
+ *    with more than fanoutThreshold members, are sent on, spread over its
+ *    shards, or null to send every IM on the sender's thread.
+ *  - fanoutThreshold is the most members a conversation may have for its IMs
+ *    to be sent on the sender's thread, which for a small conversation costs
+ *    less than handing them to fanout.
+ *  - sharding is the number of tasks handed to fanout that have yet to run
+ *    to the end.  While any have, every IM is handed to fanout too, however
+ *    few members there are, so that it cannot overtake one sent before it.
+ *  - partition holds the last snapshot of members handed to fanout, split by
+ *    shard, so that members are split once each time they change rather than
+ *    for every IM.  It is replaced, never modified.
+ *  - stats is the ServerStats counting the IMs that could not be logged.
+ *
+ * wasMember, fresh, and flushScheduled are guarded by lock, and are only used
+ * if membership is non-null.  version, changedNames, and changedJoined are
+ * guarded by lock.
+ * 
+ * A message is delivered to the members in the snapshot read when it is numbered,
+ * and to a channel's listeners as they stand when it is handed to fanout.
+ * It is fanned out from the sender's thread while recordLock is still held, so
+ * every member receives the messages in the order of their sequence numbers,
+ * whoever sent them.  A channel's messages, and those of a conversation with
+ * more than fanoutThreshold members, are handed to this.fanout instead, still
+ * under recordLock, and each of its workers sends its members each message in
+ * the order they were handed over.  A message is only sent from the sender's
+ * thread again once every message handed over has been sent, so that it
+ * cannot overtake them.
  * 
  * See the Conversation section in the design document for more information on
  * the Conversation class.
  */
 public class Conversation {
 	
+	private static final User[] NO_USERS = new User[0];
+	private static final String[] NO_NAMES = new String[0];
+	
 	private final String name;
-	private final Set<User> users;
+	private volatile User[] members;
+	private final ReentrantLock lock;
+	private final ConversationLog log;
+	private final MessageCache cache;
+	private final MessageRing recent;
+	private volatile long lastSequence;
+	private long lastTimestamp;
+	private final ReentrantLock recordLock = new NonBlocking.Lock();
+	private final MailboxStore mailboxes;
+	private volatile String[] absent = NO_NAMES;
+	private final NavigableSet<String> roster = new TreeSet<String>();
+	private final int membersPageSize;
+	private final MembershipCoalescer membership;
+	private Map<String, Boolean> wasMember = new LinkedHashMap<String, Boolean>();
+	private Set<User> fresh = PresenceIndex.newUserSet();
+	private boolean flushScheduled;
+	private long version = 1;
+	private final String[] changedNames;
+	private final boolean[] changedJoined;
+	private final ConcurrentMap<User, Subscription> quiet = new ConcurrentHashMap<User, Subscription>();
+	private final Set<String> publishers;
+	private final List<Set<User>> listeners;
+	private final Set<User> memberSet;
+	private final FanoutPool fanout;
+	private final int fanoutThreshold;
+	private final AtomicInteger sharding = new AtomicInteger();
+	private volatile Partition partition;
+	private final ServerStats stats;
+	
+	/**
+	 * A snapshot of this.members, and the same Users split by their shard of
+	 * this.fanout, each shard's in the order of the snapshot.
+	 */
+	private static final class Partition {
+		final User[] snapshot;
+		final User[][] shards;
+		
+		Partition(User[] snapshot, User[][] shards) {
+			this.snapshot = snapshot;
+			this.shards = shards;
+		}
+	}
 	
 	/**
 	 * Creates an instance of Conversation with the given name.
-	 * Sets this.name to name and initializes this.users.
+	 * Sets this.name to name and initializes this.members to be empty.
 	 * 
 	 * @param name The name of this Conversation, non-null.
 	 */
 	Conversation(String name) {
+		this(name, null, null, null, null, null, null, new ServerConfig(), new ServerStats());
+	}
+	
+	/**
+	 * Creates an instance of Conversation with the given name whose messages are
+	 * appended to log, whose latest messages are kept in a MessageRing of
+	 * cache, whose members who leave the server are held messages in
+	 * mailboxes, and whose joins and leaves are collected over the windows
+	 * membership times, with the membership settings of config.  If
+	 * publisher is non-null, this is a broadcast channel, in which only
+	 * publisher may post until it names other publishers.  Initializes
+	 * this.members to be empty.
+	 * 
+	 * @param name The name of this Conversation, non-null.
+	 * @param publisher The name of the channel's first publisher, or null if
+	 * 		  this is an ordinary conversation.
+	 * @param log The log of this conversation's messages, or null to keep none.
+	 * @param cache The cache to keep recent messages in, or null to keep none.
+	 * @param mailboxes The store of absent members' Mailboxes, or null to keep none.
+	 * @param membership The coalescer of joins and leaves, or null to send each
+	 * 		  right away.
+	 * @param fanout The pool to send the IMs of channels and large
+	 * 		  conversations on, or null to send them on the sender's thread;
+	 * 		  non-null if publisher is.
+	 * @param config The server's settings, non-null.
+	 * @param stats The server's counters, non-null.
+	 */
+	Conversation(String name, String publisher, ConversationLog log, MessageCache cache,
+			MailboxStore mailboxes, MembershipCoalescer membership, FanoutPool fanout, ServerConfig config,
+			ServerStats stats) {
 		this.name = name;
-		users = new HashSet<User>();
+		this.stats = stats;
+		if (publisher == null) {
+			publishers = null;
+			memberSet = null;
+			listeners = null;
+		}
+		else {
+			publishers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			publishers.add(publisher);
+			memberSet = Collections.newSetFromMap(new ConcurrentHashMap<User, Boolean>());
+			listeners = new ArrayList<Set<User>>(fanout.getShards());
+			for (int i = 0; i < fanout.getShards(); ++i)
+				listeners.add(new LinkedHashSet<User>());
+		}
+		this.fanout = fanout;
+		this.fanoutThreshold = config.getFanoutThreshold();
+		this.log = log;
+		this.cache = cache;
+		this.mailboxes = mailboxes;
+		this.membership = membership;
+		this.membersPageSize = config.getMembersPageSize();
+		changedNames = new String[config.getMembershipChanges()];
+		changedJoined = new boolean[changedNames.length];
+		lastSequence = log == null ? 0 : log.getLastSequence();
+		recent = cache == null ? null : cache.newRing(lastSequence + 1);
+		members = NO_USERS;
+		lock = new NonBlocking.Lock();
 	}
 	
 	/**
 	 * Creates an instance of Conversation with the given name, containing
-	 * a given User.  Sets this.name to name, initializes this.users, adds
-	 * u to this.users, and tells u to add this to its set of conversations
+	 * a given User.  Sets this.name to name, sets this.members to contain
+	 * u, and tells u to add this to its set of conversations
 	 * (which causes an entered conversation message to be sent to u).
 	 * 
 	 * @param name The name of this Conversation, non-null.
@@ -43,14 +277,15 @@ public class Conversation {
 	 */
 	Conversation(String name, User u) {
 		this(name);
-		users.add(u);
+		members = new User[] { u };
+		roster.add(u.getUsername());
 		u.addConversation(this);
 	}
 	
 	/**
 	 * Creates an instance of Conversation with the given name, containing
-	 * two given Users.  Sets this.name to name, initializes this.users, adds
-	 * u1 and u2 to this.users, and tells u1 and u2 to add this to their sets
+	 * two given Users.  Sets this.name to name, sets this.members to contain
+	 * u1 and u2, and tells u1 and u2 to add this to their sets
 	 * of conversations (which causes entered conversation messages to be sent
 	 * to u1 and to u2).
 	 * 
@@ -64,87 +299,991 @@ public class Conversation {
 		this(name);
 		if(u1 == u2 || (u1 != null && u1.equals(u2)))
 			return;
-		users.add(u1);
-		users.add(u2);
+		members = new User[] { u1, u2 };
+		roster.add(u1.getUsername());
+		roster.add(u2.getUsername());
 		u1.addConversation(this);
 		u2.addConversation(this);
 	}
 	
 	/**
-	 * If u is non-null and this.users does not already contain u, adds u to this.users,
-	 * sends an added to conversation message to every other client in this conversation,
-	 * and sends to u a entered conversation message.  Returns whether or not this.users
-	 * changed as a result of the call to add.
+	 * Adds this to registry under this.name, with initial as its members, if no
+	 * Conversation is registered under that name yet.  If this is added, tells each
+	 * of initial to add this to its set of conversations (which causes an entered
+	 * conversation message to be sent to it), as the constructors do.  this.lock is
+	 * held from before this becomes visible in registry until every initial member
+	 * has been told, so a User joining through add in the meantime waits, and
+	 * cannot be announced to a member before that member has entered.
+	 * 
+	 * Requires that this is empty and has not been registered before, and that
+	 * initial has no null or duplicate elements.
+	 * 
+	 * @param registry The map of conversations by name to add this to.
+	 * @param initial The Users to be added to this Conversation.
+	 * @return True if this was added to registry; false if the name was taken.
+	 */
+	boolean register(ConcurrentMap<String, Conversation> registry, User... initial) {
+		lock.lock();
+		try {
+			User[] shown = NO_USERS;
+			for (User u : initial) {
+				if (!isListener(u))
+					shown = with(shown, u);
+			}
+			members = shown;
+			if (registry.putIfAbsent(name, this) != null) {
+				members = NO_USERS;
+				return false;
+			}
+			for (User u : initial) {
+				if (memberSet != null)
+					memberSet.add(u);
+				if (!isListener(u))
+					roster.add(u.getUsername());
+				else
+					setMembers(shown, u, true, null, null, null);
+			}
+			for (User u : initial)
+				u.addConversation(this);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * If u is non-null and this.members does not already contain u, adds u to
+	 * this.members, sends an added to conversation message to every other client in
+	 * this conversation, and sends to u a entered conversation message.  Returns
+	 * whether or not this.members changed as a result of the call to add.
+	 * 
+	 * The entered conversation message is sent to u before u appears in
+	 * this.members, so that u never receives a message in this conversation before
+	 * it learns that it has entered.  If there are more other members than
+	 * this.membersPageSize and u asked for the users list in pages, the message
+	 * names only u, and is followed by the first page of the others (see
+	 * sendMembersPage).  If this.membership is non-null, the other members are
+	 * told of u in the next MEMBERSHIP message instead (see flushMembership).
+	 * If this is a channel and u is one of its listeners, nobody is told, and
+	 * u's entered conversation message names only the publishers and u.
 	 * 
 	 * @param u The User to add to this Conversation.
-	 * @return True if u is added to this.users; false otherwise.
+	 * @return True if u is added to this.members; false otherwise.
 	 */
-	synchronized boolean add(User u) {
+	boolean add(User u) {
 		if(u == null) return false;
-		boolean b = users.add(u);
-		if (!b) return false;
-		u.addConversation(this);
-		for (User v : users) {
-			if (!v.equals(u))
-				v.sendAddedToConvMessage(u, name);
+		lock.lock();
+		try {
+			User[] current = members;
+			if (isMember(current, u)) return false;
+			User[] next = with(current, u);
+			if (isListener(u)) {
+				enter(u, next);
+				setMembers(current, u, true, u.getUsername(), null, null);
+			}
+			else {
+				roster.add(u.getUsername());
+				enter(u, next);
+				setMembers(next, null, false, u.getUsername(), null, null);
+			}
+			if (memberSet != null)
+				memberSet.add(u);
+			joined(u, current);
+			return true;
+		} finally {
+			lock.unlock();
 		}
-		return true;
 	}
 	
 	/**
-	 * If u is non-null and this.users contains u, removes u from this.users and sends
-	 * a removed from conversation message to every other client in this conversation.
-	 * Returns whether or not this.users changed as a result of the call to remove.
+	 * If u is non-null and this.members contains u, removes u from this.members and
+	 * sends a removed from conversation message to every other client in this
+	 * conversation.  Returns whether or not this.members changed as a result of the
+	 * call to remove.
 	 * 
 	 * @param u The User to remove from this Conversation.
-	 * @return True if u is removed from this.users; false otherwise.
+	 * @return True if u is removed from this.members; false otherwise.
 	 */
-	synchronized boolean remove(User u) {
+	boolean remove(User u) {
+		return remove(u, false);
+	}
+	
+	/**
+	 * Removes u from this.members, as remove does, because u has left the
+	 * server.  If the server keeps Mailboxes, u's name is added to this.absent,
+	 * and until u comes back (see rejoin), the messages sent here are posted to
+	 * its Mailbox.
+	 * 
+	 * @param u The User leaving the server.
+	 * @return True if u is removed from this.members; false otherwise.
+	 */
+	boolean depart(User u) {
+		return remove(u, true);
+	}
+	
+	/**
+	 * Removes u from this.members, as remove does, noting it as absent if it
+	 * is leaving the server and the server keeps Mailboxes.
+	 */
+	private boolean remove(User u, boolean leaving) {
 		if(u == null) return false;
-		boolean b = users.remove(u);
-		if (!b) return false;
-		for (User v : users) {
-			if (!v.equals(u))
-				v.sendRemovedFromConvMessage(u, name);
+		lock.lock();
+		try {
+			User[] current = members;
+			if (!isMember(current, u)) return false;
+			String away = null;
+			if(leaving && mailboxes != null) {
+				away = u.getUsername();
+				mailboxes.departed(away, name);
+			}
+			quiet.remove(u);
+			if (memberSet != null)
+				memberSet.remove(u);
+			if (isListener(u)) {
+				setMembers(current, u, false, null, away, null);
+				u.removeConversation(this);
+				return true;
+			}
+			User[] next = without(current, u);
+			roster.remove(u.getUsername());
+			versioned(u.getUsername(), false);
+			setMembers(next, null, false, null, away, null);
+			if (membership == null) {
+				Frame removed = User.removedFromConvFrame(u, name);
+				for (User v : next)
+					v.sendFrame(removed);
+				sendToListeners(removed);
+			}
+			else {
+				fresh.remove(u);
+				changed(u.getUsername(), true);
+			}
+			u.removeConversation(this);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Tells u, which has come back to the server after leaving it while in this
+	 * conversation, that it has entered this conversation again, if its name is
+	 * still in this.absent and it is not already a member.  u does not join
+	 * this.members, nor are the members told, until rejoin is called, so that
+	 * u may be sent what it missed in between.
+	 * 
+	 * @param u The User that has come back, non-null.
+	 * @return True if u was told, and should rejoin; false otherwise.
+	 */
+	boolean readmit(User u) {
+		lock.lock();
+		try {
+			User[] current = members;
+			if (isMember(current, u) || indexOf(absent, u.getUsername()) < 0)
+				return false;
+			return enter(u, with(current, u));
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Adds u, which readmit has told it has entered this conversation again, to
+	 * this.members, and takes its name out of this.absent, sending an added to
+	 * conversation message to every other member.  catchUp is run just before,
+	 * while no message can be sent here, so that u may be sent the last of what
+	 * was posted to its Mailbox before any message it is sent as a member.
+	 * 
+	 * @param u The User that has come back, non-null.
+	 * @param catchUp Sends u what was posted to its Mailbox, non-null.
+	 * @return True if u joined this.members; false if it was already there.
+	 */
+	boolean rejoin(User u, Runnable catchUp) {
+		lock.lock();
+		try {
+			User[] current = members;
+			if (isMember(current, u)) return false;
+			if (isListener(u))
+				setMembers(current, u, true, u.getUsername(), null, catchUp);
+			else {
+				roster.add(u.getUsername());
+				setMembers(with(current, u), null, false, u.getUsername(), null, catchUp);
+			}
+			if (memberSet != null)
+				memberSet.add(u);
+			joined(u, current);
+			return true;
+		} finally {
+			lock.unlock();
 		}
-		u.removeConversation(this);
+	}
+	
+	/**
+	 * Called under this.lock to tell u that it has entered this conversation,
+	 * with next as its members, as add describes.
+	 */
+	private boolean enter(User u, User[] next) {
+		if (!u.isPagedUsersList() || next.length - 1 <= membersPageSize)
+			return u.addConversation(this, User.enteredConvFrame(describe(next)));
+		if (!u.addConversation(this, User.enteredConvFrame(name + "\t" + u.getUsername())))
+			return false;
+		sendMembersPage(u, "");
 		return true;
 	}
 	
+	/**
+	 * Called under this.lock, once u has joined this.members, to tell those
+	 * that were members before, current, of it: at once, or, if
+	 * this.membership is non-null, when the window is flushed.  A channel's
+	 * listeners are told of no one, but are told of its publishers.
+	 */
+	private void joined(User u, User[] current) {
+		if (isListener(u))
+			return;
+		versioned(u.getUsername(), true);
+		if (membership == null) {
+			Frame added = User.addedToConvFrame(u, name);
+			for (User v : current)
+				v.sendFrame(added);
+			sendToListeners(added);
+			return;
+		}
+		fresh.add(u);
+		changed(u.getUsername(), false);
+	}
+	
+	/**
+	 * Called under this.lock to count up this.version for the user named
+	 * username joining, if joined is true, or leaving, and to remember the
+	 * change if there is room for any.
+	 */
+	private void versioned(String username, boolean joined) {
+		++version;
+		if (changedNames.length == 0)
+			return;
+		int i = (int) (version % changedNames.length);
+		changedNames[i] = username;
+		changedJoined[i] = joined;
+	}
+	
+	/**
+	 * Sends u, if it is a member, the participants that have changed since the
+	 * membership version since, as a participants diff message listing how
+	 * each stands now: those that left and came back, or came and left, are
+	 * not mentioned.  The message costs what changed, however many members
+	 * there are.  If this no longer remembers the changes since since, or
+	 * since is 0 or later than this.version, u is sent instead a participants
+	 * diff message with empty lists, followed by the first page of every
+	 * other participant (see sendMembersPage).
+	 * 
+	 * @param u The User asking, non-null.
+	 * @param since The membership version u was last told, or 0 if none.
+	 * @return True if the participants were sent; false if u is not a member.
+	 */
+	boolean retrieveParticipantsSince(User u, long since) {
+		List<String> none = Collections.emptyList();
+		lock.lock();
+		try {
+			if (!isMember(members, u))
+				return false;
+			if (since < Math.max(1, version - changedNames.length) || since > version) {
+				u.sendFrame(User.participantsDiffFrame(name, 0, version, none, none));
+				sendMembersPage(u, "");
+				return true;
+			}
+			Map<String, Boolean> wasIn = new LinkedHashMap<String, Boolean>();
+			for (long v = since + 1; v <= version; ++v) {
+				int i = (int) (v % changedNames.length);
+				if (!wasIn.containsKey(changedNames[i]))
+					wasIn.put(changedNames[i], !changedJoined[i]);
+			}
+			List<String> in = new ArrayList<String>();
+			List<String> out = new ArrayList<String>();
+			for (Map.Entry<String, Boolean> e : wasIn.entrySet()) {
+				boolean now = roster.contains(e.getKey());
+				if (now != e.getValue())
+					(now ? in : out).add(e.getKey());
+			}
+			u.sendFrame(User.participantsDiffFrame(name, since, version, in, out));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Called under this.lock to note that the user named username has joined
+	 * or left this conversation, having been a member before if wasMember is
+	 * true, and to schedule a flush if none is pending.
+	 */
+	private void changed(String username, boolean wasMember) {
+		if (!this.wasMember.containsKey(username))
+			this.wasMember.put(username, wasMember);
+		if (!flushScheduled) {
+			flushScheduled = true;
+			membership.schedule(this);
+		}
+	}
+	
+	/**
+	 * Ends the current window of joins and leaves, and sends each member the
+	 * MEMBERSHIP message for it: the net changes to members that were here
+	 * before the window began, and how things stand for every user that
+	 * changed to members that entered, or were sent a page of the members,
+	 * during it.  A user that joins and leaves within a window cancels out;
+	 * nobody hears of it.  Nothing is sent to a member for whom there is no
+	 * news.  Run by this.membership's timer.
+	 */
+	void flushMembership() {
+		List<String> in = new ArrayList<String>();
+		List<String> out = new ArrayList<String>();
+		List<String> nowIn = new ArrayList<String>();
+		List<String> nowOut = new ArrayList<String>();
+		User[] recipients;
+		Set<User> entered;
+		lock.lock();
+		try {
+			flushScheduled = false;
+			for (Map.Entry<String, Boolean> e : wasMember.entrySet()) {
+				String username = e.getKey();
+				boolean now = roster.contains(username);
+				(now ? nowIn : nowOut).add(username);
+				if (now != e.getValue())
+					(now ? in : out).add(username);
+			}
+			wasMember = new LinkedHashMap<String, Boolean>();
+			entered = fresh;
+			fresh = PresenceIndex.newUserSet();
+			recipients = members;
+		} finally {
+			lock.unlock();
+		}
+		Frame net = in.isEmpty() && out.isEmpty() ? null : User.membershipFrame(name, in, out);
+		Frame all = entered.isEmpty() ? null : User.membershipFrame(name, nowIn, nowOut);
+		// If the only news is one join, its user needs no telling.
+		String only = nowIn.size() == 1 && nowOut.isEmpty() ? nowIn.get(0) : null;
+		sendMembership(Arrays.asList(recipients), entered, net, all, only);
+		sendToListeners(entered, net, all, only);
+	}
+	
+	/**
+	 * Sends each of recipients the MEMBERSHIP message flushMembership sends
+	 * it: all, if it is in entered and is not the user named only, or net
+	 * otherwise, if either is non-null.
+	 */
+	private static void sendMembership(Iterable<User> recipients, Set<User> entered, Frame net, Frame all,
+			String only) {
+		for (User v : recipients) {
+			Frame f = entered.contains(v) ? all : net;
+			if (f != null && !(f == all && v.getUsername().equals(only)))
+				v.sendFrame(f);
+		}
+	}
+	
+	/**
+	 * Hands the worker of each shard of this.fanout a task sending frame to
+	 * the listeners in that shard, if this is a channel.
+	 */
+	private void sendToListeners(Frame frame) {
+		sendToListeners(Collections.<User>emptySet(), frame, null, null);
+	}
+	
+	/**
+	 * Hands the worker of each shard of this.fanout a task sending the
+	 * listeners in that shard what sendMembership sends recipients, if this
+	 * is a channel.
+	 */
+	private void sendToListeners(final Set<User> entered, final Frame net, final Frame all,
+			final String only) {
+		if (listeners == null)
+			return;
+		for (int i = 0; i < listeners.size(); ++i) {
+			final Set<User> shard = listeners.get(i);
+			fanout.execute(i, new Runnable() {
+				public void run() {
+					sendMembership(shard, entered, net, all, only);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Sends u the page of this.roster after cursor, if u is a member, as it
+	 * asks for the next page after one it was sent.
+	 * 
+	 * @param u The User asking, non-null.
+	 * @param cursor The cursor the previous page ended with, non-null.
+	 * @return True if the page was sent; false if u is not a member.
+	 */
+	boolean retrieveMembersPage(User u, String cursor) {
+		lock.lock();
+		try {
+			if (!isMember(members, u))
+				return false;
+			sendMembersPage(u, cursor);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Called under this.lock to send u the page of this.roster after cursor,
+	 * leaving out u itself, along with the number of other members.  The last
+	 * page carries an empty cursor.
+	 */
+	private void sendMembersPage(User u, String cursor) {
+		List<String> names = new ArrayList<String>();
+		String next = "";
+		int count = roster.size() - (roster.contains(u.getUsername()) ? 1 : 0);
+		Iterator<String> it = roster.tailSet(cursor, false).iterator();
+		String last = cursor;
+		while (it.hasNext() && names.size() < membersPageSize) {
+			last = it.next();
+			if (!last.equals(u.getUsername()))
+				names.add(last);
+		}
+		// The page is the last if only u's own name is left.
+		String after = it.hasNext() ? roster.higher(last) : null;
+		if (after != null && after.equals(u.getUsername()))
+			after = roster.higher(after);
+		if (after != null)
+			next = last;
+		u.sendFrame(User.membersPageFrame(name, count, next, names));
+		if (membership != null)
+			fresh.add(u);
+	}
+	
+	/**
+	 * Called under this.lock to replace this.members with next, adding
+	 * listener to this.listeners, if listening is true, or taking it out, if
+	 * listener is non-null, taking joined out of this.absent and putting left
+	 * into it, if either is non-null, and running catchUp first, if it is
+	 * non-null.  If the server keeps Mailboxes, or a listener changes, this is
+	 * done under this.recordLock, so that no message is recorded in between;
+	 * catchUp's sends therefore never wait for room, and under
+	 * OverflowPolicy.BLOCK a member whose queue is full is disconnected rather
+	 * than holding up this conversation's messages.
+	 */
+	private void setMembers(User[] next, User listener, boolean listening, String joined, String left,
+			Runnable catchUp) {
+		if(mailboxes == null && listener == null) {
+			members = next;
+			return;
+		}
+		recordLock.lock();
+		try {
+			if(catchUp != null)
+				catchUp.run();
+			members = next;
+			if(listener != null)
+				listen(listener, listening);
+			if(joined != null)
+				absent = without(absent, joined);
+			if(left != null && indexOf(absent, left) < 0) {
+				String[] more = Arrays.copyOf(absent, absent.length + 1);
+				more[absent.length] = left;
+				absent = more;
+			}
+		} finally {
+			recordLock.unlock();
+		}
+	}
+	
+	/**
+	 * Called under this.recordLock to hand the worker of u's shard a task
+	 * adding u to the shard's listeners, if listening is true, or taking it
+	 * out, after every IM handed to the worker before and before any handed
+	 * to it after.
+	 */
+	private void listen(final User u, final boolean listening) {
+		final Set<User> shard = listeners.get(fanout.shardOf(u));
+		fanout.execute(fanout.shardOf(u), new Runnable() {
+			public void run() {
+				if (listening)
+					shard.add(u);
+				else
+					shard.remove(u);
+			}
+		});
+	}
+	
+	/**
+	 * Returns whether u is in current, a snapshot of this.members, or is one of
+	 * this channel's listeners: from this.memberSet if this is a channel,
+	 * without searching current.
+	 */
+	private boolean isMember(User[] current, User u) {
+		if (memberSet != null)
+			return memberSet.contains(u);
+		return indexOf(current, u) >= 0;
+	}
+	
+	/**
+	 * Returns whether u would be a listener of this channel, if a member: true
+	 * if this is a channel and u is not one of its publishers.
+	 */
+	private boolean isListener(User u) {
+		return publishers != null && !publishers.contains(u.getUsername());
+	}
+	
+	/**
+	 * Returns a copy of users with u added at the end.
+	 */
+	private static User[] with(User[] users, User u) {
+		User[] more = Arrays.copyOf(users, users.length + 1);
+		more[users.length] = u;
+		return more;
+	}
+	
+	/**
+	 * Returns users without u, or users itself if it does not hold u.
+	 */
+	private static User[] without(User[] users, User u) {
+		int i = indexOf(users, u);
+		if (i < 0)
+			return users;
+		User[] fewer = new User[users.length - 1];
+		System.arraycopy(users, 0, fewer, 0, i);
+		System.arraycopy(users, i + 1, fewer, i, fewer.length - i);
+		return fewer;
+	}
+	
+	/**
+	 * Returns names without name, or names itself if it does not hold name.
+	 */
+	private static String[] without(String[] names, String name) {
+		int i = indexOf(names, name);
+		if(i < 0)
+			return names;
+		String[] fewer = new String[names.length - 1];
+		System.arraycopy(names, 0, fewer, 0, i);
+		System.arraycopy(names, i + 1, fewer, i, fewer.length - i);
+		return fewer;
+	}
+	
+	/**
+	 * Returns the index of name in names, or -1 if it is not there.
+	 */
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; ++i) {
+			if (names[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the index of the first element of users equal to u, or -1 if there
+	 * is none.
+	 * 
+	 * @param users The array to search, with no null elements.
+	 * @param u The User to find.
+	 * @return The index of u in users, or -1.
+	 */
+	private static int indexOf(User[] users, User u) {
+		for (int i = 0; i < users.length; ++i) {
+			if (users[i].equals(u))
+				return i;
+		}
+		return -1;
+	}
+	
 	/**.
-	 * Returns whether or not this.users contains u.
+	 * Returns whether or not this.members contains u.
 	 * 
-	 * @param u The User to find in this.users.
-	 * @return True if u is in this.users; false otherwise.
+	 * @param u The User to find in this.members.
+	 * @return True if u is in this.members; false otherwise.
 	 */
-	synchronized boolean contains(User u) {
-		return users.contains(u);
+	boolean contains(User u) {
+		return u != null && isMember(members, u);
 	}
 	
 	/**
-	 * Sends to every User in this.users a message with the given sender,
-	 * message text, and message ID.
+	 * Sends to every User in this.members a message with the given sender,
+	 * message text, and message ID, numbered and stamped by this conversation.
+	 * The message is built and encoded once for the members that asked for
+	 * sequenced IMs and once for those that did not, and the same Frame is
+	 * queued for every member of the current snapshot of each kind.
 	 * 
-	 * Precondition: this.users is non-empty.
+	 * Precondition: this.members is non-empty.
+	 * 
+	 * @param u The sending user, non-null.
+	 * @param m The message text.
+	 * @param messageId The message ID of this message, unique among messages sent
+	 * 		  by u.
+	 */
+	void sendMessage(User u, String m, int messageId) {
+		relay(u, m, messageId);
+	}
+	
+	/**
+	 * If u is in this.members, sends to every User in this.members a message with
+	 * the given sender, message text, and message ID, as sendMessage does.
 	 * 
 	 * @param u The sending user, non-null.
 	 * @param m The message text.
 	 * @param messageId The message ID of this message, unique among messages sent
 	 * 		  by u.
+	 * @return True if u is in this.members and the message was sent; false if it
+	 * 		   is not, if u is a listener of a channel, or if the message could
+	 * 		   not be logged.
+	 */
+	boolean sendMessageFrom(User u, String m, int messageId) {
+		if(!isMember(members, u) || isListener(u))
+			return false;
+		return relay(u, m, messageId);
+	}
+	
+	/**
+	 * Numbers and stamps a message, appends it to this.log, if there is one, so
+	 * that nothing is sent that was not logged, adds it to this.recent, if
+	 * there is one, and posts it to the Mailbox of each absent member, dropping
+	 * those whose Mailboxes have been discarded; then sends it to the members
+	 * as of when it was numbered, before any later message is numbered, so
+	 * that each member receives the messages in sequence order.  If it cannot
+	 * be logged, it is sent to no one and counted in this.stats, and the
+	 * caller has u sent an error message.
+	 * The append only copies the message into a mapped segment, unless a new
+	 * segment has to be created, and is never made on an event loop (see
+	 * ChannelConnection).
+	 * 
+	 * @return True if the message was sent; false if it could not be logged.
+	 */
+	private boolean relay(User u, String m, int messageId) {
+		long delta = 0;
+		recordLock.lock();
+		try {
+			long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+			long sequence = lastSequence + 1;
+			if(log != null)
+				sequence = log.append(timestamp, u.getUsername(), messageId, m);
+			LogRecord record = new LogRecord(sequence, timestamp, u.getUsername(), messageId, m);
+			lastSequence = sequence;
+			lastTimestamp = timestamp;
+			if(recent != null)
+				delta = recent.add(sequence, User.historyFrame(name, record));
+			User[] snapshot = members;
+			String[] away = absent;
+			for(String v : away) {
+				if(!mailboxes.post(v, name, record))
+					absent = without(absent, v);
+			}
+			send(snapshot, u, record);
+		} catch(IOException e) {
+			stats.logFailed();
+			return false;
+		} finally {
+			recordLock.unlock();
+		}
+		if(recent != null)
+			cache.added(recent, delta);
+		return true;
+	}
+	
+	/**
+	 * Adds to out, in order, up to max of the history Frames of the messages
+	 * numbered after after that this conversation still holds in memory.
+	 * 
+	 * @param after The sequence number after which to start.
+	 * @param max The most Frames to add.
+	 * @param out The list to add the Frames to.
+	 * @return The sequence number of the message before the first Frame added,
+	 * 		   which is after unless the oldest were no longer held, or -1 if
+	 * 		   this conversation keeps no messages in memory.
+	 */
+	long readRecent(long after, int max, List<Frame> out) {
+		if(recent == null)
+			return -1;
+		cache.used(recent);
+		return recent.read(after, max, out);
+	}
+	
+	/**
+	 * Returns whether this conversation's messages can be replayed, from
+	 * this.log or from memory.
+	 * 
+	 * @return True if this.log or this.recent is non-null.
+	 */
+	boolean hasHistory() {
+		return log != null || recent != null;
+	}
+	
+	/**
+	 * Returns whether this is a broadcast channel.
+	 * 
+	 * @return True if this.publishers is non-null.
+	 */
+	boolean isChannel() {
+		return publishers != null;
+	}
+	
+	/**
+	 * If this is a channel and u is one of its members and publishers, makes
+	 * the user named username a publisher too.  If that user is a member, it
+	 * stops being a listener: the members are told it has joined, as they are
+	 * when a publisher joins.
+	 * 
+	 * @param u The User naming the publisher, non-null.
+	 * @param username The name of the new publisher, non-null.
+	 * @return True if username is a publisher; false if this is not a channel,
+	 * 		   or u may not name publishers.
+	 */
+	boolean addPublisher(User u, String username) {
+		lock.lock();
+		try {
+			if (publishers == null || !isMember(members, u) || isListener(u))
+				return false;
+			if (!publishers.add(username))
+				return true;
+			for (User v : memberSet) {
+				if (v.getUsername().equals(username)) {
+					User[] current = members;
+					roster.add(username);
+					setMembers(with(current, v), v, false, null, null, null);
+					joined(v, current);
+					break;
+				}
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * If u is a member, sets the SubscriptionLevel at which it is sent this
+	 * conversation's IMs to level, from the IM after the latest numbered on.
+	 * If level is FULL and IMs were withheld from u before, u is sent them, as
+	 * a replay of this conversation's history ending with the latest IM, or,
+	 * if this conversation keeps no history, an unread message with their
+	 * number.  Called only while handling u's requests, since it may start a
+	 * replay.
+	 * 
+	 * @param u The User setting its level, non-null.
+	 * @param level The level, non-null.
+	 * @param summarizer The UnreadSummarizer sending u the number of IMs
+	 * 		  withheld at COUNTS, non-null.
+	 * @return True if u is a member; false otherwise.
+	 */
+	boolean setLevel(User u, SubscriptionLevel level, UnreadSummarizer summarizer) {
+		Subscription s;
+		long after;
+		long end;
+		lock.lock();
+		try {
+			if (!isMember(members, u))
+				return false;
+			recordLock.lock();
+			try {
+				s = quiet.get(u);
+				if (s == null) {
+					if (level == SubscriptionLevel.FULL)
+						return true;
+					s = new Subscription(u, name, summarizer);
+					quiet.put(u, s);
+				}
+				end = lastSequence;
+				after = s.setLevel(level, end);
+			} finally {
+				recordLock.unlock();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (after >= 0) {
+			if (!hasHistory() || !u.startHistory(this, after, end))
+				s.summarizeNow();
+		}
+		return true;
+	}
+	
+	/**
+	 * Accessor method for this.lastSequence.
+	 * 
+	 * @return The sequence number of the latest message, or 0.
+	 */
+	long getLastSequence() {
+		return lastSequence;
+	}
+	
+	/**
+	 * Queues the IM message for record, from u, for every User in snapshot:
+	 * the sequenced form for those that asked for it, and the plain form for
+	 * the rest.  Each form is built only if some User is to be sent it.  If u
+	 * asked for acks, it is sent an ack message in place of its own IM, after
+	 * the others have been sent theirs.  Members whose Subscription withholds
+	 * the IM are not sent it; a sender is always sent its own.  If this is a
+	 * channel, or snapshot has more than this.fanoutThreshold members, or IMs
+	 * handed to this.fanout have yet to be sent, the IM is handed to
+	 * this.fanout too (see sendSharded).  Called under this.recordLock.
+	 * 
+	 * @param snapshot A snapshot of this.members.
+	 * @param u The sending user, non-null.
+	 * @param record The message, as numbered and stamped, non-null.
+	 */
+	private void send(User[] snapshot, User u, LogRecord record) {
+		if (fanout != null && (publishers != null || snapshot.length > fanoutThreshold
+				|| sharding.get() > 0)) {
+			sendSharded(snapshot, u, record);
+			return;
+		}
+		Frame plain = null;
+		Frame sequenced = null;
+		boolean ack = false;
+		boolean muted = !quiet.isEmpty();
+		for (User v : snapshot) {
+			if (v == u) {
+				if (u.isAcks()) {
+					ack = true;
+					continue;
+				}
+			}
+			else if (muted) {
+				Subscription s = quiet.get(v);
+				if (s != null && s.withhold(record.getSequence()))
+					continue;
+			}
+			if (v.isSequencedIMs()) {
+				if (sequenced == null)
+					sequenced = User.sequencedIMFrame(record, name);
+				v.sendFrame(sequenced);
+			}
+			else {
+				if (plain == null)
+					plain = User.imFrame(u, record.getText(), record.getMessageId(), name);
+				v.sendFrame(plain);
+			}
+		}
+		if (ack)
+			u.sendFrame(User.ackFrame(name, record.getMessageId(), record.getSequence()));
+	}
+	
+	/**
+	 * Sends the IM message for record, from u, to every User in snapshot, as
+	 * send does, on this.fanout: each of its workers sends it to the Users in
+	 * its shard, and is handed only those (see partition).  Both forms of the
+	 * message are built up front, once, and shared by the workers.  If u
+	 * asked for acks, the worker of u's shard sends it its ack message, with
+	 * the message to the rest of its shard.  this.sharding counts the tasks
+	 * until each has run; a shard with no User in snapshot is handed none,
+	 * unless this is a channel, in which case each shard's worker sends the
+	 * message to the listeners in its shard too.
+	 * 
+	 * @param snapshot A snapshot of this.members.
+	 * @param u The sending user, non-null.
+	 * @param record The message, as numbered and stamped, non-null.
 	 */
-	synchronized void sendMessage(User u, String m, int messageId) {
-		for (User v : users) {
-			v.sendIMMessage(u, m, messageId, name);
+	private void sendSharded(User[] snapshot, final User u, final LogRecord record) {
+		final Frame plain = User.imFrame(u, record.getText(), record.getMessageId(), name);
+		final Frame sequenced = User.sequencedIMFrame(record, name);
+		final boolean muted = !quiet.isEmpty();
+		User[][] shards = partition(snapshot);
+		int tasks = 0;
+		for (User[] shard : shards) {
+			if (shard.length > 0 || listeners != null)
+				++tasks;
 		}
+		sharding.addAndGet(tasks);
+		for (int i = 0; i < shards.length; ++i) {
+			final User[] recipients = shards[i];
+			if (recipients.length == 0 && listeners == null)
+				continue;
+			final Set<User> listening = listeners == null ? null : listeners.get(i);
+			fanout.execute(i, new Runnable() {
+				public void run() {
+					try {
+						sendShard(recipients, listening, u, record, plain, sequenced, muted);
+					} finally {
+						sharding.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Returns the Users in snapshot split by their shard of this.fanout,
+	 * splitting them only if this.partition holds some other snapshot, and
+	 * keeping the split in this.partition for the IMs that follow.  Two
+	 * senders may split the same snapshot at once; either split is kept.
+	 * 
+	 * @param snapshot A snapshot of this.members.
+	 * @return For each shard, the Users in snapshot that fall in it.
+	 */
+	private User[][] partition(User[] snapshot) {
+		Partition p = partition;
+		if (p != null && p.snapshot == snapshot)
+			return p.shards;
+		int[] counts = new int[fanout.getShards()];
+		for (User v : snapshot)
+			++counts[fanout.shardOf(v)];
+		User[][] shards = new User[counts.length][];
+		for (int i = 0; i < counts.length; ++i) {
+			shards[i] = counts[i] == 0 ? NO_USERS : new User[counts[i]];
+			counts[i] = 0;
+		}
+		for (User v : snapshot) {
+			int i = fanout.shardOf(v);
+			shards[i][counts[i]++] = v;
+		}
+		partition = new Partition(snapshot, shards);
+		return shards;
+	}
+	
+	/**
+	 * Sends the IM message for record, from u, to recipients, the Users of a
+	 * snapshot that fall in one shard of this.fanout, and then to listening,
+	 * the listeners of this channel in that shard, if it is non-null, as send
+	 * does.  Run by the shard's worker.
+	 */
+	private void sendShard(User[] recipients, Set<User> listening, User u, LogRecord record, Frame plain,
+			Frame sequenced, boolean muted) {
+		for (User v : recipients)
+			sendShard(v, u, record, plain, sequenced, muted);
+		if (listening != null) {
+			for (User v : listening)
+				sendShard(v, u, record, plain, sequenced, muted);
+		}
+	}
+	
+	/**
+	 * Sends v the IM message for record, from u, as sendShard does.
+	 */
+	private void sendShard(User v, User u, LogRecord record, Frame plain, Frame sequenced, boolean muted) {
+		if (v == u) {
+			if (u.isAcks())
+				u.sendFrame(User.ackFrame(name, record.getMessageId(), record.getSequence()));
+			else
+				v.sendFrame(v.isSequencedIMs() ? sequenced : plain);
+			return;
+		}
+		if (muted) {
+			Subscription s = quiet.get(v);
+			if (s != null && s.withhold(record.getSequence()))
+				return;
+		}
+		v.sendFrame(v.isSequencedIMs() ? sequenced : plain);
 	}
 	
 	/**
-	 * Returns an array representation of this.users.
+	 * Returns an array representation of this.members, which, if this is a
+	 * channel, holds only the members that are publishers.
 	 * 
-	 * @return An array representation of this.users.
+	 * @return An array representation of the members any member is told of.
 	 */
-	synchronized Object[] toArray() {
-		return users.toArray();
+	Object[] toArray() {
+		User[] snapshot = members;
+		return Arrays.copyOf(snapshot, snapshot.length, Object[].class);
+	}
+	
+	/**
+	 * Accessor method for this.log.
+	 * 
+	 * @return this.log, or null if this Conversation's messages are not logged.
+	 */
+	ConversationLog getLog() {
+		return log;
 	}
 	
 	/**
@@ -168,13 +1307,24 @@ public class Conversation {
 
 	/**
 	 * Returns as a String the conversation name and the names of the Users in
-	 * this.users, according to ENTERED_CONV_CONTENT in the server-to-client network
+	 * this.members, according to ENTERED_CONV_CONTENT in the server-to-client network
 	 * described in the Network Protocol section of the design document.
 	 * 
 	 * @return A (non-null) String representation of this.
 	 */
 	@Override
-	public synchronized String toString() {
+	public String toString() {
+		return describe(members);
+	}
+	
+	/**
+	 * Returns as a String the conversation name and the names of the given Users,
+	 * as toString does for this.members.
+	 * 
+	 * @param users A snapshot of the members of this Conversation.
+	 * @return A (non-null) String representation of this with the given members.
+	 */
+	private String describe(User[] users) {
 		StringBuilder ret = new StringBuilder();
 		ret.append(name);
 		for (User u : users) {
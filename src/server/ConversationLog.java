@@ -0,0 +1,228 @@
+package server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A ConversationLog is the part of a MessageLog holding one conversation's
+ * IMs: a directory of LogSegments, named for the sequence numbers they start
+ * with, of which only the newest is appended to.  A segment that fills up is
+ * sealed, and a new one started; sealed segments are forced to the disk by the
+ * MessageLog's sync thread along with the newest one, not by the appending
+ * thread.  Instances of ConversationLog have the following instance variables:
+ *
+ *  - owner is the MessageLog this belongs to, and is told when this has
+ *    changes to sync.
+ *  - name is the name of the conversation.
+ *  - directory is the directory of this conversation's segments.  It is
+ *    created, along with a file recording name, by the first append.
+ *  - segmentBytes is the size of each new segment file.
+ *  - starts holds the first sequence numbers of the segments, oldest first.
+ *  - active is the newest segment, or null if there is none yet.
+ *  - unsynced holds the sealed segments whose changes have not yet been
+ *    forced to the disk.
+ *  - dirty is true if active has been appended to since it was last forced.
+ *  - reading is the sealed segment last read from, kept mapped so that a
+ *    reader going through the log a chunk at a time opens each segment once,
+ *    or null.
+ *
+ * All methods but sync are synchronized on this; sync forces segments without
+ * holding the lock, so appends go on meanwhile.
+ */
+final class ConversationLog {
+
+	static final String NAME_FILE = "name";
+
+	private final MessageLog owner;
+	private final String name;
+	private final File directory;
+	private final int segmentBytes;
+	private final List<Long> starts = new ArrayList<Long>();
+	private LogSegment active;
+	private final List<LogSegment> unsynced = new ArrayList<LogSegment>();
+	private boolean dirty;
+	private LogSegment reading;
+
+	/**
+	 * Creates a ConversationLog for a conversation with no IMs logged.
+	 *
+	 * @param owner The MessageLog this belongs to.
+	 * @param name The name of the conversation.
+	 * @param directory The directory to keep segments in, once there are any.
+	 * @param segmentBytes The size of each segment file.
+	 */
+	ConversationLog(MessageLog owner, String name, File directory, int segmentBytes) {
+		this.owner = owner;
+		this.name = name;
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+	}
+
+	/**
+	 * Opens the ConversationLog in directory, recovering the end of its newest
+	 * segment.  A newest segment whose header is blank is deleted.
+	 *
+	 * @param owner The MessageLog this belongs to.
+	 * @param name The name of the conversation, as recorded in directory.
+	 * @param directory The directory holding the segments.
+	 * @param segmentBytes The size of each new segment file.
+	 * @return The ConversationLog.
+	 * @throws IOException If the newest segment cannot be opened.
+	 */
+	static ConversationLog recover(MessageLog owner, String name, File directory, int segmentBytes)
+			throws IOException {
+		ConversationLog log = new ConversationLog(owner, name, directory, segmentBytes);
+		String[] files = directory.list();
+		if(files == null)
+			throw new IOException("cannot list " + directory);
+		Arrays.sort(files);
+		for(String file : files) {
+			if(file.endsWith(".log"))
+				log.starts.add(Long.parseLong(file.substring(0, file.length() - 4)));
+		}
+		while(!log.starts.isEmpty() && log.active == null) {
+			File newest = log.segmentFile(log.starts.get(log.starts.size() - 1));
+			log.active = LogSegment.open(newest, true);
+			if(log.active == null) {
+				// Created but never written to: the log ends in the segment before.
+				if(!newest.delete())
+					throw new IOException("cannot delete " + newest);
+				log.starts.remove(log.starts.size() - 1);
+			}
+		}
+		return log;
+	}
+
+	private File segmentFile(long firstSequence) {
+		return new File(directory, LogSegment.fileName(firstSequence));
+	}
+
+	/**
+	 * Appends an IM, numbering it one more than the last.
+	 *
+	 * @param timestamp When the IM was logged, in milliseconds since the epoch.
+	 * @param sender The username of the sender, non-null.
+	 * @param messageId The sender's IM ID.
+	 * @param text The text of the IM, non-null.
+	 * @return The IM's sequence number.
+	 * @throws IOException If a new segment is needed and cannot be created.
+	 */
+	synchronized long append(long timestamp, String sender, int messageId, String text) throws IOException {
+		byte[] senderBytes = sender.getBytes(LogSegment.UTF8);
+		byte[] textBytes = text.getBytes(LogSegment.UTF8);
+		if(active == null)
+			startSegment(1);
+		int n = active.append(timestamp, senderBytes, messageId, textBytes);
+		if(n == 0) {
+			unsynced.add(active);
+			reading = active;
+			startSegment(active.getLastSequence() + 1);
+			n = active.append(timestamp, senderBytes, messageId, textBytes);
+			if(n == 0)
+				throw new IOException("record does not fit in a segment of " + segmentBytes + " bytes");
+		}
+		if(!dirty) {
+			dirty = true;
+			owner.changed(this);
+		}
+		owner.appended(n);
+		return active.getLastSequence();
+	}
+
+	/**
+	 * Creates and switches to a new segment starting at firstSequence, creating
+	 * this.directory first if need be.
+	 */
+	private void startSegment(long firstSequence) throws IOException {
+		if(!directory.isDirectory()) {
+			if(!directory.mkdirs())
+				throw new IOException("cannot create " + directory);
+			OutputStream out = new FileOutputStream(new File(directory, NAME_FILE));
+			try {
+				out.write(name.getBytes(LogSegment.UTF8));
+			} finally {
+				out.close();
+			}
+		}
+		active = LogSegment.create(segmentFile(firstSequence), firstSequence, segmentBytes);
+		starts.add(firstSequence);
+	}
+
+	/**
+	 * Returns the sequence number of the last IM logged, or 0 if there is none.
+	 *
+	 * @return The last sequence number.
+	 */
+	synchronized long getLastSequence() {
+		return active == null ? 0 : active.getLastSequence();
+	}
+
+	/**
+	 * Reads the IMs numbered from fromSequence on, in order, into out, until max
+	 * have been read or there are no more.
+	 *
+	 * @param fromSequence The sequence number of the first IM wanted.
+	 * @param max The most IMs to read.
+	 * @param out The list to add the IMs to.
+	 * @return The number of IMs read.
+	 * @throws IOException If a sealed segment cannot be read.
+	 */
+	synchronized int read(long fromSequence, int max, List<LogRecord> out) throws IOException {
+		int n = 0;
+		// The last segment starting at or before fromSequence holds it, if any does.
+		int i = starts.size() - 1;
+		while(i > 0 && starts.get(i) > fromSequence)
+			--i;
+		for(; i < starts.size() && n < max; ++i) {
+			LogSegment segment = i == starts.size() - 1 ? active : sealed(starts.get(i));
+			n += segment.read(fromSequence, max - n, out);
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the sealed segment starting at firstSequence, opening it for
+	 * reading unless it is this.reading already.
+	 */
+	private LogSegment sealed(long firstSequence) throws IOException {
+		if(reading == null || reading.getFirstSequence() != firstSequence) {
+			reading = LogSegment.open(segmentFile(firstSequence), false);
+			if(reading == null)
+				throw new IOException(segmentFile(firstSequence) + " is blank");
+		}
+		return reading;
+	}
+
+	/**
+	 * Forces every change to this log so far to the disk.  Called by the
+	 * MessageLog's sync thread, which has been told of the changes.
+	 */
+	void sync() {
+		LogSegment[] sealed;
+		LogSegment newest;
+		synchronized(this) {
+			sealed = unsynced.toArray(new LogSegment[unsynced.size()]);
+			unsynced.clear();
+			newest = dirty ? active : null;
+			dirty = false;
+		}
+		for(LogSegment segment : sealed)
+			segment.force();
+		if(newest != null)
+			newest.force();
+	}
+
+	/**
+	 * Accessor method for this.name.
+	 *
+	 * @return this.name.
+	 */
+	String getName() {
+		return name;
+	}
+}
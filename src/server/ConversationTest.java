@@ -6,6 +6,13 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import network.NetworkConstants;
 
@@ -411,5 +418,252 @@ public class ConversationTest {
 		Conversation conv = new Conversation("conv");
 		assertEquals("conv".hashCode(), conv.hashCode());
 	}
+	
+	/**
+	 * Expect an IM to a conversation over the fan-out threshold to be sent to
+	 * each member by the worker of the shard it was given, and to no member
+	 * by any other, and the shards to be given out evenly.
+	 */
+	@Test(timeout=5000) public void shardedSendTest() throws InterruptedException {
+		final int n = 10;
+		FanoutPool fanout = new FanoutPool(3);
+		final ConcurrentMap<String, String> senders = new ConcurrentHashMap<String, String>();
+		final CountDownLatch sent = new CountDownLatch(n);
+		User[] users = new User[n];
+		int[] sizes = new int[fanout.getShards()];
+		try {
+			for (int i = 0; i < n; ++i) {
+				final String username = "user" + i;
+				users[i] = new User(null, new Connection() {
+					public void send(Frame frame) {
+						if (frame.getText().startsWith(NetworkConstants.IM + "\t")) {
+							assertNull(senders.put(username, Thread.currentThread().getName()));
+							sent.countDown();
+						}
+					}
+
+					public void useBinary() {
+					}
+
+					public void close() {
+					}
+				});
+				users[i].setUsername(username);
+				users[i].setShard(fanout.assign());
+				++sizes[users[i].getShard()];
+			}
+			Conversation conv = new Conversation("conv", null, null, null, null, null, fanout,
+					new ServerConfig().setFanoutThreshold(2), new ServerStats());
+			assertTrue(conv.register(new ConcurrentHashMap<String, Conversation>(), users));
+			assertTrue(conv.sendMessageFrom(users[0], "hi", 1));
+			sent.await();
+			for (User u : users)
+				assertEquals("fanout-" + u.getShard(), senders.get(u.getUsername()));
+			for (int size : sizes)
+				assertTrue(size == n / sizes.length || size == n / sizes.length + 1);
+		} finally {
+			fanout.close();
+		}
+	}
+	
+	/**
+	 * Expect a member that has stopped reading not to hold up the IMs of the
+	 * rest of its shard under OverflowPolicy.BLOCK: the shard's worker may not
+	 * wait for room, so every IM reaches the other member long before
+	 * overflowBlockMillis would have passed even once.
+	 */
+	@Test(timeout=5000) public void stalledMemberTest() throws IOException, InterruptedException {
+		final int n = 2000;
+		ServerConfig config = new ServerConfig().setOverflowPolicy(OverflowPolicy.BLOCK)
+				.setOverflowBlockMillis(10000).setOutboundQueueCapacity(4).setFanoutThreshold(0);
+		FanoutPool fanout = new FanoutPool(1);
+		ServerSocket serverSocket = new ServerSocket(NetworkConstants.DEFAULT_PORT);
+		Socket client = new Socket();
+		Socket socket = null;
+		try {
+			client.setReceiveBufferSize(4096);
+			client.connect(serverSocket.getLocalSocketAddress());
+			socket = serverSocket.accept();
+			socket.setSendBufferSize(4096);
+			User slow = new User(null, (Connection) new SocketConnection(socket, config, new ServerStats()));
+			slow.setUsername("slow");
+			slow.setShard(fanout.assign());
+			final CountDownLatch received = new CountDownLatch(n);
+			User fast = new User(null, new Connection() {
+				public void send(Frame frame) {
+					if (frame.getText().startsWith(NetworkConstants.IM + "\t"))
+						received.countDown();
+				}
+
+				public void useBinary() {
+				}
+
+				public void close() {
+				}
+			});
+			fast.setUsername("fast");
+			fast.setShard(fanout.assign());
+			Conversation conv = new Conversation("conv", null, null, null, null, null, fanout,
+					config, new ServerStats());
+			assertTrue(conv.register(new ConcurrentHashMap<String, Conversation>(), fast, slow));
+			StringBuilder text = new StringBuilder();
+			while (text.length() < 400)
+				text.append("stalled ");
+			for (int i = 1; i <= n; ++i)
+				assertTrue(conv.sendMessageFrom(fast, text.toString(), i));
+			received.await();
+		} finally {
+			fanout.close();
+			client.close();
+			if (socket != null)
+				socket.close();
+			serverSocket.close();
+		}
+	}
+	
+	/**
+	 * Expect a channel's listeners to be sent each IM posted while they listen,
+	 * whichever shard they fall in, and none posted after they leave, and to
+	 * be named to no one.
+	 */
+	@Test(timeout=5000) public void listenersTest() throws InterruptedException {
+		final int n = 6;
+		FanoutPool fanout = new FanoutPool(3);
+		final ConcurrentMap<String, List<String>> received = new ConcurrentHashMap<String, List<String>>();
+		final CountDownLatch ended = new CountDownLatch(n - 1);
+		User[] users = new User[n + 1];
+		try {
+			for (int i = 0; i <= n; ++i) {
+				final String username = i == 0 ? "publisher" : "listener" + i;
+				received.put(username, new ArrayList<String>());
+				users[i] = new User(null, new Connection() {
+					public void send(Frame frame) {
+						String[] fields = frame.getText().split("\t");
+						if (!fields[0].equals(NetworkConstants.IM))
+							return;
+						received.get(username).add(fields[4]);
+						if (fields[4].equals("end"))
+							ended.countDown();
+					}
+
+					public void useBinary() {
+					}
+
+					public void close() {
+					}
+				});
+				users[i].setUsername(username);
+				users[i].setShard(fanout.assign());
+			}
+			Conversation conv = new Conversation("conv", "publisher", null, null, null, null, fanout,
+					new ServerConfig(), new ServerStats());
+			assertTrue(conv.register(new ConcurrentHashMap<String, Conversation>(), users[0]));
+			for (int i = 1; i <= n; ++i)
+				assertTrue(conv.add(users[i]));
+			assertTrue(conv.sendMessageFrom(users[0], "one", 0));
+			assertTrue(conv.remove(users[1]));
+			assertTrue(conv.remove(users[2]));
+			assertTrue(conv.sendMessageFrom(users[0], "two", 1));
+			assertTrue(conv.sendMessageFrom(users[0], "end", 2));
+			ended.await();
+			assertEquals(Arrays.asList("one"), received.get("listener1"));
+			assertEquals(Arrays.asList("one"), received.get("listener2"));
+			for (int i = 3; i <= n; ++i)
+				assertEquals(Arrays.asList("one", "two", "end"), received.get("listener" + i));
+			assertTrue(conv.contains(users[3]));
+			assertFalse(conv.contains(users[1]));
+			assertArrayEquals(new Object[] { users[0] }, conv.toArray());
+		} finally {
+			fanout.close();
+		}
+	}
+	
+	/**
+	 * Returns a User of server, named username and asking for sequenced IMs,
+	 * that counts down received for each IM it is sent and adds to failures
+	 * each IM whose sequence number is not greater than that of the one before.
+	 */
+	private static User sequencedUser(IMServer server, final String username,
+			final CountDownLatch received, final ConcurrentMap<String, String> failures) {
+		User u = new User(server, new Connection() {
+			private long last;
+
+			public void send(Frame frame) {
+				String[] fields = frame.getText().split("\t");
+				if (!fields[0].equals(NetworkConstants.IM))
+					return;
+				long sequence = Long.parseLong(fields[4]);
+				if (sequence <= last)
+					failures.put(username + " " + sequence, "after " + last);
+				last = sequence;
+				received.countDown();
+			}
+
+			public void useBinary() {
+			}
+
+			public void close() {
+			}
+		});
+		assertTrue(u.handleLine(NetworkConstants.CONNECT + "\t" + username + "\t" + NetworkConstants.SEQUENCED_IMS));
+		return u;
+	}
+	
+	/**
+	 * Expect every member to receive the IMs of several senders posting at
+	 * once in the order of their sequence numbers, while a member joining and
+	 * leaving has the IMs switch between being sent on the senders' threads
+	 * and being handed to the FanoutPool.
+	 */
+	@Test(timeout=20000) public void sequenceOrderTest() throws IOException, InterruptedException {
+		final int senders = 4;
+		final int n = 500;
+		IMServer server = new IMServer(NetworkConstants.DEFAULT_PORT);
+		FanoutPool fanout = new FanoutPool(2);
+		try {
+			final ConcurrentMap<String, String> failures = new ConcurrentHashMap<String, String>();
+			CountDownLatch received = new CountDownLatch(senders * senders * n);
+			final User[] users = new User[senders];
+			for (int i = 0; i < senders; ++i) {
+				users[i] = sequencedUser(server, "user" + i, received, failures);
+				users[i].setShard(fanout.assign());
+			}
+			User extra = sequencedUser(server, "extra", new CountDownLatch(0), failures);
+			extra.setShard(fanout.assign());
+			final Conversation conv = new Conversation("conv", null, null, null, null, null, fanout,
+					new ServerConfig().setFanoutThreshold(senders), new ServerStats());
+			assertTrue(conv.register(new ConcurrentHashMap<String, Conversation>(), users));
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] threads = new Thread[senders];
+			for (int i = 0; i < senders; ++i) {
+				final User u = users[i];
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						for (int id = 0; id < n; ++id)
+							conv.sendMessageFrom(u, "hi", id);
+					}
+				};
+				threads[i].start();
+			}
+			start.countDown();
+			while (received.getCount() > 0) {
+				conv.add(extra);
+				Thread.yield();
+				conv.remove(extra);
+				Thread.yield();
+			}
+			for (Thread t : threads)
+				t.join();
+			assertEquals(Collections.<String, String>emptyMap(), failures);
+		} finally {
+			fanout.close();
+			server.close();
+		}
+	}
 
 }
@@ -0,0 +1,119 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A FanoutPool sends IMs to the members of an IMServer's broadcast channels
+ * and largest conversations on worker threads, so that the sender's thread is
+ * not held for the whole of the fan-out, and the fan-out of one IM is spread
+ * over several cores.  The recipients of an IM are split into shards, one per
+ * worker, and each worker sends the IM to the recipients in its shard (see
+ * Conversation.send).
+ *
+ * Each User is given a shard as it is added to the server, round robin, so
+ * that the shards stay even, and always falls in it; each shard has a worker
+ * of its own, which runs its tasks one at a time in the order they were
+ * submitted.  So every recipient is sent the IMs a conversation hands this in
+ * the order it handed them over, however the membership changes in between.
+ * Instances of FanoutPool have the following instance variables:
+ *
+ *  - workers holds the single-threaded executor of each shard.
+ *  - assigned is the number of shards given out by assign.
+ *
+ * A worker sends to every member of its shard in turn, so it never waits for
+ * room in one member's full OutboundQueue, whatever the OverflowPolicy (see
+ * NonBlocking); a member too slow to keep up is dropped or disconnected
+ * rather than holding up the rest of its shard.
+ *
+ * A FanoutPool is thread-safe.
+ */
+final class FanoutPool {
+
+	private final ExecutorService[] workers;
+	private final AtomicInteger assigned = new AtomicInteger();
+
+	/**
+	 * The thread of a shard's worker.
+	 */
+	static final class Worker extends Thread {
+
+		Worker(Runnable task, String name) {
+			super(task, name);
+			setDaemon(true);
+		}
+	}
+
+	/**
+	 * Creates a FanoutPool with a worker thread per shard.
+	 *
+	 * @param shards The number of shards, at least 1.
+	 */
+	FanoutPool(int shards) {
+		workers = new ExecutorService[shards];
+		for(int i = 0; i < shards; ++i) {
+			final String threadName = "fanout-" + i;
+			workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Worker(r, threadName);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the number of shards.
+	 *
+	 * @return The number of shards, at least 1.
+	 */
+	int getShards() {
+		return workers.length;
+	}
+
+	/**
+	 * Returns the shard to give the next User added to the server: each shard
+	 * in turn.
+	 *
+	 * @return The shard, from 0 to getShards() - 1.
+	 */
+	int assign() {
+		return (assigned.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+	}
+
+	/**
+	 * Returns the shard u falls in, which never changes: the one it was given
+	 * by assign, or 0 if it was given none.
+	 *
+	 * @param u A User, non-null.
+	 * @return The shard, from 0 to getShards() - 1.
+	 */
+	int shardOf(User u) {
+		return u.getShard() % workers.length;
+	}
+
+	/**
+	 * Runs task on the worker of shard, after every task submitted to it
+	 * before.  Does nothing once this has been closed.
+	 *
+	 * @param shard The shard, from 0 to getShards() - 1.
+	 * @param task The task, non-null.
+	 */
+	void execute(int shard, Runnable task) {
+		try {
+			workers[shard].execute(task);
+		} catch(RejectedExecutionException e) {
+			// The pool was closed as the server shut down.
+		}
+	}
+
+	/**
+	 * Stops the workers; tasks not yet run never are.
+	 */
+	void close() {
+		for(ExecutorService worker : workers)
+			worker.shutdownNow();
+	}
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import network.BinaryCodec;
+import network.NetworkConstants;
+
+/**
+ * A Frame is one server-to-client protocol line, encoded for the wire at most
+ * once per framing.  Frames are immutable, so a message fanned out to every
+ * member of a Conversation is built and encoded a single time, and the same
+ * Frame is queued for every recipient; each connection then writes its bytes
+ * without copying or re-encoding them.  A connection that negotiated binary
+ * framing (see network.BinaryCodec) writes the Frame's binary encoding instead
+ * of its text line; that encoding is made the first time it is asked for, so
+ * that Frames sent only to text clients never pay for it.  Instances of Frame
+ * have the following instance variables:
+ *
+ *  - text is the protocol line, without its terminating newline.  It is non-null
+ *    and contains no newlines.
+ *  - bytes is text encoded in NetworkConstants.CHARSET, followed by "\n".  It is
+ *    never modified after construction, and never handed out.
+ *  - binary is the binary frame for text, or null until it is first needed.  Two
+ *    threads may both encode it, harmlessly; either array is never modified once
+ *    published, and never handed out.
+ */
+final class Frame {
+
+	static final Charset CHARSET = Charset.forName(NetworkConstants.CHARSET);
+
+	private final String text;
+	private final byte[] bytes;
+	private volatile byte[] binary;
+
+	/**
+	 * Creates a Frame for the protocol line text, encoding it immediately.
+	 *
+	 * @param text The line to send, non-null and containing no newlines.
+	 */
+	Frame(String text) {
+		this.text = text;
+		byte[] encoded = text.getBytes(CHARSET);
+		this.bytes = new byte[encoded.length + 1];
+		System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+		bytes[encoded.length] = '\n';
+	}
+
+	/**
+	 * Accessor method for this.text.
+	 *
+	 * @return The protocol line, without its newline.
+	 */
+	String getText() {
+		return text;
+	}
+
+	/**
+	 * Returns the length of this Frame's text encoding, newline included.
+	 *
+	 * @return The number of bytes of the text line.
+	 */
+	int size() {
+		return bytes.length;
+	}
+
+	/**
+	 * Returns a read-only ByteBuffer over this Frame's encoded bytes in the given
+	 * framing.  Each call returns a new buffer with its own position, sharing the
+	 * bytes, so that every recipient can write the Frame at its own pace.
+	 *
+	 * @param binary True for the binary frame, false for the text line.
+	 * @return A read-only buffer positioned at the start of the encoding.
+	 */
+	ByteBuffer buffer(boolean binary) {
+		byte[] b = bytes;
+		if(binary) {
+			b = this.binary;
+			if(b == null)
+				this.binary = b = BinaryCodec.encode(text, true);
+		}
+		return ByteBuffer.wrap(b).asReadOnlyBuffer();
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
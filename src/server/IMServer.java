@@ -1,49 +1,176 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
 import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * IMServer is a Runnable that listens to a specific socket, corresponding to a
  * specific port and IP address, for user connections, on the thread that calls
- * run().  The server also keeps a thread for each client, which handles
- * the network requests from that client.  Instances of IMServer keep track of the
- * following instance variables:
+ * run().  Depending on its ServerConfig, the server either keeps a thread
+ * (platform or virtual) for each client, which handles the network requests
+ * from that client, or hands every client to a SelectorEngine, whose few event
+ * loops read the requests of all clients and pass them to its request workers.  Instances of IMServer keep track of the following instance
+ * variables:
  * 
  *  - serverSocket is the ServerSocket on which the server listens for user
  *    connections.
+ *  - engine is the SelectorEngine servicing clients in ConnectionMode.SELECTOR,
+ *    or null otherwise.
+ *  - config is the ServerConfig this server was created with.
+ *  - stats holds counters describing the traffic written to clients.
  *  - users is a map of from String to User that keeps track of clients currently
  *    connected to the server.  The key for a given User is the user’s name.  this.users
  *    has no null keys or values.
  *  - conversations is a map from String to Conversation that keeps track of all
  *    conversations, active and empty.  The key for a given Conversation is the
  *    conversation’s name.  this.conversations has no null keys or values.
+ *  - presenceLock orders connections and disconnections, so that each client
+ *    learns of every other exactly once: either in its initial users list or in
+ *    a connected message, never both.  It is held only while this.users is
+ *    changed and its other members are listed, not while messages are sent, and
+ *    looking up a User never takes it.
+ *  - presence is the PresenceCoalescer that batches news of logins and logouts,
+ *    or null if config's presenceWindowMillis is 0, in which case each is sent
+ *    to every other user as it happens.
+ *  - presenceIndex records which users have subscribed to which others'
+ *    presence, if config scopes presence, and is null otherwise.  A user of a
+ *    server that scopes presence is told of a login only by its subscribers,
+ *    of a logout by its subscribers and the users it shared a conversation
+ *    with, and its initial users list names only itself.  presenceIndex is
+ *    guarded by presenceLock.
+ *  - messageLog is the MessageLog every IM relayed is appended to, or null if
+ *    config names no messageLogDirectory.
+ *  - messageCache bounds the memory the Conversations' recent IMs take, or is
+ *    null if config's recentMessageBytes is 0, in which case none are kept.
+ *  - mailboxes holds, for each user who left while in conversations, the IMs
+ *    sent to them while it is away, or is null if config names no
+ *    mailboxDirectory, in which case users leave their conversations for good.
+ *  - sessions maps each resume token handed out to the User whose session it
+ *    resumes (see User.resume), until the session ends.
+ *  - sessionTimer ends suspended sessions whose grace period is up, or is
+ *    null if config's resumeGraceMillis is 0, in which case no session is
+ *    ever suspended.
+ *  - random generates resume tokens, which must not be guessable.
+ *  - membership times the windows over which each Conversation collects its
+ *    joins and leaves, or is null if config's membershipWindowMillis is 0, in
+ *    which case each is sent right away.
+ *  - fanout sends the IMs of broadcast channels, and of conversations with
+ *    more than config's fanoutThreshold members, to their members, spread
+ *    over config's fanoutThreads worker threads.
+ *  - unread sends the members that have lowered their SubscriptionLevel to
+ *    COUNTS the number of IMs withheld from them.
+ *  - closing is true once close has been called, after which no session is
+ *    suspended.
+ *  - roster holds the names of the Users in this.users, in order, so that a
+ *    client may be sent the users list a page at a time, each page starting
+ *    after the last name of the one before, however users come and go in
+ *    between.  It is guarded by presenceLock.
+ *
+ * users and conversations are concurrent maps.  Lookups, which every request
+ * makes, take no lock.  A conversation name is claimed with an atomic
+ * putIfAbsent (see Conversation.register), and a username under presenceLock,
+ * so two clients can never both create the same name.
  *    
  * See the Server section in the design document for more information on the
  * IMServer class.
  */
 public class IMServer implements Runnable {
 
-	private final Map<String, User> users;
-	private final Map<String, Conversation> conversations;
+	private final ConcurrentMap<String, User> users;
+	private final ConcurrentMap<String, Conversation> conversations;
+	private final ReentrantLock presenceLock = new ReentrantLock();
 	private final ServerSocket serverSocket;
+	private final SelectorEngine engine;
+	private final ServerConfig config;
+	private final ServerStats stats = new ServerStats();
+	private final PresenceCoalescer presence;
+	private final PresenceIndex presenceIndex;
+	private final NavigableSet<String> roster = new TreeSet<String>();
+	private final MessageLog messageLog;
+	private final MessageCache messageCache;
+	private final MailboxStore mailboxes;
+	private final ConcurrentMap<String, User> sessions = new ConcurrentHashMap<String, User>();
+	private final Timer sessionTimer;
+	private final MembershipCoalescer membership;
+	private final UnreadSummarizer unread;
+	private final FanoutPool fanout;
+	private final SecureRandom random = new SecureRandom();
+	private volatile boolean closing;
 	
 	/**
-	 * Creates a new instance of IMServer on the specified port.
+	 * Creates a new instance of IMServer on the specified port, with the
+	 * default ServerConfig.
 	 * Initializes users and conversations to be empty.
 	 * 
 	 * @param port The port on which to listen for user connections.
 	 * @throws IOException If server socket cannot be set up on this port.
 	 */
 	public IMServer(int port) throws IOException {
-		users = new HashMap<String, User>();
-		conversations = new HashMap<String, Conversation>();
-		serverSocket = new ServerSocket(port);
+		this(port, new ServerConfig());
+	}
+	
+	/**
+	 * Creates a new instance of IMServer on the specified port, with the
+	 * given settings.  Initializes users and conversations to be empty.
+	 * 
+	 * @param port The port on which to listen for user connections.
+	 * @param config The settings for this server, non-null.
+	 * @throws IOException If server socket cannot be set up on this port, or
+	 * 		   config's message log cannot be opened.
+	 * @throws IllegalStateException If config asks for ConnectionMode.VIRTUAL_THREAD
+	 * 		   and this JVM does not support virtual threads.
+	 */
+	public IMServer(int port, ServerConfig config) throws IOException {
+		this.config = config;
+		if(config.getConnectionMode() == ConnectionMode.VIRTUAL_THREAD && !VirtualThreads.isSupported())
+			throw new IllegalStateException("VIRTUAL_THREAD mode requires a JVM with virtual threads (Java 21+)");
+		users = new ConcurrentHashMap<String, User>();
+		conversations = new ConcurrentHashMap<String, Conversation>();
+		presence = config.getPresenceWindowMillis() > 0 ? new PresenceCoalescer(users, presenceLock,
+				config.getPresenceWindowMillis(), config.isScopedPresence()) : null;
+		presenceIndex = config.isScopedPresence() ? new PresenceIndex() : null;
+		messageLog = config.getMessageLogDirectory() == null ? null
+				: new MessageLog(new File(config.getMessageLogDirectory()), config.getMessageLogSegmentBytes(),
+						config.getMessageLogSyncMillis());
+		messageCache = config.getRecentMessageBytes() == 0 ? null
+				: new MessageCache(config.getRecentMessageBytes(), config.getRecentMessagesPerConversation(), stats);
+		mailboxes = config.getMailboxDirectory() == null ? null
+				: new MailboxStore(new File(config.getMailboxDirectory()), config.getMailboxMessages(),
+						config.getMailboxMaxAgeMillis(), stats);
+		sessionTimer = config.getResumeGraceMillis() > 0 ? new Timer("session-expiry", true) : null;
+		membership = config.getMembershipWindowMillis() > 0
+				? new MembershipCoalescer(config.getMembershipWindowMillis()) : null;
+		unread = new UnreadSummarizer(config.getUnreadSummaryMillis());
+		fanout = new FanoutPool(config.getFanoutThreads());
+		if(config.getConnectionMode() == ConnectionMode.SELECTOR) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			serverSocket = channel.socket();
+			serverSocket.bind(new InetSocketAddress(port), config.getAcceptBacklog());
+			engine = new SelectorEngine(this, channel, config.getSelectorThreads(), config.getRequestThreads());
+		}
+		else {
+			serverSocket = new ServerSocket(port, config.getAcceptBacklog());
+			engine = null;
+		}
 	}
 	
 	/**
@@ -56,6 +183,11 @@ public class IMServer implements Runnable {
 	 * specified conversation or if there is no conversations associated with
 	 * convName.
 	 * 
+	 * If the User has already had the message with ID messageId relayed to the
+	 * conversation, as when its client sends it again after a timeout or on
+	 * resuming its session, the message is only acknowledged to the User (see
+	 * User.acknowledgeRetransmit), not sent again.
+	 * 
 	 * @param username The name of the User sending the message.
 	 * @param convName The string associated with the conversation to which
 	 * 		  to send the message.
@@ -66,18 +198,19 @@ public class IMServer implements Runnable {
 	boolean sendMessage(String username, String convName, int messageId, String m) {
 		Conversation conv;
 		User u = userByUsername(username);
-		if(u == null)
+		if(u == null || convName == null)
 			return false;
-		synchronized(conversations) {
-			if(!conversations.containsKey(convName))
-				return false;
-			conv = conversations.get(convName);
-		}
-		synchronized(conv) {
-			if(!conv.contains(u))
-				return false;
-			conv.sendMessage(u, m, messageId);
+		conv = conversations.get(convName);
+		if(conv == null)
+			return false;
+		if(u.isRetransmit(conv, messageId)) {
+			stats.retransmitSuppressed();
+			u.acknowledgeRetransmit(m, messageId, convName);
+			return true;
 		}
+		if(!conv.sendMessageFrom(u, m, messageId))
+			return false;
+		u.relayed(conv, messageId);
 		return true;
 	}
 	
@@ -100,28 +233,75 @@ public class IMServer implements Runnable {
 	 * @return True if the conversation is successfully created; false otherwise.
 	 */
 	boolean newConversation(String username, String convName) {
+		return newConversation(username, convName, false);
+	}
+	
+	/**
+	 * Creates a new broadcast channel, as newConversation creates a new
+	 * Conversation, whose only publisher, at first, is the User with the given
+	 * username (see Conversation.addPublisher).  Its other members are
+	 * listeners, sent what is posted but never told of one another.
+	 * 
+	 * Fails to create a new channel if username is null or not in users or if
+	 * convName already refers to a Conversation in conversations.
+	 * 
+	 * @param username The name of the User creating the channel
+	 * @param convName The name of the channel to be created, or null or "" for
+	 * 		  an auto-generated name.
+	 * @return True if the channel is successfully created; false otherwise.
+	 */
+	boolean newChannel(String username, String convName) {
+		return newConversation(username, convName, true);
+	}
+	
+	/**
+	 * Creates a new Conversation, or, if channel is true, a new broadcast
+	 * channel published by the User with the given username, as
+	 * newConversation describes.
+	 */
+	private boolean newConversation(String username, String convName, boolean channel) {
 		boolean success = false;
 		User u = userByUsername(username);
 		if(u == null)
 			return false;
+		String publisher = channel ? username : null;
 		if(convName == null || convName.equals("")) {
 			String genConvName = null;
 			while(!success) {
 				genConvName = "conversation" + String.valueOf(new Random().nextInt(Integer.MAX_VALUE));
-				synchronized(conversations) {
-					success = !conversations.containsKey(genConvName);
-					if(success)
-						conversations.put(genConvName, new Conversation(genConvName, u));
-				}
+				success = createConversation(genConvName, publisher).register(conversations, u);
 			}
 			return success;
 		}
-		synchronized(conversations) {
-			success = !conversations.containsKey(convName);
-			if(success)
-				conversations.put(convName, new Conversation(convName, u));
-		}
-		return success;
+		return createConversation(convName, publisher).register(conversations, u);
+	}
+	
+	/**
+	 * Returns a new, empty Conversation named name, logging its messages to
+	 * this.messageLog if there is one, and keeping its latest messages in
+	 * this.messageCache if there is one, and collecting its joins and leaves
+	 * with this.membership if there is one.  A conversation that empties and is
+	 * created again under the same name continues the same log.
+	 * 
+	 * @param name The name of the Conversation, non-null.
+	 * @return The new Conversation, not yet registered.
+	 */
+	private Conversation createConversation(String name) {
+		return createConversation(name, null);
+	}
+	
+	/**
+	 * Returns a new, empty Conversation named name, as createConversation(name)
+	 * does, which is a broadcast channel if publisher is non-null.  Its IMs
+	 * are sent on this.fanout if it is a channel or grows large.
+	 * 
+	 * @param name The name of the Conversation, non-null.
+	 * @param publisher The name of the channel's first publisher, or null.
+	 * @return The new Conversation, not yet registered.
+	 */
+	private Conversation createConversation(String name, String publisher) {
+		return new Conversation(name, publisher, messageLog == null ? null : messageLog.forConversation(name),
+				messageCache, mailboxes, membership, fanout, config, stats);
 	}
 	
 	/**
@@ -141,11 +321,9 @@ public class IMServer implements Runnable {
 	boolean addToConversation(String username, String convName) {
 		Conversation conv;
 		User u = userByUsername(username);
-		if(u == null)
+		if(u == null || convName == null)
 			return false;
-		synchronized(conversations) {
-			conv = conversations.get(convName);
-		}
+		conv = conversations.get(convName);
 		if(conv == null) // No conv associated with convName.
 			return false;
 		
@@ -174,17 +352,100 @@ public class IMServer implements Runnable {
 	boolean removeFromConversation(String username, String convName) {
 		Conversation conv;
 		User u = userByUsername(username);
-		if(u == null)
+		if(u == null || convName == null)
 			return false;
-		synchronized(conversations) {
-			conv = conversations.get(convName);
-		}
+		conv = conversations.get(convName);
 		if(conv == null)
 			return false;
-		synchronized(conv) {
-			if(!conv.contains(u))
-				return false;
-			conv.remove(u);
+		return conv.remove(u);
+	}
+	
+	/**
+	 * Removes the User with the given username from the Conversation associated
+	 * with convName, as removeFromConversation does, because the User is leaving
+	 * the server.  If this keeps Mailboxes, the User's IMs in the conversation
+	 * are posted to its Mailbox until it comes back (see deliverMailbox).
+	 * 
+	 * @param username The name of the User leaving.
+	 * @param convName The name of a conversation the User is in.
+	 * @return True if the User is removed from the conversation, false otherwise.
+	 */
+	boolean departConversation(String username, String convName) {
+		Conversation conv;
+		User u = userByUsername(username);
+		if(u == null || convName == null)
+			return false;
+		conv = conversations.get(convName);
+		if(conv == null)
+			return false;
+		return conv.depart(u);
+	}
+	
+	/**
+	 * If u, which has just connected, left this server while in conversations
+	 * no longer ago than config's mailboxMaxAgeMillis, puts it back in those
+	 * conversations and sends it the IMs sent to them while it was away, in
+	 * order, in chunks read from its Mailbox.  u is told it has entered each
+	 * conversation before it is sent the conversation's IMs, and is sent every
+	 * IM held for it before any IM it is sent as a member again.  The bulk of
+	 * the Mailbox is sent before u rejoins any conversation, so those sends may
+	 * wait for room in u's queue; only what was posted since is sent while a
+	 * conversation is locked, where sends never wait (see NonBlocking).
+	 * 
+	 * If the Mailbox cannot be read, u is put back in its conversations all the
+	 * same, the failure is counted, and the IMs not yet sent stay in the
+	 * Mailbox, to be sent when u next connects.
+	 * 
+	 * @param u The User that has just connected, non-null.
+	 */
+	void deliverMailbox(final User u) {
+		if(mailboxes == null)
+			return;
+		final String username = u.getUsername();
+		final Mailbox mailbox = mailboxes.forUser(username);
+		if(mailbox == null)
+			return;
+		List<Conversation> rejoining = new ArrayList<Conversation>();
+		for(String convName : mailbox.getConversations()) {
+			Conversation conv = conversations.get(convName);
+			if(conv != null && conv.readmit(u))
+				rejoining.add(conv);
+		}
+		final AtomicBoolean failed = new AtomicBoolean(!drainMailbox(u, mailbox, false));
+		Runnable catchUp = new Runnable() {
+			public void run() {
+				if(!failed.get() && !drainMailbox(u, mailbox, false))
+					failed.set(true);
+			}
+		};
+		for(Conversation conv : rejoining)
+			conv.rejoin(u, catchUp);
+		if(!failed.get() && drainMailbox(u, mailbox, true))
+			mailboxes.delivered(username, mailbox);
+	}
+	
+	/**
+	 * Sends u every IM held in mailbox, a chunk at a time, and, if last is
+	 * true, empties mailbox for good.  If mailbox cannot be read, the failure
+	 * is counted, and the IMs not yet sent are left in it.
+	 * 
+	 * @return True if every IM held was sent; false if mailbox could not be
+	 * 		   read.
+	 */
+	private boolean drainMailbox(User u, Mailbox mailbox, boolean last) {
+		List<Frame> chunk = new ArrayList<Frame>();
+		long oldest = mailboxes.getOldest();
+		boolean more = true;
+		try {
+			while(more) {
+				more = mailbox.drain(oldest, u.isSequencedIMs(), last, chunk);
+				for(Frame frame : chunk)
+					u.sendFrame(frame);
+				chunk.clear();
+			}
+		} catch(IOException e) {
+			stats.mailboxFailed();
+			return false;
 		}
 		return true;
 	}
@@ -204,17 +465,160 @@ public class IMServer implements Runnable {
 	boolean retrieveParticipants(String username, String convName) {
 		Conversation conv;
 		User u = userByUsername(username);
-		if(u == null)
+		if(u == null || convName == null)
 			return false;
-		synchronized(conversations) {
-			conv = conversations.get(convName);
-		}
+		conv = conversations.get(convName);
 		if(conv == null)
 			return false;
 		u.sendParticipantsMessage(convName, conv.toArray());
 		return true;
 	}
 	
+	/**
+	 * Sends u the participants of the conversation named convName that have
+	 * changed since the membership version since, or, if the conversation no
+	 * longer remembers that far back, every participant, in pages (see
+	 * Conversation.retrieveParticipantsSince).
+	 * 
+	 * Fails if u is null or not a member of the conversation.
+	 * 
+	 * @param u The User asking for the participants.
+	 * @param convName The name of the conversation.
+	 * @param since The membership version u was last told, or 0 if none.
+	 * @return True if the participants are sent; false otherwise.
+	 */
+	boolean retrieveParticipantsSince(User u, String convName, long since) {
+		if(u == null || convName == null)
+			return false;
+		Conversation conv = conversations.get(convName);
+		if(conv == null)
+			return false;
+		return conv.retrieveParticipantsSince(u, since);
+	}
+	
+	/**
+	 * Sends u the page of the members of the conversation named convName
+	 * after cursor, as it asks for the next page after one it was sent on
+	 * entering (see Conversation.retrieveMembersPage).
+	 * 
+	 * Fails if u is null or not a member of the conversation.
+	 * 
+	 * @param u The User asking for the page.
+	 * @param convName The name of the conversation.
+	 * @param cursor The cursor the previous page ended with.
+	 * @return True if the page is sent; false otherwise.
+	 */
+	boolean retrieveMembersPage(User u, String convName, String cursor) {
+		if(u == null || convName == null || cursor == null)
+			return false;
+		Conversation conv = conversations.get(convName);
+		if(conv == null)
+			return false;
+		return conv.retrieveMembersPage(u, cursor);
+	}
+	
+	/**
+	 * If u is a member of the conversation named convName, starts replaying to
+	 * u the IMs sent in it after the one numbered after, or, if last is
+	 * non-negative, the last last of them, and sends u the first chunk (see
+	 * User.startHistory).  The replay ends with the IM sent most recently when
+	 * it starts; IMs relayed from then on reach u as they are sent.  IMs are
+	 * replayed from the conversation's recent messages while it holds them, and
+	 * otherwise from this.messageLog; with no log, only those recent messages
+	 * can be replayed.
+	 * 
+	 * Fails and returns false if u is null or not a member of the conversation,
+	 * or if this.messageLog and this.messageCache are both null.
+	 * 
+	 * @param u The User asking for the history.
+	 * @param convName The name of the conversation whose history to replay.
+	 * @param after The sequence number after which to start, if last is negative.
+	 * @param last The number of IMs to replay, up to the latest, or -1 to
+	 * 		  replay those after after.
+	 * @return True if the first chunk is sent; false otherwise.
+	 */
+	boolean retrieveHistory(User u, String convName, long after, int last) {
+		Conversation conv = memberConversation(u, convName);
+		if(conv == null || !conv.hasHistory())
+			return false;
+		long end = conv.getLastSequence();
+		long from = last >= 0 ? Math.max(0, end - last) : Math.min(after, end);
+		return u.startHistory(conv, from, end);
+	}
+	
+	/**
+	 * Sends u the next chunk of the history of the conversation named convName
+	 * that it is being replayed (see retrieveHistory).
+	 * 
+	 * Fails and returns false if u is null or not a member of the conversation,
+	 * or if its history is not being replayed to u.
+	 * 
+	 * @param u The User asking for the chunk.
+	 * @param convName The name of the conversation.
+	 * @return True if a chunk is sent; false otherwise.
+	 */
+	boolean retrieveNextHistory(User u, String convName) {
+		Conversation conv = memberConversation(u, convName);
+		if(conv == null) {
+			if(u != null)
+				u.endHistory(convName);
+			return false;
+		}
+		return u.continueHistory(conv);
+	}
+	
+	/**
+	 * If the conversation named convName is a broadcast channel and u is one of
+	 * its members and publishers, makes the user named username a publisher
+	 * too (see Conversation.addPublisher).
+	 * 
+	 * Fails and returns false if u is null, not a member of the conversation,
+	 * or not one of its publishers, or if the conversation is not a channel.
+	 * 
+	 * @param u The User naming the publisher.
+	 * @param convName The name of the channel.
+	 * @param username The name of the new publisher, non-null.
+	 * @return True if username is a publisher; false otherwise.
+	 */
+	boolean addPublisher(User u, String convName, String username) {
+		Conversation conv = memberConversation(u, convName);
+		if(conv == null)
+			return false;
+		return conv.addPublisher(u, username);
+	}
+	
+	/**
+	 * If u is a member of the conversation named convName, sets the
+	 * SubscriptionLevel at which u is sent its IMs (see
+	 * Conversation.setLevel).
+	 * 
+	 * Fails and returns false if u is null or not a member of the conversation.
+	 * 
+	 * @param u The User setting its level.
+	 * @param convName The name of the conversation.
+	 * @param level The level, non-null.
+	 * @return True if the level is set; false otherwise.
+	 */
+	boolean setSubscriptionLevel(User u, String convName, SubscriptionLevel level) {
+		Conversation conv = memberConversation(u, convName);
+		if(conv == null)
+			return false;
+		return conv.setLevel(u, level, unread);
+	}
+	
+	/**
+	 * Returns the conversation named convName if u is one of its members, or
+	 * null.
+	 */
+	private Conversation memberConversation(User u, String convName) {
+		if(u == null || convName == null)
+			return null;
+		Conversation conv = conversations.get(convName);
+		if(conv == null || !conv.contains(u))
+			return null;
+		return conv;
+	}
+	
 	/**
 	 * If username1 and username2 are non-null, refer to Users in this.users,
 	 * and are not equal, creates a new Conversation with a unique, auto-generated
@@ -233,7 +637,6 @@ public class IMServer implements Runnable {
 	 */
 	boolean twoWayConversation(String username1, String username2) {
 		boolean success = false;
-		Conversation conv;
 		User u1 = userByUsername(username1);
 		User u2 = userByUsername(username2);
 		if(u1 == null || u2 == null || u1.equals(u2))
@@ -241,13 +644,7 @@ public class IMServer implements Runnable {
 		String genConvName = null;
 		while(!success) {
 			genConvName = "conversation" + String.valueOf(new Random().nextInt(Integer.MAX_VALUE));
-			synchronized(conversations) {
-				success = !conversations.containsKey(genConvName);
-				if(success) {
-					conv = new Conversation(genConvName, u1, u2);
-					conversations.put(genConvName, conv);
-				}
-			}
+			success = createConversation(genConvName).register(conversations, u1, u2);
 		}
 		return success;
 	}
@@ -257,25 +654,55 @@ public class IMServer implements Runnable {
 	 * sending a removed from conversation message to every other User in
 	 * the conversation, using remove, and removing empty conversations from
 	 * this.conversations.  Removes the given User from this.users.  Sends a
-	 * disconnected message to all clients if username was in users.
+	 * disconnected message to all clients if username was in users, or, if
+	 * logouts are coalesced, leaves this.presence to tell them.
 	 * 
 	 * If username is null, does nothing.
 	 * 
 	 * @param username The name of the User to disconnect.
 	 */
 	void disconnectUser(String username) {
+		disconnectUser(username, null);
+	}
+
+	/**
+	 * Removes the User with the given username from this.users, as
+	 * disconnectUser(username) does.  If presence is scoped, only the User's
+	 * subscribers and peers are told, and its own subscriptions are dropped.
+	 * 
+	 * @param username The name of the User to disconnect, or null.
+	 * @param peers The Users that shared a conversation with it before it left
+	 * 		  them, or null.  Ignored unless presence is scoped.
+	 */
+	void disconnectUser(String username, Collection<User> peers) {
 		User u;
 		Object[] usersArray;
 		if(username == null)
 			return;
-		synchronized(users) {
-			if(!users.containsKey(username))
-				return;
+		presenceLock.lock();
+		try {
 			u = users.remove(username);
-			usersArray = users.values().toArray();
+			if(u == null)
+				return;
+			roster.remove(username);
+			if(presenceIndex != null) {
+				presenceIndex.removeWatcher(u);
+				usersArray = presenceIndex.audience(username, peers);
+			}
+			else
+				usersArray = null;
+			if(presence != null) {
+				presence.disconnected(u, usersArray);
+				return;
+			}
+			if(usersArray == null)
+				usersArray = users.values().toArray();
+		} finally {
+			presenceLock.unlock();
 		}
+		Frame disconnected = User.disconnectedFrame(u);
 		for(Object v : usersArray)
-			((User)v).sendDisconnectedMessage(u);
+			((User)v).sendFrame(disconnected);
 	}
 
 	/**
@@ -287,7 +714,11 @@ public class IMServer implements Runnable {
 	 * If u.username is null or the empty string, generates a unique username and
 	 * sets u.username.  If u.username is null or the empty string or is not already
 	 * in this.users, adds u to this.users, sends an initial users list message
-	 * to u and a connected message to all other Users in this.users.
+	 * to u and a connected message to all other Users in this.users.  If logins
+	 * are coalesced, this.presence tells the other Users instead (see registered).
+	 * If presence is scoped, the initial users list names only u, and only u's
+	 * subscribers are told.  If u asked for the users list in pages, its initial
+	 * users list names only u, and is followed by the first page.
 	 * 
 	 * @param u The User to add.
 	 * @return True if u was properly added, false if u is null or
@@ -296,6 +727,7 @@ public class IMServer implements Runnable {
 	boolean connectUser(User u) {
 		boolean added = false;
 		Object[] usersArray = new Object[0];
+		Object[] audience = null;
 		String username;
 		if(u == null)
 			return false;
@@ -303,34 +735,287 @@ public class IMServer implements Runnable {
 		if(username == null || username.equals("")) {
 			while(!added) {
 				username = "user" + String.valueOf(new Random().nextInt(Integer.MAX_VALUE));
-				synchronized(users) {
+				presenceLock.lock();
+				try {
 					added = !users.containsKey(username);
 					if(added) {
 						u.setUsername(username);
-						usersArray = users.values().toArray();
+						usersArray = initialUsers();
 						users.put(username, u);
+						roster.add(username);
+						audience = registered(u, usersArray);
 					}
+				} finally {
+					presenceLock.unlock();
 				}
 			}
 		}
 		else {
-			synchronized(users) {
+			presenceLock.lock();
+			try {
 				if(!users.containsKey(username)) {
-					usersArray = users.values().toArray();
+					usersArray = initialUsers();
 					users.put(username, u);
+					roster.add(username);
+					audience = registered(u, usersArray);
 					added = true;
 				}
+			} finally {
+				presenceLock.unlock();
 			}
 		}
 		if(added) {
-			for(Object v : usersArray)
-				((User)v).sendConnectedMessage(u);
-			u.sendInitUsersListMessage(usersArray);
+			if(presence == null) {
+				Frame connected = User.connectedFrame(u);
+				for(Object v : audience)
+					((User)v).sendFrame(connected);
+				if(!u.isPagedUsersList())
+					u.sendInitUsersListMessage(usersArray);
+			}
 		}
 		else
 			u.sendDisconnectedMessage(u);
 		return added;
 	}
+
+	/**
+	 * Called under presenceLock before a new User is added to this.users.
+	 * Returns the Users to list in its initial users list: every User in
+	 * this.users, or none if presence is scoped.
+	 */
+	private Object[] initialUsers() {
+		return presenceIndex == null ? users.values().toArray() : new Object[0];
+	}
+
+	/**
+	 * Called under presenceLock once u has been added to this.users.  Gives u
+	 * its shard of this.fanout.  If logins are coalesced, records u's login
+	 * with this.presence and sends u its initial users list while still
+	 * holding the lock, so that no PRESENCE message can reach u before it;
+	 * otherwise connectUser sends both.  If u asked for the users list in
+	 * pages, sends it its own name and the first page here in either case,
+	 * since a page must be read under the lock.
+	 *
+	 * @param u The User just added.
+	 * @param others The Users in u's initial users list.
+	 * @return The Users to tell of u's login: others, or, if presence is scoped,
+	 * 		   u's subscribers.
+	 */
+	private Object[] registered(User u, Object[] others) {
+		u.setShard(fanout.assign());
+		Object[] audience = presenceIndex == null ? others : presenceIndex.audience(u.getUsername(), null);
+		if(presence != null)
+			presence.connected(u, audience);
+		if(u.isPagedUsersList()) {
+			u.sendInitUsersListMessage(new Object[0]);
+			sendUsersPage(u, "");
+		}
+		else if(presence != null)
+			u.sendInitUsersListMessage(others);
+		return audience;
+	}
+
+	/**
+	 * Sends u the page of the users list that follows cursor, the last name of
+	 * the page before, or "" for the first page.  The page may name users that
+	 * u has been told of already, and leave out users that have logged in
+	 * since it was first told of the users list; those it hears of as they log
+	 * in.  If logins are coalesced, u is then counted as told the state of
+	 * users anew (see PresenceCoalescer.sentState).
+	 *
+	 * Fails if u is null or has not logged in, or if cursor is null.
+	 *
+	 * @param u The User asking for the page.
+	 * @param cursor The cursor of the page before, or "".
+	 * @return True if a page is sent; false otherwise.
+	 */
+	boolean retrieveUsersPage(User u, String cursor) {
+		if(u == null || cursor == null)
+			return false;
+		presenceLock.lock();
+		try {
+			if(users.get(u.getUsername()) != u)
+				return false;
+			sendUsersPage(u, cursor);
+			if(presence != null)
+				presence.sentState(u);
+			return true;
+		} finally {
+			presenceLock.unlock();
+		}
+	}
+
+	/**
+	 * Called under presenceLock to send u the page of this.roster after cursor,
+	 * leaving out u itself.  If presence is scoped, u is to hear only of users
+	 * it shares a conversation with or subscribes to, so the page is empty and
+	 * last.
+	 */
+	private void sendUsersPage(User u, String cursor) {
+		List<String> names = new ArrayList<String>();
+		String next = "";
+		int count = 0;
+		if(presenceIndex == null) {
+			count = roster.size() - 1;
+			int pageSize = config.getUsersPageSize();
+			Iterator<String> it = roster.tailSet(cursor, false).iterator();
+			String last = cursor;
+			while(it.hasNext() && names.size() < pageSize) {
+				last = it.next();
+				if(!last.equals(u.getUsername()))
+					names.add(last);
+			}
+			if(it.hasNext())
+				next = last;
+		}
+		u.sendFrame(User.usersPageFrame(count, next, names));
+	}
+
+	/**
+	 * Subscribes watcher to the presence of the user named username, and sends
+	 * watcher a PRESENCE message stating whether that user is online.  If
+	 * presence is not scoped, watcher is told of every user anyway, so only the
+	 * message is sent.
+	 *
+	 * Fails if watcher is null or has not logged in, or if username is null or
+	 * watcher's own name.
+	 *
+	 * @param watcher The User subscribing.
+	 * @param username The name of the user whose presence to follow.
+	 * @return True if the subscription is made; false otherwise.
+	 */
+	boolean subscribePresence(User watcher, String username) {
+		if(watcher == null || username == null || username.equals(watcher.getUsername()))
+			return false;
+		presenceLock.lock();
+		try {
+			if(users.get(watcher.getUsername()) != watcher)
+				return false;
+			if(presenceIndex != null) {
+				presenceIndex.subscribe(watcher, username);
+				if(presence != null)
+					presence.sentState(watcher);
+			}
+			// Sent under the lock, so that it comes before any news of a later change.
+			List<String> state = Collections.singletonList(username);
+			List<String> none = Collections.emptyList();
+			watcher.sendFrame(users.containsKey(username) ? User.presenceFrame(state, none)
+					: User.presenceFrame(none, state));
+			return true;
+		} finally {
+			presenceLock.unlock();
+		}
+	}
+
+	/**
+	 * Unsubscribes watcher from the presence of the user named username.  It
+	 * may still hear of that user's logout if they share a conversation, and
+	 * of everything if presence is not scoped.
+	 *
+	 * Fails if watcher or username is null.
+	 *
+	 * @param watcher The User unsubscribing.
+	 * @param username The name of the user whose presence to stop following.
+	 * @return True unless watcher or username is null.
+	 */
+	boolean unsubscribePresence(User watcher, String username) {
+		if(watcher == null || username == null)
+			return false;
+		if(presenceIndex == null)
+			return true;
+		presenceLock.lock();
+		try {
+			presenceIndex.unsubscribe(watcher, username);
+			return true;
+		} finally {
+			presenceLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether each user is told only of the presence of users it
+	 * shares a conversation with or has subscribed to.
+	 *
+	 * @return True if config scopes presence.
+	 */
+	boolean isPresenceScoped() {
+		return presenceIndex != null;
+	}
+	
+	/**
+	 * Returns whether clients may resume their sessions: whether config gives
+	 * them a grace period, and this server is not closing.
+	 *
+	 * @return True if sessions may be suspended and resumed.
+	 */
+	boolean isResumeAllowed() {
+		return sessionTimer != null && !closing;
+	}
+	
+	/**
+	 * Hands out a new resume token for u's session.
+	 *
+	 * @param u The User whose session the token resumes, non-null.
+	 * @return The token: 32 hex digits, drawn from this.random.
+	 */
+	String openSession(User u) {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder token = new StringBuilder(2 * bytes.length);
+		for(byte b : bytes)
+			token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		sessions.put(token.toString(), u);
+		return token.toString();
+	}
+	
+	/**
+	 * Replaces the resume token of u's session with a new one, so that each
+	 * token resumes a session at most once.
+	 *
+	 * @param token The token being replaced.
+	 * @param u The User whose session it resumes, non-null.
+	 * @return The new token.
+	 */
+	String renewSession(String token, User u) {
+		closeSession(token, u);
+		return openSession(u);
+	}
+	
+	/**
+	 * Returns the User whose session token resumes, or null if there is none.
+	 *
+	 * @param token The resume token, non-null.
+	 * @return The User, or null.
+	 */
+	User sessionFor(String token) {
+		return sessions.get(token);
+	}
+	
+	/**
+	 * Forgets token, if it resumes u's session.
+	 *
+	 * @param token The resume token, or null.
+	 * @param u The User whose session has ended or been given a new token.
+	 */
+	void closeSession(String token, User u) {
+		if(token != null)
+			sessions.remove(token, u);
+	}
+	
+	/**
+	 * Runs task on this.sessionTimer after delayMillis, unless the server is
+	 * closing, in which case the sessions end anyway.
+	 *
+	 * @param task The task, non-null.
+	 * @param delayMillis How long to wait, non-negative.
+	 */
+	void scheduleSessionTask(TimerTask task, long delayMillis) {
+		try {
+			sessionTimer.schedule(task, delayMillis);
+		} catch(IllegalStateException e) {
+			// The timer was cancelled by close.
+		}
+	}
 	
 	/**
 	 * Returns the User in this.users corresponding to the given username.
@@ -343,42 +1028,83 @@ public class IMServer implements Runnable {
 	private User userByUsername(String username) {
 		if(username == null)
 			return null;
-		synchronized(users) {
-			return users.get(username);
-		}
+		return users.get(username);
 	}
 	
 	/**
-	 * Close the server closing this.serverSocket and
-	 * interrupting all Users in this.users.
+	 * Accessor method for this.config.
+	 * 
+	 * @return this.config, the settings this server was created with.
+	 */
+	ServerConfig getConfig() {
+		return config;
+	}
+	
+	/**
+	 * Accessor method for this.stats.
+	 * 
+	 * @return The counters describing the traffic this server has written to
+	 * 		   its clients.
+	 */
+	public ServerStats getStats() {
+		return stats;
+	}
+	
+	/**
+	 * Close the server closing this.serverSocket, stopping this.engine if
+	 * there is one, interrupting all Users in this.users, which ends their
+	 * sessions, suspended or not, stopping this.sessionTimer, and forcing
+	 * this.messageLog to the disk.
 	 * 
 	 * @throws IOException
 	 */
 	void close() throws IOException {
+		closing = true;
 		serverSocket.close();
+		if(engine != null)
+			engine.close();
+		if(presence != null)
+			presence.close();
+		if(membership != null)
+			membership.close();
+		unread.close();
+		fanout.close();
 		
-		Collection<User> usersCopy;
-		synchronized(users) {
-			usersCopy = users.values();
-		}
+		Collection<User> usersCopy = new ArrayList<User>(users.values());
 		for(User u : usersCopy)
 			u.interrupt();
+		if(sessionTimer != null)
+			sessionTimer.cancel();
+		if(mailboxes != null)
+			mailboxes.close();
+		if(messageLog != null)
+			messageLog.close();
 	}
 	
 	/**
 	 * Makes the server listen for user connections on the calling thread.  When
-	 * a user connection is received over serverSocket, creates and starts an
-	 * instance of User, which is a subclass of Thread.  (The User then waits for
-	 * a valid connect message before adding itself to this.users.)
+	 * a user connection is received over serverSocket, creates an instance of
+	 * User and starts it on a thread of its own, which is a virtual thread in
+	 * ConnectionMode.VIRTUAL_THREAD.  (The User then waits for a valid connect
+	 * message before adding itself to this.users.)  In ConnectionMode.SELECTOR,
+	 * connections are instead handed to this.engine.
 	 * 
 	 * Blocks until terminated.
 	 */
 	public void run () {
+		if(engine != null) {
+			engine.acceptLoop();
+			return;
+		}
 		while(true) {
 			Socket socket = null;
 			try {
 				socket = serverSocket.accept(); 
-				new User(this, socket).start();
+				User u = new User(this, socket);
+				if(config.getConnectionMode() == ConnectionMode.VIRTUAL_THREAD)
+					VirtualThreads.start(u);
+				else
+					new Thread(u).start();
 			} catch(IOException e) {
 			}
 		}
@@ -0,0 +1,85 @@
+package server;
+
+/**
+ * A LogRecord is one IM as it was stored in a MessageLog.  LogRecords are
+ * immutable, and have the following instance variables:
+ *
+ *  - sequence is the number the log gave the IM, one more than that of the IM
+ *    before it in the same conversation.  The first IM of a conversation is
+ *    numbered 1.
+ *  - timestamp is when the server logged the IM, in milliseconds since the
+ *    epoch.
+ *  - sender is the username of the User who sent the IM.  It is non-null.
+ *  - messageId is the IM ID the sender gave the IM.
+ *  - text is the text of the IM.  It is non-null.
+ */
+final class LogRecord {
+
+	private final long sequence;
+	private final long timestamp;
+	private final String sender;
+	private final int messageId;
+	private final String text;
+
+	/**
+	 * Creates a LogRecord with the given contents.
+	 *
+	 * @param sequence The IM's sequence number in its conversation, at least 1.
+	 * @param timestamp When the IM was logged, in milliseconds since the epoch.
+	 * @param sender The username of the sender, non-null.
+	 * @param messageId The sender's IM ID.
+	 * @param text The text of the IM, non-null.
+	 */
+	LogRecord(long sequence, long timestamp, String sender, int messageId, String text) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.sender = sender;
+		this.messageId = messageId;
+		this.text = text;
+	}
+
+	/**
+	 * Accessor method for this.sequence.
+	 *
+	 * @return this.sequence.
+	 */
+	long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Accessor method for this.timestamp.
+	 *
+	 * @return this.timestamp.
+	 */
+	long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Accessor method for this.sender.
+	 *
+	 * @return this.sender.
+	 */
+	String getSender() {
+		return sender;
+	}
+
+	/**
+	 * Accessor method for this.messageId.
+	 *
+	 * @return this.messageId.
+	 */
+	int getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * Accessor method for this.text.
+	 *
+	 * @return this.text.
+	 */
+	String getText() {
+		return text;
+	}
+}
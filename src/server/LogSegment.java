@@ -0,0 +1,323 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A LogSegment is one fixed-size file of a ConversationLog, mapped into memory
+ * so that appending a record copies it into the page cache without a system
+ * call.  A segment starts with a header (a magic number, a format version, and
+ * the sequence number of its first record), which is followed by records,
+ * each of which is
+ *
+ *   int length, int CRC-32 of the body, and a body of length bytes: long
+ *   sequence, long timestamp, int IM ID, short sender length, the sender's
+ *   name, and the text, both in UTF-8,
+ *
+ * with all integers big-endian.  The rest of the file is zeros, so a length of
+ * 0 marks the end of the records.  Records are numbered consecutively, so a
+ * record that is torn (its CRC does not match) or out of sequence, as after a
+ * crash mid-append, marks the end as well.  Instances of LogSegment have the
+ * following instance variables:
+ *
+ *  - file is the segment's file.
+ *  - firstSequence is the sequence number of the segment's first record, or
+ *    of the record it will start with if it is empty.
+ *  - buffer is file mapped into memory, writable if this is the segment being
+ *    appended to.  Its position is just past the last record.
+ *  - lastSequence is the sequence number of the last record in the segment,
+ *    or firstSequence - 1 if there is none.
+ *  - crc and scratch are reused to check and build records.
+ *  - readSequence and readPosition are the sequence number and position of
+ *    the record after the last one read, so that a reader going through the
+ *    segment a chunk at a time does not scan it from the start for each
+ *    chunk.  readPosition is 0 if nothing has been read.
+ *
+ * A LogSegment is not thread-safe; its ConversationLog synchronizes access,
+ * except to force, which may be called while another thread appends.
+ */
+final class LogSegment {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int MAGIC = 0x47434c47; // "GCLG"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+	static final int RECORD_HEADER_BYTES = 8;
+	static final int FIXED_BODY_BYTES = 22;
+	static final int PAGE_BYTES = 4096;
+
+	private final File file;
+	private final long firstSequence;
+	private final MappedByteBuffer buffer;
+	private long lastSequence;
+	private final CRC32 crc = new CRC32();
+	private byte[] scratch = new byte[256];
+	private long readSequence;
+	private int readPosition;
+
+	private LogSegment(File file, long firstSequence, MappedByteBuffer buffer) {
+		this.file = file;
+		this.firstSequence = firstSequence;
+		this.buffer = buffer;
+		this.lastSequence = firstSequence - 1;
+	}
+
+	/**
+	 * Returns the name of the file of a segment starting at firstSequence, which
+	 * sorts segments in order.
+	 *
+	 * @param firstSequence The sequence number of the segment's first record.
+	 * @return The file name.
+	 */
+	static String fileName(long firstSequence) {
+		return String.format("%020d.log", firstSequence);
+	}
+
+	/**
+	 * Creates a new, empty segment file of the given size and maps it for
+	 * appending.
+	 *
+	 * @param file The file to create; it must not exist.
+	 * @param firstSequence The sequence number the segment starts with.
+	 * @param size The size of the file in bytes.
+	 * @return The new segment.
+	 * @throws IOException If the file cannot be created or mapped.
+	 */
+	static LogSegment create(File file, long firstSequence, int size) throws IOException {
+		if(file.exists())
+			throw new IOException(file + " already exists");
+		MappedByteBuffer buffer = map(file, size, true);
+		buffer.putInt(MAGIC).putInt(VERSION).putLong(firstSequence);
+		return new LogSegment(file, firstSequence, buffer);
+	}
+
+	/**
+	 * Opens an existing segment file, and finds its last record by scanning it
+	 * from the start.  If writable, anything after the last good record is
+	 * zeroed, so that appends continue from there.
+	 *
+	 * @param file The segment's file.
+	 * @param writable Whether to map the file for appending.
+	 * @return The segment, or null if its header was never written, as when
+	 * 		   the server stopped while creating it.
+	 * @throws IOException If the file cannot be read, or is not a segment.
+	 */
+	static LogSegment open(File file, boolean writable) throws IOException {
+		MappedByteBuffer buffer = map(file, -1, writable);
+		if(buffer.limit() >= HEADER_BYTES && buffer.getLong(0) == 0 && buffer.getLong(8) == 0)
+			return null;
+		if(buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException(file + " is not a message log segment");
+		LogSegment segment = new LogSegment(file, buffer.getLong(8), buffer);
+		segment.recover(writable);
+		return segment;
+	}
+
+	/**
+	 * Maps file into memory, extending it to size bytes first unless size is
+	 * negative.  The mapping outlives the channel, which is closed.
+	 */
+	private static MappedByteBuffer map(File file, int size, boolean writable) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = size < 0 ? channel.size() : size;
+			if(length > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large");
+			return channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+					0, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Scans the records from the start, leaving buffer positioned after the
+	 * last good one, and, if writable, zeroes whatever follows it.
+	 */
+	private void recover(boolean writable) {
+		int position = HEADER_BYTES;
+		int end;
+		while((end = nextRecord(position, lastSequence + 1)) > 0) {
+			position = end;
+			++lastSequence;
+		}
+		buffer.position(position);
+		if(writable)
+			clearFrom(position);
+	}
+
+	/**
+	 * Zeroes whatever a torn append left after position, a long at a time, up
+	 * to the end of the first page-sized block that was zero throughout.  (A
+	 * record written past such a block would have been numbered after the
+	 * records lost in it, so it cannot be mistaken for the next record once
+	 * appends resume; scanning no further keeps recovery from reading the
+	 * whole segment.)
+	 */
+	private void clearFrom(int position) {
+		int limit = buffer.limit();
+		int i = position;
+		for(; i < limit && i % 8 != 0; ++i)
+			buffer.put(i, (byte) 0);
+		int zeroFrom = i;
+		for(; i + 8 <= limit && i - zeroFrom < PAGE_BYTES; i += 8) {
+			if(buffer.getLong(i) != 0) {
+				buffer.putLong(i, 0);
+				zeroFrom = i + 8;
+			}
+		}
+		if(i + 8 > limit) {
+			for(; i < limit; ++i)
+				buffer.put(i, (byte) 0);
+		}
+	}
+
+	/**
+	 * Checks the record at position, which should be numbered sequence.
+	 *
+	 * @return The position after the record, or -1 if there is no good record
+	 * 		   there.
+	 */
+	private int nextRecord(int position, long sequence) {
+		int limit = buffer.limit();
+		if(position > limit - RECORD_HEADER_BYTES)
+			return -1;
+		int length = buffer.getInt(position);
+		if(length < FIXED_BODY_BYTES || length > limit - position - RECORD_HEADER_BYTES)
+			return -1;
+		byte[] body = body(position, length);
+		crc.reset();
+		crc.update(body, 0, length);
+		if((int) crc.getValue() != buffer.getInt(position + 4))
+			return -1;
+		if(buffer.getLong(position + RECORD_HEADER_BYTES) != sequence)
+			return -1;
+		return position + RECORD_HEADER_BYTES + length;
+	}
+
+	/**
+	 * Copies the body of the record at position into this.scratch.
+	 */
+	private byte[] body(int position, int length) {
+		if(scratch.length < length)
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(position + RECORD_HEADER_BYTES);
+		view.get(scratch, 0, length);
+		return scratch;
+	}
+
+	/**
+	 * Appends a record, numbered lastSequence + 1, if there is room for it.
+	 *
+	 * @param timestamp When the IM was logged.
+	 * @param sender The sender's name in UTF-8.
+	 * @param messageId The sender's IM ID.
+	 * @param text The IM's text in UTF-8.
+	 * @return The number of bytes appended, or 0 if the segment is full.
+	 */
+	int append(long timestamp, byte[] sender, int messageId, byte[] text) {
+		int length = FIXED_BODY_BYTES + sender.length + text.length;
+		if(buffer.remaining() < RECORD_HEADER_BYTES + length)
+			return 0;
+		if(scratch.length < length)
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		ByteBuffer body = ByteBuffer.wrap(scratch, 0, length);
+		body.putLong(lastSequence + 1).putLong(timestamp).putInt(messageId)
+				.putShort((short) sender.length).put(sender).put(text);
+		crc.reset();
+		crc.update(scratch, 0, length);
+		buffer.putInt(length).putInt((int) crc.getValue()).put(scratch, 0, length);
+		++lastSequence;
+		return RECORD_HEADER_BYTES + length;
+	}
+
+	/**
+	 * Reads records numbered from fromSequence on, in order, into out, until
+	 * max have been read or the segment runs out.
+	 *
+	 * @param fromSequence The sequence number of the first record wanted.
+	 * @param max The most records to read.
+	 * @param out The list to add the records to.
+	 * @return The number of records read.
+	 */
+	int read(long fromSequence, int max, List<LogRecord> out) {
+		int n = 0;
+		int position = HEADER_BYTES;
+		long sequence = firstSequence;
+		if(readPosition > 0 && readSequence <= fromSequence) {
+			position = readPosition;
+			sequence = readSequence;
+		}
+		int end = buffer.position();
+		for(; position < end && n < max; ++sequence) {
+			int length = buffer.getInt(position);
+			if(sequence >= fromSequence) {
+				out.add(decode(body(position, length), length));
+				++n;
+			}
+			position += RECORD_HEADER_BYTES + length;
+		}
+		readSequence = sequence;
+		readPosition = position;
+		return n;
+	}
+
+	/**
+	 * Decodes a record body.
+	 */
+	private static LogRecord decode(byte[] body, int length) {
+		ByteBuffer in = ByteBuffer.wrap(body, 0, length);
+		long sequence = in.getLong();
+		long timestamp = in.getLong();
+		int messageId = in.getInt();
+		int senderLength = in.getShort() & 0xffff;
+		String sender = new String(body, FIXED_BODY_BYTES, senderLength, UTF8);
+		int textOffset = FIXED_BODY_BYTES + senderLength;
+		String text = new String(body, textOffset, length - textOffset, UTF8);
+		return new LogRecord(sequence, timestamp, sender, messageId, text);
+	}
+
+	/**
+	 * Writes the segment's changes through to the disk.
+	 */
+	void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Accessor method for this.file.
+	 *
+	 * @return this.file.
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Accessor method for this.firstSequence.
+	 *
+	 * @return this.firstSequence.
+	 */
+	long getFirstSequence() {
+		return firstSequence;
+	}
+
+	/**
+	 * Accessor method for this.lastSequence.
+	 *
+	 * @return this.lastSequence.
+	 */
+	long getLastSequence() {
+		return lastSequence;
+	}
+}
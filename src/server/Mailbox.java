@@ -0,0 +1,349 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A Mailbox holds the IMs sent, while one user is offline, to the
+ * conversations that user was in when it left, until it connects again (see
+ * MailboxStore).  The IMs are kept as records, in the order they were sent,
+ * in a buffer of BUFFER_BYTES and, once that fills, in a file of the
+ * Mailbox's own, so that holding an IM costs no system call until the buffer
+ * is full, and the IMs of users who stay away long take no memory.  The
+ * records are read back DRAIN_BYTES at a time, so a user coming back to a
+ * full Mailbox is sent its IMs with one read per chunk rather than per IM.
+ * At most capacity records are held; the oldest is dropped to make room for
+ * each one more.  Instances of Mailbox have the following instance variables:
+ *
+ *  - file is the file holding the records that did not fit in buffer.
+ *  - channel is open on file while it holds any records, or null.
+ *  - capacity is the most records held.
+ *  - departed is when the user left, in milliseconds since the epoch.
+ *  - stats is the ServerStats counting the IMs held, dropped, and delivered.
+ *  - conversations holds the names of the conversations the user left, in
+ *    the order it left them, which it rejoins when it connects again.
+ *  - buffer holds the newest records, buffer[0..buffered), not yet written to
+ *    file.
+ *  - written is the number of bytes of records in file.
+ *  - head is the offset of the oldest record held, where offsets run through
+ *    the records in file and then those in buffer.  The records before head
+ *    have been dropped or delivered.
+ *  - lengths and timestamps hold the length and timestamp of each record
+ *    held, oldest first.
+ *  - closed is true once the Mailbox has been emptied for good.
+ *
+ * Each record is the length of the rest of it, then the IM's timestamp,
+ * sequence number, and ID, the conversation's name and the sender's, each
+ * after its length, and the text, all in UTF-8.
+ *
+ * All methods are synchronized on this.
+ */
+final class Mailbox {
+
+	/**
+	 * How many bytes of records are held in memory before they are written to
+	 * the file together.
+	 */
+	static final int BUFFER_BYTES = 8 * 1024;
+
+	/**
+	 * How many bytes of records are read from the file at a time.
+	 */
+	static final int DRAIN_BYTES = 64 * 1024;
+
+	private final File file;
+	private FileChannel channel;
+	private final int capacity;
+	private final long departed;
+	private final ServerStats stats;
+	private final Set<String> conversations = new LinkedHashSet<String>();
+	private byte[] buffer = new byte[BUFFER_BYTES];
+	private int buffered;
+	private long written;
+	private long head;
+	private final ArrayDeque<Integer> lengths = new ArrayDeque<Integer>();
+	private final ArrayDeque<Long> timestamps = new ArrayDeque<Long>();
+	private boolean closed;
+
+	/**
+	 * Creates an empty Mailbox for a user who has just left.
+	 *
+	 * @param file The file to hold the records that do not fit in memory.
+	 * @param capacity The most records to hold, at least 1.
+	 * @param departed When the user left, in milliseconds since the epoch.
+	 * @param stats The counters to add to, non-null.
+	 */
+	Mailbox(File file, int capacity, long departed, ServerStats stats) {
+		this.file = file;
+		this.capacity = capacity;
+		this.departed = departed;
+		this.stats = stats;
+	}
+
+	/**
+	 * Records that the user left the conversation named conversation, so that
+	 * it rejoins it when it connects again.
+	 *
+	 * @param conversation The name of the conversation, non-null.
+	 * @return False if this has been emptied for good, and the caller should
+	 * 		   use a new Mailbox; true otherwise.
+	 */
+	synchronized boolean departed(String conversation) {
+		if(closed)
+			return false;
+		conversations.add(conversation);
+		return true;
+	}
+
+	/**
+	 * Holds an IM sent to the conversation named conversation, dropping the
+	 * oldest IM held if this holds capacity of them already.
+	 *
+	 * @param conversation The name of the conversation, non-null.
+	 * @param record The IM, as its Conversation numbered it, non-null.
+	 * @throws IOException If the records could not be written to the file.
+	 */
+	synchronized void post(String conversation, LogRecord record) throws IOException {
+		if(closed)
+			return;
+		byte[] conv = conversation.getBytes(LogSegment.UTF8);
+		byte[] sender = record.getSender().getBytes(LogSegment.UTF8);
+		byte[] text = record.getText().getBytes(LogSegment.UTF8);
+		int length = 4 + 8 + 8 + 4 + 4 + conv.length + 4 + sender.length + text.length;
+		if(buffered + length > buffer.length)
+			spill();
+		ByteBuffer b = length > buffer.length ? ByteBuffer.allocate(length) : ByteBuffer.wrap(buffer, buffered, length);
+		b.putInt(length - 4).putLong(record.getTimestamp()).putLong(record.getSequence())
+				.putInt(record.getMessageId()).putInt(conv.length).put(conv).putInt(sender.length).put(sender)
+				.put(text);
+		if(length > buffer.length) {
+			// Too large for the buffer, which spill has just emptied.
+			b.flip();
+			write(b);
+		}
+		else
+			buffered += length;
+		lengths.addLast(length);
+		timestamps.addLast(record.getTimestamp());
+		stats.mailboxPosted();
+		if(lengths.size() > capacity) {
+			head += lengths.removeFirst();
+			timestamps.removeFirst();
+			stats.mailboxDropped(1);
+		}
+	}
+
+	/**
+	 * Writes out this.buffer to the end of the file, first emptying the file
+	 * if every record in it has been dropped, or moving the records it still
+	 * holds to its start if most of it is taken by records dropped, so that
+	 * the file never grows to much more than twice what is held.
+	 */
+	private void spill() throws IOException {
+		if(buffered == 0)
+			return;
+		if(head >= written) {
+			if(written > 0) {
+				channel.truncate(0);
+				head -= written;
+				written = 0;
+			}
+		}
+		else if(head > 0 && head >= written / 2)
+			compact();
+		write(ByteBuffer.wrap(buffer, 0, buffered));
+		buffered = 0;
+	}
+
+	/**
+	 * Appends b to the file, opening it if need be.
+	 */
+	private void write(ByteBuffer b) throws IOException {
+		if(channel == null)
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		while(b.hasRemaining())
+			written += channel.write(b, written);
+	}
+
+	/**
+	 * Fills b from the file, starting at position.
+	 */
+	private void read(ByteBuffer b, long position) throws IOException {
+		int start = b.position();
+		while(b.hasRemaining()) {
+			if(channel.read(b, position + b.position() - start) < 0)
+				throw new IOException(file + " was truncated");
+		}
+	}
+
+	/**
+	 * Moves the records held in the file, from head on, to its start, and
+	 * truncates it after them.  Copies forwards, so never overwrites a byte
+	 * before it has been copied.
+	 */
+	private void compact() throws IOException {
+		long live = written - head;
+		ByteBuffer b = ByteBuffer.allocate((int) Math.min(DRAIN_BYTES, Math.max(live, 1)));
+		for(long moved = 0; moved < live; ) {
+			b.clear();
+			if(b.remaining() > live - moved)
+				b.limit((int) (live - moved));
+			read(b, head + moved);
+			b.flip();
+			while(b.hasRemaining())
+				moved += channel.write(b, moved);
+		}
+		channel.truncate(live);
+		written = live;
+		head = 0;
+	}
+
+	/**
+	 * Adds to out, in order, the IMs from up to DRAIN_BYTES of the oldest
+	 * records held, and drops those records, skipping those sent before
+	 * oldest.  The IMs are built as sequenced IM messages if sequenced is true,
+	 * and as plain IM messages otherwise.  Once every record has been read,
+	 * deletes the file, and if last is true, empties this for good, so that
+	 * no more are posted.  If the file cannot be read, no record is dropped,
+	 * so the same records are read again by the next call.
+	 *
+	 * @param oldest The time before which IMs are too old to deliver.
+	 * @param sequenced Whether the user asked for sequenced IMs.
+	 * @param last Whether to empty this for good once every record is read.
+	 * @param out The list to add the IMs to.
+	 * @return True if records remain to be read; false otherwise.
+	 * @throws IOException If the records could not be read from the file.
+	 */
+	synchronized boolean drain(long oldest, boolean sequenced, boolean last, List<Frame> out) throws IOException {
+		ByteBuffer chunk = null;
+		long start = head;
+		if(head < written) {
+			// Read whole records only, however large the first one is.
+			int n = lengths.peekFirst();
+			int size = (int) Math.min(written - head, Math.max(n, DRAIN_BYTES));
+			chunk = ByteBuffer.allocate(size);
+			read(chunk, head);
+			chunk.flip();
+		}
+		else if(buffered > 0 && head < written + buffered)
+			chunk = ByteBuffer.wrap(buffer, (int) (head - written), (int) (written + buffered - head));
+		int delivered = 0;
+		int expired = 0;
+		while(chunk != null && !lengths.isEmpty() && lengths.peekFirst() <= chunk.remaining()) {
+			int length = lengths.removeFirst();
+			long timestamp = timestamps.removeFirst();
+			int end = chunk.position() + length;
+			if(timestamp < oldest) {
+				chunk.position(end);
+				++expired;
+			}
+			else {
+				out.add(decode(chunk, end, sequenced));
+				++delivered;
+			}
+			head += length;
+		}
+		stats.mailboxDelivered(delivered);
+		if(expired > 0)
+			stats.mailboxDropped(expired);
+		if(!lengths.isEmpty() && head == start)
+			throw new IOException(file + " is corrupt");
+		if(!lengths.isEmpty())
+			return true;
+		clear();
+		if(last)
+			closed = true;
+		return false;
+	}
+
+	/**
+	 * Decodes the record at chunk's position, ending at end, into an IM
+	 * message, leaving chunk's position at end.
+	 */
+	private static Frame decode(ByteBuffer chunk, int end, boolean sequenced) {
+		chunk.getInt();
+		long timestamp = chunk.getLong();
+		long sequence = chunk.getLong();
+		int messageId = chunk.getInt();
+		String conversation = string(chunk, chunk.getInt());
+		String sender = string(chunk, chunk.getInt());
+		String text = string(chunk, end - chunk.position());
+		if(sequenced)
+			return User.sequencedIMFrame(new LogRecord(sequence, timestamp, sender, messageId, text), conversation);
+		return User.imFrame(sender, text, messageId, conversation);
+	}
+
+	private static String string(ByteBuffer chunk, int length) {
+		String s = new String(chunk.array(), chunk.arrayOffset() + chunk.position(), length, LogSegment.UTF8);
+		chunk.position(chunk.position() + length);
+		return s;
+	}
+
+	/**
+	 * Drops every record, and deletes the file.
+	 */
+	private void clear() throws IOException {
+		lengths.clear();
+		timestamps.clear();
+		buffered = 0;
+		written = 0;
+		head = 0;
+		if(channel != null) {
+			channel.close();
+			channel = null;
+			if(!file.delete())
+				throw new IOException("cannot delete " + file);
+		}
+	}
+
+	/**
+	 * Empties this for good, without delivering what it holds.
+	 */
+	synchronized void discard() {
+		if(closed)
+			return;
+		closed = true;
+		stats.mailboxDropped(lengths.size());
+		try {
+			clear();
+		} catch(IOException e) {
+			stats.mailboxFailed();
+		}
+		buffer = null;
+	}
+
+	/**
+	 * Returns the names of the conversations the user left, in the order it
+	 * left them.
+	 *
+	 * @return A new array of the names.
+	 */
+	synchronized String[] getConversations() {
+		return conversations.toArray(new String[conversations.size()]);
+	}
+
+	/**
+	 * Accessor method for this.departed.
+	 *
+	 * @return When the user left, in milliseconds since the epoch.
+	 */
+	long getDeparted() {
+		return departed;
+	}
+
+	/**
+	 * Returns the number of IMs held.
+	 *
+	 * @return The number of records held.
+	 */
+	synchronized int size() {
+		return lengths.size();
+	}
+}
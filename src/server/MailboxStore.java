@@ -0,0 +1,167 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A MailboxStore keeps a Mailbox for each user who has left an IMServer while
+ * in conversations, so that the IMs sent to those conversations while it is
+ * away are delivered when it connects again under the same name, rather than
+ * lost.  A user stays in the conversations it left, as far as they are
+ * concerned, for maxAgeMillis; after that its Mailbox is discarded, and it is
+ * dropped from them.  IMs older than maxAgeMillis are not delivered.
+ *
+ * Mailboxes are spill space for the life of the server, not a record that
+ * outlives it: the directory is emptied when a MailboxStore is opened on it.
+ * Instances of MailboxStore have the following instance variables:
+ *
+ *  - directory is the directory holding the Mailboxes' files.
+ *  - capacity is the most IMs each Mailbox holds.
+ *  - maxAgeMillis is how long a Mailbox is kept, and how old an IM may be
+ *    and still be delivered.
+ *  - stats is the ServerStats counting the IMs held, dropped, and delivered.
+ *  - mailboxes maps the name of each user who is away to its Mailbox.
+ *
+ * A MailboxStore is thread-safe.
+ */
+final class MailboxStore {
+
+	private final File directory;
+	private final int capacity;
+	private final long maxAgeMillis;
+	private final ServerStats stats;
+	private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+
+	/**
+	 * Opens a MailboxStore in directory, creating directory if need be and
+	 * deleting any Mailbox files left in it.
+	 *
+	 * @param directory The directory to keep the Mailboxes' files in.
+	 * @param capacity The most IMs each Mailbox holds, at least 1.
+	 * @param maxAgeMillis How long to keep each Mailbox, at least 1.
+	 * @param stats The counters to add to, non-null.
+	 * @throws IOException If directory cannot be created or emptied.
+	 */
+	MailboxStore(File directory, int capacity, long maxAgeMillis, ServerStats stats) throws IOException {
+		this.directory = directory;
+		this.capacity = capacity;
+		this.maxAgeMillis = maxAgeMillis;
+		this.stats = stats;
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create " + directory);
+		File[] files = directory.listFiles();
+		if(files == null)
+			throw new IOException("cannot list " + directory);
+		for(File f : files) {
+			if(f.getName().endsWith(".mbox") && !f.delete())
+				throw new IOException("cannot delete " + f);
+		}
+	}
+
+	/**
+	 * Records that the user named username has left the conversation named
+	 * conversation, creating its Mailbox if it has none, so that it rejoins
+	 * the conversation, and is sent the IMs posted to its Mailbox meanwhile,
+	 * when it connects again.  Called before the user is taken out of the
+	 * conversation, so that no IM is missed in between.
+	 *
+	 * @param username The name of the user, non-null.
+	 * @param conversation The name of the conversation, non-null.
+	 */
+	void departed(String username, String conversation) {
+		while(true) {
+			Mailbox mailbox = mailboxes.get(username);
+			if(mailbox == null) {
+				mailbox = new Mailbox(new File(directory, MessageLog.hash(username) + ".mbox"), capacity,
+						System.currentTimeMillis(), stats);
+				Mailbox existing = mailboxes.putIfAbsent(username, mailbox);
+				if(existing != null)
+					mailbox = existing;
+			}
+			if(mailbox.departed(conversation))
+				return;
+			// Emptied for good by a user just connecting, or just discarded.
+			mailboxes.remove(username, mailbox);
+		}
+	}
+
+	/**
+	 * Posts an IM sent to the conversation named conversation to the Mailbox
+	 * of the user named username, unless that user has been away longer than
+	 * this.maxAgeMillis, in which case its Mailbox is discarded.
+	 *
+	 * @param username The name of the user, non-null.
+	 * @param conversation The name of the conversation, non-null.
+	 * @param record The IM, as its Conversation numbered it, non-null.
+	 * @return False if the user is no longer to be held in the conversation;
+	 * 		   true otherwise.
+	 */
+	boolean post(String username, String conversation, LogRecord record) {
+		Mailbox mailbox = mailboxes.get(username);
+		if(mailbox == null)
+			return false;
+		if(record.getTimestamp() - mailbox.getDeparted() > maxAgeMillis) {
+			if(mailboxes.remove(username, mailbox))
+				mailbox.discard();
+			return false;
+		}
+		try {
+			mailbox.post(conversation, record);
+		} catch(IOException e) {
+			stats.mailboxFailed();
+			stats.mailboxDropped(1);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the Mailbox of the user named username, or null if it has none
+	 * or has been away longer than this.maxAgeMillis.  The Mailbox stays in
+	 * this store, taking the IMs posted to it, until drained for good.
+	 *
+	 * @param username The name of the user, non-null.
+	 * @return Its Mailbox, or null.
+	 */
+	Mailbox forUser(String username) {
+		Mailbox mailbox = mailboxes.get(username);
+		if(mailbox != null && System.currentTimeMillis() - mailbox.getDeparted() > maxAgeMillis) {
+			if(mailboxes.remove(username, mailbox))
+				mailbox.discard();
+			return null;
+		}
+		return mailbox;
+	}
+
+	/**
+	 * Forgets mailbox, the Mailbox of the user named username, once it has
+	 * been drained for good.
+	 *
+	 * @param username The name of the user, non-null.
+	 * @param mailbox Its Mailbox, non-null.
+	 */
+	void delivered(String username, Mailbox mailbox) {
+		mailboxes.remove(username, mailbox);
+	}
+
+	/**
+	 * Returns the time before which IMs are too old to deliver.
+	 *
+	 * @return Milliseconds since the epoch.
+	 */
+	long getOldest() {
+		return System.currentTimeMillis() - maxAgeMillis;
+	}
+
+	/**
+	 * Discards every Mailbox, deleting its file.
+	 */
+	void close() {
+		for(String username : mailboxes.keySet()) {
+			Mailbox mailbox = mailboxes.remove(username);
+			if(mailbox != null)
+				mailbox.discard();
+		}
+	}
+}
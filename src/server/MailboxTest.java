@@ -0,0 +1,286 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import network.NetworkConstants;
+
+import org.junit.Test;
+
+import test.TestClient;
+
+/**
+ * JUnit tests for Mailbox and MailboxStore: holding the IMs sent to users who
+ * are away, within their caps, and delivering them, in order, when the users
+ * come back.
+ *
+ * @category no_didit
+ */
+public class MailboxTest {
+
+	private static LogRecord record(long sequence, String text) {
+		return new LogRecord(sequence, System.currentTimeMillis(), "b", (int) sequence, text);
+	}
+
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File f : files)
+				f.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Expect a Mailbox to keep only its latest IMs, and to deliver them in
+	 * order, as plain or sequenced IM messages.
+	 */
+	@Test public void capacityTest() throws IOException {
+		File directory = Files.createTempDirectory("mailbox").toFile();
+		try {
+			ServerStats stats = new ServerStats();
+			Mailbox mailbox = new Mailbox(new File(directory, "a.mbox"), 3, System.currentTimeMillis(), stats);
+			for(int i = 1; i <= 5; ++i)
+				mailbox.post("room", record(i, "m" + i));
+			assertEquals(3, mailbox.size());
+			assertEquals(5, stats.getMailboxPosts());
+			assertEquals(2, stats.getMailboxDrops());
+
+			List<Frame> out = new ArrayList<Frame>();
+			assertFalse(mailbox.drain(0, false, false, out));
+			assertEquals(3, out.size());
+			assertEquals(NetworkConstants.IM + "\tb\troom\t3\tm3", out.get(0).getText());
+			assertEquals(NetworkConstants.IM + "\tb\troom\t5\tm5", out.get(2).getText());
+			assertEquals(3, stats.getMailboxDeliveries());
+
+			mailbox.post("room", record(6, "m6"));
+			out.clear();
+			assertFalse(mailbox.drain(0, true, true, out));
+			assertEquals(1, out.size());
+			assertTrue(out.get(0).getText().matches(
+					NetworkConstants.IM + "\tb\troom\t6\t6\t[0-9]+\tm6"));
+			mailbox.post("room", record(7, "m7"));
+			assertEquals(0, mailbox.size());
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect a Mailbox holding more than fits in memory to spill to its file,
+	 * to keep the file from growing without bound as old IMs are dropped, and
+	 * to read it back in chunks, in order, deleting it once emptied.
+	 */
+	@Test public void spillTest() throws IOException {
+		File directory = Files.createTempDirectory("mailbox").toFile();
+		try {
+			File file = new File(directory, "a.mbox");
+			Mailbox mailbox = new Mailbox(file, 1000, System.currentTimeMillis(), new ServerStats());
+			StringBuilder text = new StringBuilder();
+			for(int i = 0; i < 200; ++i)
+				text.append('x');
+			for(int i = 1; i <= 5000; ++i)
+				mailbox.post("room", record(i, i + text.toString()));
+			assertTrue(file.isFile());
+			assertTrue(file.length() < 3 * 1000 * 250);
+			assertEquals(1000, mailbox.size());
+
+			List<Frame> out = new ArrayList<Frame>();
+			int chunks = 0;
+			boolean more = true;
+			while(more) {
+				more = mailbox.drain(0, false, true, out);
+				++chunks;
+			}
+			assertTrue(chunks > 1);
+			assertEquals(1000, out.size());
+			for(int i = 0; i < 1000; ++i) {
+				String line = out.get(i).getText();
+				assertTrue(line.startsWith(NetworkConstants.IM + "\tb\troom\t" + (4001 + i) + "\t" + (4001 + i) + "x"));
+			}
+			assertFalse(file.exists());
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect a user who leaves while in a conversation to be put back in it
+	 * when it connects again, and sent what was said while it was away, in
+	 * order, before anything said since.
+	 */
+	@Test(timeout=10000) public void deliveryTest() throws IOException {
+		File directory = Files.createTempDirectory("mailbox").toFile();
+		IMServer server = null;
+		TestClient a = null, b = null, a2 = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setMailboxDirectory(directory.getPath()));
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			b.send(NetworkConstants.CONNECT + "\tb");
+			b.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.send(NetworkConstants.ADD_TO_CONV + "\tb\troom");
+			assertEquals(NetworkConstants.ENTERED_CONV + "\troom\ta\tb", b.readLine());
+			a.send(NetworkConstants.DISCONNECT + "a");
+			assertEquals(NetworkConstants.REMOVED_FROM_CONV + "\ta\troom", b.readLine());
+			assertEquals(NetworkConstants.DISCONNECTED + "\ta", b.readLine());
+			for(int i = 1; i <= 3; ++i) {
+				b.send(NetworkConstants.IM + "\troom\t" + i + "\tm" + i);
+				b.readLine();
+			}
+
+			a2 = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a2.send(NetworkConstants.CONNECT + "\ta");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\ta\tb", a2.readLine());
+			assertEquals(NetworkConstants.ENTERED_CONV + "\troom\tb\ta", a2.readLine());
+			for(int i = 1; i <= 3; ++i)
+				assertEquals(NetworkConstants.IM + "\tb\troom\t" + i + "\tm" + i, a2.readLine());
+			assertEquals(NetworkConstants.CONNECTED + "\ta", b.readLine());
+			assertEquals(NetworkConstants.ADDED_TO_CONV + "\ta\troom", b.readLine());
+			a2.send(NetworkConstants.IM + "\troom\t1\tback");
+			assertEquals(NetworkConstants.IM + "\ta\troom\t1\tback", a2.readLine());
+			assertEquals(NetworkConstants.IM + "\ta\troom\t1\tback", b.readLine());
+			assertEquals(3, server.getStats().getMailboxDeliveries());
+		} finally {
+			for(TestClient c : new TestClient[] { a, b, a2 })
+				if(c != null)
+					c.close();
+			if(server != null)
+				server.close();
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect a user who stays away longer than mailboxMaxAgeMillis to be
+	 * dropped from its conversations, and sent nothing when it comes back.
+	 */
+	@Test(timeout=10000) public void maxAgeTest() throws IOException {
+		File directory = Files.createTempDirectory("mailbox").toFile();
+		IMServer server = null;
+		TestClient a = null, b = null, a2 = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setMailboxDirectory(directory.getPath()).setMailboxMaxAgeMillis(300));
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			b.send(NetworkConstants.CONNECT + "\tb");
+			b.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.send(NetworkConstants.ADD_TO_CONV + "\tb\troom");
+			b.readLine();
+			a.close();
+			b.readLine();
+			b.readLine();
+			b.send(NetworkConstants.IM + "\troom\t1\tearly");
+			b.readLine();
+			ServerTest.waitForNetworkMessage();
+			ServerTest.waitForNetworkMessage();
+			b.send(NetworkConstants.IM + "\troom\t2\tlate");
+			b.readLine();
+			assertEquals(1, server.getStats().getMailboxPosts());
+			assertEquals(1, server.getStats().getMailboxDrops());
+
+			a2 = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a2.send(NetworkConstants.CONNECT + "\ta");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\ta\tb", a2.readLine());
+			ServerTest.waitForNetworkMessage();
+			assertFalse(a2.ready());
+			assertEquals(1, server.getStats().getMailboxDrops());
+			assertEquals(0, server.getStats().getMailboxDeliveries());
+		} finally {
+			for(TestClient c : new TestClient[] { a, b, a2 })
+				if(c != null)
+					c.close();
+			if(server != null)
+				server.close();
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect a user whose Mailbox cannot be read to be put back in its
+	 * conversations all the same, the failure to be counted, and the IMs held
+	 * for it to be kept, and sent when it next connects.
+	 */
+	@Test(timeout=10000) public void readFailureTest() throws IOException {
+		File directory = Files.createTempDirectory("mailbox").toFile();
+		IMServer server = null;
+		TestClient a = null, b = null, a2 = null, a3 = null;
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 200; ++i)
+			text.append('x');
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setMailboxDirectory(directory.getPath()));
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			b.send(NetworkConstants.CONNECT + "\tb");
+			b.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.send(NetworkConstants.ADD_TO_CONV + "\tb\troom");
+			b.readLine();
+			a.close();
+			b.readLine();
+			b.readLine();
+			// Enough to spill to the file.
+			int n = 2 * Mailbox.BUFFER_BYTES / text.length();
+			for(int i = 1; i <= n; ++i) {
+				b.send(NetworkConstants.IM + "\troom\t" + i + "\t" + text);
+				b.readLine();
+			}
+
+			File file = new File(directory, MessageLog.hash("a") + ".mbox");
+			byte[] held = Files.readAllBytes(file.toPath());
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(0);
+			a2 = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a2.send(NetworkConstants.CONNECT + "\ta");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\ta\tb", a2.readLine());
+			assertEquals(NetworkConstants.ENTERED_CONV + "\troom\tb\ta", a2.readLine());
+			assertEquals(NetworkConstants.CONNECTED + "\ta", b.readLine());
+			assertEquals(NetworkConstants.ADDED_TO_CONV + "\ta\troom", b.readLine());
+			b.send(NetworkConstants.IM + "\troom\t0\tlive");
+			assertEquals(NetworkConstants.IM + "\tb\troom\t0\tlive", a2.readLine());
+			assertEquals(1, server.getStats().getMailboxFailures());
+			assertEquals(0, server.getStats().getMailboxDeliveries());
+			a2.close();
+			b.readLine();
+			b.readLine();
+			raf.write(held);
+			raf.close();
+
+			a3 = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a3.send(NetworkConstants.CONNECT + "\ta");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\ta\tb", a3.readLine());
+			assertEquals(NetworkConstants.ENTERED_CONV + "\troom\tb\ta", a3.readLine());
+			for(int i = 1; i <= n; ++i)
+				assertEquals(NetworkConstants.IM + "\tb\troom\t" + i + "\t" + text, a3.readLine());
+			assertEquals(n, server.getStats().getMailboxDeliveries());
+		} finally {
+			for(TestClient c : new TestClient[] { a, b, a2, a3 })
+				if(c != null)
+					c.close();
+			if(server != null)
+				server.close();
+			delete(directory);
+		}
+	}
+}
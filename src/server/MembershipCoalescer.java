@@ -0,0 +1,66 @@
+package server;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A MembershipCoalescer times the windows over which each Conversation of an
+ * IMServer collects the users that join and leave it, so that the members are
+ * told of them all at once, in a single MEMBERSHIP message, rather than in one
+ * ADDED_TO_CONV or REMOVED_FROM_CONV message per change (see
+ * Conversation.flushMembership).  Filling a conversation with n members then
+ * costs each member one message per window instead of one per join, and the
+ * message is built once and shared by all of its recipients, as with
+ * PresenceCoalescer.  The changes themselves are kept by each Conversation;
+ * this only schedules the flushes.  Instances of MembershipCoalescer have the
+ * following instance variables:
+ *
+ *  - windowMillis is how long after the first change of a window it is flushed.
+ *  - timer runs the flushes, one at a time, so that MEMBERSHIP messages reach
+ *    each client in order.
+ *  - closed is true once close has been called; windows are then never
+ *    flushed.
+ *
+ * All methods are synchronized on this.
+ */
+final class MembershipCoalescer {
+
+	private final long windowMillis;
+	private final Timer timer;
+	private boolean closed;
+
+	/**
+	 * Creates a MembershipCoalescer.
+	 *
+	 * @param windowMillis How long to collect changes before sending them,
+	 * 		  positive.
+	 */
+	MembershipCoalescer(long windowMillis) {
+		this.windowMillis = windowMillis;
+		this.timer = new Timer("membership", true);
+	}
+
+	/**
+	 * Schedules conv's current window to be flushed once this.windowMillis has
+	 * passed, unless this has been closed.
+	 *
+	 * @param conv The Conversation whose window has just opened, non-null.
+	 */
+	synchronized void schedule(final Conversation conv) {
+		if(closed)
+			return;
+		timer.schedule(new TimerTask() {
+			public void run() {
+				conv.flushMembership();
+			}
+		}, windowMillis);
+	}
+
+	/**
+	 * Stops the timer; changes not yet flushed are never sent.
+	 */
+	synchronized void close() {
+		closed = true;
+		timer.cancel();
+	}
+}
@@ -0,0 +1,112 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A MessageCache bounds the memory taken by the MessageRings of all of an
+ * IMServer's conversations together.  Each ring holds its conversation's
+ * latest IMs; when their Frames come to more than budget bytes in all, the
+ * rings of the conversations used least recently (an IM sent, or history read)
+ * are emptied, whole, until the total is within budget again.  Instances of
+ * MessageCache have the following instance variables:
+ *
+ *  - budget is the most bytes of Frames the rings may hold together.
+ *  - ringCapacity is the most IMs each ring holds.
+ *  - stats is the ServerStats counting hits, misses, and evictions.
+ *  - bytes is the number of bytes of Frames the rings hold together.  It may
+ *    be briefly off while a ring is added to and evicted at once, but comes
+ *    right once both have been accounted for.
+ *  - recent holds the rings holding any Frames, from the one used least
+ *    recently to the one used most recently.  It is guarded by this.
+ *
+ * Rings are emptied outside this object's lock, and a ring never calls into
+ * its cache while holding its own, so the two locks are never held in
+ * opposite orders.
+ */
+final class MessageCache {
+
+	private final long budget;
+	private final int ringCapacity;
+	private final ServerStats stats;
+	private final AtomicLong bytes = new AtomicLong();
+	private final LinkedHashMap<MessageRing, Boolean> recent = new LinkedHashMap<MessageRing, Boolean>(16, 0.75f,
+			true);
+
+	/**
+	 * Creates an empty MessageCache.
+	 *
+	 * @param budget The most bytes the rings may hold together, at least 1.
+	 * @param ringCapacity The most IMs each ring holds, at least 1.
+	 * @param stats The counters to add to, non-null.
+	 */
+	MessageCache(long budget, int ringCapacity, ServerStats stats) {
+		this.budget = budget;
+		this.ringCapacity = ringCapacity;
+		this.stats = stats;
+	}
+
+	/**
+	 * Creates an empty ring for a conversation, to be used with this cache.
+	 *
+	 * @param nextSequence The sequence number of the conversation's next IM.
+	 * @return The new ring.
+	 */
+	MessageRing newRing(long nextSequence) {
+		return new MessageRing(ringCapacity, nextSequence);
+	}
+
+	/**
+	 * Records that ring has been added to, growing by delta bytes, and that it
+	 * is now the ring used most recently; then, if the rings hold more than
+	 * this.budget, empties the rings used least recently until they do not.
+	 *
+	 * @param ring The ring added to, non-null.
+	 * @param delta The change in its size.
+	 */
+	void added(MessageRing ring, long delta) {
+		bytes.addAndGet(delta);
+		List<MessageRing> victims = null;
+		synchronized(this) {
+			recent.put(ring, Boolean.TRUE);
+			long excess = bytes.get() - budget;
+			Iterator<MessageRing> it = recent.keySet().iterator();
+			while(excess > 0 && it.hasNext()) {
+				MessageRing victim = it.next();
+				it.remove();
+				excess -= victim.getBytes();
+				if(victims == null)
+					victims = new ArrayList<MessageRing>();
+				victims.add(victim);
+			}
+		}
+		if(victims != null) {
+			for(MessageRing victim : victims) {
+				bytes.addAndGet(-victim.clear());
+				stats.recentEvicted();
+			}
+		}
+	}
+
+	/**
+	 * Records that ring has been read from, so that it is now the ring used
+	 * most recently, if it holds any Frames.
+	 *
+	 * @param ring The ring read, non-null.
+	 */
+	synchronized void used(MessageRing ring) {
+		recent.get(ring);
+	}
+
+	/**
+	 * Accessor method for this.bytes.
+	 *
+	 * @return The number of bytes of Frames the rings hold together.
+	 */
+	long getBytes() {
+		return bytes.get();
+	}
+}
@@ -0,0 +1,197 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import network.NetworkConstants;
+
+import org.junit.Test;
+
+import test.TestClient;
+
+/**
+ * JUnit tests for MessageRing and MessageCache: keeping each conversation's
+ * latest IMs, evicting the conversations used least recently to stay within
+ * budget, and replaying history from memory.
+ *
+ * @category no_didit
+ */
+public class MessageCacheTest {
+
+	/**
+	 * Returns a Frame of exactly size bytes, newline included.
+	 */
+	private static Frame frame(int size) {
+		StringBuilder b = new StringBuilder();
+		for(int i = 1; i < size; ++i)
+			b.append('x');
+		return new Frame(b.toString());
+	}
+
+	/**
+	 * Expect a ring to keep its latest IMs, dropping the oldest, to read from
+	 * the oldest it holds when asked for older ones, and to keep numbering
+	 * after it is cleared.
+	 */
+	@Test public void ringTest() {
+		MessageRing ring = new MessageRing(3, 1);
+		List<Frame> out = new ArrayList<Frame>();
+		assertEquals(0, ring.read(0, 10, out));
+		assertTrue(out.isEmpty());
+		Frame[] frames = new Frame[6];
+		for(int i = 1; i <= 5; ++i) {
+			frames[i] = new Frame("m" + i);
+			ring.add(i, frames[i]);
+		}
+		assertEquals(9, ring.getBytes());
+		assertEquals(2, ring.read(0, 10, out));
+		assertEquals(3, out.size());
+		assertSame(frames[3], out.get(0));
+		assertSame(frames[5], out.get(2));
+		out.clear();
+		assertEquals(3, ring.read(3, 1, out));
+		assertEquals(1, out.size());
+		assertSame(frames[4], out.get(0));
+		out.clear();
+		assertEquals(5, ring.read(5, 10, out));
+		assertTrue(out.isEmpty());
+
+		assertEquals(9, ring.clear());
+		assertEquals(0, ring.getBytes());
+		assertEquals(5, ring.read(2, 10, out));
+		assertTrue(out.isEmpty());
+		ring.add(6, frames[1]);
+		assertEquals(5, ring.read(0, 10, out));
+		assertSame(frames[1], out.get(0));
+	}
+
+	/**
+	 * Expect the cache, once over budget, to empty the rings of the
+	 * conversations used least recently, reading counting as use, and to count
+	 * each eviction.
+	 */
+	@Test public void evictionTest() {
+		ServerStats stats = new ServerStats();
+		MessageCache cache = new MessageCache(300, 10, stats);
+		MessageRing a = cache.newRing(1), b = cache.newRing(1), c = cache.newRing(1);
+		cache.added(a, a.add(1, frame(100)));
+		cache.added(b, b.add(1, frame(100)));
+		cache.added(c, c.add(1, frame(100)));
+		assertEquals(300, cache.getBytes());
+		assertEquals(0, stats.getRecentEvictions());
+
+		cache.used(a);
+		cache.added(c, c.add(2, frame(50)));
+		assertEquals(0, b.getBytes());
+		assertEquals(100, a.getBytes());
+		assertEquals(150, c.getBytes());
+		assertEquals(250, cache.getBytes());
+		assertEquals(1, stats.getRecentEvictions());
+
+		cache.added(b, b.add(2, frame(200)));
+		assertEquals(0, a.getBytes());
+		assertEquals(0, c.getBytes());
+		assertEquals(200, cache.getBytes());
+		assertEquals(3, stats.getRecentEvictions());
+
+		cache.added(b, b.add(3, frame(200)));
+		assertEquals(0, b.getBytes());
+		assertEquals(0, cache.getBytes());
+		assertEquals(4, stats.getRecentEvictions());
+	}
+
+	/**
+	 * Expect a server with no message log to replay the IMs a conversation
+	 * still holds in memory, starting with the oldest it holds, and to count
+	 * whether each chunk was wholly in memory.
+	 */
+	@Test(timeout=10000) public void replayFromMemoryTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setRecentMessagesPerConversation(3));
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			for(int i = 1; i <= 5; ++i) {
+				a.send(NetworkConstants.IM + "\troom\t" + i + "\tm" + i);
+				a.readLine();
+			}
+			a.send(NetworkConstants.HISTORY_LAST + "\troom\t2");
+			assertTrue(a.readLine().matches(NetworkConstants.HISTORY + "\troom\t4\t[0-9]+\ta\t4\tm4"));
+			assertTrue(a.readLine().matches(NetworkConstants.HISTORY + "\troom\t5\t[0-9]+\ta\t5\tm5"));
+			assertEquals(NetworkConstants.HISTORY_END + "\troom\t5\t0", a.readLine());
+			assertEquals(1, server.getStats().getRecentHits());
+			assertEquals(0, server.getStats().getRecentMisses());
+
+			a.send(NetworkConstants.HISTORY_AFTER + "\troom\t0");
+			assertTrue(a.readLine().matches(NetworkConstants.HISTORY + "\troom\t3\t[0-9]+\ta\t3\tm3"));
+			a.readLine();
+			a.readLine();
+			assertEquals(NetworkConstants.HISTORY_END + "\troom\t5\t0", a.readLine());
+			assertEquals(1, server.getStats().getRecentMisses());
+		} finally {
+			if(a != null)
+				a.close();
+			if(server != null)
+				server.close();
+		}
+	}
+
+	/**
+	 * Expect a server with a message log to replay from memory what the
+	 * conversation still holds, and from the log what it has dropped.
+	 */
+	@Test(timeout=10000) public void replayFromLogTest() throws IOException {
+		File directory = Files.createTempDirectory("messagelog").toFile();
+		IMServer server = null;
+		TestClient a = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig()
+					.setMessageLogDirectory(directory.getPath()).setRecentMessagesPerConversation(3)
+					.setHistoryChunkSize(2));
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			for(int i = 1; i <= 5; ++i) {
+				a.send(NetworkConstants.IM + "\troom\t" + i + "\tm" + i);
+				a.readLine();
+			}
+			a.send(NetworkConstants.HISTORY_AFTER + "\troom\t1");
+			assertTrue(a.readLine().matches(NetworkConstants.HISTORY + "\troom\t2\t[0-9]+\ta\t2\tm2"));
+			assertTrue(a.readLine().matches(NetworkConstants.HISTORY + "\troom\t3\t[0-9]+\ta\t3\tm3"));
+			assertEquals(NetworkConstants.HISTORY_END + "\troom\t3\t2", a.readLine());
+			assertEquals(0, server.getStats().getRecentHits());
+			assertEquals(1, server.getStats().getRecentMisses());
+			a.send(NetworkConstants.NEXT_HISTORY + "\troom");
+			assertTrue(a.readLine().matches(NetworkConstants.HISTORY + "\troom\t4\t[0-9]+\ta\t4\tm4"));
+			assertTrue(a.readLine().matches(NetworkConstants.HISTORY + "\troom\t5\t[0-9]+\ta\t5\tm5"));
+			assertEquals(NetworkConstants.HISTORY_END + "\troom\t5\t0", a.readLine());
+			assertEquals(1, server.getStats().getRecentHits());
+		} finally {
+			if(a != null)
+				a.close();
+			if(server != null)
+				server.close();
+			File[] dirs = directory.listFiles();
+			for(File dir : dirs) {
+				for(File f : dir.listFiles())
+					f.delete();
+				dir.delete();
+			}
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package server;
+
+/**
+ * A MessageIdWindow remembers which of the latest IM IDs a client has sent to
+ * one conversation have been relayed, so that an IM the client sends again,
+ * after a timeout or on resuming its session, is not relayed twice.  Clients
+ * number their IMs to each conversation upwards, so the window is a bitmap of
+ * the size IDs ending at the highest ID relayed, the high-water mark, and
+ * slides up as higher IDs are relayed.  An ID below the window is taken to
+ * have been relayed, since it can no longer be told apart from one that has.
+ * Instances of MessageIdWindow have the following instance variables:
+ *
+ *  - bits holds one bit per ID in the window, the bit for ID i being bit
+ *    i % 64 of bits[(i / 64) % bits.length].  It is set if the ID has been
+ *    relayed.
+ *  - size is the number of IDs in the window: 64 * bits.length.
+ *  - high is the highest ID relayed, or -1 if there has been none.
+ *
+ * A MessageIdWindow is not thread-safe.
+ */
+final class MessageIdWindow {
+
+	private final long[] bits;
+	private final int size;
+	private long high = -1;
+
+	/**
+	 * Creates a MessageIdWindow for a client that has sent no IMs.
+	 *
+	 * @param size The number of IDs to remember, rounded up to a multiple of 64;
+	 * 		  at least 1.
+	 */
+	MessageIdWindow(int size) {
+		bits = new long[(size + 63) / 64];
+		this.size = 64 * bits.length;
+	}
+
+	/**
+	 * Returns whether the IM numbered id has been relayed, or is too far below
+	 * the high-water mark to tell.
+	 *
+	 * @param id The IM ID, non-negative.
+	 * @return True if id is in the window and has been relayed, or is below it.
+	 */
+	boolean contains(int id) {
+		if(id > high)
+			return false;
+		if(high - id >= size)
+			return true;
+		return (bits[slot(id)] & (1L << id)) != 0;
+	}
+
+	/**
+	 * Records that the IM numbered id has been relayed, sliding the window up
+	 * if id is above the high-water mark.  Does nothing if id is below the
+	 * window.
+	 *
+	 * @param id The IM ID, non-negative.
+	 */
+	void add(int id) {
+		if(id > high) {
+			if(id - high >= size) {
+				for(int i = 0; i < bits.length; ++i)
+					bits[i] = 0;
+			}
+			else {
+				for(long i = high + 1; i < id; ++i)
+					bits[slot(i)] &= ~(1L << i);
+			}
+			high = id;
+		}
+		else if(high - id >= size)
+			return;
+		bits[slot(id)] |= 1L << id;
+	}
+
+	private int slot(long id) {
+		return (int) ((id >>> 6) % bits.length);
+	}
+}
@@ -0,0 +1,161 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import network.NetworkConstants;
+
+import org.junit.Test;
+
+import test.TestClient;
+
+/**
+ * JUnit tests for MessageIdWindow, for the server acknowledging IMs sent
+ * again rather than relaying them twice, and for ack messages sent in place
+ * of echoes.
+ *
+ * @category no_didit
+ */
+public class MessageIdWindowTest {
+
+	/**
+	 * Expect the window to remember the IDs added within it, in any order,
+	 * to forget those it slides past, and to take IDs below it as seen.
+	 */
+	@Test public void windowTest() {
+		MessageIdWindow window = new MessageIdWindow(64);
+		assertFalse(window.contains(0));
+		window.add(0);
+		window.add(2);
+		assertTrue(window.contains(0));
+		assertFalse(window.contains(1));
+		assertTrue(window.contains(2));
+		assertFalse(window.contains(3));
+		window.add(1);
+		assertTrue(window.contains(1));
+
+		window.add(65);
+		assertTrue(window.contains(1));
+		assertTrue(window.contains(2));
+		assertFalse(window.contains(3));
+		assertFalse(window.contains(64));
+		assertTrue(window.contains(65));
+		window.add(66);
+		assertTrue(window.contains(65));
+		assertTrue(window.contains(2));
+		assertFalse(window.contains(3));
+
+		window.add(1000);
+		assertTrue(window.contains(1000));
+		assertFalse(window.contains(999));
+		assertFalse(window.contains(937));
+		assertTrue(window.contains(936));
+		window.add(500);
+		assertFalse(window.contains(999));
+	}
+
+	/**
+	 * Expect an IM sent again to the same conversation to be echoed to its
+	 * sender alone, and counted, and an IM sent after entering a conversation
+	 * afresh to be relayed whatever its ID.
+	 */
+	@Test(timeout=10000) public void retransmitTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null, b = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT);
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			b.send(NetworkConstants.CONNECT + "\tb");
+			b.readLine();
+			a.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			a.send(NetworkConstants.ADD_TO_CONV + "\tb\troom");
+			a.readLine();
+			b.readLine();
+
+			a.send(NetworkConstants.IM + "\troom\t0\thello");
+			a.send(NetworkConstants.IM + "\troom\t0\thello");
+			a.send(NetworkConstants.IM + "\troom\t1\tagain");
+			for(int i = 0; i < 2; ++i)
+				assertEquals(NetworkConstants.IM + "\ta\troom\t0\thello", a.readLine());
+			assertEquals(NetworkConstants.IM + "\ta\troom\t1\tagain", a.readLine());
+			assertEquals(NetworkConstants.IM + "\ta\troom\t0\thello", b.readLine());
+			assertEquals(NetworkConstants.IM + "\ta\troom\t1\tagain", b.readLine());
+			assertEquals(1, server.getStats().getRetransmits());
+
+			b.send(NetworkConstants.EXIT_CONV + "\troom");
+			a.readLine();
+			b.send(NetworkConstants.ENTER_CONV + "\troom");
+			b.readLine();
+			a.readLine();
+			b.send(NetworkConstants.IM + "\troom\t0\tfirst");
+			assertEquals(NetworkConstants.IM + "\tb\troom\t0\tfirst", b.readLine());
+			b.send(NetworkConstants.EXIT_CONV + "\troom");
+			b.send(NetworkConstants.ENTER_CONV + "\troom");
+			b.readLine();
+			b.send(NetworkConstants.IM + "\troom\t0\tfirst");
+			assertEquals(NetworkConstants.IM + "\tb\troom\t0\tfirst", b.readLine());
+			assertEquals(1, server.getStats().getRetransmits());
+		} finally {
+			if(a != null)
+				a.close();
+			if(b != null)
+				b.close();
+			if(server != null)
+				server.close();
+		}
+	}
+
+	/**
+	 * Expect a client that asked for acks to be sent an ack message with each
+	 * IM's sequence number in place of its own IM, while the other members are
+	 * sent the IM, and an IM it sends again to be acknowledged with sequence
+	 * number 0.
+	 */
+	@Test(timeout=10000) public void ackTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null, b = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT);
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta\t" + NetworkConstants.SEQUENCED_IMS + "\t" + NetworkConstants.ACKS);
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\ta", a.readLine());
+			b.send(NetworkConstants.CONNECT + "\tb");
+			b.readLine();
+			a.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			a.send(NetworkConstants.ADD_TO_CONV + "\tb\troom");
+			a.readLine();
+			b.readLine();
+
+			a.send(NetworkConstants.IM + "\troom\t0\thello");
+			a.send(NetworkConstants.IM + "\troom\t1\tagain");
+			a.send(NetworkConstants.IM + "\troom\t0\thello");
+			assertEquals(NetworkConstants.ACK + "\troom\t0\t1", a.readLine());
+			assertEquals(NetworkConstants.ACK + "\troom\t1\t2", a.readLine());
+			assertEquals(NetworkConstants.ACK + "\troom\t0\t0", a.readLine());
+			assertEquals(NetworkConstants.IM + "\ta\troom\t0\thello", b.readLine());
+			assertEquals(NetworkConstants.IM + "\ta\troom\t1\tagain", b.readLine());
+
+			b.send(NetworkConstants.IM + "\troom\t0\treply");
+			assertTrue(a.readLine().matches(NetworkConstants.IM + "\tb\troom\t0\t3\t[0-9]+\treply"));
+			assertEquals(NetworkConstants.IM + "\tb\troom\t0\treply", b.readLine());
+		} finally {
+			if(a != null)
+				a.close();
+			if(b != null)
+				b.close();
+			if(server != null)
+				server.close();
+		}
+	}
+}
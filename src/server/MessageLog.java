@@ -0,0 +1,251 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A MessageLog keeps every IM relayed by an IMServer on disk, in a
+ * ConversationLog per conversation, each made of fixed-size memory-mapped
+ * LogSegments.  Appending an IM copies it into the page cache; a sync thread
+ * forces the changes of every conversation to the disk together, every
+ * syncMillis, so that one fsync per segment covers however many IMs arrived
+ * in the meantime, and no sender waits on the disk.  An IM is thus durable
+ * within syncMillis of being relayed (it survives the server process dying at
+ * once, since the page cache is the kernel's).
+ *
+ * Each conversation's segments are kept in a directory of its own, named for
+ * a hash of the conversation's name, which the directory also records.  When
+ * a MessageLog is opened it recovers every conversation in its directory, by
+ * scanning the newest segment of each for the end of its last good record.
+ * Instances of MessageLog have the following instance variables:
+ *
+ *  - directory is the directory holding the conversations' directories.
+ *  - segmentBytes is the size of each new segment file.
+ *  - syncMillis is how often changes are forced to the disk.
+ *  - logs maps each conversation name to its ConversationLog.
+ *  - changed holds the ConversationLogs with changes not yet forced.
+ *  - syncer is the thread forcing them, until close is called.
+ *  - closed is true once close has been called.
+ *  - appends, bytes, and syncs count the IMs appended, the bytes they took,
+ *    and the times a conversation's changes were forced.
+ *
+ * A MessageLog is thread-safe.
+ */
+public final class MessageLog {
+
+	private final File directory;
+	private final int segmentBytes;
+	private final long syncMillis;
+	private final ConcurrentMap<String, ConversationLog> logs = new ConcurrentHashMap<String, ConversationLog>();
+	private final Map<ConversationLog, Boolean> changed = new ConcurrentHashMap<ConversationLog, Boolean>();
+	private final Thread syncer;
+	private volatile boolean closed;
+	private final AtomicLong appends = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+
+	/**
+	 * Opens the MessageLog in directory, creating directory if need be, and
+	 * recovering the conversations already logged there, and starts its sync
+	 * thread.
+	 *
+	 * @param directory The directory to keep the log in.
+	 * @param segmentBytes The size of each segment file, at least 64 KiB.
+	 * @param syncMillis How often to force changes to the disk, at least 1.
+	 * @throws IOException If directory cannot be created, or a conversation in
+	 * 		   it cannot be recovered.
+	 */
+	public MessageLog(File directory, int segmentBytes, long syncMillis) throws IOException {
+		if(segmentBytes < 64 * 1024)
+			throw new IllegalArgumentException("segmentBytes must be at least 64 KiB");
+		if(syncMillis < 1)
+			throw new IllegalArgumentException("syncMillis must be at least 1");
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.syncMillis = syncMillis;
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot create " + directory);
+		File[] dirs = directory.listFiles();
+		if(dirs == null)
+			throw new IOException("cannot list " + directory);
+		for(File dir : dirs) {
+			File nameFile = new File(dir, ConversationLog.NAME_FILE);
+			if(nameFile.isFile()) {
+				String name = readName(nameFile);
+				logs.put(name, ConversationLog.recover(this, name, dir, segmentBytes));
+			}
+		}
+		syncer = new Thread("message-log-sync") {
+			public void run() {
+				while(!closed) {
+					try {
+						Thread.sleep(MessageLog.this.syncMillis);
+					} catch(InterruptedException e) {
+					}
+					sync();
+				}
+			}
+		};
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	private static String readName(File file) throws IOException {
+		byte[] name = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while(n < name.length) {
+				int r = in.read(name, n, name.length - n);
+				if(r < 0)
+					throw new IOException(file + " was truncated");
+				n += r;
+			}
+		} finally {
+			in.close();
+		}
+		return new String(name, LogSegment.UTF8);
+	}
+
+	/**
+	 * Returns the ConversationLog of the conversation named name, creating an
+	 * empty one if none exists.
+	 *
+	 * @param name The name of the conversation, non-null.
+	 * @return Its ConversationLog.
+	 */
+	ConversationLog forConversation(String name) {
+		ConversationLog log = logs.get(name);
+		if(log == null) {
+			log = new ConversationLog(this, name, new File(directory, hash(name)), segmentBytes);
+			ConversationLog existing = logs.putIfAbsent(name, log);
+			if(existing != null)
+				log = existing;
+		}
+		return log;
+	}
+
+	/**
+	 * Returns the name of the directory of the conversation named name: the hex
+	 * SHA-1 of its UTF-8 bytes, which any file system accepts, however long or
+	 * odd the name.  MailboxStore names users' files the same way.
+	 */
+	static String hash(String name) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(name.getBytes(LogSegment.UTF8));
+			StringBuilder hex = new StringBuilder(2 * digest.length);
+			for(byte b : digest)
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return hex.toString();
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JVM has SHA-1
+		}
+	}
+
+	/**
+	 * Appends an IM to the log of the conversation named conversation, stamped
+	 * with the current time.
+	 *
+	 * @param conversation The name of the conversation, non-null.
+	 * @param sender The username of the sender, non-null.
+	 * @param messageId The sender's IM ID.
+	 * @param text The text of the IM, non-null.
+	 * @return The IM's sequence number in its conversation.
+	 * @throws IOException If the IM could not be logged.
+	 */
+	public long append(String conversation, String sender, int messageId, String text) throws IOException {
+		return forConversation(conversation).append(System.currentTimeMillis(), sender, messageId, text);
+	}
+
+	/**
+	 * Returns the sequence number of the last IM logged in the conversation
+	 * named conversation, or 0 if there is none.
+	 *
+	 * @param conversation The name of the conversation, non-null.
+	 * @return The last sequence number.
+	 */
+	public long getLastSequence(String conversation) {
+		ConversationLog log = logs.get(conversation);
+		return log == null ? 0 : log.getLastSequence();
+	}
+
+	/**
+	 * Called by log the first time it changes after being synced.
+	 */
+	void changed(ConversationLog log) {
+		changed.put(log, Boolean.TRUE);
+	}
+
+	/**
+	 * Called by a ConversationLog for each IM appended.
+	 */
+	void appended(int n) {
+		appends.incrementAndGet();
+		bytes.addAndGet(n);
+	}
+
+	/**
+	 * Forces the changes of every conversation to the disk.  The sync thread
+	 * calls this every syncMillis; others may call it to make sure of what they
+	 * have appended.
+	 */
+	public void sync() {
+		for(ConversationLog log : changed.keySet()) {
+			changed.remove(log);
+			log.sync();
+			syncs.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops the sync thread, and forces every change to the disk.  IMs appended
+	 * after close still reach the page cache, but are left for the operating
+	 * system to write back.
+	 */
+	public void close() {
+		closed = true;
+		syncer.interrupt();
+		try {
+			syncer.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sync();
+	}
+
+	/**
+	 * Accessor method for this.appends.
+	 *
+	 * @return The number of IMs appended since this was opened.
+	 */
+	public long getAppends() {
+		return appends.get();
+	}
+
+	/**
+	 * Accessor method for this.bytes.
+	 *
+	 * @return The number of bytes appended since this was opened.
+	 */
+	public long getBytesAppended() {
+		return bytes.get();
+	}
+
+	/**
+	 * Accessor method for this.syncs.
+	 *
+	 * @return The number of times a conversation's changes were forced to the
+	 * 		   disk since this was opened.
+	 */
+	public long getSyncs() {
+		return syncs.get();
+	}
+}
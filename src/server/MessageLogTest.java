@@ -0,0 +1,393 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import network.NetworkConstants;
+
+import org.junit.Test;
+
+import test.TestClient;
+
+/**
+ * JUnit tests for MessageLog: appending across segments, recovering after a
+ * restart or a torn write, logging the IMs a server relays, and replaying
+ * them to clients that ask for a conversation's history.
+ *
+ * @category no_didit
+ */
+public class MessageLogTest {
+
+	private static final int SEGMENT_BYTES = 64 * 1024;
+
+	/**
+	 * Deletes file and, if it is a directory, everything in it.
+	 */
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Returns the segment files of the only conversation logged in directory,
+	 * oldest first.
+	 */
+	private static File[] segments(File directory) {
+		File[] dirs = directory.listFiles();
+		assertEquals(1, dirs.length);
+		File[] files = dirs[0].listFiles();
+		List<File> segments = new ArrayList<File>();
+		for(File f : files) {
+			if(f.getName().endsWith(".log"))
+				segments.add(f);
+		}
+		File[] sorted = segments.toArray(new File[segments.size()]);
+		java.util.Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Expect IMs to be numbered consecutively per conversation, to be read back
+	 * as they were written, across segment boundaries, and to survive a restart
+	 * with numbering carrying on where it left off.
+	 */
+	@Test public void appendAndRecoverTest() throws IOException {
+		File directory = Files.createTempDirectory("messagelog").toFile();
+		try {
+			MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 5);
+			for(int i = 1; i <= 5000; ++i)
+				assertEquals(i, log.append("room", "user" + (i % 7), i, "message " + i));
+			assertEquals(1, log.append("\u00e9t\u00e9 \ud83d\ude00/..", "b", 1, "caf\u00e9"));
+			assertEquals(5001, log.getAppends());
+			log.close();
+			assertTrue(log.getSyncs() > 0);
+
+			log = new MessageLog(directory, SEGMENT_BYTES, 5);
+			assertEquals(5000, log.getLastSequence("room"));
+			assertEquals(1, log.getLastSequence("\u00e9t\u00e9 \ud83d\ude00/.."));
+			assertEquals(0, log.getLastSequence("elsewhere"));
+			assertEquals(5001, log.append("room", "a", 1, "after"));
+
+			List<LogRecord> records = new ArrayList<LogRecord>();
+			assertEquals(12, log.forConversation("room").read(4990, 100, records));
+			for(int i = 0; i < 11; ++i) {
+				LogRecord r = records.get(i);
+				assertEquals(4990 + i, r.getSequence());
+				assertEquals("user" + ((4990 + i) % 7), r.getSender());
+				assertEquals(4990 + i, r.getMessageId());
+				assertEquals("message " + (4990 + i), r.getText());
+			}
+			assertEquals("after", records.get(11).getText());
+			records.clear();
+			assertEquals(3, log.forConversation("room").read(1, 3, records));
+			assertEquals(1, records.get(0).getSequence());
+			records.clear();
+			log.forConversation("\u00e9t\u00e9 \ud83d\ude00/..").read(1, 10, records);
+			assertEquals("caf\u00e9", records.get(0).getText());
+			log.close();
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect a log read a chunk at a time, as a history replay reads it, to
+	 * yield every IM once, in order, across segment boundaries, whether or not
+	 * the chunks follow on from each other.
+	 */
+	@Test public void chunkedReadTest() throws IOException {
+		File directory = Files.createTempDirectory("messagelog").toFile();
+		try {
+			MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 5);
+			for(int i = 1; i <= 5000; ++i)
+				log.append("room", "user", i, "message " + i);
+			ConversationLog room = log.forConversation("room");
+			assertTrue(segments(directory).length > 1);
+			List<LogRecord> records = new ArrayList<LogRecord>();
+			long next = 1;
+			while(room.read(next, 7, records) > 0) {
+				for(LogRecord r : records)
+					assertEquals("message " + next++, r.getText());
+				records.clear();
+			}
+			assertEquals(5001, next);
+			assertEquals(1, room.read(4000, 1, records));
+			assertEquals(1, room.read(10, 1, records));
+			assertEquals(1, room.read(4999, 1, records));
+			assertEquals(4000, records.get(0).getSequence());
+			assertEquals(10, records.get(1).getSequence());
+			assertEquals(4999, records.get(2).getSequence());
+			log.close();
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect a log whose last record was torn to end at the record before it,
+	 * and the next IM to take the torn one's number; and a newest segment that
+	 * was never written to be dropped.
+	 */
+	@Test public void tornTailTest() throws IOException {
+		File directory = Files.createTempDirectory("messagelog").toFile();
+		try {
+			MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 5);
+			for(int i = 1; i <= 10; ++i)
+				log.append("room", "sender", i, "same length");
+			log.close();
+
+			int recordBytes = LogSegment.RECORD_HEADER_BYTES + LogSegment.FIXED_BODY_BYTES + "sender".length()
+					+ "same length".length();
+			File[] files = segments(directory);
+			assertEquals(1, files.length);
+			RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+			try {
+				int tenth = LogSegment.HEADER_BYTES + 9 * recordBytes;
+				raf.seek(tenth + recordBytes - 1);
+				raf.write('!');
+			} finally {
+				raf.close();
+			}
+			// As if the server had stopped while starting the next segment.
+			raf = new RandomAccessFile(new File(files[0].getParentFile(), LogSegment.fileName(11)), "rw");
+			try {
+				raf.setLength(SEGMENT_BYTES);
+			} finally {
+				raf.close();
+			}
+
+			log = new MessageLog(directory, SEGMENT_BYTES, 5);
+			assertEquals(9, log.getLastSequence("room"));
+			assertEquals(1, segments(directory).length);
+			assertEquals(10, log.append("room", "sender", 10, "rewritten"));
+			log.close();
+
+			log = new MessageLog(directory, SEGMENT_BYTES, 5);
+			List<LogRecord> records = new ArrayList<LogRecord>();
+			log.forConversation("room").read(9, 10, records);
+			assertEquals(2, records.size());
+			assertEquals("rewritten", records.get(1).getText());
+			log.close();
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect a server with a message log to log each IM it relays, and not an
+	 * IM it refuses.
+	 */
+	@Test(timeout=10000) public void serverLogsIMsTest() throws IOException {
+		File directory = Files.createTempDirectory("messagelog").toFile();
+		IMServer server = null;
+		TestClient a = null, b = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setMessageLogDirectory(directory.getPath()));
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			b.send(NetworkConstants.CONNECT + "\tb");
+			b.readLine();
+			a.readLine(); // CONNECTED b
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			b.send(NetworkConstants.ENTER_CONV + "\troom");
+			b.readLine();
+			a.readLine(); // ADDED_TO_CONV
+			a.send(NetworkConstants.IM + "\troom\t1\thello");
+			assertEquals(NetworkConstants.IM + "\ta\troom\t1\thello", b.readLine());
+			b.send(NetworkConstants.IM + "\troom\t7\thi");
+			assertEquals(NetworkConstants.IM + "\tb\troom\t7\thi", b.readLine());
+			b.send(NetworkConstants.IM + "\tnowhere\t8\tlost");
+			b.readLine(); // ERROR
+		} finally {
+			if(a != null)
+				a.close();
+			if(b != null)
+				b.close();
+			if(server != null)
+				server.close();
+		}
+		try {
+			MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 5);
+			assertEquals(0, log.getLastSequence("nowhere"));
+			List<LogRecord> records = new ArrayList<LogRecord>();
+			assertEquals(2, log.forConversation("room").read(1, 10, records));
+			assertEquals("a", records.get(0).getSender());
+			assertEquals("hello", records.get(0).getText());
+			assertEquals(7, records.get(1).getMessageId());
+			assertEquals(2, records.get(1).getSequence());
+			assertTrue(records.get(1).getTimestamp() >= records.get(0).getTimestamp());
+			log.close();
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect a member of a conversation to be sent the history it asks for, the
+	 * last few IMs or those after a given one, a chunk at a time as it asks for
+	 * each, and nothing past the IMs logged when it asked; and a request from a
+	 * user who is not a member, or for a chunk when none is left, to be refused.
+	 */
+	@Test(timeout=10000) public void historyReplayTest() throws IOException {
+		File directory = Files.createTempDirectory("messagelog").toFile();
+		IMServer server = null;
+		TestClient a = null, b = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setMessageLogDirectory(directory.getPath()).setHistoryChunkSize(2));
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			b.send(NetworkConstants.CONNECT + "\tb");
+			b.readLine();
+			a.readLine(); // CONNECTED b
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			for(int i = 1; i <= 5; ++i) {
+				a.send(NetworkConstants.IM + "\troom\t" + i + "\tm" + i);
+				a.readLine();
+			}
+
+			b.send(NetworkConstants.HISTORY_LAST + "\troom\t3");
+			assertTrue(b.readLine().startsWith(NetworkConstants.ERROR + "\t"));
+			b.send(NetworkConstants.ENTER_CONV + "\troom");
+			b.readLine();
+			a.readLine(); // ADDED_TO_CONV
+			b.send(NetworkConstants.HISTORY_LAST + "\troom\t3");
+			assertTrue(b.readLine().matches(NetworkConstants.HISTORY + "\troom\t3\t[0-9]+\ta\t3\tm3"));
+			assertTrue(b.readLine().matches(NetworkConstants.HISTORY + "\troom\t4\t[0-9]+\ta\t4\tm4"));
+			assertEquals(NetworkConstants.HISTORY_END + "\troom\t4\t1", b.readLine());
+			a.send(NetworkConstants.IM + "\troom\t6\tm6");
+			a.readLine();
+			assertEquals(NetworkConstants.IM + "\ta\troom\t6\tm6", b.readLine());
+			b.send(NetworkConstants.NEXT_HISTORY + "\troom");
+			assertTrue(b.readLine().matches(NetworkConstants.HISTORY + "\troom\t5\t[0-9]+\ta\t5\tm5"));
+			assertEquals(NetworkConstants.HISTORY_END + "\troom\t5\t0", b.readLine());
+			b.send(NetworkConstants.NEXT_HISTORY + "\troom");
+			assertTrue(b.readLine().startsWith(NetworkConstants.ERROR + "\t"));
+
+			b.send(NetworkConstants.HISTORY_AFTER + "\troom\t4");
+			assertTrue(b.readLine().matches(NetworkConstants.HISTORY + "\troom\t5\t[0-9]+\ta\t5\tm5"));
+			assertTrue(b.readLine().matches(NetworkConstants.HISTORY + "\troom\t6\t[0-9]+\ta\t6\tm6"));
+			assertEquals(NetworkConstants.HISTORY_END + "\troom\t6\t0", b.readLine());
+			b.send(NetworkConstants.HISTORY_AFTER + "\troom\t6");
+			assertEquals(NetworkConstants.HISTORY_END + "\troom\t6\t0", b.readLine());
+		} finally {
+			if(a != null)
+				a.close();
+			if(b != null)
+				b.close();
+			if(server != null)
+				server.close();
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect an IM that cannot be logged to be sent to no one, answered with
+	 * an error message, and counted.
+	 */
+	@Test(timeout=10000) public void logFailureTest() throws IOException {
+		File directory = Files.createTempDirectory("messagelog").toFile();
+		IMServer server = null;
+		TestClient a = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setMessageLogDirectory(directory.getPath()));
+			new Thread(server).start();
+			// A file where the conversation's directory should go.
+			assertTrue(new File(directory, MessageLog.hash("room")).createNewFile());
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			a.send(NetworkConstants.IM + "\troom\t1\tlost");
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.IM + "\troom\t1\tlost", a.readLine());
+			assertEquals(1, server.getStats().getLogFailures());
+		} finally {
+			if(a != null)
+				a.close();
+			if(server != null)
+				server.close();
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Expect a request for history that cannot be read from the log to be
+	 * answered with an error message, and counted.
+	 */
+	@Test(timeout=20000) public void historyFailureTest() throws IOException {
+		File directory = Files.createTempDirectory("messagelog").toFile();
+		IMServer server = null;
+		TestClient a = null;
+		StringBuilder text = new StringBuilder();
+		while(text.length() < NetworkConstants.MAX_MESSAGE_LENGTH - 12)
+			text.append("filler ");
+		try {
+			ServerConfig config = new ServerConfig().setMessageLogDirectory(directory.getPath())
+					.setMessageLogSegmentBytes(SEGMENT_BYTES);
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, config);
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			// Fill the first segment and start on the second.
+			int i = 0;
+			do {
+				++i;
+				a.send(NetworkConstants.IM + "\troom\t" + i + "\t" + text);
+				a.readLine();
+			} while(segments(directory).length < 2 || i % 10 != 0);
+			a.close();
+			a = null;
+			server.close();
+
+			// Spoil the oldest segment, which a restarted server only opens to read.
+			RandomAccessFile raf = new RandomAccessFile(segments(directory)[0], "rw");
+			try {
+				raf.writeInt(0);
+			} finally {
+				raf.close();
+			}
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, config);
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			a.send(NetworkConstants.HISTORY_AFTER + "\troom\t0");
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.HISTORY_AFTER + "\troom\t0", a.readLine());
+			assertEquals(1, server.getStats().getHistoryFailures());
+			a.send(NetworkConstants.NEXT_HISTORY + "\troom");
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.NEXT_HISTORY + "\troom", a.readLine());
+		} finally {
+			if(a != null)
+				a.close();
+			if(server != null)
+				server.close();
+			delete(directory);
+		}
+	}
+}
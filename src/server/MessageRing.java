@@ -0,0 +1,116 @@
+package server;
+
+import java.util.List;
+
+/**
+ * A MessageRing holds the most recent IMs of one Conversation, as the history
+ * Frames a client replaying them is sent, so that a client catching up on what
+ * it missed is answered from memory.  It holds at most capacity of them,
+ * dropping the oldest to make room, and is emptied when its MessageCache runs
+ * over budget and this is the conversation used least recently.  IMs are added
+ * in the order of their sequence numbers, which are consecutive, so the ring
+ * always holds an unbroken run of them, ending with the latest.  Instances of
+ * MessageRing have the following instance variables:
+ *
+ *  - frames is the ring of Frames, of length capacity, or null while the ring
+ *    is empty, so that a conversation that is never spoken in, or whose ring
+ *    was evicted, holds no array.
+ *  - head is the index in frames of the oldest Frame.
+ *  - count is the number of Frames held.
+ *  - first is the sequence number of the oldest Frame, or, if count is 0, of
+ *    the next IM to be added.
+ *  - bytes is the number of encoded bytes of the Frames held.
+ *
+ * A MessageRing is thread-safe.
+ */
+final class MessageRing {
+
+	private final int capacity;
+	private Frame[] frames;
+	private int head;
+	private int count;
+	private long first;
+	private volatile long bytes;
+
+	/**
+	 * Creates an empty MessageRing.
+	 *
+	 * @param capacity The most IMs to hold, at least 1.
+	 * @param nextSequence The sequence number of the next IM to be added.
+	 */
+	MessageRing(int capacity, long nextSequence) {
+		this.capacity = capacity;
+		this.first = nextSequence;
+	}
+
+	/**
+	 * Adds the Frame of the IM numbered sequence, dropping the oldest Frame if
+	 * the ring is full.
+	 *
+	 * @param sequence The IM's sequence number, one more than the last added.
+	 * @param frame The IM's history Frame, non-null.
+	 * @return The change in this.bytes.
+	 */
+	synchronized long add(long sequence, Frame frame) {
+		if(frames == null)
+			frames = new Frame[capacity];
+		if(count == 0)
+			first = sequence;
+		long delta = frame.size();
+		if(count == capacity) {
+			delta -= frames[head].size();
+			frames[head] = frame;
+			head = (head + 1) % capacity;
+			++first;
+		}
+		else {
+			frames[(head + count) % capacity] = frame;
+			++count;
+		}
+		bytes += delta;
+		return delta;
+	}
+
+	/**
+	 * Adds to out, in order, up to max of the Frames numbered after after.  If
+	 * the ring no longer holds the one numbered after + 1, the Frames start
+	 * with the oldest it does hold.
+	 *
+	 * @param after The sequence number after which to start.
+	 * @param max The most Frames to add.
+	 * @param out The list to add the Frames to.
+	 * @return The sequence number of the Frame before the first added: after,
+	 * 		   unless some were no longer held.
+	 */
+	synchronized long read(long after, int max, List<Frame> out) {
+		long start = Math.max(after + 1, first);
+		long available = first + count - start;
+		for(int i = 0; i < available && i < max; ++i)
+			out.add(frames[(int) ((head + start - first + i) % capacity)]);
+		return start - 1;
+	}
+
+	/**
+	 * Drops every Frame, keeping the sequence number of the next IM.
+	 *
+	 * @return The number of bytes the Frames took.
+	 */
+	synchronized long clear() {
+		long freed = bytes;
+		first += count;
+		count = 0;
+		head = 0;
+		frames = null;
+		bytes = 0;
+		return freed;
+	}
+
+	/**
+	 * Accessor method for this.bytes.
+	 *
+	 * @return The number of encoded bytes of the Frames held.
+	 */
+	long getBytes() {
+		return bytes;
+	}
+}
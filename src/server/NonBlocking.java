@@ -0,0 +1,62 @@
+package server;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides whether a thread sending to a client may wait for room in the
+ * client's full OutboundQueue under OverflowPolicy.BLOCK.  A thread that sends
+ * on behalf of many clients may not: a SelectorEngine event loop, which may be
+ * the very loop that would make the room, and a FanoutPool worker, which would
+ * hold up every other member of its shard behind the one slow reader.  Nor may
+ * a thread holding a NonBlocking.Lock, which would hold up every other thread
+ * waiting for the lock.  Such a thread's sends fail at once instead, as under
+ * OverflowPolicy.DISCONNECT.
+ */
+class NonBlocking {
+
+	private static final ThreadLocal<int[]> HELD = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	private NonBlocking() {}
+
+	/**
+	 * Returns whether the calling thread may wait for room in a full
+	 * OutboundQueue.
+	 *
+	 * @return False on an event loop or fan-out worker thread, or while the
+	 * 		   thread holds a NonBlocking.Lock; true otherwise.
+	 */
+	static boolean mayWait() {
+		Thread t = Thread.currentThread();
+		return !(t instanceof SelectorEngine.EventLoop || t instanceof FanoutPool.Worker)
+				&& HELD.get()[0] == 0;
+	}
+
+	/**
+	 * A ReentrantLock under which no send waits for room: while a thread holds
+	 * one, mayWait() is false for it.  It is taken only with lock(), and the
+	 * holds are counted per thread, so a thread holding several, or holding
+	 * one several times over, may wait again only once it has released all of
+	 * them.
+	 */
+	static final class Lock extends ReentrantLock {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void lock() {
+			super.lock();
+			++HELD.get()[0];
+		}
+
+		@Override
+		public void unlock() {
+			super.unlock();
+			--HELD.get()[0];
+		}
+	}
+}
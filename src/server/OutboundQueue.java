@@ -0,0 +1,251 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of messages waiting to be written to one client.  Any thread
+ * may offer messages; a single consumer (the connection's writer) takes them.
+ * Offering never touches the socket, so delivering to a slow client cannot hold
+ * up the sender, or whatever lock the sender holds.  When the queue is full, the
+ * OverflowPolicy decides whether to drop, wait, or give up on the client.
+ * Instances of OutboundQueue have the following instance variables:
+ *
+ *  - items holds the queued messages, oldest first.  items.size() <= capacity.
+ *  - capacity is the maximum number of queued messages, at least 1.
+ *  - policy is the OverflowPolicy applied when items is full.
+ *  - blockNanos is how long an offer may wait for room under OverflowPolicy.BLOCK.
+ *  - onOverflow is run once, by the offering thread and with no lock held, when
+ *    the queue gives up on its client; the owning connection uses it to arrange
+ *    for itself to be closed.  It may be null.
+ *  - closed is true once the queue has been closed or has overflowed; after that
+ *    offers are refused and take returns null.
+ *  - overflowed is true if the queue was closed because it overflowed.
+ *  - dropped counts the messages discarded under OverflowPolicy.DROP_OLDEST.
+ *  - lock guards all of the mutable state above.
+ *
+ * @param <E> The type of the queued messages.
+ */
+class OutboundQueue<E> {
+
+	private final ArrayDeque<E> items;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final long blockNanos;
+	private final Runnable onOverflow;
+	private boolean closed;
+	private boolean overflowed;
+	private long dropped;
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private final Condition notFull;
+
+	/**
+	 * Creates an empty OutboundQueue with the given capacity and overflow behavior.
+	 *
+	 * @param capacity The maximum number of queued messages, at least 1.
+	 * @param policy What to do when the queue is full, non-null.
+	 * @param blockMillis How long offer may wait under OverflowPolicy.BLOCK.
+	 * @param onOverflow Run once when the queue gives up on its client, or null.
+	 */
+	OutboundQueue(int capacity, OverflowPolicy policy, long blockMillis, Runnable onOverflow) {
+		this.items = new ArrayDeque<E>(Math.min(capacity, 64));
+		this.capacity = capacity;
+		this.policy = policy;
+		this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+		this.onOverflow = onOverflow;
+		this.lock = new ReentrantLock();
+		this.notEmpty = lock.newCondition();
+		this.notFull = lock.newCondition();
+	}
+
+	/**
+	 * Creates an OutboundQueue configured by config.
+	 *
+	 * @param config The settings to use, non-null.
+	 * @param onOverflow Run once when the queue gives up on its client, or null.
+	 */
+	OutboundQueue(ServerConfig config, Runnable onOverflow) {
+		this(config.getOutboundQueueCapacity(), config.getOverflowPolicy(),
+				config.getOverflowBlockMillis(), onOverflow);
+	}
+
+	/**
+	 * Adds e to the end of this queue, applying this.policy if the queue is full.
+	 *
+	 * @param e The message to queue, non-null.
+	 * @param mayBlock Whether the caller may wait for room under OverflowPolicy.BLOCK.
+	 * @return True if e was queued; false if this queue is closed or has just
+	 * 		   overflowed.
+	 */
+	boolean offer(E e, boolean mayBlock) {
+		lock.lock();
+		try {
+			if(closed)
+				return false;
+			if(items.size() >= capacity) {
+				if(policy == OverflowPolicy.DROP_OLDEST) {
+					items.poll();
+					++dropped;
+				}
+				else if(policy == OverflowPolicy.BLOCK && mayBlock)
+					awaitRoom();
+				if(closed)
+					return false;
+				if(items.size() >= capacity) {
+					closed = true;
+					overflowed = true;
+					items.clear();
+					notEmpty.signalAll();
+					notFull.signalAll();
+				}
+			}
+			if(!overflowed) {
+				items.add(e);
+				notEmpty.signal();
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if(onOverflow != null)
+			onOverflow.run();
+		return false;
+	}
+
+	/**
+	 * Waits up to this.blockNanos for this queue to have room or to be closed.
+	 * Must be called with this.lock held.
+	 */
+	private void awaitRoom() {
+		long nanos = blockNanos;
+		try {
+			while(!closed && items.size() >= capacity && nanos > 0)
+				nanos = notFull.awaitNanos(nanos);
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest message, waiting for one if there is none.
+	 *
+	 * @return The oldest message, or null once this queue is closed.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	E take() throws InterruptedException {
+		lock.lock();
+		try {
+			while(!closed && items.isEmpty())
+				notEmpty.await();
+			return closed ? null : removeFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest message without waiting.
+	 *
+	 * @return The oldest message, or null if there is none or this queue is closed.
+	 */
+	E poll() {
+		lock.lock();
+		try {
+			return closed ? null : removeFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest message, waiting up to nanos nanoseconds for
+	 * one if there is none.
+	 *
+	 * @param nanos The longest time to wait.
+	 * @return The oldest message, or null if none arrived in time or this queue is
+	 * 		   closed.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	E poll(long nanos) throws InterruptedException {
+		lock.lock();
+		try {
+			while(!closed && items.isEmpty() && nanos > 0)
+				nanos = notEmpty.awaitNanos(nanos);
+			return closed ? null : removeFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the first element of this.items, signalling a blocked offer.  Must
+	 * be called with this.lock held.
+	 */
+	private E removeFirst() {
+		E e = items.poll();
+		if(e != null)
+			notFull.signal();
+		return e;
+	}
+
+	/**
+	 * Returns whether this queue holds no messages.
+	 *
+	 * @return True if nothing is queued.
+	 */
+	boolean isEmpty() {
+		lock.lock();
+		try {
+			return items.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes this queue, discarding anything still queued and releasing any
+	 * waiting threads.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			items.clear();
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether this queue gave up on its client because it overflowed.
+	 *
+	 * @return this.overflowed.
+	 */
+	boolean isOverflowed() {
+		lock.lock();
+		try {
+			return overflowed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages dropped under OverflowPolicy.DROP_OLDEST.
+	 *
+	 * @return this.dropped.
+	 */
+	long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for OutboundQueue and its overflow policies.
+ *
+ * @category no_didit
+ */
+public class OutboundQueueTest {
+
+	/**
+	 * Runnable that counts how many times it has been run.
+	 */
+	private static class Counter implements Runnable {
+		int runs = 0;
+		public void run() {
+			++runs;
+		}
+	}
+
+	/**
+	 * Expect messages to come out in the order they were offered.
+	 */
+	@Test(timeout=1000) public void fifoTest() throws InterruptedException {
+		OutboundQueue<String> q = new OutboundQueue<String>(4, OverflowPolicy.DISCONNECT, 0, null);
+		assertTrue(q.offer("a", true));
+		assertTrue(q.offer("b", true));
+		assertEquals("a", q.take());
+		assertEquals("b", q.poll());
+		assertEquals(null, q.poll());
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 * Expect DROP_OLDEST to discard the head of a full queue and keep accepting.
+	 */
+	@Test(timeout=1000) public void dropOldestTest() {
+		Counter overflows = new Counter();
+		OutboundQueue<String> q = new OutboundQueue<String>(2, OverflowPolicy.DROP_OLDEST, 0, overflows);
+		assertTrue(q.offer("a", true));
+		assertTrue(q.offer("b", true));
+		assertTrue(q.offer("c", true));
+		assertEquals(1, q.getDropped());
+		assertEquals("b", q.poll());
+		assertEquals("c", q.poll());
+		assertFalse(q.isOverflowed());
+		assertEquals(0, overflows.runs);
+	}
+
+	/**
+	 * Expect DISCONNECT to refuse the message, close the queue, and run
+	 * onOverflow exactly once.
+	 */
+	@Test(timeout=1000) public void disconnectTest() throws InterruptedException {
+		Counter overflows = new Counter();
+		OutboundQueue<String> q = new OutboundQueue<String>(1, OverflowPolicy.DISCONNECT, 0, overflows);
+		assertTrue(q.offer("a", true));
+		assertFalse(q.offer("b", true));
+		assertFalse(q.offer("c", true));
+		assertTrue(q.isOverflowed());
+		assertEquals(1, overflows.runs);
+		assertEquals(null, q.take());
+	}
+
+	/**
+	 * Expect BLOCK to wait for the consumer to make room.
+	 */
+	@Test(timeout=2000) public void blockSucceedsTest() throws InterruptedException {
+		final OutboundQueue<String> q = new OutboundQueue<String>(1, OverflowPolicy.BLOCK, 5000, null);
+		assertTrue(q.offer("a", true));
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+					q.take();
+				} catch(InterruptedException e) {}
+			}
+		};
+		consumer.start();
+		assertTrue(q.offer("b", true));
+		consumer.join();
+		assertEquals("b", q.poll());
+	}
+
+	/**
+	 * Expect BLOCK to give up on the client when no room is made in time, and a
+	 * sender that may not block to give up immediately.
+	 */
+	@Test(timeout=2000) public void blockTimesOutTest() {
+		OutboundQueue<String> q = new OutboundQueue<String>(1, OverflowPolicy.BLOCK, 50, null);
+		assertTrue(q.offer("a", true));
+		assertFalse(q.offer("b", true));
+		assertTrue(q.isOverflowed());
+
+		q = new OutboundQueue<String>(1, OverflowPolicy.BLOCK, 5000, null);
+		assertTrue(q.offer("a", false));
+		assertFalse(q.offer("b", false));
+		assertTrue(q.isOverflowed());
+	}
+
+	/**
+	 * Expect close to release a consumer waiting in take.
+	 */
+	@Test(timeout=2000) public void closeReleasesTakeTest() throws InterruptedException {
+		final OutboundQueue<String> q = new OutboundQueue<String>(1, OverflowPolicy.DISCONNECT, 0, null);
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch(InterruptedException e) {}
+				q.close();
+			}
+		}.start();
+		assertEquals(null, q.take());
+		assertFalse(q.offer("a", true));
+		assertFalse(q.isOverflowed());
+	}
+
+	/**
+	 * Expect a timed poll to wait for a message, and to give up when none comes.
+	 */
+	@Test(timeout=2000) public void timedPollTest() throws InterruptedException {
+		final OutboundQueue<String> q = new OutboundQueue<String>(4, OverflowPolicy.DISCONNECT, 0, null);
+		assertEquals(null, q.poll(10000000L));
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch(InterruptedException e) {}
+				q.offer("a", true);
+			}
+		}.start();
+		assertEquals("a", q.poll(1000000000L));
+	}
+}
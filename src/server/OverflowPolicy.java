@@ -0,0 +1,20 @@
+package server;
+
+/**
+ * What a User's OutboundQueue does when a message is sent to it while it is
+ * full, i.e. when its client is not reading as fast as the server is sending.
+ *
+ *  - DROP_OLDEST discards the oldest queued message to make room.
+ *  - DISCONNECT disconnects the client.  This is the default.
+ *  - BLOCK makes the sender wait, up to ServerConfig.getOverflowBlockMillis(),
+ *    for room, and disconnects the client if none is made in time.  A sender
+ *    running on a SelectorEngine event loop (the loop it would be waiting on
+ *    may be its own) or a FanoutPool worker (every other member of its shard
+ *    would wait with it) never waits, so for it BLOCK behaves like
+ *    DISCONNECT; see NonBlocking.
+ */
+public enum OverflowPolicy {
+	DROP_OLDEST,
+	DISCONNECT,
+	BLOCK
+}
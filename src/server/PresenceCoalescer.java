@@ -0,0 +1,262 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A PresenceCoalescer collects the logins and logouts on an IMServer over a
+ * short window, then tells every connected user about all of them at once, in
+ * a single PRESENCE message listing the users that came online and the users
+ * that went offline.  When many clients log in together, after a network blip
+ * say, each client so receives one message per window rather than one per
+ * login, and the message is built once and shared by all of its recipients.
+ * A user that logs out and back in (or in and back out) within a window
+ * cancels out: nobody hears of it.
+ *
+ * A user that logs in partway through a window has already been sent its
+ * initial users list, which reflects some of the window's changes and not
+ * others.  Such a user is sent instead the final state of every user whose
+ * presence changed during the window, which brings its list up to date
+ * whichever changes it has already seen, since a PRESENCE message states how
+ * things stand rather than what happened.
+ *
+ * If the server scopes presence (see PresenceIndex), each change is told only
+ * to its audience, the users the server named when recording it, and each
+ * recipient is sent a PRESENCE message of its own, listing only the changes it
+ * is in the audience of.
+ *
+ * A user that subscribes, or is sent a page of the users list, partway through
+ * a window has been told the state of some users, which may be undone within
+ * the window, so it too is counted as fresh.  Instances of PresenceCoalescer have
+ * the following instance variables:
+ *
+ *  - users is the server's map of connected users.
+ *  - lock is the server's presenceLock.  The server holds it while calling
+ *    connected and disconnected (and while sending a new user its initial users
+ *    list), and flush holds it while it reads and resets the window, so every
+ *    user either saw a change in its initial list or hears of it from flush.
+ *  - windowMillis is how long after the first change of a window it is flushed.
+ *  - wasOnline maps each username whose presence changed in the current window
+ *    to whether it was online when the window began, in the order the names
+ *    first changed.
+ *  - fresh holds the Users, by identity, that logged in, subscribed, or were
+ *    sent a users page during the current window and are still connected.
+ *  - audiences maps each username in wasOnline to the Users, by identity, to tell
+ *    of its changes, if presence is scoped; it is null otherwise.
+ *  - scheduled is true while a flush of the current window is pending.
+ *  - timer runs the flushes, one at a time, so that PRESENCE messages reach
+ *    each client in order.
+ *  - closed is true once close has been called; changes are then dropped.
+ *
+ * wasOnline, fresh, audiences, scheduled, and closed are guarded by lock.
+ */
+final class PresenceCoalescer {
+
+	private final ConcurrentMap<String, User> users;
+	private final ReentrantLock lock;
+	private final long windowMillis;
+	private Map<String, Boolean> wasOnline;
+	private Set<User> fresh;
+	private final boolean scoped;
+	private Map<String, Set<User>> audiences;
+	private boolean scheduled;
+	private final Timer timer;
+	private boolean closed;
+
+	/**
+	 * Creates a PresenceCoalescer for a server's users.
+	 *
+	 * @param users The server's map of connected users.
+	 * @param lock The lock the server holds while changing users.
+	 * @param windowMillis How long to collect changes before sending them,
+	 * 		  positive.
+	 * @param scoped Whether each change is told only to the audience given with
+	 * 		  it, rather than to every user.
+	 */
+	PresenceCoalescer(ConcurrentMap<String, User> users, ReentrantLock lock, long windowMillis,
+			boolean scoped) {
+		this.users = users;
+		this.lock = lock;
+		this.windowMillis = windowMillis;
+		this.scoped = scoped;
+		this.wasOnline = new LinkedHashMap<String, Boolean>();
+		this.fresh = PresenceIndex.newUserSet();
+		this.audiences = scoped ? new HashMap<String, Set<User>>() : null;
+		this.timer = new Timer("presence", true);
+	}
+
+	/**
+	 * Records that u has logged in.  The caller must hold lock, and have just
+	 * added u to users.
+	 *
+	 * @param u The User that logged in.
+	 * @param audience The Users to tell, if presence is scoped; ignored otherwise.
+	 */
+	void connected(User u, Object[] audience) {
+		changed(u.getUsername(), false, audience);
+		fresh.add(u);
+	}
+
+	/**
+	 * Records that u has logged out.  The caller must hold lock, and have just
+	 * removed u from users.
+	 *
+	 * @param u The User that logged out.
+	 * @param audience The Users to tell, if presence is scoped; ignored otherwise.
+	 */
+	void disconnected(User u, Object[] audience) {
+		changed(u.getUsername(), true, audience);
+		fresh.remove(u);
+	}
+
+	/**
+	 * Records that u has just been told the current state of some users, in
+	 * answer to a subscription or in a page of the users list, which changes
+	 * within the window may undo.  The caller must hold lock.
+	 *
+	 * @param u The User told.
+	 */
+	void sentState(User u) {
+		fresh.add(u);
+	}
+
+	/**
+	 * Notes that name's presence has changed from wasOnline, adds audience to
+	 * the Users to tell of it if presence is scoped, and schedules a flush if
+	 * none is pending.
+	 */
+	private void changed(String name, boolean wasOnline, Object[] audience) {
+		if(!this.wasOnline.containsKey(name))
+			this.wasOnline.put(name, wasOnline);
+		if(scoped) {
+			Set<User> set = audiences.get(name);
+			if(set == null) {
+				set = PresenceIndex.newUserSet();
+				audiences.put(name, set);
+			}
+			for(Object o : audience)
+				set.add((User) o);
+		}
+		if(!scheduled && !closed) {
+			scheduled = true;
+			timer.schedule(new TimerTask() {
+				public void run() {
+					flush();
+				}
+			}, windowMillis);
+		}
+	}
+
+	/**
+	 * Ends the current window, and sends each connected user the PRESENCE
+	 * message for it: the net changes to users connected before the window
+	 * began, and the final state of every changed user to users who logged in
+	 * during it.  Nothing is sent to a user for whom there is no news.
+	 */
+	void flush() {
+		if(scoped) {
+			flushScoped();
+			return;
+		}
+		List<String> online = new ArrayList<String>();
+		List<String> offline = new ArrayList<String>();
+		List<String> nowOnline = new ArrayList<String>();
+		List<String> nowOffline = new ArrayList<String>();
+		Object[] recipients;
+		Set<User> joined;
+		lock.lock();
+		try {
+			scheduled = false;
+			for(Map.Entry<String, Boolean> e : wasOnline.entrySet()) {
+				String name = e.getKey();
+				boolean now = users.containsKey(name);
+				(now ? nowOnline : nowOffline).add(name);
+				if(now != e.getValue())
+					(now ? online : offline).add(name);
+			}
+			wasOnline = new LinkedHashMap<String, Boolean>();
+			joined = fresh;
+			fresh = PresenceIndex.newUserSet();
+			recipients = users.values().toArray();
+		} finally {
+			lock.unlock();
+		}
+		Frame net = online.isEmpty() && offline.isEmpty() ? null : User.presenceFrame(online, offline);
+		Frame all = joined.isEmpty() ? null : User.presenceFrame(nowOnline, nowOffline);
+		// If the only news is one login, its user needs no telling.
+		String only = nowOnline.size() == 1 && nowOffline.isEmpty() ? nowOnline.get(0) : null;
+		for(Object o : recipients) {
+			User v = (User) o;
+			Frame f = joined.contains(v) ? all : net;
+			if(f != null && !(f == all && v.getUsername().equals(only)))
+				v.sendFrame(f);
+		}
+	}
+
+	/**
+	 * Does what flush does when presence is scoped: each change is sent only to
+	 * its audience, as a net change, or as a final state to fresh Users, and
+	 * each still connected recipient gets one message listing its changes.
+	 */
+	private void flushScoped() {
+		Map<User, Delta> deltas = new IdentityHashMap<User, Delta>();
+		lock.lock();
+		try {
+			scheduled = false;
+			for(Map.Entry<String, Boolean> e : wasOnline.entrySet()) {
+				String name = e.getKey();
+				boolean now = users.containsKey(name);
+				boolean changed = now != e.getValue();
+				for(User v : audiences.get(name)) {
+					if(!changed && !fresh.contains(v))
+						continue;
+					if(users.get(v.getUsername()) != v)
+						continue; // v has since disconnected.
+					Delta d = deltas.get(v);
+					if(d == null) {
+						d = new Delta();
+						deltas.put(v, d);
+					}
+					(now ? d.online : d.offline).add(name);
+				}
+			}
+			wasOnline = new LinkedHashMap<String, Boolean>();
+			audiences = new HashMap<String, Set<User>>();
+			fresh = PresenceIndex.newUserSet();
+		} finally {
+			lock.unlock();
+		}
+		for(Map.Entry<User, Delta> e : deltas.entrySet())
+			e.getKey().sendFrame(User.presenceFrame(e.getValue().online, e.getValue().offline));
+	}
+
+	/**
+	 * The changes one recipient of a scoped flush is told of.
+	 */
+	private static final class Delta {
+		final List<String> online = new ArrayList<String>();
+		final List<String> offline = new ArrayList<String>();
+	}
+
+	/**
+	 * Stops the timer; changes not yet flushed are never sent.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			timer.cancel();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
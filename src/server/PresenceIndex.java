@@ -0,0 +1,133 @@
+package server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A PresenceIndex records which users have subscribed to the presence of which
+ * others, for an IMServer whose ServerConfig scopes presence.  Such a server
+ * tells a user of a login or logout only if the user has subscribed to it, or,
+ * for a logout, shares a conversation with the user that left; so rather than
+ * fanning each change out to every connected user, it looks up who is
+ * interested here.  Subscriptions are by name, so a user may subscribe to a
+ * user that is offline, and hear when it logs in.  Instances of PresenceIndex
+ * have the following instance variables:
+ *
+ *  - watchers maps each username subscribed to, whether or not it is connected,
+ *    to the Users, by identity, subscribed to it.  It has no empty sets.
+ *  - watching maps each User, by identity, with any subscriptions to the names
+ *    it has subscribed to: the reverse of watchers, so that a User's
+ *    subscriptions can be dropped when it disconnects without visiting every
+ *    name.  It has no empty sets.
+ *
+ * A PresenceIndex is not thread-safe; the server only uses it while holding its
+ * presenceLock.
+ */
+final class PresenceIndex {
+
+	private final Map<String, Set<User>> watchers = new HashMap<String, Set<User>>();
+	private final Map<User, Set<String>> watching = new IdentityHashMap<User, Set<String>>();
+
+	/**
+	 * Returns a new, empty set of Users compared by identity.  (User.equals
+	 * compares names, which a User that has not logged in does not have.)
+	 *
+	 * @return A new, empty, modifiable set.
+	 */
+	static Set<User> newUserSet() {
+		return Collections.newSetFromMap(new IdentityHashMap<User, Boolean>());
+	}
+
+	/**
+	 * Subscribes watcher to the presence of the user named name.
+	 *
+	 * @param watcher The subscribing User, non-null.
+	 * @param name The username subscribed to, non-null.
+	 * @return True if watcher was not already subscribed to name.
+	 */
+	boolean subscribe(User watcher, String name) {
+		Set<User> set = watchers.get(name);
+		if(set == null) {
+			set = newUserSet();
+			watchers.put(name, set);
+		}
+		if(!set.add(watcher))
+			return false;
+		Set<String> names = watching.get(watcher);
+		if(names == null) {
+			names = new HashSet<String>();
+			watching.put(watcher, names);
+		}
+		names.add(name);
+		return true;
+	}
+
+	/**
+	 * Unsubscribes watcher from the presence of the user named name.
+	 *
+	 * @param watcher The subscribed User, non-null.
+	 * @param name The username subscribed to, non-null.
+	 * @return True if watcher was subscribed to name.
+	 */
+	boolean unsubscribe(User watcher, String name) {
+		Set<String> names = watching.get(watcher);
+		if(names == null || !names.remove(name))
+			return false;
+		if(names.isEmpty())
+			watching.remove(watcher);
+		drop(watcher, name);
+		return true;
+	}
+
+	/**
+	 * Drops every subscription watcher has made.  Called when it disconnects.
+	 *
+	 * @param watcher The User whose subscriptions to drop, non-null.
+	 */
+	void removeWatcher(User watcher) {
+		Set<String> names = watching.remove(watcher);
+		if(names == null)
+			return;
+		for(String name : names)
+			drop(watcher, name);
+	}
+
+	/**
+	 * Removes watcher from the watchers of name, and name from this.watchers
+	 * if it has no watchers left.
+	 */
+	private void drop(User watcher, String name) {
+		Set<User> set = watchers.get(name);
+		set.remove(watcher);
+		if(set.isEmpty())
+			watchers.remove(name);
+	}
+
+	/**
+	 * Returns the Users to tell of a change in the presence of the user named
+	 * name: those subscribed to it, and any others given.
+	 *
+	 * @param name The username whose presence changed, non-null.
+	 * @param others More Users to include, such as the users name shared a
+	 * 		  conversation with, or null.
+	 * @return A new array of distinct Users, none of which is named name.
+	 */
+	Object[] audience(String name, Collection<User> others) {
+		Set<User> set = watchers.get(name);
+		if(others == null || others.isEmpty())
+			return set == null ? new Object[0] : set.toArray();
+		Set<User> all = newUserSet();
+		if(set != null)
+			all.addAll(set);
+		for(User u : others) {
+			if(!name.equals(u.getUsername()))
+				all.add(u);
+		}
+		return all.toArray();
+	}
+}
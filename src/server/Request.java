@@ -0,0 +1,234 @@
+package server;
+
+import network.NetworkConstants;
+
+/**
+ * A Request is a client-to-server request line, split into its tab-separated
+ * fields in a single pass and checked against the grammar in
+ * network.NetworkConstants without regular expressions.  Fields are kept as
+ * offsets into the line, so the command is matched, lengths and characters are
+ * checked, and message IDs are parsed without creating a String per field; a
+ * field becomes a String only when it is handed on to the IMServer.
+ *
+ * Each User owns one Request and reuses it for every line it handles, so a
+ * Request is not safe for use by more than one thread at a time.  Instances of
+ * Request have the following instance variables:
+ *
+ *  - line is the request line most recently passed to parse, or null.
+ *  - fieldCount is the number of fields in line, as String.split("\t", -1)
+ *    would count them.  It is at least 1 once a line has been parsed.
+ *  - starts[i] and ends[i] are the offsets in line of the start and end of
+ *    field i, for i < min(fieldCount, MAX_FIELDS).
+ *  - codePoints[i] is the number of code points in field i, which is what the
+ *    repetition bounds in the grammar's regular expressions count.
+ *  - newline[i] is true if field i contains a '\n', which no field may.
+ *
+ * Every check gives the same answer String.matches would for the
+ * corresponding expression in NetworkConstants, so a line is rejected (and
+ * echoed back in an error message) exactly when it was before.
+ */
+final class Request {
+
+	/**
+	 * The most fields any request has (a connect message with every option has
+	 * seven).  Lines with more fields are counted but not recorded; no request
+	 * accepts them.
+	 */
+	static final int MAX_FIELDS = 7;
+
+	private String line;
+	private int fieldCount;
+	private final int[] starts = new int[MAX_FIELDS];
+	private final int[] ends = new int[MAX_FIELDS];
+	private final int[] codePoints = new int[MAX_FIELDS];
+	private final boolean[] newline = new boolean[MAX_FIELDS];
+
+	/**
+	 * Splits line into fields, replacing whatever this Request held before.
+	 *
+	 * @param line The request line, without its line terminator, non-null.
+	 */
+	void parse(String line) {
+		this.line = line;
+		fieldCount = 0;
+		int start = 0;
+		int count = 0;
+		boolean sawNewline = false;
+		char prev = 0;
+		int n = line.length();
+		for(int i = 0; i < n; ++i) {
+			char c = line.charAt(i);
+			if(c == '\t') {
+				endField(start, i, count, sawNewline);
+				start = i + 1;
+				count = 0;
+				sawNewline = false;
+				prev = 0;
+				continue;
+			}
+			// A surrogate pair is one code point.
+			if(!(Character.isLowSurrogate(c) && Character.isHighSurrogate(prev)))
+				++count;
+			if(c == '\n')
+				sawNewline = true;
+			prev = c;
+		}
+		endField(start, n, count, sawNewline);
+	}
+
+	/**
+	 * Records the field line[start..end) as the next field.
+	 */
+	private void endField(int start, int end, int count, boolean sawNewline) {
+		if(fieldCount < MAX_FIELDS) {
+			starts[fieldCount] = start;
+			ends[fieldCount] = end;
+			codePoints[fieldCount] = count;
+			newline[fieldCount] = sawNewline;
+		}
+		++fieldCount;
+	}
+
+	/**
+	 * Accessor method for this.line.
+	 *
+	 * @return The line most recently parsed.
+	 */
+	String getLine() {
+		return line;
+	}
+
+	/**
+	 * Accessor method for this.fieldCount.
+	 *
+	 * @return The number of fields in the line.
+	 */
+	int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * Returns whether the first field, the command, is exactly command.
+	 *
+	 * @param command One of the client-to-server message types in NetworkConstants.
+	 * @return True if the first field equals command.
+	 */
+	boolean isCommand(String command) {
+		return line.regionMatches(0, command, 0, command.length())
+				&& ends[0] == command.length();
+	}
+
+	/**
+	 * Returns whether field i is between min and max code points long and
+	 * contains no tab or newline, as the expression "[^\t\n]{min,max}" requires.
+	 *
+	 * @param i The index of the field, less than getFieldCount() and MAX_FIELDS.
+	 * @param min The least length allowed.
+	 * @param max The greatest length allowed.
+	 * @return True if field i matches.
+	 */
+	boolean isText(int i, int min, int max) {
+		return !newline[i] && codePoints[i] >= min && codePoints[i] <= max;
+	}
+
+	/**
+	 * Returns whether field i matches NetworkConstants.USERNAME.
+	 */
+	boolean isUsername(int i) {
+		return isText(i, 1, NetworkConstants.MAX_USERNAME_LENGTH);
+	}
+
+	/**
+	 * Returns whether field i matches NetworkConstants.NEW_USERNAME.
+	 */
+	boolean isNewUsername(int i) {
+		return isText(i, 0, NetworkConstants.MAX_USERNAME_LENGTH);
+	}
+
+	/**
+	 * Returns whether field i matches NetworkConstants.CONV_NAME.
+	 */
+	boolean isConvName(int i) {
+		return isText(i, 1, NetworkConstants.MAX_CONV_NAME_LENGTH);
+	}
+
+	/**
+	 * Returns whether field i matches NetworkConstants.NEW_CONV_NAME.
+	 */
+	boolean isNewConvName(int i) {
+		return isText(i, 0, NetworkConstants.MAX_CONV_NAME_LENGTH);
+	}
+
+	/**
+	 * Returns whether field i matches NetworkConstants.MESSAGE.
+	 */
+	boolean isMessage(int i) {
+		return isText(i, 1, NetworkConstants.MAX_MESSAGE_LENGTH);
+	}
+
+	/**
+	 * Returns whether field i matches NetworkConstants.IM_ID: one to
+	 * MAX_IM_ID_DIGITS ASCII digits.
+	 */
+	boolean isImId(int i) {
+		return isDigits(i, NetworkConstants.MAX_IM_ID_DIGITS);
+	}
+
+	/**
+	 * Returns whether field i matches NetworkConstants.SEQUENCE: one to
+	 * MAX_SEQUENCE_DIGITS ASCII digits.
+	 */
+	boolean isSequence(int i) {
+		return isDigits(i, NetworkConstants.MAX_SEQUENCE_DIGITS);
+	}
+
+	/**
+	 * Returns whether field i is one to max ASCII digits.
+	 */
+	private boolean isDigits(int i, int max) {
+		int length = ends[i] - starts[i];
+		if(length < 1 || length > max)
+			return false;
+		for(int j = starts[i]; j < ends[i]; ++j) {
+			char c = line.charAt(j);
+			if(c < '0' || c > '9')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the value of field i, which must satisfy isImId(i).  Since an ID has
+	 * at most nine digits, it always fits in an int.
+	 *
+	 * @param i The index of the field.
+	 * @return The decimal value of the field.
+	 */
+	int getImId(int i) {
+		return (int) getSequence(i);
+	}
+
+	/**
+	 * Returns the value of field i, which must satisfy isSequence(i).  Since a
+	 * sequence number has at most eighteen digits, it always fits in a long.
+	 *
+	 * @param i The index of the field.
+	 * @return The decimal value of the field.
+	 */
+	long getSequence(int i) {
+		long value = 0;
+		for(int j = starts[i]; j < ends[i]; ++j)
+			value = 10 * value + (line.charAt(j) - '0');
+		return value;
+	}
+
+	/**
+	 * Returns field i as a String.
+	 *
+	 * @param i The index of the field, less than getFieldCount() and MAX_FIELDS.
+	 * @return The text of field i.
+	 */
+	String getField(int i) {
+		return line.substring(starts[i], ends[i]);
+	}
+}
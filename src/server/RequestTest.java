@@ -0,0 +1,121 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import network.NetworkConstants;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for Request, checking that it splits and validates request lines
+ * exactly as String.split and String.matches with the expressions in
+ * NetworkConstants do.
+ *
+ * @category no_didit
+ */
+public class RequestTest {
+
+	/**
+	 * Returns a String of n copies of s.
+	 */
+	private static String repeat(String s, int n) {
+		StringBuilder b = new StringBuilder();
+		for(int i = 0; i < n; ++i)
+			b.append(s);
+		return b.toString();
+	}
+
+	/**
+	 * Asserts that r, having parsed line, agrees with split and matches on every
+	 * field.
+	 */
+	private static void assertAgrees(Request r, String line) {
+		r.parse(line);
+		String[] args = line.split("\t", -1);
+		assertEquals(args.length, r.getFieldCount());
+		for(int i = 0; i < Math.min(args.length, Request.MAX_FIELDS); ++i) {
+			assertEquals(args[i], r.getField(i));
+			assertEquals(args[i].matches(NetworkConstants.USERNAME), r.isUsername(i));
+			assertEquals(args[i].matches(NetworkConstants.NEW_USERNAME), r.isNewUsername(i));
+			assertEquals(args[i].matches(NetworkConstants.CONV_NAME), r.isConvName(i));
+			assertEquals(args[i].matches(NetworkConstants.NEW_CONV_NAME), r.isNewConvName(i));
+			assertEquals(args[i].matches(NetworkConstants.MESSAGE), r.isMessage(i));
+			assertEquals(args[i].matches(NetworkConstants.IM_ID), r.isImId(i));
+			if(r.isImId(i))
+				assertEquals(Integer.parseInt(args[i]), r.getImId(i));
+			assertEquals(args[i].matches(NetworkConstants.SEQUENCE), r.isSequence(i));
+			if(r.isSequence(i))
+				assertEquals(Long.parseLong(args[i]), r.getSequence(i));
+		}
+		assertEquals(args[0].equals(NetworkConstants.IM), r.isCommand(NetworkConstants.IM));
+		assertEquals(args[0].equals(NetworkConstants.DISCONNECT_NO_TAB),
+				r.isCommand(NetworkConstants.DISCONNECT_NO_TAB));
+	}
+
+	/**
+	 * Expect well-formed requests to be split into their fields.
+	 */
+	@Test public void wellFormedTest() {
+		Request r = new Request();
+		r.parse(NetworkConstants.IM + "\tconv\t42\thello world");
+		assertEquals(4, r.getFieldCount());
+		assertTrue(r.isCommand(NetworkConstants.IM));
+		assertFalse(r.isCommand(NetworkConstants.NEW_CONV));
+		assertTrue(r.isConvName(1));
+		assertTrue(r.isImId(2));
+		assertEquals(42, r.getImId(2));
+		assertTrue(r.isMessage(3));
+		assertEquals("hello world", r.getField(3));
+	}
+
+	/**
+	 * Expect empty fields, trailing tabs, and empty lines to be counted as split
+	 * counts them.
+	 */
+	@Test public void emptyFieldsTest() {
+		Request r = new Request();
+		String[] lines = { "", "\t", "1\t", "1\t\t", "\t\t\t\t\t\t", NetworkConstants.DISCONNECT,
+				NetworkConstants.DISCONNECT_NO_TAB, "66", "1\tconv\t\tm" };
+		for(String line : lines)
+			assertAgrees(r, line);
+	}
+
+	/**
+	 * Expect length limits to count code points, as the regular expressions do,
+	 * so that a surrogate pair counts once and a lone surrogate counts once.
+	 */
+	@Test public void lengthLimitsTest() {
+		Request r = new Request();
+		String pair = "\ud83d\ude00";
+		String[] fields = { "", "a", repeat("a", 256), repeat("a", 257), repeat("a", 512),
+				repeat("a", 513), repeat(pair, 256), repeat(pair, 257), repeat(pair, 512),
+				repeat(pair, 513), "\ud83d", "\ude00", "\ude00\ud83d", "\ud83d\ud83d\ude00",
+				repeat("\ud83d", 257), "0", "123456789", "1234567890", "999999999999999999",
+				"1000000000000000000", "12a", "-1", "\u0661",
+				"a\nb", "\n", "a\rb", " " };
+		for(String f : fields) {
+			assertAgrees(r, "1\t" + f);
+			assertAgrees(r, "1\t" + f + "\t" + f + "\t" + f);
+		}
+	}
+
+	/**
+	 * Expect agreement with split and matches on many random lines built from
+	 * characters that matter to the grammar.
+	 */
+	@Test public void randomLinesTest() {
+		Request r = new Request();
+		Random random = new Random(8);
+		String[] pieces = { "\t", "\n", "\r", "0", "1", "9", "a", " ", "\ud83d", "\ude00",
+				"\ud83d\ude00", "\u00e9", repeat("x", 100), repeat("7", 5) };
+		for(int n = 0; n < 5000; ++n) {
+			StringBuilder b = new StringBuilder();
+			int length = random.nextInt(20);
+			for(int i = 0; i < length; ++i)
+				b.append(pieces[random.nextInt(pieces.length)]);
+			assertAgrees(r, b.toString());
+		}
+	}
+}
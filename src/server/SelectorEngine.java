@@ -0,0 +1,277 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SelectorEngine services the client connections of an IMServer running in
+ * ConnectionMode.SELECTOR.  Rather than a thread per client, it keeps a small
+ * pool of event loops, each of which owns a Selector and multiplexes the
+ * non-blocking SocketChannels assigned to it.  Each loop reads and frames
+ * request lines, and hands them to a pool of request workers, which pass each
+ * connection's requests to the corresponding User one at a time, in order, and
+ * the User dispatches them to the IMServer exactly as in THREAD_PER_USER mode.
+ * The loops themselves only wait for sockets to be ready and move bytes, so a
+ * request that fans out to a large conversation, or waits on the disk, stalls
+ * no other connection.  Instances of SelectorEngine have the following instance
+ * variables:
+ *
+ *  - server is the IMServer whose operations requests are dispatched to.
+ *  - serverChannel is the (blocking) channel on which connections are accepted.
+ *  - loops is the array of EventLoops; accepted connections are assigned to them
+ *    round-robin.  It is non-empty.
+ *  - workers is the pool of threads on which requests are handled.
+ *  - closed is true once close() has been called.
+ */
+class SelectorEngine {
+
+	private final IMServer server;
+	private final ServerSocketChannel serverChannel;
+	private final EventLoop[] loops;
+	private final ExecutorService workers;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a SelectorEngine for server that accepts connections on serverChannel
+	 * and spreads them over nLoops event loops, whose requests are handled on
+	 * nWorkers threads.  The loops are started immediately.
+	 *
+	 * @param server The server to dispatch requests to.
+	 * @param serverChannel A bound channel on which to accept connections.
+	 * @param nLoops The number of event loops, at least 1.
+	 * @param nWorkers The number of threads handling requests, at least 1.
+	 * @throws IOException If a Selector cannot be opened.
+	 */
+	SelectorEngine(IMServer server, ServerSocketChannel serverChannel, int nLoops, int nWorkers)
+			throws IOException {
+		this.server = server;
+		this.serverChannel = serverChannel;
+		final AtomicInteger workerCount = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(nWorkers, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "guichat-request-" + workerCount.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.loops = new EventLoop[nLoops];
+		for(int i = 0; i < nLoops; ++i) {
+			loops[i] = new EventLoop(i);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * Accepts connections on the calling thread until this.serverChannel is closed,
+	 * assigning each one to an event loop.
+	 */
+	void acceptLoop() {
+		int next = 0;
+		while(!closed) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch(IOException e) {
+				if(!serverChannel.isOpen())
+					return;
+				continue;
+			}
+			loops[next].register(channel);
+			next = (next + 1) % loops.length;
+		}
+	}
+
+	/**
+	 * Stops every event loop, closing all of their connections, and the
+	 * request workers once they have handled what they were given.
+	 */
+	void close() {
+		closed = true;
+		for(EventLoop loop : loops)
+			loop.selector.wakeup();
+		workers.shutdown();
+	}
+
+	/**
+	 * An EventLoop is a thread that owns a Selector and services every
+	 * ChannelConnection registered with it.  Work submitted from other threads
+	 * (registrations and write requests) is queued in tasks and run by the loop
+	 * between selects.  Work the loop defers for itself (delayed flushes) is kept
+	 * in timers, ordered by when it is due, and only the loop's thread touches it.
+	 */
+	final class EventLoop extends Thread {
+
+		private final Selector selector;
+		private final Queue<Runnable> tasks;
+		private final PriorityQueue<Timer> timers;
+		private long timerSequence;
+
+		private EventLoop(int index) throws IOException {
+			super("guichat-selector-" + index);
+			setDaemon(true);
+			selector = Selector.open();
+			tasks = new ConcurrentLinkedQueue<Runnable>();
+			timers = new PriorityQueue<Timer>();
+		}
+
+		/**
+		 * Runs task on this loop's thread once delayNanos nanoseconds have passed.
+		 * Must be called on this loop's thread.
+		 *
+		 * @param task The task to run, non-null.
+		 * @param delayNanos How long to wait before running task.
+		 */
+		void schedule(Runnable task, long delayNanos) {
+			timers.add(new Timer(System.nanoTime() + delayNanos, timerSequence++, task));
+		}
+
+		/**
+		 * Returns how long the next select may block: until the earliest timer is
+		 * due, or indefinitely (0) if there are no timers.
+		 *
+		 * @return A timeout for Selector.select, or -1 if a timer is already due.
+		 */
+		private long selectTimeout() {
+			Timer next = timers.peek();
+			if(next == null)
+				return 0;
+			long millis = TimeUnit.NANOSECONDS.toMillis(next.due - System.nanoTime() + 999999);
+			return millis > 0 ? millis : -1;
+		}
+
+		/**
+		 * Runs every timer that is due.
+		 */
+		private void runTimers() {
+			long now = System.nanoTime();
+			while(!timers.isEmpty() && timers.peek().due - now <= 0)
+				runTask(timers.poll().task);
+		}
+
+		/**
+		 * Runs task, ignoring the failure of a task whose connection was closed
+		 * from another thread.
+		 *
+		 * @param task The task to run.
+		 */
+		private void runTask(Runnable task) {
+			try {
+				task.run();
+			} catch(CancelledKeyException e) {
+				// The task's connection was closed from another thread.
+			}
+		}
+
+		/**
+		 * Runs task on this loop's thread before its next select.  The task is
+		 * queued even when called from that thread, so that it never runs in the
+		 * middle of a request (a failed write closing a connection from inside a
+		 * Conversation's fan-out, say).
+		 *
+		 * @param task The task to run, non-null.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Creates a User for a newly accepted channel and starts reading from it
+		 * on this loop.
+		 *
+		 * @param channel A connected SocketChannel.
+		 */
+		private void register(final SocketChannel channel) {
+			final ChannelConnection conn = new ChannelConnection(channel, this, workers, server.getConfig(),
+					server.getStats());
+			conn.setUser(new User(server, conn));
+			execute(new Runnable() {
+				public void run() {
+					try {
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true); // Output is already coalesced.
+						conn.setKey(channel.register(selector, SelectionKey.OP_READ, conn));
+					} catch(IOException e) {
+						conn.close();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(!closed) {
+					long timeout = selectTimeout();
+					if(timeout < 0)
+						selector.selectNow();
+					else
+						selector.select(timeout);
+					for(Runnable task = tasks.poll(); task != null; task = tasks.poll())
+						runTask(task);
+					runTimers();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						ChannelConnection conn = (ChannelConnection) key.attachment();
+						try {
+							if(key.isValid() && key.isReadable())
+								conn.readReady();
+							if(key.isValid() && key.isWritable())
+								conn.writeReady();
+						} catch(CancelledKeyException e) {
+							conn.close(); // Closed from another thread.
+						}
+					}
+				}
+			} catch(IOException e) {
+			} catch(ClosedSelectorException e) {
+			} finally {
+				for(Object key : selector.keys().toArray())
+					((ChannelConnection) ((SelectionKey) key).attachment()).close();
+				try { selector.close(); }
+				catch(IOException ee) {}
+			}
+		}
+	}
+
+	/**
+	 * A task deferred by an EventLoop until the time due (in System.nanoTime
+	 * terms).  Timers are ordered by due, then by sequence, the order in which
+	 * they were scheduled.
+	 */
+	private static final class Timer implements Comparable<Timer> {
+
+		final long due;
+		final long sequence;
+		final Runnable task;
+
+		Timer(long due, long sequence, Runnable task) {
+			this.due = due;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		public int compareTo(Timer other) {
+			long d = due - other.due;
+			if(d != 0)
+				return d < 0 ? -1 : 1;
+			return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+		}
+	}
+}
@@ -0,0 +1,948 @@
+package server;
+
+import java.util.Properties;
+
+/**
+ * Tunable settings for an IMServer.  A ServerConfig is read when the server is
+ * constructed and should not be modified afterwards.  Instances of ServerConfig
+ * have the following instance variables:
+ *
+ *  - connectionMode is the ConnectionMode the server uses to service clients.
+ *    It is non-null.
+ *  - selectorThreads is the number of event loops used in SELECTOR mode.  It is
+ *    at least 1, and defaults to the number of available processors.
+ *  - requestThreads is the number of worker threads that handle the requests
+ *    the event loops read in SELECTOR mode, so that a request that waits on
+ *    the disk or on a full outbound queue holds up no loop.  It is at least 1,
+ *    and defaults to twice the number of available processors.
+ *  - acceptBacklog is the length of the queue of connections the operating system
+ *    holds for the server before they are accepted.  It is at least 1.  It defaults
+ *    to 1024 rather than Java's 50, so that a burst of reconnecting clients is not
+ *    met with dropped SYNs and one-second retransmits.
+ *  - outboundQueueCapacity is the number of messages each User may have waiting to
+ *    be written to its client (see OutboundQueue).  It is at least 1.
+ *  - overflowPolicy is the OverflowPolicy applied when a User's queue is full.  It
+ *    is non-null, and defaults to OverflowPolicy.DISCONNECT.
+ *  - overflowBlockMillis is how long a sender waits for room under
+ *    OverflowPolicy.BLOCK.  It is non-negative.
+ *  - flushThresholdBytes is how much output a connection buffers before writing it
+ *    to the socket, even if more is queued.  It is at least 1; a threshold of 1
+ *    writes every message by itself, as the server did before output was buffered.
+ *  - flushDelayMillis bounds how long buffered output may wait for more messages
+ *    once a connection's outbound queue has run empty.  If it is 0 (the default),
+ *    output is written as soon as the queue is empty, which adds no latency but
+ *    only coalesces messages that were queued together.
+ *  - presenceWindowMillis is how long the server collects logins and logouts
+ *    before telling other users about them, all at once, in one PRESENCE message
+ *    per user (see PresenceCoalescer).  If it is 0 (the default), every login and
+ *    logout is sent as its own CONNECTED or DISCONNECTED message right away, as
+ *    clients that predate PRESENCE expect.
+ *  - scopedPresence is whether each user hears only of the presence of users it
+ *    shares a conversation with or has subscribed to (see PresenceIndex), rather
+ *    than of every user on the server.  It defaults to false.
+ *  - usersPageSize is the most names the server puts in one page of the users
+ *    list it sends to clients that ask for it in pages.  It is at least 1.
+ *  - messageLogDirectory is the directory in which the server keeps a
+ *    MessageLog of every IM it relays, or null (the default) to keep none.
+ *  - messageLogSegmentBytes is the size of each segment file of the MessageLog.
+ *    It is at least 64 KiB, and defaults to 16 MiB.
+ *  - messageLogSyncMillis is how often the MessageLog forces what has been
+ *    appended to it to the disk.  It is at least 1, and defaults to 20.
+ *  - historyChunkSize is the most IMs the server sends at a time to a client
+ *    replaying a conversation's history from the MessageLog; the client asks
+ *    for each chunk after the first.  It is at least 1, and defaults to 100.
+ *  - recentMessageBytes is the most bytes of IMs all Conversations together
+ *    keep in memory for replay (see MessageCache), or 0 to keep none.  It
+ *    defaults to 32 MiB.
+ *  - recentMessagesPerConversation is the most IMs each Conversation keeps in
+ *    memory for replay.  It is at least 1, and defaults to 256.
+ *  - resumeGraceMillis is how long the server keeps the session of a client
+ *    that asked to be able to resume it after its connection drops (see
+ *    User.resume), or 0 to keep none.  It defaults to 30 seconds.
+ *  - resumeBacklogFrames is the most messages the server holds for a client
+ *    whose session is suspended; a session that misses more ends at once.  It
+ *    is at least 1, and defaults to 1024.
+ *  - mailboxDirectory is the directory in which the server keeps a Mailbox for
+ *    each user who leaves while in conversations, holding the IMs sent to them
+ *    until the user connects again (see MailboxStore), or null (the default)
+ *    to keep none, in which case users leave their conversations for good.
+ *  - mailboxMessages is the most IMs each Mailbox holds; the oldest are
+ *    dropped to make room.  It is at least 1, and defaults to 1000.
+ *  - mailboxMaxAgeMillis is how long a user who has left is held in its
+ *    conversations, and how old a held IM may be and still be delivered.  It
+ *    is at least 1, and defaults to one day.
+ *  - dedupWindow is how many of the latest IM IDs the server remembers each
+ *    client relaying to each conversation, so that an IM sent again is not
+ *    relayed twice (see MessageIdWindow), or 0 to remember none.  It is
+ *    rounded up to a multiple of 64, and defaults to 128.
+ *  - membershipWindowMillis is how long each Conversation collects joins and
+ *    leaves before telling its members about them, all at once, in one
+ *    MEMBERSHIP message per member (see Conversation.flushMembership).  If it
+ *    is 0 (the default), every join and leave is sent as its own
+ *    ADDED_TO_CONV or REMOVED_FROM_CONV message right away.
+ *  - membersPageSize is the most names the server puts in one page of a
+ *    conversation's members.  A client that asks for the users list in pages
+ *    and enters a conversation with more members than this is sent them in
+ *    pages rather than in its ENTERED_CONV message.  It is at least 1, and
+ *    defaults to 1000.
+ *  - membershipChanges is how many of its latest joins and leaves each
+ *    Conversation remembers, so that a client asking for the participants
+ *    that changed since a version it was told is sent only those (see
+ *    Conversation.retrieveParticipantsSince).  A client whose version is
+ *    older is sent every participant, in pages.  It is non-negative, and
+ *    defaults to 256.
+ *  - unreadSummaryMillis is how long after the first IM withheld from a
+ *    member at SubscriptionLevel.COUNTS the member is sent the number
+ *    withheld, at most once per period however many arrive (see
+ *    UnreadSummarizer).  It is at least 1, and defaults to 2000.
+ *  - fanoutThreads is how many worker threads send the IMs of broadcast
+ *    channels and large conversations, each to its own shard of the
+ *    recipients (see FanoutPool).  It is at least 1, and defaults to the
+ *    number of processors.
+ *  - fanoutThreshold is the most members a conversation may have for its IMs
+ *    to be sent on the sender's own thread; the IMs of larger ones are sent
+ *    on the fan-out threads, so that one IM to a large conversation does not
+ *    hold its sender's thread for the whole delivery.  It is non-negative,
+ *    and defaults to 1000.
+ *
+ * Every setting can also be given as a system property (see fromProperties),
+ * e.g. -Dguichat.server.connectionMode=SELECTOR.
+ */
+public class ServerConfig {
+
+	static final String PROPERTY_PREFIX = "guichat.server.";
+
+	private ConnectionMode connectionMode;
+	private int selectorThreads;
+	private int requestThreads;
+	private int acceptBacklog;
+	private int outboundQueueCapacity;
+	private OverflowPolicy overflowPolicy;
+	private long overflowBlockMillis;
+	private int flushThresholdBytes;
+	private long flushDelayMillis;
+	private long presenceWindowMillis;
+	private boolean scopedPresence;
+	private int usersPageSize;
+	private String messageLogDirectory;
+	private int messageLogSegmentBytes;
+	private long messageLogSyncMillis;
+	private int historyChunkSize;
+	private long recentMessageBytes;
+	private int recentMessagesPerConversation;
+	private long resumeGraceMillis;
+	private int resumeBacklogFrames;
+	private String mailboxDirectory;
+	private int mailboxMessages;
+	private long mailboxMaxAgeMillis;
+	private int dedupWindow;
+	private long membershipWindowMillis;
+	private int membersPageSize;
+	private int membershipChanges;
+	private long unreadSummaryMillis;
+	private int fanoutThreads;
+	private int fanoutThreshold;
+
+	/**
+	 * Creates a ServerConfig holding the default settings.
+	 */
+	public ServerConfig() {
+		connectionMode = ConnectionMode.THREAD_PER_USER;
+		selectorThreads = Runtime.getRuntime().availableProcessors();
+		requestThreads = 2 * Runtime.getRuntime().availableProcessors();
+		acceptBacklog = 1024;
+		outboundQueueCapacity = 4096;
+		overflowPolicy = OverflowPolicy.DISCONNECT;
+		overflowBlockMillis = 1000;
+		flushThresholdBytes = 8192;
+		flushDelayMillis = 0;
+		presenceWindowMillis = 0;
+		scopedPresence = false;
+		usersPageSize = 1000;
+		messageLogDirectory = null;
+		messageLogSegmentBytes = 16 * 1024 * 1024;
+		messageLogSyncMillis = 20;
+		historyChunkSize = 100;
+		recentMessageBytes = 32 * 1024 * 1024;
+		recentMessagesPerConversation = 256;
+		resumeGraceMillis = 30000;
+		resumeBacklogFrames = 1024;
+		mailboxDirectory = null;
+		mailboxMessages = 1000;
+		mailboxMaxAgeMillis = 24 * 60 * 60 * 1000;
+		dedupWindow = 128;
+		membershipWindowMillis = 0;
+		membersPageSize = 1000;
+		membershipChanges = 256;
+		unreadSummaryMillis = 2000;
+		fanoutThreads = Runtime.getRuntime().availableProcessors();
+		fanoutThreshold = 1000;
+	}
+
+	/**
+	 * Creates a ServerConfig from the default settings, overridden by any
+	 * properties in props whose names are the setting names prefixed with
+	 * "guichat.server.".
+	 *
+	 * @param props The properties to read, non-null.
+	 * @return A new ServerConfig.
+	 * @throws IllegalArgumentException If a property has a malformed value.
+	 */
+	public static ServerConfig fromProperties(Properties props) {
+		ServerConfig config = new ServerConfig();
+		String value = props.getProperty(PROPERTY_PREFIX + "connectionMode");
+		if(value != null)
+			config.setConnectionMode(ConnectionMode.valueOf(value.trim().toUpperCase()));
+		value = props.getProperty(PROPERTY_PREFIX + "selectorThreads");
+		if(value != null)
+			config.setSelectorThreads(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "requestThreads");
+		if(value != null)
+			config.setRequestThreads(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "acceptBacklog");
+		if(value != null)
+			config.setAcceptBacklog(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "outboundQueueCapacity");
+		if(value != null)
+			config.setOutboundQueueCapacity(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "overflowPolicy");
+		if(value != null)
+			config.setOverflowPolicy(OverflowPolicy.valueOf(value.trim().toUpperCase()));
+		value = props.getProperty(PROPERTY_PREFIX + "overflowBlockMillis");
+		if(value != null)
+			config.setOverflowBlockMillis(Long.parseLong(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "flushThresholdBytes");
+		if(value != null)
+			config.setFlushThresholdBytes(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "flushDelayMillis");
+		if(value != null)
+			config.setFlushDelayMillis(Long.parseLong(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "presenceWindowMillis");
+		if(value != null)
+			config.setPresenceWindowMillis(Long.parseLong(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "scopedPresence");
+		if(value != null)
+			config.setScopedPresence(Boolean.parseBoolean(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "usersPageSize");
+		if(value != null)
+			config.setUsersPageSize(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "messageLogDirectory");
+		if(value != null)
+			config.setMessageLogDirectory(value.trim());
+		value = props.getProperty(PROPERTY_PREFIX + "messageLogSegmentBytes");
+		if(value != null)
+			config.setMessageLogSegmentBytes(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "messageLogSyncMillis");
+		if(value != null)
+			config.setMessageLogSyncMillis(Long.parseLong(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "historyChunkSize");
+		if(value != null)
+			config.setHistoryChunkSize(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "recentMessageBytes");
+		if(value != null)
+			config.setRecentMessageBytes(Long.parseLong(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "recentMessagesPerConversation");
+		if(value != null)
+			config.setRecentMessagesPerConversation(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "resumeGraceMillis");
+		if(value != null)
+			config.setResumeGraceMillis(Long.parseLong(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "resumeBacklogFrames");
+		if(value != null)
+			config.setResumeBacklogFrames(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "mailboxDirectory");
+		if(value != null)
+			config.setMailboxDirectory(value.trim());
+		value = props.getProperty(PROPERTY_PREFIX + "mailboxMessages");
+		if(value != null)
+			config.setMailboxMessages(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "mailboxMaxAgeMillis");
+		if(value != null)
+			config.setMailboxMaxAgeMillis(Long.parseLong(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "dedupWindow");
+		if(value != null)
+			config.setDedupWindow(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "membershipWindowMillis");
+		if(value != null)
+			config.setMembershipWindowMillis(Long.parseLong(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "membersPageSize");
+		if(value != null)
+			config.setMembersPageSize(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "membershipChanges");
+		if(value != null)
+			config.setMembershipChanges(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "unreadSummaryMillis");
+		if(value != null)
+			config.setUnreadSummaryMillis(Long.parseLong(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "fanoutThreads");
+		if(value != null)
+			config.setFanoutThreads(Integer.parseInt(value.trim()));
+		value = props.getProperty(PROPERTY_PREFIX + "fanoutThreshold");
+		if(value != null)
+			config.setFanoutThreshold(Integer.parseInt(value.trim()));
+		return config;
+	}
+
+	/**
+	 * Accessor method for this.connectionMode.
+	 *
+	 * @return this.connectionMode.
+	 */
+	public ConnectionMode getConnectionMode() {
+		return connectionMode;
+	}
+
+	/**
+	 * Sets this.connectionMode.
+	 *
+	 * @param mode The ConnectionMode to use, non-null.
+	 * @return this.
+	 */
+	public ServerConfig setConnectionMode(ConnectionMode mode) {
+		if(mode == null)
+			throw new IllegalArgumentException("connectionMode must be non-null");
+		connectionMode = mode;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.selectorThreads.
+	 *
+	 * @return this.selectorThreads.
+	 */
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	/**
+	 * Sets this.selectorThreads.
+	 *
+	 * @param n The number of event loops to use in SELECTOR mode, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setSelectorThreads(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("selectorThreads must be at least 1");
+		selectorThreads = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.requestThreads.
+	 *
+	 * @return this.requestThreads.
+	 */
+	public int getRequestThreads() {
+		return requestThreads;
+	}
+
+	/**
+	 * Sets this.requestThreads.
+	 *
+	 * @param n The number of threads handling requests in SELECTOR mode, at
+	 * 		  least 1.
+	 * @return this.
+	 */
+	public ServerConfig setRequestThreads(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("requestThreads must be at least 1");
+		requestThreads = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.acceptBacklog.
+	 *
+	 * @return this.acceptBacklog.
+	 */
+	public int getAcceptBacklog() {
+		return acceptBacklog;
+	}
+
+	/**
+	 * Sets this.acceptBacklog.
+	 *
+	 * @param n The maximum number of pending connections, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setAcceptBacklog(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("acceptBacklog must be at least 1");
+		acceptBacklog = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.outboundQueueCapacity.
+	 *
+	 * @return this.outboundQueueCapacity.
+	 */
+	public int getOutboundQueueCapacity() {
+		return outboundQueueCapacity;
+	}
+
+	/**
+	 * Sets this.outboundQueueCapacity.
+	 *
+	 * @param n The maximum number of messages queued per client, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setOutboundQueueCapacity(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("outboundQueueCapacity must be at least 1");
+		outboundQueueCapacity = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.overflowPolicy.
+	 *
+	 * @return this.overflowPolicy.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Sets this.overflowPolicy.
+	 *
+	 * @param policy The OverflowPolicy to use, non-null.
+	 * @return this.
+	 */
+	public ServerConfig setOverflowPolicy(OverflowPolicy policy) {
+		if(policy == null)
+			throw new IllegalArgumentException("overflowPolicy must be non-null");
+		overflowPolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.overflowBlockMillis.
+	 *
+	 * @return this.overflowBlockMillis.
+	 */
+	public long getOverflowBlockMillis() {
+		return overflowBlockMillis;
+	}
+
+	/**
+	 * Sets this.overflowBlockMillis.
+	 *
+	 * @param millis How long a sender may wait for room, non-negative.
+	 * @return this.
+	 */
+	public ServerConfig setOverflowBlockMillis(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("overflowBlockMillis must be non-negative");
+		overflowBlockMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.flushThresholdBytes.
+	 *
+	 * @return this.flushThresholdBytes.
+	 */
+	public int getFlushThresholdBytes() {
+		return flushThresholdBytes;
+	}
+
+	/**
+	 * Sets this.flushThresholdBytes.
+	 *
+	 * @param n The number of buffered bytes that forces a write, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setFlushThresholdBytes(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("flushThresholdBytes must be at least 1");
+		flushThresholdBytes = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.flushDelayMillis.
+	 *
+	 * @return this.flushDelayMillis.
+	 */
+	public long getFlushDelayMillis() {
+		return flushDelayMillis;
+	}
+
+	/**
+	 * Sets this.flushDelayMillis.
+	 *
+	 * @param millis How long idle output may wait for more, non-negative.
+	 * @return this.
+	 */
+	public ServerConfig setFlushDelayMillis(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("flushDelayMillis must be non-negative");
+		flushDelayMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.presenceWindowMillis.
+	 *
+	 * @return this.presenceWindowMillis.
+	 */
+	public long getPresenceWindowMillis() {
+		return presenceWindowMillis;
+	}
+
+	/**
+	 * Sets this.presenceWindowMillis.
+	 *
+	 * @param millis How long to collect presence changes before sending them,
+	 * 		  non-negative; 0 sends each change at once.
+	 * @return this.
+	 */
+	public ServerConfig setPresenceWindowMillis(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("presenceWindowMillis must be non-negative");
+		presenceWindowMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.scopedPresence.
+	 *
+	 * @return this.scopedPresence.
+	 */
+	public boolean isScopedPresence() {
+		return scopedPresence;
+	}
+
+	/**
+	 * Sets this.scopedPresence.
+	 *
+	 * @param scoped True to send each user only the presence of users it shares
+	 * 		  a conversation with or has subscribed to.
+	 * @return this.
+	 */
+	public ServerConfig setScopedPresence(boolean scoped) {
+		scopedPresence = scoped;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.usersPageSize.
+	 *
+	 * @return this.usersPageSize.
+	 */
+	public int getUsersPageSize() {
+		return usersPageSize;
+	}
+
+	/**
+	 * Sets this.usersPageSize.
+	 *
+	 * @param n The most names in one page of the users list, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setUsersPageSize(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("usersPageSize must be at least 1");
+		usersPageSize = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.messageLogDirectory.
+	 *
+	 * @return this.messageLogDirectory.
+	 */
+	public String getMessageLogDirectory() {
+		return messageLogDirectory;
+	}
+
+	/**
+	 * Sets this.messageLogDirectory.
+	 *
+	 * @param directory The directory to log IMs in, or null to log none.
+	 * @return this.
+	 */
+	public ServerConfig setMessageLogDirectory(String directory) {
+		messageLogDirectory = directory;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.messageLogSegmentBytes.
+	 *
+	 * @return this.messageLogSegmentBytes.
+	 */
+	public int getMessageLogSegmentBytes() {
+		return messageLogSegmentBytes;
+	}
+
+	/**
+	 * Sets this.messageLogSegmentBytes.
+	 *
+	 * @param n The size of each message log segment file, at least 64 KiB.
+	 * @return this.
+	 */
+	public ServerConfig setMessageLogSegmentBytes(int n) {
+		if(n < 64 * 1024)
+			throw new IllegalArgumentException("messageLogSegmentBytes must be at least 64 KiB");
+		messageLogSegmentBytes = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.messageLogSyncMillis.
+	 *
+	 * @return this.messageLogSyncMillis.
+	 */
+	public long getMessageLogSyncMillis() {
+		return messageLogSyncMillis;
+	}
+
+	/**
+	 * Sets this.messageLogSyncMillis.
+	 *
+	 * @param millis How often to force the message log to the disk, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setMessageLogSyncMillis(long millis) {
+		if(millis < 1)
+			throw new IllegalArgumentException("messageLogSyncMillis must be at least 1");
+		messageLogSyncMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.historyChunkSize.
+	 *
+	 * @return this.historyChunkSize.
+	 */
+	public int getHistoryChunkSize() {
+		return historyChunkSize;
+	}
+
+	/**
+	 * Sets this.historyChunkSize.
+	 *
+	 * @param n The most IMs in one chunk of a conversation's history, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setHistoryChunkSize(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("historyChunkSize must be at least 1");
+		historyChunkSize = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.recentMessageBytes.
+	 *
+	 * @return this.recentMessageBytes.
+	 */
+	public long getRecentMessageBytes() {
+		return recentMessageBytes;
+	}
+
+	/**
+	 * Sets this.recentMessageBytes.
+	 *
+	 * @param n The most bytes of recent IMs to keep in memory, or 0 for none.
+	 * @return this.
+	 */
+	public ServerConfig setRecentMessageBytes(long n) {
+		if(n < 0)
+			throw new IllegalArgumentException("recentMessageBytes must be non-negative");
+		recentMessageBytes = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.recentMessagesPerConversation.
+	 *
+	 * @return this.recentMessagesPerConversation.
+	 */
+	public int getRecentMessagesPerConversation() {
+		return recentMessagesPerConversation;
+	}
+
+	/**
+	 * Sets this.recentMessagesPerConversation.
+	 *
+	 * @param n The most IMs each Conversation keeps in memory, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setRecentMessagesPerConversation(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("recentMessagesPerConversation must be at least 1");
+		recentMessagesPerConversation = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.resumeGraceMillis.
+	 *
+	 * @return this.resumeGraceMillis.
+	 */
+	public long getResumeGraceMillis() {
+		return resumeGraceMillis;
+	}
+
+	/**
+	 * Sets this.resumeGraceMillis.
+	 *
+	 * @param millis How long to keep a dropped client's session, or 0 to keep none.
+	 * @return this.
+	 */
+	public ServerConfig setResumeGraceMillis(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("resumeGraceMillis must be non-negative");
+		resumeGraceMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.resumeBacklogFrames.
+	 *
+	 * @return this.resumeBacklogFrames.
+	 */
+	public int getResumeBacklogFrames() {
+		return resumeBacklogFrames;
+	}
+
+	/**
+	 * Sets this.resumeBacklogFrames.
+	 *
+	 * @param n The most messages to hold for a suspended session, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setResumeBacklogFrames(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("resumeBacklogFrames must be at least 1");
+		resumeBacklogFrames = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.mailboxDirectory.
+	 *
+	 * @return this.mailboxDirectory.
+	 */
+	public String getMailboxDirectory() {
+		return mailboxDirectory;
+	}
+
+	/**
+	 * Sets this.mailboxDirectory.
+	 *
+	 * @param directory The directory to keep Mailboxes in, or null to keep none.
+	 * @return this.
+	 */
+	public ServerConfig setMailboxDirectory(String directory) {
+		mailboxDirectory = directory;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.mailboxMessages.
+	 *
+	 * @return this.mailboxMessages.
+	 */
+	public int getMailboxMessages() {
+		return mailboxMessages;
+	}
+
+	/**
+	 * Sets this.mailboxMessages.
+	 *
+	 * @param n The most IMs each Mailbox holds, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setMailboxMessages(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("mailboxMessages must be at least 1");
+		mailboxMessages = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.mailboxMaxAgeMillis.
+	 *
+	 * @return this.mailboxMaxAgeMillis.
+	 */
+	public long getMailboxMaxAgeMillis() {
+		return mailboxMaxAgeMillis;
+	}
+
+	/**
+	 * Sets this.mailboxMaxAgeMillis.
+	 *
+	 * @param millis How long to hold a user who has left in its conversations, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setMailboxMaxAgeMillis(long millis) {
+		if(millis < 1)
+			throw new IllegalArgumentException("mailboxMaxAgeMillis must be at least 1");
+		mailboxMaxAgeMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.dedupWindow.
+	 *
+	 * @return this.dedupWindow.
+	 */
+	public int getDedupWindow() {
+		return dedupWindow;
+	}
+
+	/**
+	 * Sets this.dedupWindow.
+	 *
+	 * @param n How many IM IDs to remember per client and conversation, or 0 for none.
+	 * @return this.
+	 */
+	public ServerConfig setDedupWindow(int n) {
+		if(n < 0)
+			throw new IllegalArgumentException("dedupWindow must be non-negative");
+		dedupWindow = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.membershipWindowMillis.
+	 *
+	 * @return this.membershipWindowMillis.
+	 */
+	public long getMembershipWindowMillis() {
+		return membershipWindowMillis;
+	}
+
+	/**
+	 * Sets this.membershipWindowMillis.
+	 *
+	 * @param millis How long to collect joins and leaves before sending them,
+	 * 		  or 0 to send each right away.
+	 * @return this.
+	 */
+	public ServerConfig setMembershipWindowMillis(long millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("membershipWindowMillis must be non-negative");
+		membershipWindowMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.membersPageSize.
+	 *
+	 * @return this.membersPageSize.
+	 */
+	public int getMembersPageSize() {
+		return membersPageSize;
+	}
+
+	/**
+	 * Sets this.membersPageSize.
+	 *
+	 * @param n The most names per page of a conversation's members.
+	 * @return this.
+	 */
+	public ServerConfig setMembersPageSize(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("membersPageSize must be at least 1");
+		membersPageSize = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.membershipChanges.
+	 *
+	 * @return this.membershipChanges.
+	 */
+	public int getMembershipChanges() {
+		return membershipChanges;
+	}
+
+	/**
+	 * Sets this.membershipChanges.
+	 *
+	 * @param n How many joins and leaves each conversation remembers, or 0 for
+	 * 		  none.
+	 * @return this.
+	 */
+	public ServerConfig setMembershipChanges(int n) {
+		if(n < 0)
+			throw new IllegalArgumentException("membershipChanges must be non-negative");
+		membershipChanges = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.unreadSummaryMillis.
+	 *
+	 * @return this.unreadSummaryMillis.
+	 */
+	public long getUnreadSummaryMillis() {
+		return unreadSummaryMillis;
+	}
+
+	/**
+	 * Sets this.unreadSummaryMillis.
+	 *
+	 * @param millis How long to collect withheld IMs before sending their
+	 * 		  number, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setUnreadSummaryMillis(long millis) {
+		if(millis < 1)
+			throw new IllegalArgumentException("unreadSummaryMillis must be at least 1");
+		unreadSummaryMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.fanoutThreads.
+	 *
+	 * @return this.fanoutThreads.
+	 */
+	public int getFanoutThreads() {
+		return fanoutThreads;
+	}
+
+	/**
+	 * Sets this.fanoutThreads.
+	 *
+	 * @param n How many threads send the IMs of broadcast channels and large
+	 * 		  conversations, at least 1.
+	 * @return this.
+	 */
+	public ServerConfig setFanoutThreads(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("fanoutThreads must be at least 1");
+		fanoutThreads = n;
+		return this;
+	}
+
+	/**
+	 * Accessor method for this.fanoutThreshold.
+	 *
+	 * @return this.fanoutThreshold.
+	 */
+	public int getFanoutThreshold() {
+		return fanoutThreshold;
+	}
+
+	/**
+	 * Sets this.fanoutThreshold.
+	 *
+	 * @param n The most members a conversation may have for its IMs to be
+	 * 		  sent on the sender's thread, or 0 to send every IM on the fan-out
+	 * 		  threads.
+	 * @return this.
+	 */
+	public ServerConfig setFanoutThreshold(int n) {
+		if(n < 0)
+			throw new IllegalArgumentException("fanoutThreshold must be non-negative");
+		fanoutThreshold = n;
+		return this;
+	}
+}
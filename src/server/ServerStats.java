@@ -0,0 +1,326 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running counters describing the traffic an IMServer has written to its
+ * clients, how well it replays history from memory, and how many IMs it holds
+ * for users who are away.  Connections add to the counters once per flush rather than once per
+ * message, so that keeping them costs little even in busy rooms.  Instances of
+ * ServerStats have the following instance variables:
+ *
+ *  - messagesWritten is the number of protocol lines written to clients.
+ *  - bytesWritten is the number of bytes those lines took up on the wire.
+ *  - sizeFlushes is the number of writes made because a connection had buffered
+ *    at least ServerConfig.getFlushThresholdBytes() bytes.
+ *  - idleFlushes is the number of writes made because a connection's outbound
+ *    queue ran empty.
+ *  - delayFlushes is the number of writes made because buffered output had waited
+ *    ServerConfig.getFlushDelayMillis() for more to join it.
+ *  - recentHits is the number of chunks of history replayed from the IMs a
+ *    Conversation holds in memory (see MessageRing).
+ *  - recentMisses is the number of chunks of history that had to be read from
+ *    the MessageLog, or, with no log, that started after IMs no longer held.
+ *  - recentEvictions is the number of times the MessageCache emptied a
+ *    Conversation's recent IMs to stay within its budget.
+ *  - mailboxPosts is the number of IMs held in Mailboxes for users who were
+ *    away.
+ *  - mailboxDrops is the number of IMs held that were never delivered: dropped
+ *    to make room, too old by the time their users came back, or discarded
+ *    with Mailboxes kept too long.
+ *  - mailboxDeliveries is the number of IMs held that were delivered.
+ *  - mailboxFailures is the number of times a Mailbox's file could not be
+ *    written, read, or deleted.  The IMs a failed read was for stay held.
+ *  - retransmits is the number of IMs a client sent again, after they had
+ *    been relayed, that were acknowledged rather than relayed twice.
+ *  - logFailures is the number of IMs refused, and answered with an error
+ *    message, because they could not be appended to the MessageLog.
+ *  - historyFailures is the number of history replays abandoned, and answered
+ *    with an error or unread message, because the MessageLog could not be
+ *    read.
+ *
+ * The counters are only ever incremented, each independently of the others, so
+ * a reader may see one flush's messages counted before its bytes.
+ */
+public class ServerStats {
+
+	/**
+	 * The reasons a connection writes out the output it has buffered.
+	 */
+	enum FlushReason { SIZE, IDLE, DELAY }
+
+	private final AtomicLong messagesWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong sizeFlushes = new AtomicLong();
+	private final AtomicLong idleFlushes = new AtomicLong();
+	private final AtomicLong delayFlushes = new AtomicLong();
+	private final AtomicLong recentHits = new AtomicLong();
+	private final AtomicLong recentMisses = new AtomicLong();
+	private final AtomicLong recentEvictions = new AtomicLong();
+	private final AtomicLong mailboxPosts = new AtomicLong();
+	private final AtomicLong mailboxDrops = new AtomicLong();
+	private final AtomicLong mailboxDeliveries = new AtomicLong();
+	private final AtomicLong mailboxFailures = new AtomicLong();
+	private final AtomicLong retransmits = new AtomicLong();
+	private final AtomicLong logFailures = new AtomicLong();
+	private final AtomicLong historyFailures = new AtomicLong();
+
+	/**
+	 * Records that a connection has written messages lines, taking up bytes
+	 * bytes, in one write for the given reason.
+	 *
+	 * @param reason Why the write was made, non-null.
+	 * @param messages The number of complete lines in the write.
+	 * @param bytes The number of bytes in the write.
+	 */
+	void flushed(FlushReason reason, int messages, long bytes) {
+		messagesWritten.addAndGet(messages);
+		bytesWritten.addAndGet(bytes);
+		switch(reason) {
+		case SIZE:
+			sizeFlushes.incrementAndGet();
+			break;
+		case IDLE:
+			idleFlushes.incrementAndGet();
+			break;
+		case DELAY:
+			delayFlushes.incrementAndGet();
+			break;
+		}
+	}
+
+	/**
+	 * Records that a chunk of history was replayed from memory.
+	 */
+	void recentHit() {
+		recentHits.incrementAndGet();
+	}
+
+	/**
+	 * Records that a chunk of history could not be replayed from memory alone.
+	 */
+	void recentMiss() {
+		recentMisses.incrementAndGet();
+	}
+
+	/**
+	 * Records that a Conversation's recent IMs were evicted from memory.
+	 */
+	void recentEvicted() {
+		recentEvictions.incrementAndGet();
+	}
+
+	/**
+	 * Records that an IM was held in a Mailbox.
+	 */
+	void mailboxPosted() {
+		mailboxPosts.incrementAndGet();
+	}
+
+	/**
+	 * Records that n IMs held in Mailboxes will never be delivered.
+	 *
+	 * @param n The number of IMs.
+	 */
+	void mailboxDropped(int n) {
+		mailboxDrops.addAndGet(n);
+	}
+
+	/**
+	 * Records that n IMs held in a Mailbox were delivered.
+	 *
+	 * @param n The number of IMs.
+	 */
+	void mailboxDelivered(int n) {
+		mailboxDeliveries.addAndGet(n);
+	}
+
+	/**
+	 * Records that a Mailbox's file could not be written, read, or deleted.
+	 */
+	void mailboxFailed() {
+		mailboxFailures.incrementAndGet();
+	}
+
+	/**
+	 * Accessor method for this.messagesWritten.
+	 *
+	 * @return The number of protocol lines written to clients.
+	 */
+	public long getMessagesWritten() {
+		return messagesWritten.get();
+	}
+
+	/**
+	 * Accessor method for this.bytesWritten.
+	 *
+	 * @return The number of bytes written to clients.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * Accessor method for this.sizeFlushes.
+	 *
+	 * @return The number of writes triggered by the size threshold.
+	 */
+	public long getSizeFlushes() {
+		return sizeFlushes.get();
+	}
+
+	/**
+	 * Accessor method for this.idleFlushes.
+	 *
+	 * @return The number of writes triggered by an empty outbound queue.
+	 */
+	public long getIdleFlushes() {
+		return idleFlushes.get();
+	}
+
+	/**
+	 * Accessor method for this.delayFlushes.
+	 *
+	 * @return The number of writes triggered by the latency bound.
+	 */
+	public long getDelayFlushes() {
+		return delayFlushes.get();
+	}
+
+	/**
+	 * Returns the total number of writes made to clients.
+	 *
+	 * @return The sum of the size, idle, and delay flush counts.
+	 */
+	public long getFlushes() {
+		return getSizeFlushes() + getIdleFlushes() + getDelayFlushes();
+	}
+
+	/**
+	 * Accessor method for this.recentHits.
+	 *
+	 * @return The number of history chunks replayed from memory.
+	 */
+	public long getRecentHits() {
+		return recentHits.get();
+	}
+
+	/**
+	 * Accessor method for this.recentMisses.
+	 *
+	 * @return The number of history chunks not replayed from memory alone.
+	 */
+	public long getRecentMisses() {
+		return recentMisses.get();
+	}
+
+	/**
+	 * Accessor method for this.recentEvictions.
+	 *
+	 * @return The number of times a Conversation's recent IMs were evicted.
+	 */
+	public long getRecentEvictions() {
+		return recentEvictions.get();
+	}
+
+	/**
+	 * Records that an IM sent again was acknowledged rather than relayed.
+	 */
+	void retransmitSuppressed() {
+		retransmits.incrementAndGet();
+	}
+
+	/**
+	 * Records that an IM was refused because it could not be logged.
+	 */
+	void logFailed() {
+		logFailures.incrementAndGet();
+	}
+
+	/**
+	 * Records that a history replay was abandoned because the log could not
+	 * be read.
+	 */
+	void historyFailed() {
+		historyFailures.incrementAndGet();
+	}
+
+	/**
+	 * Accessor method for this.mailboxPosts.
+	 *
+	 * @return The number of IMs held for users who were away.
+	 */
+	public long getMailboxPosts() {
+		return mailboxPosts.get();
+	}
+
+	/**
+	 * Accessor method for this.mailboxDrops.
+	 *
+	 * @return The number of IMs held that will never be delivered.
+	 */
+	public long getMailboxDrops() {
+		return mailboxDrops.get();
+	}
+
+	/**
+	 * Accessor method for this.mailboxDeliveries.
+	 *
+	 * @return The number of IMs held that were delivered.
+	 */
+	public long getMailboxDeliveries() {
+		return mailboxDeliveries.get();
+	}
+
+	/**
+	 * Accessor method for this.mailboxFailures.
+	 *
+	 * @return The number of times a Mailbox's file could not be written, read,
+	 * 		   or deleted.
+	 */
+	public long getMailboxFailures() {
+		return mailboxFailures.get();
+	}
+
+	/**
+	 * Accessor method for this.retransmits.
+	 *
+	 * @return The number of IMs sent again that were not relayed twice.
+	 */
+	public long getRetransmits() {
+		return retransmits.get();
+	}
+
+	/**
+	 * Accessor method for this.logFailures.
+	 *
+	 * @return The number of IMs refused because they could not be logged.
+	 */
+	public long getLogFailures() {
+		return logFailures.get();
+	}
+
+	/**
+	 * Accessor method for this.historyFailures.
+	 *
+	 * @return The number of history replays abandoned because the log could
+	 * 		   not be read.
+	 */
+	public long getHistoryFailures() {
+		return historyFailures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "messages=" + getMessagesWritten() + " bytes=" + getBytesWritten()
+				+ " flushes=" + getFlushes() + " (size=" + getSizeFlushes()
+				+ " idle=" + getIdleFlushes() + " delay=" + getDelayFlushes() + ")"
+				+ " recent hits=" + getRecentHits() + " misses=" + getRecentMisses()
+				+ " evictions=" + getRecentEvictions()
+				+ " mailbox posts=" + getMailboxPosts() + " drops=" + getMailboxDrops()
+				+ " deliveries=" + getMailboxDeliveries() + " failures=" + getMailboxFailures()
+				+ " retransmits=" + getRetransmits()
+				+ " log failures=" + getLogFailures()
+				+ " history failures=" + getHistoryFailures();
+	}
+}
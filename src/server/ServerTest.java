@@ -1674,5 +1674,607 @@ public class ServerTest {
 				client2.close();
 		}
 	}
-	
+
+	/**
+	 * Expect logins and logouts to reach other clients in one presence message
+	 * per window when presence is coalesced.  A user who logs in and out within
+	 * the window is not mentioned to users connected before it, and a user who
+	 * logs in during the window is told the final state of everyone who changed.
+	 */
+	@Test(timeout=10000) public void coalescedPresenceTest() {
+		IMServer server = null;
+		TestClient[] clients = new TestClient[3];
+		int window = 500;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setPresenceWindowMillis(window));
+			new Thread(server).start();
+			for(int i = 0; i < clients.length; ++i)
+				clients[i] = new TestClient(NetworkConstants.DEFAULT_PORT);
+			clients[0].send(NetworkConstants.CONNECT + "\ta");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\ta", clients[0].readLine());
+			Thread.sleep(window + 300); // let a's own login go by
+
+			clients[1].send(NetworkConstants.CONNECT + "\tb");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\tb\ta", clients[1].readLine());
+			clients[1].send(NetworkConstants.DISCONNECT);
+			clients[2].send(NetworkConstants.CONNECT + "\tc");
+			assertTrue(clients[2].readLine().startsWith(NetworkConstants.INIT_USERS_LIST + "\tc\t"));
+
+			assertEquals(NetworkConstants.PRESENCE + "\t1\tc", clients[0].readLine());
+			assertEquals(NetworkConstants.PRESENCE + "\t1\tc\tb", clients[2].readLine());
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} catch(InterruptedException e) {
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(TestClient client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect a server that scopes presence to send each user an initial users
+	 * list of its own name only, to tell it of logins and logouts only of users
+	 * it has subscribed to, and of logouts of users it shares a conversation
+	 * with, and to answer each subscription with the user's current state.
+	 */
+	@Test(timeout=10000) public void scopedPresenceTest() {
+		IMServer server = null;
+		TestClient[] clients = new TestClient[3];
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setScopedPresence(true));
+			new Thread(server).start();
+			for(int i = 0; i < clients.length; ++i)
+				clients[i] = new TestClient(NetworkConstants.DEFAULT_PORT);
+			TestClient a = clients[0], b = clients[1], c = clients[2];
+			a.send(NetworkConstants.CONNECT + "\ta");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\ta", a.readLine());
+			b.send(NetworkConstants.CONNECT + "\tb");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\tb", b.readLine());
+			a.send(NetworkConstants.SUBSCRIBE_PRESENCE + "\tc");
+			assertEquals(NetworkConstants.PRESENCE + "\t0\tc", a.readLine());
+			a.send(NetworkConstants.SUBSCRIBE_PRESENCE + "\ta");
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.SUBSCRIBE_PRESENCE + "\ta", a.readLine());
+
+			c.send(NetworkConstants.CONNECT + "\tc");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\tc", c.readLine());
+			assertEquals(NetworkConstants.CONNECTED + "\tc", a.readLine());
+			b.send(NetworkConstants.TWO_WAY_CONV + "\tc");
+			assertTrue(b.readLine().startsWith(NetworkConstants.ENTERED_CONV + "\t"));
+			assertTrue(c.readLine().startsWith(NetworkConstants.ENTERED_CONV + "\t"));
+			c.send(NetworkConstants.DISCONNECT);
+			assertTrue(b.readLine().startsWith(NetworkConstants.REMOVED_FROM_CONV + "\tc\t"));
+			assertEquals(NetworkConstants.DISCONNECTED + "\tc", b.readLine());
+			assertEquals(NetworkConstants.DISCONNECTED + "\tc", a.readLine());
+
+			// Neither has heard of the other's login, so each subscription's answer comes next.
+			a.send(NetworkConstants.UNSUBSCRIBE_PRESENCE + "\tc");
+			a.send(NetworkConstants.SUBSCRIBE_PRESENCE + "\tb");
+			assertEquals(NetworkConstants.PRESENCE + "\t1\tb", a.readLine());
+			b.send(NetworkConstants.SUBSCRIBE_PRESENCE + "\ta");
+			assertEquals(NetworkConstants.PRESENCE + "\t1\ta", b.readLine());
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(TestClient client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect a server that both scopes and coalesces presence to send each
+	 * change in a window only to the users subscribed to it.
+	 */
+	@Test(timeout=10000) public void scopedCoalescedPresenceTest() {
+		IMServer server = null;
+		TestClient[] clients = new TestClient[3];
+		int window = 500;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setPresenceWindowMillis(window).setScopedPresence(true));
+			new Thread(server).start();
+			for(int i = 0; i < clients.length; ++i)
+				clients[i] = new TestClient(NetworkConstants.DEFAULT_PORT);
+			TestClient a = clients[0], b = clients[1], d = clients[2];
+			a.send(NetworkConstants.CONNECT + "\ta");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\ta", a.readLine());
+			a.send(NetworkConstants.SUBSCRIBE_PRESENCE + "\tb");
+			assertEquals(NetworkConstants.PRESENCE + "\t0\tb", a.readLine());
+			d.send(NetworkConstants.CONNECT + "\td");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\td", d.readLine());
+			Thread.sleep(window + 300); // let the logins go by
+
+			b.send(NetworkConstants.CONNECT + "\tb");
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\tb", b.readLine());
+			assertEquals(NetworkConstants.PRESENCE + "\t1\tb", a.readLine());
+			d.send(NetworkConstants.SUBSCRIBE_PRESENCE + "\ta");
+			assertEquals(NetworkConstants.PRESENCE + "\t1\ta", d.readLine());
+			Thread.sleep(window + 300); // the window with b's login ends
+			d.send(NetworkConstants.SUBSCRIBE_PRESENCE + "\tb");
+			assertEquals(NetworkConstants.PRESENCE + "\t1\tb", d.readLine());
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} catch(InterruptedException e) {
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(TestClient client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect a client that asks for the users list in pages to be sent its own
+	 * name, then pages of the other users in order of name, each on request
+	 * with the cursor of the one before; and connect messages with unknown or
+	 * repeated options to be refused.
+	 */
+	@Test(timeout=10000) public void pagedUsersListTest() {
+		IMServer server = null;
+		TestClient[] clients = new TestClient[5];
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setUsersPageSize(2));
+			new Thread(server).start();
+			for(int i = 0; i < clients.length; ++i)
+				clients[i] = new TestClient(NetworkConstants.DEFAULT_PORT);
+			String[] names = { "d", "b", "a", "c" };
+			for(int i = 0; i < names.length; ++i) {
+				clients[i].send(NetworkConstants.CONNECT + "\t" + names[i]);
+				assertTrue(clients[i].readLine().startsWith(NetworkConstants.INIT_USERS_LIST + "\t" + names[i]));
+			}
+			TestClient e = clients[4];
+			String[] bad = { "\tpages", "\t" + NetworkConstants.PAGED_USERS_LIST + "\t" + NetworkConstants.PAGED_USERS_LIST,
+					"\t" + NetworkConstants.PAGED_USERS_LIST + "\t" + NetworkConstants.BINARY_PROTOCOL };
+			for(String options : bad) {
+				e.send(NetworkConstants.CONNECT + "\tb" + options);
+				assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.CONNECT + "\tb" + options, e.readLine());
+			}
+
+			e.send(NetworkConstants.CONNECT + "\tbb\t" + NetworkConstants.PAGED_USERS_LIST);
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\tbb", e.readLine());
+			assertEquals(NetworkConstants.USERS_PAGE + "\t4\tb\ta\tb", e.readLine());
+			e.send(NetworkConstants.NEXT_USERS_PAGE + "\tb");
+			// bb, e's own name, is left out.
+			assertEquals(NetworkConstants.USERS_PAGE + "\t4\t\tc\td", e.readLine());
+			assertEquals(NetworkConstants.CONNECTED + "\tbb", clients[3].readLine());
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(TestClient client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect joins and leaves to reach a conversation's members in one
+	 * membership message per window when membership is coalesced.  A user who
+	 * joins and leaves within the window is not mentioned to members from
+	 * before it, and a user who enters during the window is told how things
+	 * stand for everyone who changed.
+	 */
+	@Test(timeout=10000) public void coalescedMembershipTest() {
+		IMServer server = null;
+		TestClient[] clients = new TestClient[4];
+		String[] names = { "a", "b", "c", "d" };
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setMembershipWindowMillis(500));
+			new Thread(server).start();
+			for(int i = 0; i < clients.length; ++i) {
+				clients[i] = new TestClient(NetworkConstants.DEFAULT_PORT);
+				clients[i].send(NetworkConstants.CONNECT + "\t" + names[i]);
+				clients[i].readLine();
+				for(int j = 0; j < i; ++j)
+					assertEquals(NetworkConstants.CONNECTED + "\t" + names[i], clients[j].readLine());
+			}
+			clients[0].send(NetworkConstants.NEW_CONV + "\troom");
+			assertEquals(NetworkConstants.ENTERED_CONV + "\troom\ta", clients[0].readLine());
+
+			clients[0].send(NetworkConstants.ADD_TO_CONV + "\tb\troom");
+			assertEquals(NetworkConstants.ENTERED_CONV + "\troom\ta\tb", clients[1].readLine());
+			clients[0].send(NetworkConstants.ADD_TO_CONV + "\tc\troom");
+			assertEquals(NetworkConstants.ENTERED_CONV + "\troom\ta\tb\tc", clients[2].readLine());
+			clients[2].send(NetworkConstants.EXIT_CONV + "\troom");
+			clients[3].send(NetworkConstants.ENTER_CONV + "\troom");
+			assertTrue(clients[3].readLine().startsWith(NetworkConstants.ENTERED_CONV + "\troom\ta\tb"));
+
+			assertEquals(NetworkConstants.MEMBERSHIP + "\troom\t2\tb\td", clients[0].readLine());
+			assertEquals(NetworkConstants.MEMBERSHIP + "\troom\t2\tb\td\tc", clients[1].readLine());
+			assertEquals(NetworkConstants.MEMBERSHIP + "\troom\t2\tb\td\tc", clients[3].readLine());
+			waitForNetworkMessage();
+			assertFalse(clients[2].ready());
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(TestClient client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect a client that asked for the users list in pages, entering a
+	 * conversation with more other members than fit in a page, to be sent an
+	 * entered conversation message naming only itself, then pages of the
+	 * other members in order of name, each on request with the cursor of the
+	 * one before; and a client that is not a member to be refused a page.
+	 */
+	@Test(timeout=10000) public void pagedMembersTest() {
+		IMServer server = null;
+		TestClient[] clients = new TestClient[5];
+		String[] names = { "d", "b", "a", "c" };
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setMembersPageSize(2));
+			new Thread(server).start();
+			for(int i = 0; i < names.length; ++i) {
+				clients[i] = new TestClient(NetworkConstants.DEFAULT_PORT);
+				clients[i].send(NetworkConstants.CONNECT + "\t" + names[i]);
+				clients[i].readLine();
+				if(i == 0)
+					clients[i].send(NetworkConstants.NEW_CONV + "\troom");
+				else
+					clients[i].send(NetworkConstants.ENTER_CONV + "\troom");
+				clients[i].readLine();
+			}
+			TestClient e = new TestClient(NetworkConstants.DEFAULT_PORT);
+			clients[4] = e;
+			e.send(NetworkConstants.CONNECT + "\te\t" + NetworkConstants.PAGED_USERS_LIST);
+			assertEquals(NetworkConstants.INIT_USERS_LIST + "\te", e.readLine());
+			e.readLine();
+			e.send(NetworkConstants.NEXT_MEMBERS_PAGE + "\troom\t");
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.NEXT_MEMBERS_PAGE + "\troom\t", e.readLine());
+			e.send(NetworkConstants.ENTER_CONV + "\troom");
+			assertEquals(NetworkConstants.ENTERED_CONV + "\troom\te", e.readLine());
+			assertEquals(NetworkConstants.MEMBERS_PAGE + "\troom\t4\tb\ta\tb", e.readLine());
+			e.send(NetworkConstants.NEXT_MEMBERS_PAGE + "\troom\tb");
+			// e, the client's own name, is left out.
+			assertEquals(NetworkConstants.MEMBERS_PAGE + "\troom\t4\t\tc\td", e.readLine());
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(TestClient client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect a member asking for the participants changed since a membership
+	 * version to be sent only how the users that changed stand now, and, if
+	 * the version is 0 or older than the conversation remembers, to be sent
+	 * every other participant in pages instead; and a client that is not a
+	 * member to be refused.
+	 */
+	@Test(timeout=10000) public void participantsDiffTest() {
+		IMServer server = null;
+		TestClient[] clients = new TestClient[4];
+		String[] names = { "a", "b", "c", "d" };
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setMembershipChanges(4));
+			new Thread(server).start();
+			for(int i = 0; i < clients.length; ++i) {
+				clients[i] = new TestClient(NetworkConstants.DEFAULT_PORT);
+				clients[i].send(NetworkConstants.CONNECT + "\t" + names[i]);
+				clients[i].readLine();
+				for(int j = 0; j < i; ++j)
+					clients[j].readLine();
+			}
+			TestClient a = clients[0];
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			for(int i = 1; i <= 2; ++i) {
+				clients[i].send(NetworkConstants.ENTER_CONV + "\troom");
+				clients[i].readLine();
+				a.readLine();
+			}
+
+			a.send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\troom\t0");
+			assertEquals(NetworkConstants.PARTICIPANTS_DIFF + "\troom\t0\t3\t0", a.readLine());
+			assertEquals(NetworkConstants.MEMBERS_PAGE + "\troom\t2\t\tb\tc", a.readLine());
+			a.send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\troom\t3");
+			assertEquals(NetworkConstants.PARTICIPANTS_DIFF + "\troom\t3\t3\t0", a.readLine());
+
+			clients[2].send(NetworkConstants.EXIT_CONV + "\troom");
+			assertEquals(NetworkConstants.REMOVED_FROM_CONV + "\tc\troom", a.readLine());
+			clients[3].send(NetworkConstants.ENTER_CONV + "\troom");
+			clients[3].readLine();
+			a.readLine();
+			clients[3].send(NetworkConstants.EXIT_CONV + "\troom");
+			a.readLine();
+			a.send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\troom\t3");
+			assertEquals(NetworkConstants.PARTICIPANTS_DIFF + "\troom\t3\t6\t0\tc", a.readLine());
+			a.send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\troom\t2");
+			// c joined after version 2, and has left again.
+			assertEquals(NetworkConstants.PARTICIPANTS_DIFF + "\troom\t2\t6\t0", a.readLine());
+			a.send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\troom\t1");
+			assertEquals(NetworkConstants.PARTICIPANTS_DIFF + "\troom\t0\t6\t0", a.readLine());
+			assertEquals(NetworkConstants.MEMBERS_PAGE + "\troom\t1\t\tb", a.readLine());
+
+			clients[2].send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\troom\t1");
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.RETRIEVE_PARTICIPANTS + "\troom\t1",
+					clients[2].readLine());
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(TestClient client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect a broadcast channel to take IMs from its publishers alone, to send
+	 * them to every member, to tell no one of its listeners coming and going,
+	 * and to name only its publishers as participants; and a listener made a
+	 * publisher to be announced as joining.
+	 */
+	@Test(timeout=10000) public void channelTest() {
+		IMServer server = null;
+		TestClient[] clients = new TestClient[3];
+		String[] names = { "a", "b", "c" };
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setFanoutThreads(2));
+			new Thread(server).start();
+			for(int i = 0; i < clients.length; ++i) {
+				clients[i] = new TestClient(NetworkConstants.DEFAULT_PORT);
+				clients[i].send(NetworkConstants.CONNECT + "\t" + names[i]);
+				clients[i].readLine();
+				for(int j = 0; j < i; ++j)
+					clients[j].readLine();
+			}
+			TestClient a = clients[0], b = clients[1], c = clients[2];
+			a.send(NetworkConstants.NEW_CHANNEL + "\tnews");
+			assertEquals(NetworkConstants.ENTERED_CONV + "\tnews\ta", a.readLine());
+			b.send(NetworkConstants.ENTER_CONV + "\tnews");
+			assertEquals(NetworkConstants.ENTERED_CONV + "\tnews\ta\tb", b.readLine());
+			c.send(NetworkConstants.ENTER_CONV + "\tnews");
+			assertEquals(NetworkConstants.ENTERED_CONV + "\tnews\ta\tc", c.readLine());
+			b.send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\tnews");
+			assertEquals(NetworkConstants.PARTICIPANTS + "\tnews\ta", b.readLine());
+
+			b.send(NetworkConstants.IM + "\tnews\t0\tme too");
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.IM + "\tnews\t0\tme too", b.readLine());
+			a.send(NetworkConstants.IM + "\tnews\t0\thello");
+			for(TestClient client : clients)
+				assertEquals(NetworkConstants.IM + "\ta\tnews\t0\thello", client.readLine());
+
+			b.send(NetworkConstants.ADD_PUBLISHER + "\tc\tnews");
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.ADD_PUBLISHER + "\tc\tnews", b.readLine());
+			a.send(NetworkConstants.ADD_PUBLISHER + "\tb\tnews");
+			assertEquals(NetworkConstants.ADDED_TO_CONV + "\tb\tnews", a.readLine());
+			assertEquals(NetworkConstants.ADDED_TO_CONV + "\tb\tnews", c.readLine());
+			b.send(NetworkConstants.IM + "\tnews\t1\tnow me");
+			for(TestClient client : clients)
+				assertEquals(NetworkConstants.IM + "\tb\tnews\t1\tnow me", client.readLine());
+
+			c.send(NetworkConstants.EXIT_CONV + "\tnews");
+			a.send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\tnews");
+			assertEquals(NetworkConstants.PARTICIPANTS + "\tnews\ta\tb", a.readLine());
+			b.send(NetworkConstants.EXIT_CONV + "\tnews");
+			assertEquals(NetworkConstants.REMOVED_FROM_CONV + "\tb\tnews", a.readLine());
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(TestClient client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect the IMs of a conversation larger than the fan-out threshold to
+	 * reach every member in each sender's order, and to go on doing so as the
+	 * conversation shrinks back under the threshold.
+	 */
+	@Test(timeout=10000) public void shardedFanoutTest() {
+		IMServer server = null;
+		TestClient[] clients = new TestClient[4];
+		String[] names = { "a", "b", "c", "d" };
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setFanoutThreads(3).setFanoutThreshold(2));
+			new Thread(server).start();
+			for(int i = 0; i < clients.length; ++i) {
+				clients[i] = new TestClient(NetworkConstants.DEFAULT_PORT);
+				clients[i].send(NetworkConstants.CONNECT + "\t" + names[i]);
+				clients[i].readLine();
+				for(int j = 0; j < i; ++j)
+					clients[j].readLine();
+			}
+			TestClient a = clients[0], b = clients[1], c = clients[2], d = clients[3];
+			a.send(NetworkConstants.NEW_CONV + "\tbig");
+			a.readLine();
+			for(int i = 1; i < clients.length; ++i) {
+				clients[i].send(NetworkConstants.ENTER_CONV + "\tbig");
+				clients[i].readLine();
+				for(int j = 0; j < i; ++j)
+					clients[j].readLine();
+			}
+
+			for(int i = 0; i < 50; ++i) {
+				a.send(NetworkConstants.IM + "\tbig\t" + i + "\ta" + i);
+				b.send(NetworkConstants.IM + "\tbig\t" + i + "\tb" + i);
+			}
+			for(TestClient client : clients) {
+				int nextA = 0, nextB = 0;
+				for(int i = 0; i < 100; ++i) {
+					String[] fields = client.readLine().split("\t");
+					if(fields[1].equals("a"))
+						assertEquals("a" + nextA++, fields[4]);
+					else
+						assertEquals("b" + nextB++, fields[4]);
+				}
+			}
+
+			b.send(NetworkConstants.EXIT_CONV + "\tbig");
+			for(int i = 50; i < 100; ++i) {
+				a.send(NetworkConstants.IM + "\tbig\t" + i + "\ta" + i);
+				if(i == 60)
+					c.send(NetworkConstants.EXIT_CONV + "\tbig");
+			}
+			for(TestClient client : new TestClient[] { a, d }) {
+				int next = 50;
+				while(next < 100) {
+					String line = client.readLine();
+					if(line.startsWith(NetworkConstants.IM + "\t"))
+						assertEquals(NetworkConstants.IM + "\ta\tbig\t" + next + "\ta" + next++, line);
+				}
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(TestClient client : clients) {
+				if(client != null)
+					client.close();
+			}
+		}
+	}
+
+	/**
+	 * Expect a client that asks for sequenced IMs to be sent each IM with its
+	 * conversation's sequence number and a timestamp that does not decrease,
+	 * while a client that did not is sent the same IMs as before; and options
+	 * out of order to be refused.
+	 */
+	@Test(timeout=10000) public void sequencedIMsTest() {
+		IMServer server = null;
+		TestClient a = null, b = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT);
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			String options = "\t" + NetworkConstants.SEQUENCED_IMS + "\t" + NetworkConstants.PAGED_USERS_LIST;
+			a.send(NetworkConstants.CONNECT + "\ta" + options);
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.CONNECT + "\ta" + options, a.readLine());
+			a.send(NetworkConstants.CONNECT + "\ta\t" + NetworkConstants.SEQUENCED_IMS);
+			a.readLine();
+			b.send(NetworkConstants.CONNECT + "\tb");
+			b.readLine();
+			a.readLine(); // CONNECTED b
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			b.send(NetworkConstants.ENTER_CONV + "\troom");
+			b.readLine();
+			a.readLine(); // ADDED_TO_CONV
+
+			long before = System.currentTimeMillis();
+			long last = 0;
+			for(int i = 1; i <= 3; ++i) {
+				b.send(NetworkConstants.IM + "\troom\t" + (10 + i) + "\thi " + i);
+				assertEquals(NetworkConstants.IM + "\tb\troom\t" + (10 + i) + "\thi " + i, b.readLine());
+				String[] fields = a.readLine().split("\t", -1);
+				assertEquals(7, fields.length);
+				assertEquals(NetworkConstants.IM, fields[0]);
+				assertEquals("b", fields[1]);
+				assertEquals("room", fields[2]);
+				assertEquals(String.valueOf(10 + i), fields[3]);
+				assertEquals(String.valueOf(i), fields[4]);
+				long timestamp = Long.parseLong(fields[5]);
+				assertTrue(timestamp >= last && timestamp >= before - 1000);
+				assertTrue(timestamp <= System.currentTimeMillis());
+				last = timestamp;
+				assertEquals("hi " + i, fields[6]);
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			if(server != null) {
+				try {
+					server.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if(a != null)
+				a.close();
+			if(b != null)
+				b.close();
+		}
+	}
 }
@@ -0,0 +1,231 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import network.NetworkConstants;
+
+import org.junit.Test;
+
+import test.TestClient;
+
+/**
+ * JUnit tests for resuming sessions: a client whose connection drops is held
+ * for a grace period, told nothing it missed is lost, and its peers told
+ * nothing of its absence, unless the grace period ends or it misses too much.
+ *
+ * @category no_didit
+ */
+public class SessionResumeTest {
+
+	private static final String TOKEN = "[0-9a-f]{32}";
+
+	/**
+	 * Starts a server with config, connects a resumably and b, and puts both
+	 * in conversation room.  Returns a's resume token.
+	 */
+	private static String setUp(IMServer server, TestClient a, TestClient b) throws IOException {
+		new Thread(server).start();
+		a.send(NetworkConstants.CONNECT + "\ta\t" + NetworkConstants.RESUMABLE);
+		assertEquals(NetworkConstants.INIT_USERS_LIST + "\ta", a.readLine());
+		String session = a.readLine();
+		assertTrue(session.matches(NetworkConstants.SESSION + "\t" + TOKEN));
+		b.send(NetworkConstants.CONNECT + "\tb");
+		b.readLine();
+		assertEquals(NetworkConstants.CONNECTED + "\tb", a.readLine());
+		a.send(NetworkConstants.NEW_CONV + "\troom");
+		a.readLine();
+		a.send(NetworkConstants.ADD_TO_CONV + "\tb\troom");
+		a.readLine();
+		b.readLine();
+		return session.substring(session.indexOf('\t') + 1);
+	}
+
+	/**
+	 * Reads lines from client until one equal to expected, failing if the
+	 * connection closes first.
+	 */
+	private static void readUntil(TestClient client, String expected) throws IOException {
+		String line;
+		do {
+			line = client.readLine();
+			assertNotNull(line);
+		} while(!line.equals(expected));
+	}
+
+	/**
+	 * Expect a client that drops and comes back within the grace period to be
+	 * sent what it missed, to carry on as before, and to be given a new token,
+	 * the old one no longer working; and its peers to be told nothing.
+	 */
+	@Test(timeout=10000) public void resumeTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null, b = null, a2 = null, a3 = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setResumeGraceMillis(5000));
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			String token = setUp(server, a, b);
+			a.close();
+			ServerTest.waitForNetworkMessage();
+			b.send(NetworkConstants.IM + "\troom\t1\thello");
+			assertEquals(NetworkConstants.IM + "\tb\troom\t1\thello", b.readLine());
+			ServerTest.waitForNetworkMessage();
+			assertFalse(b.ready());
+
+			a2 = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a2.send(NetworkConstants.RESUME + "\t" + token);
+			String resumed = a2.readLine();
+			assertTrue(resumed.matches(NetworkConstants.RESUMED + "\ta\t" + TOKEN));
+			assertFalse(resumed.endsWith(token));
+			assertEquals(NetworkConstants.IM + "\tb\troom\t1\thello", a2.readLine());
+			a2.send(NetworkConstants.IM + "\troom\t2\tback");
+			assertEquals(NetworkConstants.IM + "\ta\troom\t2\tback", a2.readLine());
+			assertEquals(NetworkConstants.IM + "\ta\troom\t2\tback", b.readLine());
+
+			a3 = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a3.send(NetworkConstants.RESUME + "\t" + token);
+			assertTrue(a3.readLine().startsWith(NetworkConstants.ERROR + "\t"));
+		} finally {
+			for(TestClient c : new TestClient[] { a, b, a2, a3 })
+				if(c != null)
+					c.close();
+			if(server != null)
+				server.close();
+		}
+	}
+
+	/**
+	 * Expect a session whose grace period ends to end as if the client had
+	 * disconnected, its token no longer working.
+	 */
+	@Test(timeout=10000) public void expiryTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null, b = null, a2 = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setResumeGraceMillis(300));
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			String token = setUp(server, a, b);
+			a.close();
+			readUntil(b, NetworkConstants.DISCONNECTED + "\ta");
+			a2 = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a2.send(NetworkConstants.RESUME + "\t" + token);
+			assertTrue(a2.readLine().startsWith(NetworkConstants.ERROR + "\t"));
+		} finally {
+			for(TestClient c : new TestClient[] { a, b, a2 })
+				if(c != null)
+					c.close();
+			if(server != null)
+				server.close();
+		}
+	}
+
+	/**
+	 * Expect a suspended session that misses more than the server holds to
+	 * end at once.
+	 */
+	@Test(timeout=10000) public void overflowTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null, b = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setResumeGraceMillis(60000)
+					.setResumeBacklogFrames(2));
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			setUp(server, a, b);
+			a.close();
+			ServerTest.waitForNetworkMessage();
+			for(int i = 1; i <= 3; ++i) {
+				b.send(NetworkConstants.IM + "\troom\t" + i + "\tm" + i);
+				b.readLine();
+			}
+			readUntil(b, NetworkConstants.DISCONNECTED + "\ta");
+		} finally {
+			for(TestClient c : new TestClient[] { a, b })
+				if(c != null)
+					c.close();
+			if(server != null)
+				server.close();
+		}
+	}
+
+	/**
+	 * Expect a client resuming a session whose old connection the server
+	 * still holds to take it over, the old connection being closed, and its
+	 * peers to be told nothing.
+	 */
+	@Test(timeout=10000) public void takeoverTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null, b = null, a2 = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setResumeGraceMillis(5000));
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			String token = setUp(server, a, b);
+			a2 = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a2.send(NetworkConstants.RESUME + "\t" + token);
+			assertTrue(a2.readLine().matches(NetworkConstants.RESUMED + "\ta\t" + TOKEN));
+			assertNull(a.readLine());
+			b.send(NetworkConstants.IM + "\troom\t1\thello");
+			assertEquals(NetworkConstants.IM + "\tb\troom\t1\thello", b.readLine());
+			assertEquals(NetworkConstants.IM + "\tb\troom\t1\thello", a2.readLine());
+			ServerTest.waitForNetworkMessage();
+			assertFalse(b.ready());
+		} finally {
+			for(TestClient c : new TestClient[] { a, b, a2 })
+				if(c != null)
+					c.close();
+			if(server != null)
+				server.close();
+		}
+	}
+
+	/**
+	 * Expect a client that asks to disconnect to leave at once, its session
+	 * with it.
+	 */
+	@Test(timeout=10000) public void disconnectTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null, b = null, a2 = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setResumeGraceMillis(60000));
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			String token = setUp(server, a, b);
+			a.send(NetworkConstants.DISCONNECT + "a");
+			readUntil(b, NetworkConstants.DISCONNECTED + "\ta");
+			a2 = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a2.send(NetworkConstants.RESUME + "\t" + token);
+			assertTrue(a2.readLine().startsWith(NetworkConstants.ERROR + "\t"));
+		} finally {
+			for(TestClient c : new TestClient[] { a, b, a2 })
+				if(c != null)
+					c.close();
+			if(server != null)
+				server.close();
+		}
+	}
+
+	/**
+	 * Expect a server that keeps no sessions to refuse to connect a client
+	 * asking for one.
+	 */
+	@Test(timeout=10000) public void notOfferedTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT, new ServerConfig().setResumeGraceMillis(0));
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta\t" + NetworkConstants.RESUMABLE);
+			assertTrue(a.readLine().startsWith(NetworkConstants.ERROR + "\t"));
+		} finally {
+			if(a != null)
+				a.close();
+			if(server != null)
+				server.close();
+		}
+	}
+}
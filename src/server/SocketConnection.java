@@ -0,0 +1,223 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import network.MessageReader;
+import network.NetworkConstants;
+import network.OverlongLineException;
+
+/**
+ * A Connection over a blocking Socket, used in ConnectionMode.THREAD_PER_USER
+ * and ConnectionMode.VIRTUAL_THREAD.  Messages sent to a SocketConnection are
+ * placed on its OutboundQueue and written to the socket by a writer thread of
+ * its own (a virtual thread in VIRTUAL_THREAD mode), so that no sender ever
+ * blocks on this client's socket.  The writer coalesces: it copies queued
+ * messages into a buffer, and writes the buffer to the socket only when it holds
+ * flushThresholdBytes, or when the queue has run empty (and, if flushDelayMillis
+ * is set, stayed empty that long), so that a burst of messages costs one write
+ * rather than one per message.
+ * Instances of SocketConnection have the following instance variables:
+ *
+ *  - socket is the socket over which the server communicates with the client.
+ *  - out is the socket's OutputStream.  Only the writer thread uses it.
+ *  - in is a MessageReader that reads requests from socket, as text lines or,
+ *    once the client has negotiated them, binary frames.  A line longer than
+ *    NetworkConstants.MAX_REQUEST_BYTES is cut to that length, and so refused
+ *    as invalid like any other bad line; a frame that long closes the
+ *    connection.
+ *  - queue holds buffers over the Frames waiting to be written to out, each in
+ *    the framing that was in use when it was sent.
+ *  - binary is true once useBinary has been called.
+ *  - buffer holds the bytes of Frames, buffer[0..buffered), that have been taken
+ *    from queue but not yet written to out; bufferedMessages is how many Frames
+ *    there are.  A Frame too large to fit in buffer is written through it a
+ *    buffer's length at a time instead.  Only the writer thread uses these.
+ *  - flushDelayNanos is flushDelayMillis from the server's ServerConfig.
+ *  - stats is the ServerStats to which writes to out are counted.
+ *  - closed is true once close() has been called.
+ */
+class SocketConnection implements Connection {
+
+	private final Socket socket;
+	private final OutputStream out;
+	private final MessageReader in;
+	private final OutboundQueue<ByteBuffer> queue;
+	private volatile boolean binary;
+	private final byte[] buffer;
+	private int buffered;
+	private int bufferedMessages;
+	private final long flushDelayNanos;
+	private final ServerStats stats;
+	private final AtomicBoolean closed;
+
+	/**
+	 * Creates a SocketConnection reading from and writing to socket, and starts
+	 * its writer thread.
+	 *
+	 * @param socket The socket on which there is a connection with the client.
+	 * @param config The settings for the outbound queue and writer thread, non-null.
+	 * @param stats The counters to which writes are added, non-null.
+	 * @throws IOException If the socket's streams cannot be opened.
+	 */
+	SocketConnection(Socket socket, ServerConfig config, ServerStats stats) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true); // Output is already coalesced; see writeLoop.
+		this.out = socket.getOutputStream();
+		this.in = new MessageReader(socket.getInputStream(), false, NetworkConstants.MAX_REQUEST_BYTES);
+		this.queue = new OutboundQueue<ByteBuffer>(config, null);
+		this.buffer = new byte[config.getFlushThresholdBytes()];
+		this.flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushDelayMillis());
+		this.stats = stats;
+		this.closed = new AtomicBoolean(false);
+		Runnable writer = new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		};
+		if(config.getConnectionMode() == ConnectionMode.VIRTUAL_THREAD)
+			VirtualThreads.start(writer);
+		else {
+			Thread t = new Thread(writer);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Reads the next request sent by the client, blocking until one arrives.
+	 *
+	 * @return The next request in its text form, or null if the client closed the
+	 * 		   connection.  A line too long to be a valid request is returned cut
+	 * 		   to its first NetworkConstants.MAX_REQUEST_BYTES.
+	 * @throws IOException If reading from this.socket fails, or a binary frame is
+	 * 		   malformed or too long.
+	 */
+	String readLine() throws IOException {
+		try {
+			return in.readMessage();
+		} catch(OverlongLineException e) {
+			return e.getLine();
+		}
+	}
+
+	/**
+	 * Queues frame to be written to the client.  Waits only if this.queue is full,
+	 * its policy is OverflowPolicy.BLOCK, and the calling thread may wait (see
+	 * NonBlocking).
+	 */
+	@Override
+	public void send(Frame frame) {
+		queue.offer(frame.buffer(binary), NonBlocking.mayWait());
+	}
+
+	/**
+	 * Called on the thread reading from this connection, which is the only one
+	 * that sends Frames while a request is being handled before the client has a
+	 * name, so Frames sent before this call stay text and Frames sent after it are
+	 * binary.
+	 */
+	@Override
+	public void useBinary() {
+		in.useBinary();
+		binary = true;
+	}
+
+	/**
+	 * Run by the writer thread: writes queued messages to this.out until the queue
+	 * is closed, coalescing as described above.  If the queue overflowed, or a
+	 * write fails, closes this connection, which in turn wakes the thread reading
+	 * from it.
+	 */
+	private void writeLoop() {
+		try {
+			long deadline = 0;
+			ByteBuffer f = queue.take();
+			while(f != null) {
+				if(buffered == 0)
+					deadline = System.nanoTime() + flushDelayNanos;
+				append(f);
+				f = queue.poll();
+				if(f == null && buffered > 0) {
+					if(flushDelayNanos > 0) {
+						f = queue.poll(deadline - System.nanoTime());
+						if(f == null)
+							flush(ServerStats.FlushReason.DELAY);
+					}
+					else
+						flush(ServerStats.FlushReason.IDLE);
+				}
+				if(f == null)
+					f = queue.take();
+			}
+		} catch(IOException e) {
+		} catch(InterruptedException e) {
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Copies f's bytes into this.buffer, first writing the buffer out if f does not
+	 * fit in what is left of it, and afterwards if it is full.  A Frame at least as
+	 * large as the whole buffer is written through it, a buffer's length at a time.
+	 *
+	 * @param f A buffer over the Frame to append.
+	 * @throws IOException If writing to this.out fails.
+	 */
+	private void append(ByteBuffer f) throws IOException {
+		int n = f.remaining();
+		if(n > buffer.length - buffered && buffered > 0)
+			flush(ServerStats.FlushReason.SIZE);
+		if(n >= buffer.length) {
+			while(f.hasRemaining()) {
+				int chunk = Math.min(f.remaining(), buffer.length);
+				f.get(buffer, 0, chunk);
+				out.write(buffer, 0, chunk);
+			}
+			out.flush();
+			stats.flushed(ServerStats.FlushReason.SIZE, 1, n);
+			return;
+		}
+		f.get(buffer, buffered, n);
+		buffered += n;
+		++bufferedMessages;
+		if(buffered == buffer.length)
+			flush(ServerStats.FlushReason.SIZE);
+	}
+
+	/**
+	 * Writes this.buffer to this.out, and counts the write in this.stats.
+	 *
+	 * @param reason Why the buffer is being written.
+	 * @throws IOException If writing to this.out fails.
+	 */
+	private void flush(ServerStats.FlushReason reason) throws IOException {
+		out.write(buffer, 0, buffered);
+		out.flush();
+		stats.flushed(reason, bufferedMessages, buffered);
+		buffered = 0;
+		bufferedMessages = 0;
+	}
+
+	/**
+	 * Closes this.queue, this.socket, this.in, and this.out.  The socket is closed
+	 * first, so that a thread blocked in readLine is released.  Only the first call has any effect.
+	 */
+	@Override
+	public void close() {
+		if(!closed.compareAndSet(false, true))
+			return;
+		queue.close();
+		try { socket.close(); }
+		catch(IOException ee) {}
+		try { in.close(); }
+		catch(IOException ee) {}
+		try { out.close(); }
+		catch(IOException ee) {}
+	}
+}
@@ -0,0 +1,143 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Subscription records the SubscriptionLevel at which one member of a
+ * Conversation is sent its IMs, and counts the IMs withheld from the member
+ * while the level is below FULL.  A Conversation keeps one for each member
+ * that has set a level (see Conversation.setLevel).
+ *
+ * Whether an IM is withheld is decided by its sequence number, not by when it
+ * is sent: a level set while the last IM numbered was n applies to the IMs
+ * numbered after n, so that an IM numbered before a member goes back to FULL,
+ * and sent after, is neither sent to it nor replayed to it twice.  Only the
+ * level before the latest is remembered, which is enough unless the level is
+ * set twice while a single IM is being sent.  Instances of Subscription have
+ * the following instance variables:
+ *
+ *  - user is the member.
+ *  - convName is the name of the conversation.
+ *  - state holds the level, the level before it, and the sequence number of
+ *    the first IM the level applies to.  It is replaced, never modified, so
+ *    that a sender reads all three at once without a lock.
+ *  - quietAfter is the sequence number of the last IM before the level last
+ *    went below FULL.  The IMs withheld since are those numbered after it.
+ *  - unread is the number of IMs withheld since the level last went below
+ *    FULL.
+ *  - latest is the sequence number of the latest IM withheld, or 0.
+ *  - summarizer is the UnreadSummarizer sending the member summaries at
+ *    COUNTS.
+ *  - dirty is true while this is waiting for summarizer to send the member a
+ *    summary.
+ *
+ * state and quietAfter are only changed while the Conversation's recordLock
+ * is held, so that no IM is numbered in between.
+ */
+final class Subscription {
+
+	private final User user;
+	private final String convName;
+	private final UnreadSummarizer summarizer;
+	private volatile State state = new State(SubscriptionLevel.FULL, SubscriptionLevel.FULL, 0);
+	private long quietAfter;
+	private final AtomicLong unread = new AtomicLong();
+	private final AtomicLong latest = new AtomicLong();
+	private final AtomicBoolean dirty = new AtomicBoolean();
+
+	/**
+	 * A level, the level before it, and the sequence number of the first IM
+	 * the level applies to.
+	 */
+	private static final class State {
+		final SubscriptionLevel level;
+		final SubscriptionLevel prior;
+		final long from;
+
+		State(SubscriptionLevel level, SubscriptionLevel prior, long from) {
+			this.level = level;
+			this.prior = prior;
+			this.from = from;
+		}
+	}
+
+	/**
+	 * Creates a Subscription at SubscriptionLevel.FULL.
+	 *
+	 * @param user The member, non-null.
+	 * @param convName The name of the conversation, non-null.
+	 * @param summarizer The UnreadSummarizer to send summaries, non-null.
+	 */
+	Subscription(User user, String convName, UnreadSummarizer summarizer) {
+		this.user = user;
+		this.convName = convName;
+		this.summarizer = summarizer;
+	}
+
+	/**
+	 * Sets the level for the IMs numbered after last.  Called under the
+	 * Conversation's recordLock.
+	 *
+	 * @param level The new level, non-null.
+	 * @param last The sequence number of the latest IM numbered, or 0.
+	 * @return The sequence number after which IMs have been withheld, if level
+	 * 		   is FULL and the level before was not, and some IMs were withheld;
+	 * 		   -1 otherwise.
+	 */
+	long setLevel(SubscriptionLevel level, long last) {
+		SubscriptionLevel current = state.level;
+		if(level == current)
+			return -1;
+		state = new State(level, current, last + 1);
+		if(current == SubscriptionLevel.FULL) {
+			quietAfter = last;
+			unread.set(0);
+			latest.set(0);
+			return -1;
+		}
+		if(level == SubscriptionLevel.FULL && unread.get() > 0)
+			return quietAfter;
+		return -1;
+	}
+
+	/**
+	 * Returns whether the IM numbered sequence is to be withheld from the
+	 * member, counting it if so, and handing this to this.summarizer if the
+	 * member is to be sent a summary of it.
+	 *
+	 * @param sequence The IM's sequence number.
+	 * @return True if the IM is not to be sent to the member; false otherwise.
+	 */
+	boolean withhold(long sequence) {
+		State s = state;
+		SubscriptionLevel level = sequence >= s.from ? s.level : s.prior;
+		if(level == SubscriptionLevel.FULL)
+			return false;
+		unread.incrementAndGet();
+		long l = latest.get();
+		while(sequence > l && !latest.compareAndSet(l, sequence))
+			l = latest.get();
+		if(level == SubscriptionLevel.COUNTS && dirty.compareAndSet(false, true))
+			summarizer.dirtied(this);
+		return true;
+	}
+
+	/**
+	 * Sends the member an unread message with the number of IMs withheld, if
+	 * its level is still COUNTS.  Called by this.summarizer.
+	 */
+	void summarize() {
+		dirty.set(false);
+		if(state.level == SubscriptionLevel.COUNTS)
+			user.sendFrame(User.unreadFrame(convName, unread.get(), latest.get()));
+	}
+
+	/**
+	 * Sends the member an unread message with the number of IMs withheld,
+	 * whatever its level, as when they cannot be replayed to it.
+	 */
+	void summarizeNow() {
+		user.sendFrame(User.unreadFrame(convName, unread.get(), latest.get()));
+	}
+}
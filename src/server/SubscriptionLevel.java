@@ -0,0 +1,39 @@
+package server;
+
+import network.NetworkConstants;
+
+/**
+ * How much of the IMs sent to one conversation a member is sent, as its
+ * client chooses with a set level message, so that a client sitting in many
+ * conversations but looking at one is not sent every IM of the rest.
+ *
+ *  - FULL sends every IM.  This is the level a member starts at.
+ *  - COUNTS withholds IMs, and sends instead, now and then, the number of IMs
+ *    withheld (see UnreadSummarizer).
+ *  - NONE withholds IMs and sends nothing in their place.
+ *
+ * A member that goes back to FULL is sent the IMs withheld, if the server
+ * keeps the conversation's history (see Conversation.setLevel).
+ */
+public enum SubscriptionLevel {
+	FULL,
+	COUNTS,
+	NONE;
+
+	/**
+	 * Returns the level named name in the network protocol.
+	 *
+	 * @param name One of NetworkConstants.LEVEL_FULL, LEVEL_COUNTS, and
+	 * 		  LEVEL_NONE.
+	 * @return The level, or null if name names none.
+	 */
+	static SubscriptionLevel forName(String name) {
+		if(name.equals(NetworkConstants.LEVEL_FULL))
+			return FULL;
+		if(name.equals(NetworkConstants.LEVEL_COUNTS))
+			return COUNTS;
+		if(name.equals(NetworkConstants.LEVEL_NONE))
+			return NONE;
+		return null;
+	}
+}
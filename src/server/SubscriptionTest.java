@@ -0,0 +1,111 @@
+package server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import network.NetworkConstants;
+
+import org.junit.Test;
+
+import test.TestClient;
+
+/**
+ * JUnit tests for Subscription, and for members that lower their
+ * SubscriptionLevel in a conversation being sent counts, or nothing, in place
+ * of its IMs, and the IMs withheld once they raise it again.
+ *
+ * @category no_didit
+ */
+public class SubscriptionTest {
+
+	/**
+	 * Expect a level to apply from the IM after the latest numbered when it is
+	 * set, the level before to apply to IMs numbered earlier, and going back
+	 * to FULL to give the sequence number after which IMs were withheld, if
+	 * any were.
+	 */
+	@Test public void boundaryTest() {
+		UnreadSummarizer summarizer = new UnreadSummarizer(1000);
+		summarizer.close();
+		Subscription s = new Subscription(null, "room", summarizer);
+		assertEquals(-1, s.setLevel(SubscriptionLevel.NONE, 5));
+		assertFalse(s.withhold(5));
+		assertTrue(s.withhold(6));
+		assertEquals(5, s.setLevel(SubscriptionLevel.FULL, 7));
+		assertTrue(s.withhold(7));
+		assertFalse(s.withhold(8));
+		assertEquals(-1, s.setLevel(SubscriptionLevel.FULL, 8));
+
+		assertEquals(-1, s.setLevel(SubscriptionLevel.NONE, 10));
+		assertEquals(-1, s.setLevel(SubscriptionLevel.FULL, 10));
+		assertFalse(s.withhold(11));
+	}
+
+	/**
+	 * Expect a member at counts to be sent one unread message for several IMs
+	 * and its own IMs as usual, a member at none to be sent nothing, and a
+	 * member going back to full to be replayed every IM since it left full,
+	 * then sent IMs as they come.
+	 */
+	@Test(timeout=10000) public void levelTest() throws IOException {
+		IMServer server = null;
+		TestClient a = null, b = null;
+		try {
+			server = new IMServer(NetworkConstants.DEFAULT_PORT,
+					new ServerConfig().setUnreadSummaryMillis(500));
+			new Thread(server).start();
+			a = new TestClient(NetworkConstants.DEFAULT_PORT);
+			b = new TestClient(NetworkConstants.DEFAULT_PORT);
+			a.send(NetworkConstants.CONNECT + "\ta");
+			a.readLine();
+			b.send(NetworkConstants.CONNECT + "\tb");
+			b.readLine();
+			a.readLine();
+			a.send(NetworkConstants.NEW_CONV + "\troom");
+			a.readLine();
+			a.send(NetworkConstants.ADD_TO_CONV + "\tb\troom");
+			a.readLine();
+			b.readLine();
+
+			b.send(NetworkConstants.SET_LEVEL + "\troom\t" + NetworkConstants.LEVEL_COUNTS);
+			b.send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\troom");
+			assertTrue(b.readLine().startsWith(NetworkConstants.PARTICIPANTS + "\troom"));
+			for(int i = 1; i <= 3; ++i) {
+				a.send(NetworkConstants.IM + "\troom\t" + i + "\tm" + i);
+				a.readLine();
+			}
+			assertEquals(NetworkConstants.UNREAD + "\troom\t3\t3", b.readLine());
+			b.send(NetworkConstants.IM + "\troom\t0\tmine");
+			assertEquals(NetworkConstants.IM + "\tb\troom\t0\tmine", b.readLine());
+			a.readLine();
+
+			b.send(NetworkConstants.SET_LEVEL + "\troom\t" + NetworkConstants.LEVEL_NONE);
+			b.send(NetworkConstants.RETRIEVE_PARTICIPANTS + "\troom");
+			assertTrue(b.readLine().startsWith(NetworkConstants.PARTICIPANTS + "\troom"));
+			a.send(NetworkConstants.IM + "\troom\t4\tquiet");
+			a.readLine();
+			b.send(NetworkConstants.SET_LEVEL + "\troom\t" + NetworkConstants.LEVEL_FULL);
+			for(int i = 1; i <= 3; ++i)
+				assertTrue(b.readLine().matches(NetworkConstants.HISTORY + "\troom\t" + i + "\t[0-9]+\ta\t" + i + "\tm" + i));
+			assertTrue(b.readLine().matches(NetworkConstants.HISTORY + "\troom\t4\t[0-9]+\tb\t0\tmine"));
+			assertTrue(b.readLine().matches(NetworkConstants.HISTORY + "\troom\t5\t[0-9]+\ta\t4\tquiet"));
+			assertEquals(NetworkConstants.HISTORY_END + "\troom\t5\t0", b.readLine());
+			a.send(NetworkConstants.IM + "\troom\t5\tlive");
+			assertEquals(NetworkConstants.IM + "\ta\troom\t5\tlive", b.readLine());
+
+			b.send(NetworkConstants.SET_LEVEL + "\troom\tloud");
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.SET_LEVEL + "\troom\tloud", b.readLine());
+			b.send(NetworkConstants.SET_LEVEL + "\tnowhere\t" + NetworkConstants.LEVEL_NONE);
+			assertEquals(NetworkConstants.ERROR + "\t" + NetworkConstants.SET_LEVEL + "\tnowhere\t"
+					+ NetworkConstants.LEVEL_NONE, b.readLine());
+		} finally {
+			if(a != null)
+				a.close();
+			if(b != null)
+				b.close();
+			if(server != null)
+				server.close();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A SuspendedConnection stands in for the Connection of a User whose client
+ * has dropped, while the server waits for the client to resume its session
+ * (see User.resume).  It holds the Frames sent to the User meanwhile, up to
+ * capacity of them, so that the client is sent just what it missed when it
+ * comes back.  If more are sent than it can hold, the client could not be
+ * brought up to date, so the session is ended at once rather than at the end
+ * of its grace period.  Instances of SuspendedConnection have the following
+ * instance variables:
+ *
+ *  - owner is the User whose session this holds.
+ *  - capacity is the most Frames backlog holds.
+ *  - backlog holds the Frames sent since the client dropped, in order, or is
+ *    null once this has overflowed, resumed, or been closed.
+ *  - target is the Connection the session resumed on, to which Frames sent
+ *    afterwards, by threads that read the User's connection before it
+ *    changed, are passed on; or null until the session resumes.
+ *  - closed is true once close has been called.
+ *  - lock guards backlog, target, and closed.  It is held while Frames are
+ *    passed on to target, so that none overtakes the backlog, and is a
+ *    ReentrantLock rather than this object's monitor so that a virtual thread
+ *    waiting on target's queue while holding it is not pinned to its carrier
+ *    thread.
+ */
+final class SuspendedConnection implements Connection {
+
+	private final User owner;
+	private final int capacity;
+	private List<Frame> backlog = new ArrayList<Frame>();
+	private Connection target;
+	private boolean closed;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Creates an empty SuspendedConnection for owner's session.
+	 *
+	 * @param owner The User whose client has dropped, non-null.
+	 * @param capacity The most Frames to hold, at least 1.
+	 */
+	SuspendedConnection(User owner, int capacity) {
+		this.owner = owner;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Holds frame for the client, passes it on to the Connection the session
+	 * has resumed on, or, if this already holds capacity Frames, drops them
+	 * all and has the session ended.
+	 */
+	@Override
+	public void send(Frame frame) {
+		lock.lock();
+		try {
+			if(target != null) {
+				target.send(frame);
+				return;
+			}
+			if(backlog == null)
+				return;
+			if(backlog.size() < capacity) {
+				backlog.add(frame);
+				return;
+			}
+			backlog = null;
+		} finally {
+			lock.unlock();
+		}
+		owner.sessionOverflowed(this);
+	}
+
+	/**
+	 * Does nothing: the framing is that of the Connection the session resumes on.
+	 */
+	@Override
+	public void useBinary() {
+	}
+
+	/**
+	 * Drops the Frames held, and ends the session.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if(closed)
+				return;
+			closed = true;
+			backlog = null;
+		} finally {
+			lock.unlock();
+		}
+		owner.expire(this);
+	}
+
+	/**
+	 * Sends first over connection, then every Frame held, and passes on those
+	 * sent from now on; unless this has overflowed or been closed.
+	 *
+	 * @param connection The Connection the session resumes on, non-null.
+	 * @param first The Frame to send ahead of those held, non-null.
+	 * @return True if the Frames were sent; false if the session cannot resume.
+	 */
+	boolean resumeInto(Connection connection, Frame first) {
+		lock.lock();
+		try {
+			if(backlog == null)
+				return false;
+			connection.send(first);
+			for(Frame frame : backlog)
+				connection.send(frame);
+			backlog = null;
+			target = connection;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package server;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An UnreadSummarizer sends the members of an IMServer's conversations who
+ * have lowered their SubscriptionLevel to COUNTS the number of IMs withheld
+ * from them, at most once every periodMillis for each conversation, however
+ * many IMs are sent to it meanwhile.  A Subscription that withholds an IM is
+ * handed to it, unless it already holds that Subscription, and summarized
+ * when the period is up.  Instances of UnreadSummarizer have the following
+ * instance variables:
+ *
+ *  - periodMillis is how long after the first IM withheld a summary is sent.
+ *  - dirty holds the Subscriptions with IMs withheld since their last
+ *    summary.
+ *  - scheduled is true while a run of the timer is pending.
+ *  - timer sends the summaries.
+ *  - closed is true once close has been called; no summary is sent after.
+ *
+ * An UnreadSummarizer is thread-safe.
+ */
+final class UnreadSummarizer {
+
+	private final long periodMillis;
+	private final ConcurrentLinkedQueue<Subscription> dirty = new ConcurrentLinkedQueue<Subscription>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Timer timer;
+	private volatile boolean closed;
+
+	/**
+	 * Creates an UnreadSummarizer.
+	 *
+	 * @param periodMillis How long to collect withheld IMs before summarizing
+	 * 		  them, positive.
+	 */
+	UnreadSummarizer(long periodMillis) {
+		this.periodMillis = periodMillis;
+		this.timer = new Timer("unread", true);
+	}
+
+	/**
+	 * Hands s to this to be summarized, scheduling a run if none is pending.
+	 *
+	 * @param s A Subscription that has withheld an IM and does not wait for a
+	 * 		  summary already, non-null.
+	 */
+	void dirtied(Subscription s) {
+		dirty.add(s);
+		if(!closed && scheduled.compareAndSet(false, true)) {
+			try {
+				timer.schedule(new TimerTask() {
+					public void run() {
+						flush();
+					}
+				}, periodMillis);
+			} catch(IllegalStateException e) {
+				// The timer was cancelled by close.
+			}
+		}
+	}
+
+	/**
+	 * Summarizes every Subscription handed to this since the last run.
+	 */
+	void flush() {
+		scheduled.set(false);
+		Subscription s;
+		while((s = dirty.poll()) != null)
+			s.summarize();
+	}
+
+	/**
+	 * Stops the timer; Subscriptions not yet summarized never are.
+	 */
+	void close() {
+		closed = true;
+		timer.cancel();
+	}
+}
@@ -1,102 +1,431 @@
 package server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
 
 import network.NetworkConstants;
 
 
 /**
  * Instances of User are used by the server to keep track of connections to clients.
- * User is a subclass of Thread, and has the following instance variables:
+ * User is a Runnable, run on a thread of its own (platform or virtual) unless it is
+ * driven by a SelectorEngine, and has the following instance variables:
  * 
- *  - socket is the socket over which the server communicates with this client.
+ *  - connection is the Connection over which the server communicates with this client:
+ *    origin, until the client drops and the session is suspended or resumed on
+ *    another connection (see resume).
+ *  - origin is the Connection this User was created for.
  *  - name is a String containing the client’s username.  When the User has been added
  *    to its server, name is non-null, non-empty, contains at most 256 characters,
  *    and contains no newline characters.
  *  - conversations is a set of Conversation objects, representing all the conversations
  *    that this client is in.
- *  - out is a PrintWriter that writes to socket.
- *  - in is a BufferedReader that reads from socket.
+ *  - in is the SocketConnection from which run() reads requests, or null if this User
+ *    is instead driven by a SelectorEngine, which feeds it requests through handleLine.
  *  - server is the instance of IMServer that created this User, and whose users map this
  *    will add itself to when the client specifies a valid username using a connect message.
+ *  - lock guards this.conversations and this.disconnected.  It is a ReentrantLock rather
+ *    than this object's monitor so that a virtual thread sending to the client while
+ *    holding it is not pinned to its carrier thread.
+ *  - thread is the thread running run(), or null if run() has not been called.
+ *  - request is the Request into which each line from the client is parsed.  Lines
+ *    are handled one at a time, so it is reused for all of them.
+ *  - binary is true once the client has negotiated binary framing in a connect
+ *    message, and connection has been switched to it.
+ *  - pagedUsersList is true if the client asked, in its latest connect message,
+ *    to be sent the users list in pages rather than all at once.
+ *  - sequencedIMs is true if the client asked, in its latest connect message,
+ *    to be sent each IM with the sequence number and timestamp its
+ *    Conversation gave it.
+ *  - acks is true if the client asked, in its latest connect message, to be
+ *    sent an ack message for each of its own IMs rather than the IM itself.
+ *  - historyCursors maps the name of each conversation whose history is being
+ *    replayed to the client to a HistoryCursor recording how far the replay has
+ *    got.  It is only touched while handling the client's requests, which are
+ *    handled one at a time (see requestLock), so it needs no lock of its own.
+ *  - requestLock is held while a line from the client is handled.  A client
+ *    that resumes its session before the server has noticed it drop may have
+ *    lines handled from its old connection and its new one at once; the lock
+ *    keeps them one at a time.
+ *  - resumeToken is the token with which the client may resume its session if
+ *    it drops, or null if it did not ask for one (see NetworkConstants.RESUMABLE).
+ *  - leaving is true once the client has asked to disconnect, so that its
+ *    session ends rather than being suspended.
+ *  - suspended is the SuspendedConnection holding what is sent to the client
+ *    while its session is suspended, or null while it is not.  this.connection
+ *    is suspended while it is non-null.
+ *  - expiry is the task that ends the suspended session when its grace period
+ *    is up, or null.
+ *  - resumed is, for a User created for a connection on which a client resumed
+ *    its session, the User whose session it resumed, to which every line is
+ *    passed on; and null otherwise.
+ *  - lost is true once the connection of a User created to resume a session
+ *    has been lost, should that happen before resumed is set.
+ *  - sentIds maps each Conversation in this.conversations that the client has
+ *    had IMs relayed to, if the server deduplicates IMs, to the window of the
+ *    latest IM IDs relayed (see MessageIdWindow).  It is guarded by this.lock,
+ *    and a Conversation's window is dropped when this leaves it, since a
+ *    client numbers its IMs afresh each time it enters a conversation.
+ *  - shard is the shard of the server's FanoutPool this User falls in, which
+ *    it is given as it is added to the server (see FanoutPool.assign), or 0.
  *    
- * All instance variables except this.name are final. (this.name is not final because it
- * is specified after initialization, upon receipt of a connect message.  Once this has been
- * added to this.server, this.name should not be changed.)
+ * this.connection, this.suspended, this.expiry, this.resumeToken, and
+ * this.disconnected are guarded by this.lock; this.connection may also be read
+ * without it.
+ *    
+ * All instance variables are final except:
+ * 
+ *  - this.name, which is specified after initialization, upon receipt of a
+ *    connect message.  Once this has been added to this.server, it should not
+ *    be changed.
+ *  - this.connection, this.suspended, and this.expiry, which change as the
+ *    session is suspended and resumed.
+ *  - this.disconnected and this.leaving, which are set as the session ends.
+ *  - this.thread, which is set when run() is called.
+ *  - this.binary, set by the binary option of a connect message.
+ *  - this.pagedUsersList, set by the paged users list option.
+ *  - this.sequencedIMs, set by the sequenced IMs option.
+ *  - this.acks, set by the acks option.
+ *  - this.resumeToken, set by the resumable option.
+ *  - this.resumed and this.lost, which are set once a resuming connection
+ *    finds, or loses, the session it resumes.
+ *  - this.shard, which is set once, as this is added to this.server, before
+ *    this enters any conversation.
  * 
  * See the User section in the design document for more information on the User class.
  */
-public class User extends Thread {
+public class User implements Runnable {
 	
 	private String name;
-	private final Socket socket;
+	private volatile Connection connection;
+	private final Connection origin;
 	private final Set<Conversation> conversations;
-	private final PrintWriter out;
-	private final BufferedReader in;
+	private final SocketConnection in;
 	private final IMServer server;
+	private final ReentrantLock lock = new ReentrantLock();
+	private boolean disconnected;
+	private volatile Thread thread;
+	private final Request request = new Request();
+	private boolean binary;
+	private boolean pagedUsersList;
+	private boolean sequencedIMs;
+	private boolean acks;
+	private final Map<String, HistoryCursor> historyCursors = new HashMap<String, HistoryCursor>();
+	private final ReentrantLock requestLock = new ReentrantLock();
+	private String resumeToken;
+	private volatile boolean leaving;
+	private SuspendedConnection suspended;
+	private TimerTask expiry;
+	private volatile User resumed;
+	private volatile boolean lost;
+	private final Map<Conversation, MessageIdWindow> sentIds = new HashMap<Conversation, MessageIdWindow>();
+	private int shard;
+	
+	/**
+	 * How far the replay of a conversation's history to the client has got:
+	 * after is the sequence number of the last IM sent, and end that of the
+	 * last IM to send.
+	 */
+	private static final class HistoryCursor {
+		long after;
+		final long end;
+		
+		HistoryCursor(long after, long end) {
+			this.after = after;
+			this.end = end;
+		}
+	}
 	
 	/**
 	 * Constructs an instance of User for the given server and for the client at
-	 * the given socket.
+	 * the given socket.  The User reads requests from socket on its own thread
+	 * once started.  If server is null, the default ServerConfig is used, and
+	 * writes are counted in a ServerStats of the User's own.
 	 * 
 	 * @param server The server to which to add this once login has been validated.
 	 * @param socket The socket on which there is a connection with the client.
 	 * @throws IOException 
 	 */
 	User(IMServer server, Socket socket) throws IOException {
+		this(server, new SocketConnection(socket,
+				server != null ? server.getConfig() : new ServerConfig(),
+				server != null ? server.getStats() : new ServerStats()));
+	}
+	
+	/**
+	 * Constructs an instance of User for the given server whose requests are
+	 * read from the client over a blocking SocketConnection.
+	 * 
+	 * @param server The server to which to add this once login has been validated.
+	 * @param connection The connection with the client.
+	 */
+	private User(IMServer server, SocketConnection connection) {
+		this.server = server;
+		this.connection = connection;
+		this.origin = connection;
+		this.conversations = new HashSet<Conversation>();
+		this.in = connection;
+	}
+	
+	/**
+	 * Constructs an instance of User for the given server and connection.  The User
+	 * is not started; its requests are passed in through handleLine by whatever
+	 * reads from connection, which must call disconnected when the client goes away.
+	 * 
+	 * @param server The server to which to add this once login has been validated.
+	 * @param connection The connection with the client.
+	 */
+	User(IMServer server, Connection connection) {
 		this.server = server;
-		this.socket = socket;
+		this.connection = connection;
+		this.origin = connection;
 		this.conversations = new HashSet<Conversation>();
-		this.out = new PrintWriter(socket.getOutputStream(), true);
-		this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		this.in = null;
 	}
 	
 	/**
-	 * Sends a message to the client by printing s to this.socket,
+	 * Sends a message to the client over this.connection,
 	 * followed by a newline.
 	 * 
 	 * @param s The message to send to the client.
 	 */
 	private void send(String s) {
-		synchronized(out) {
-			out.println(s);
-			out.flush();
-		}
+		connection.send(new Frame(s));
 	}
 	
 	/**
-	 * Reads from this.socket. Tries to connect the client upon encountering
-	 * a connect message by calling handleConnection. If the client has sent
-	 * a valid username, tries to process the client's request by calling handleRequest.
+	 * Sends an already encoded message to the client over this.connection.  Used
+	 * to fan out one Frame to many Users without building it once per User.
 	 * 
-	 * Upon Exception or disconnection, closes this.in, this.socket, and this.out,
-	 * removes this from this.server, and removes this from all conversations.
+	 * @param frame The message to send to the client, non-null.
+	 */
+	void sendFrame(Frame frame) {
+		connection.send(frame);
+	}
+	
+	/**
+	 * Reads from this.in, passing each line to handleLine until the client
+	 * disconnects or asks to disconnect.
+	 * 
+	 * Upon Exception or disconnection, calls disconnected.
 	 */
 	@Override
 	public void run() {
+		thread = Thread.currentThread();
 		try {
 			String line;
-			for (line = in.readLine(); line != null && name == null; line = in.readLine())
+			for (line = in.readLine(); line != null && handleLine(line); line = in.readLine())
+				;
+		} catch(IOException e) {
+		} finally {
+			disconnected();
+		}
+	}
+	
+	/**
+	 * Handles one line received from the client.  Tries to connect the client upon
+	 * encountering a connect message by calling handleConnection. If the client has
+	 * sent a valid username, tries to process the client's request by calling
+	 * handleRequest.  Once the client has resumed a session on this User's
+	 * connection, passes every line on to the User whose session it resumed.
+	 * 
+	 * @param line The line received from the client, without its line terminator.
+	 * @return False if the client asked to disconnect; true otherwise.
+	 */
+	boolean handleLine(String line) {
+		User session = resumed;
+		if(session != null)
+			return session.handleLine(line);
+		requestLock.lock();
+		try {
+			if(name == null)
 				handleConnection(line);
-			for (; line != null; line = in.readLine())
-            	handleRequest(line);
+			else
+				handleRequest(line);
 		} catch(InterruptedException e) {
-		} catch(IOException e) {
+			leaving = true;
+			return false;
+		} finally {
+			requestLock.unlock();
+		}
+		return true;
+	}
+	
+	/**
+	 * Called when this User's connection has closed.  If the client had
+	 * resumed a session on it, tells the User whose session it was instead.
+	 * Otherwise acts as connectionLost does for this.origin.
+	 */
+	void disconnected() {
+		lost = true;
+		User session = resumed;
+		if(session != null)
+			session.connectionLost(origin);
+		else
+			connectionLost(origin);
+	}
+	
+	/**
+	 * Called when c, a connection of this User's client, has closed.  Does
+	 * nothing if c is no longer this.connection, as when the session has
+	 * resumed on another connection, or if this has already left.
+	 * 
+	 * If the client may resume its session, and did not ask to disconnect,
+	 * suspends the session: this.connection is replaced with a
+	 * SuspendedConnection, which holds what is sent to the client until it
+	 * resumes or the server's resumeGraceMillis are up, and the client's
+	 * conversations and other users are told nothing.  Otherwise closes c,
+	 * removes this from all conversations, and removes this from this.server.
+	 * If this.server scopes presence, the Users this shared a conversation
+	 * with are noted first, since they are to be told this has left.
+	 * 
+	 * @param c The connection that closed.
+	 */
+	private void connectionLost(Connection c) {
+		boolean suspend;
+		lock.lock();
+		try {
+			if(disconnected || c != connection)
+				return;
+			suspend = resumeToken != null && !leaving && server.isResumeAllowed();
+			if(suspend)
+				suspend();
+			else
+				disconnected = true;
+		} finally {
+			lock.unlock();
+		}
+		c.close();
+		if(!suspend)
+			leave();
+	}
+	
+	/**
+	 * Called under this.lock to replace this.connection with a new
+	 * SuspendedConnection and start the grace period.
+	 */
+	private void suspend() {
+		suspended = new SuspendedConnection(this, server.getConfig().getResumeBacklogFrames());
+		connection = suspended;
+		final SuspendedConnection s = suspended;
+		expiry = new TimerTask() {
+			public void run() {
+				expire(s);
+			}
+		};
+		server.scheduleSessionTask(expiry, server.getConfig().getResumeGraceMillis());
+	}
+	
+	/**
+	 * Ends the session suspended in s, as if the client had disconnected for
+	 * good, unless it has resumed since.  Called when the grace period is up,
+	 * when s overflows, and when s is closed.
+	 * 
+	 * @param s The SuspendedConnection of the session to end.
+	 */
+	void expire(SuspendedConnection s) {
+		lock.lock();
+		try {
+			if(disconnected || connection != s)
+				return;
+			disconnected = true;
+			suspended = null;
+			expiry = null;
 		} finally {
-			try { in.close(); }
-			catch(IOException ee) {}
-			try { socket.close(); }
-			catch(IOException ee) {}
-			out.close();
-			removeFromAllConversations();
-			server.disconnectUser(name);
+			lock.unlock();
 		}
+		s.close();
+		leave();
+	}
+	
+	/**
+	 * Called by s when more was sent to the suspended session than it holds,
+	 * to end the session without waiting for the grace period.  The session is
+	 * ended on the server's session timer, not the sending thread, which may
+	 * hold a Conversation's lock.
+	 * 
+	 * @param s The SuspendedConnection that overflowed.
+	 */
+	void sessionOverflowed(final SuspendedConnection s) {
+		server.scheduleSessionTask(new TimerTask() {
+			public void run() {
+				expire(s);
+			}
+		}, 0);
+	}
+	
+	/**
+	 * Removes this from all conversations, and removes this from this.server,
+	 * along with its session, if it has one.
+	 */
+	private void leave() {
+		Collection<User> peers = server != null && server.isPresenceScoped() ? peers() : null;
+		removeFromAllConversations();
+		if(server != null) {
+			server.disconnectUser(name, peers);
+			String token;
+			lock.lock();
+			try {
+				token = resumeToken;
+			} finally {
+				lock.unlock();
+			}
+			if(token != null)
+				server.closeSession(token, this);
+		}
+	}
+	
+	/**
+	 * Resumes this User's session on c, over which the client has asked to
+	 * resume it: sends the client a resumed message with a new resume token,
+	 * then everything sent to it while its session was suspended, and makes c
+	 * this.connection.  If the server has not yet noticed the client drop, the
+	 * connection it had is closed, and the session taken over, without telling
+	 * anyone.
+	 * 
+	 * Fails if this has left, or if more was sent to it while suspended than
+	 * could be held, in which case the session is about to end.
+	 * 
+	 * @param c The connection on which to resume, non-null.
+	 * @return True if the session resumed on c; false otherwise.
+	 */
+	boolean resume(Connection c) {
+		Connection old = null;
+		lock.lock();
+		try {
+			if(disconnected)
+				return false;
+			if(suspended == null) {
+				old = connection;
+				suspended = new SuspendedConnection(this, server.getConfig().getResumeBacklogFrames());
+				connection = suspended;
+			}
+			String token = server.renewSession(resumeToken, this);
+			if(!suspended.resumeInto(c, new Frame(NetworkConstants.RESUMED + "\t" + name + "\t" + token))) {
+				server.closeSession(token, this);
+				return false;
+			}
+			resumeToken = token;
+			if(expiry != null)
+				expiry.cancel();
+			expiry = null;
+			suspended = null;
+			connection = c;
+		} finally {
+			lock.unlock();
+		}
+		if(old != null)
+			old.close();
+		return true;
 	}
 	
 	/**
@@ -109,6 +438,21 @@ public class User extends Thread {
 	 * Sets this.name to the specified username if the user is successfully
 	 * connected.
 	 * 
+	 * A connect message may carry NetworkConstants.BINARY_PROTOCOL,
+	 * NetworkConstants.PAGED_USERS_LIST, NetworkConstants.SEQUENCED_IMS,
+	 * NetworkConstants.ACKS, and NetworkConstants.RESUMABLE as further fields,
+	 * in that order.  Given the first,
+	 * whether or not the username is taken, the client is sent a
+	 * PROTOCOL_ACCEPTED line, and this.connection is switched to binary framing
+	 * before any reply to the connect message is sent; on a connection that is
+	 * already binary, the field is accepted and ignored.  Given the second, the
+	 * client is sent the users list in pages (see IMServer.retrieveUsersPage).
+	 * Given the third, the client is sent IMs with their sequence numbers and
+	 * timestamps (see sequencedIMFrame).  Given the fourth, the client is sent
+	 * an ack message for each of its own IMs instead of the IM (see ackFrame).
+	 * Given the fifth, the client is sent a token with which to resume its
+	 * session (see IMServer.openSession).
+	 * 
 	 * @param req The client's request.
 	 * @return True if the call to handleConnection resulted in adding this to
 	 * 		   this.server; false otherwise.
@@ -118,20 +462,104 @@ public class User extends Thread {
 			sendErrorMessage(req);
 			return false;
 		}
-		String[] args = req.split("\t", -1);
-		if(args.length != 2 || !args[1].matches(NetworkConstants.NEW_USERNAME)
-				|| !args[0].equals(NetworkConstants.CONNECT)) {
+		request.parse(req);
+		if(request.isCommand(NetworkConstants.RESUME))
+			return resumeSession(req);
+		int fields = request.getFieldCount();
+		boolean valid = fields >= 2 && fields <= 7;
+		boolean wantsBinary = false;
+		boolean wantsPages = false;
+		boolean wantsSequence = false;
+		boolean wantsAcks = false;
+		boolean wantsResume = false;
+		for(int i = 2; i < fields && valid; ++i) {
+			String option = request.getField(i);
+			if(!wantsBinary && !wantsPages && !wantsSequence && !wantsAcks && !wantsResume
+					&& option.equals(NetworkConstants.BINARY_PROTOCOL))
+				wantsBinary = true;
+			else if(!wantsPages && !wantsSequence && !wantsAcks && !wantsResume
+					&& option.equals(NetworkConstants.PAGED_USERS_LIST))
+				wantsPages = true;
+			else if(!wantsSequence && !wantsAcks && !wantsResume && option.equals(NetworkConstants.SEQUENCED_IMS))
+				wantsSequence = true;
+			else if(!wantsAcks && !wantsResume && option.equals(NetworkConstants.ACKS))
+				wantsAcks = true;
+			else if(!wantsResume && option.equals(NetworkConstants.RESUMABLE) && server.isResumeAllowed())
+				wantsResume = true;
+			else
+				valid = false;
+		}
+		if(!valid || !request.isNewUsername(1) || !request.isCommand(NetworkConstants.CONNECT)) {
 			sendErrorMessage(req);
 			return false;
 		}
+		if(wantsBinary && !binary) {
+			send(NetworkConstants.PROTOCOL_ACCEPTED + "\t" + NetworkConstants.BINARY_PROTOCOL);
+			connection.useBinary();
+			binary = true;
+		}
 		
-		name = args[1];
+		pagedUsersList = wantsPages;
+		sequencedIMs = wantsSequence;
+		acks = wantsAcks;
+		name = request.getField(1);
 		boolean connected = server.connectUser(this);
 		if(!connected)
 			name = null;
+		else if(wantsResume) {
+			String token = server.openSession(this);
+			lock.lock();
+			try {
+				resumeToken = token;
+			} finally {
+				lock.unlock();
+			}
+			send(NetworkConstants.SESSION + "\t" + token);
+		}
+		if(connected)
+			server.deliverMailbox(this);
 		return connected;
 	}
 	
+	/**
+	 * Handles a resume request, the first line from a client resuming its
+	 * session on a new connection: switches this.connection to binary framing
+	 * if the request asks, as a connect message may, then resumes the session
+	 * whose token the request carries on this.connection (see resume), and
+	 * from then on passes every line on to the session's User.  If there is no
+	 * such session, or it cannot resume, sends an error message.
+	 * 
+	 * @param req The client's request, as parsed into this.request.
+	 * @return True if the session resumed; false otherwise.
+	 */
+	private boolean resumeSession(String req) {
+		int fields = request.getFieldCount();
+		boolean wantsBinary = fields == 3 && request.getField(2).equals(NetworkConstants.BINARY_PROTOCOL);
+		User session = null;
+		if((fields == 2 || wantsBinary) && server.isResumeAllowed())
+			session = server.sessionFor(request.getField(1));
+		if(session == null) {
+			sendErrorMessage(req);
+			return false;
+		}
+		if(wantsBinary && !binary) {
+			send(NetworkConstants.PROTOCOL_ACCEPTED + "\t" + NetworkConstants.BINARY_PROTOCOL);
+			connection.useBinary();
+			binary = true;
+		}
+		resumed = session;
+		if(!session.resume(connection)) {
+			resumed = null;
+			sendErrorMessage(req);
+			return false;
+		}
+		// The connection may have been lost before resumed was set, in which
+		// case the session's User was not told.
+		if(lost)
+			session.connectionLost(origin);
+		return true;
+	}
+	
 	/**
 	 * Handles the given request and returns true.  If the request
 	 * does not follow the specified grammar or cannot be processed,
@@ -145,25 +573,44 @@ public class User extends Thread {
 		if(req == null)
 			processed = false;
 		else {
-			String[] args = req.split("\t", -1);
-			if(args.length == 0)
-				processed = false;
-			else if(args[0].equals(NetworkConstants.IM))
-				processed = im(args);
-			else if(args[0].equals(NetworkConstants.NEW_CONV))
-				processed = newConv(args);
-			else if(args[0].equals(NetworkConstants.ADD_TO_CONV))
-				processed = addToConv(args);
-			else if(args[0].equals(NetworkConstants.ENTER_CONV))
-				processed = enterConv(args);
-			else if(args[0].equals(NetworkConstants.EXIT_CONV))
-				processed = exitConv(args);
-			else if(args[0].equals(NetworkConstants.DISCONNECT_NO_TAB))
+			Request r = request;
+			r.parse(req);
+			if(r.isCommand(NetworkConstants.IM))
+				processed = im(r);
+			else if(r.isCommand(NetworkConstants.NEW_CONV))
+				processed = newConv(r);
+			else if(r.isCommand(NetworkConstants.ADD_TO_CONV))
+				processed = addToConv(r);
+			else if(r.isCommand(NetworkConstants.ENTER_CONV))
+				processed = enterConv(r);
+			else if(r.isCommand(NetworkConstants.EXIT_CONV))
+				processed = exitConv(r);
+			else if(r.isCommand(NetworkConstants.DISCONNECT_NO_TAB))
 				throw new InterruptedException();
-			else if(args[0].equals(NetworkConstants.RETRIEVE_PARTICIPANTS))
-				processed = retrieveParticipants(args);
-			else if(args[0].equals(NetworkConstants.TWO_WAY_CONV))
-				processed = twoWayConv(args);
+			else if(r.isCommand(NetworkConstants.RETRIEVE_PARTICIPANTS))
+				processed = retrieveParticipants(r);
+			else if(r.isCommand(NetworkConstants.TWO_WAY_CONV))
+				processed = twoWayConv(r);
+			else if(r.isCommand(NetworkConstants.SUBSCRIBE_PRESENCE))
+				processed = subscribePresence(r);
+			else if(r.isCommand(NetworkConstants.UNSUBSCRIBE_PRESENCE))
+				processed = unsubscribePresence(r);
+			else if(r.isCommand(NetworkConstants.NEXT_USERS_PAGE))
+				processed = nextUsersPage(r);
+			else if(r.isCommand(NetworkConstants.NEXT_MEMBERS_PAGE))
+				processed = nextMembersPage(r);
+			else if(r.isCommand(NetworkConstants.HISTORY_AFTER))
+				processed = historyAfter(r);
+			else if(r.isCommand(NetworkConstants.HISTORY_LAST))
+				processed = historyLast(r);
+			else if(r.isCommand(NetworkConstants.NEXT_HISTORY))
+				processed = nextHistory(r);
+			else if(r.isCommand(NetworkConstants.SET_LEVEL))
+				processed = setLevel(r);
+			else if(r.isCommand(NetworkConstants.NEW_CHANNEL))
+				processed = newChannel(r);
+			else if(r.isCommand(NetworkConstants.ADD_PUBLISHER))
+				processed = addPublisher(r);
 		}
 		if(!processed)
 			sendErrorMessage(req);
@@ -171,118 +618,441 @@ public class User extends Thread {
 	}
 	
 	/**
-	 * Processes an im request with the given arguments.
-	 * @param args The request arguments.
+	 * Processes an im request.
+	 * @param r The parsed request.
 	 * @return True if the message is successfully sent; false otherwise.
 	 */
-	private boolean im(String[] args) {
-		if(args == null || args.length != 4)
-			return false;
-		if(args[1] == null || args[2] == null || args[3] == null)
+	private boolean im(Request r) {
+		if(r.getFieldCount() != 4)
 			return false;
-		if(!args[1].matches(NetworkConstants.CONV_NAME)
-				|| !args[2].matches(NetworkConstants.IM_ID)
-				|| !args[3].matches(NetworkConstants.MESSAGE))
+		if(!r.isConvName(1) || !r.isImId(2) || !r.isMessage(3))
 			return false;
-		return server.sendMessage(name, args[1], Integer.parseInt(args[2]), args[3]);
+		return server.sendMessage(name, r.getField(1), r.getImId(2), r.getField(3));
 	}
 
 	/**
-	 * Processes a new conversation request with the given arguments.
-	 * @param args The request arguments.
+	 * Processes a new conversation request.
+	 * @param r The parsed request.
 	 * @return True if an attempt is made by the server to set up the new conversation;
 	 * 		   false otherwise.
 	 */
-	private boolean newConv(String[] args) {
-		if(args == null || args.length != 2)
+	private boolean newConv(Request r) {
+		if(r.getFieldCount() != 2)
+			return false;
+		if(!r.isNewConvName(1))
+			return false;
+		server.newConversation(name, r.getField(1));
+		return true;
+	}
+
+	/**
+	 * Processes a new channel request.
+	 * @param r The parsed request.
+	 * @return True if an attempt is made by the server to set up the new channel;
+	 * 		   false otherwise.
+	 */
+	private boolean newChannel(Request r) {
+		if(r.getFieldCount() != 2)
 			return false;
-		if(args[1] == null || !args[1].matches(NetworkConstants.NEW_CONV_NAME))
+		if(!r.isNewConvName(1))
 			return false;
-		server.newConversation(name, args[1]);
+		server.newChannel(name, r.getField(1));
 		return true;
 	}
 
 	/**
-	 * Processes an add to conversation request with the given arguments.
-	 * @param args The request arguments.
+	 * Processes an add publisher request.
+	 * @param r The parsed request.
+	 * @return True if the specified user is made a publisher of the specified
+	 * 		   channel; false otherwise.
+	 */
+	private boolean addPublisher(Request r) {
+		if(r.getFieldCount() != 3)
+			return false;
+		if(!r.isUsername(1) || !r.isConvName(2))
+			return false;
+		return server.addPublisher(this, r.getField(2), r.getField(1));
+	}
+
+	/**
+	 * Processes an add to conversation request.
+	 * @param r The parsed request.
 	 * @return True if the specified client is successfully added to the specified
 	 * 		   conversation; false otherwise.
 	 */
-	private boolean addToConv(String[] args) {
-		if(args == null || args.length != 3)
-			return false;
-		if(args[1] == null || args[2] == null)
+	private boolean addToConv(Request r) {
+		if(r.getFieldCount() != 3)
 			return false;
-		if(!args[1].matches(NetworkConstants.USERNAME)
-				|| !args[2].matches(NetworkConstants.CONV_NAME))
+		if(!r.isUsername(1) || !r.isConvName(2))
 			return false;
-		return server.addToConversation(args[1], args[2]);
+		return server.addToConversation(r.getField(1), r.getField(2));
 	}
 
 	/**
-	 * Processes an enter conversation request with the given arguments.
-	 * @param args The request arguments.
+	 * Processes an enter conversation request.
+	 * @param r The parsed request.
 	 * @return True if the client successfully enters the specified conversation;
 	 * 		   false otherwise.
 	 */
-	private boolean enterConv(String[] args) {
-		if(args == null || args.length != 2)
+	private boolean enterConv(Request r) {
+		if(r.getFieldCount() != 2)
 			return false;
-		if(args[1] == null || !args[1].matches(NetworkConstants.CONV_NAME))
+		if(!r.isConvName(1))
 			return false;
-		return server.addToConversation(name, args[1]);
+		return server.addToConversation(name, r.getField(1));
 	}
 
 	/**
-	 * Processes an exit conversation request with the given arguments.
-	 * @param args The request arguments.
+	 * Processes an exit conversation request.
+	 * @param r The parsed request.
 	 * @return True if the client successfully exits the specified conversation;
 	 * 		   false otherwise.
 	 */
-	private boolean exitConv(String[] args) {
-		if(args == null || args.length != 2)
+	private boolean exitConv(Request r) {
+		if(r.getFieldCount() != 2)
 			return false;
-		if(args[1] == null || !args[1].matches(NetworkConstants.CONV_NAME))
+		if(!r.isConvName(1))
 			return false;
-		return server.removeFromConversation(name, args[1]);
+		return server.removeFromConversation(name, r.getField(1));
 	}
 
 	/**
-	 * Processes a retrieve participants request with the given arguments.
-	 * @param args The request arguments.
+	 * Processes a retrieve participants request, which asks, if it carries a
+	 * membership version, for only the participants changed since then.
+	 * @param r The parsed request.
 	 * @return True if the participants of the specified conversation are successfully
 	 * 		   sent to the client; false otherwise.
 	 */
-	private boolean retrieveParticipants(String[] args) {
-		if(args == null || args.length != 2)
+	private boolean retrieveParticipants(Request r) {
+		if(r.getFieldCount() != 2 && r.getFieldCount() != 3)
 			return false;
-		if(args[1] == null || !args[1].matches(NetworkConstants.CONV_NAME))
+		if(!r.isConvName(1))
 			return false;
-		return server.retrieveParticipants(name, args[1]);
+		if(r.getFieldCount() == 3) {
+			if(!r.isSequence(2))
+				return false;
+			return server.retrieveParticipantsSince(this, r.getField(1), r.getSequence(2));
+		}
+		return server.retrieveParticipants(name, r.getField(1));
 	}
 
 	/**
-	 * Processes a two-way conversation request with the given arguments.
-	 * @param args The request arguments.
+	 * Processes a two-way conversation request.
+	 * @param r The parsed request.
 	 * @return True if the two-way conversation is successfully set up;
 	 * 		   false otherwise.
 	 */
-	private boolean twoWayConv(String[] args) {
-		if(args == null || args.length != 2)
+	private boolean twoWayConv(Request r) {
+		if(r.getFieldCount() != 2)
+			return false;
+		if(!r.isUsername(1))
+			return false;
+		return server.twoWayConversation(name, r.getField(1));
+	}
+
+	/**
+	 * Processes a subscribe presence request.
+	 * @param r The parsed request.
+	 * @return True if the client is subscribed to the specified user's presence;
+	 * 		   false otherwise.
+	 */
+	private boolean subscribePresence(Request r) {
+		if(r.getFieldCount() != 2)
+			return false;
+		if(!r.isUsername(1))
+			return false;
+		return server.subscribePresence(this, r.getField(1));
+	}
+
+	/**
+	 * Processes an unsubscribe presence request.
+	 * @param r The parsed request.
+	 * @return True if the request is well formed; false otherwise.
+	 */
+	private boolean unsubscribePresence(Request r) {
+		if(r.getFieldCount() != 2)
+			return false;
+		if(!r.isUsername(1))
+			return false;
+		return server.unsubscribePresence(this, r.getField(1));
+	}
+
+	/**
+	 * Processes a next users page request.
+	 * @param r The parsed request.
+	 * @return True if the page is sent to the client; false otherwise.
+	 */
+	private boolean nextUsersPage(Request r) {
+		if(r.getFieldCount() != 2)
+			return false;
+		if(!r.isNewUsername(1))
+			return false;
+		return server.retrieveUsersPage(this, r.getField(1));
+	}
+
+	/**
+	 * Processes a next members page request.
+	 * @param r The parsed request.
+	 * @return True if the page is sent to the client; false otherwise.
+	 */
+	private boolean nextMembersPage(Request r) {
+		if(r.getFieldCount() != 3)
+			return false;
+		if(!r.isConvName(1) || !r.isNewUsername(2))
+			return false;
+		return server.retrieveMembersPage(this, r.getField(1), r.getField(2));
+	}
+
+	/**
+	 * Processes a history after request.
+	 * @param r The parsed request.
+	 * @return True if the first chunk of the history is sent to the client;
+	 * 		   false otherwise.
+	 */
+	private boolean historyAfter(Request r) {
+		if(r.getFieldCount() != 3)
+			return false;
+		if(!r.isConvName(1) || !r.isSequence(2))
+			return false;
+		return server.retrieveHistory(this, r.getField(1), r.getSequence(2), -1);
+	}
+
+	/**
+	 * Processes a history last request.
+	 * @param r The parsed request.
+	 * @return True if the first chunk of the history is sent to the client;
+	 * 		   false otherwise.
+	 */
+	private boolean historyLast(Request r) {
+		if(r.getFieldCount() != 3)
+			return false;
+		if(!r.isConvName(1) || !r.isImId(2))
+			return false;
+		return server.retrieveHistory(this, r.getField(1), 0, r.getImId(2));
+	}
+
+	/**
+	 * Processes a next history request.
+	 * @param r The parsed request.
+	 * @return True if the next chunk of the history is sent to the client;
+	 * 		   false otherwise.
+	 */
+	private boolean nextHistory(Request r) {
+		if(r.getFieldCount() != 2)
 			return false;
-		if(args[1] == null || !args[1].matches(NetworkConstants.USERNAME))
+		if(!r.isConvName(1))
 			return false;
-		return server.twoWayConversation(name, args[1]);
+		return server.retrieveNextHistory(this, r.getField(1));
+	}
+
+	/**
+	 * Processes a set level request.
+	 * @param r The parsed request.
+	 * @return True if the client's level in the conversation is set; false
+	 * 		   otherwise.
+	 */
+	private boolean setLevel(Request r) {
+		if(r.getFieldCount() != 3)
+			return false;
+		if(!r.isConvName(1))
+			return false;
+		SubscriptionLevel level = SubscriptionLevel.forName(r.getField(2));
+		if(level == null)
+			return false;
+		return server.setSubscriptionLevel(this, r.getField(1), level);
+	}
+
+	/**
+	 * Starts replaying to the client the IMs logged in conv numbered after
+	 * after, up to and including end, in place of any replay of conv already
+	 * under way, and sends the first chunk of them.  Called only while handling
+	 * the client's requests.
+	 * 
+	 * @param conv The conversation, whose log is non-null.
+	 * @param after The sequence number after which to start.
+	 * @param end The sequence number of the last IM to replay, at least after.
+	 * @return True if the chunk is sent; false if the log could not be read,
+	 * 		   in which case the replay is abandoned and the caller is to answer
+	 * 		   the client instead.
+	 */
+	boolean startHistory(Conversation conv, long after, long end) {
+		HistoryCursor cursor = new HistoryCursor(after, end);
+		historyCursors.put(conv.getName(), cursor);
+		return sendHistoryChunk(conv, cursor);
+	}
+
+	/**
+	 * Sends the client the next chunk of the replay of conv's history.  Called
+	 * only while handling the client's requests.
+	 * 
+	 * @param conv The conversation, non-null.
+	 * @return True if the chunk is sent; false if conv's history is not being
+	 * 		   replayed, or the log could not be read, in which case the replay
+	 * 		   is abandoned and the caller is to answer the client instead.
+	 */
+	boolean continueHistory(Conversation conv) {
+		HistoryCursor cursor = historyCursors.get(conv.getName());
+		if(cursor == null)
+			return false;
+		return sendHistoryChunk(conv, cursor);
+	}
+
+	/**
+	 * Abandons the replay of the history of the conversation named convName,
+	 * if one is under way.  Called only while handling the client's requests.
+	 * 
+	 * @param convName The name of the conversation.
+	 */
+	void endHistory(String convName) {
+		historyCursors.remove(convName);
 	}
 
+	/**
+	 * Sends the client up to historyChunkSize of the IMs cursor has yet to
+	 * replay, followed by a history end message, and forgets cursor once it has
+	 * none left.  The IMs are sent from conv's recent messages if it still holds
+	 * them all, and otherwise read from its log a chunk at a time, so a long
+	 * replay neither holds them all in memory nor fills the outbound queue
+	 * ahead of the client's other messages.  If conv keeps no log, the replay
+	 * starts with the oldest IM it still holds.  If the log cannot be read, the
+	 * failure is counted, cursor is forgotten, and nothing is sent.
+	 */
+	private boolean sendHistoryChunk(Conversation conv, HistoryCursor cursor) {
+		int max = (int) Math.min(server.getConfig().getHistoryChunkSize(), cursor.end - cursor.after);
+		List<Frame> frames = new ArrayList<Frame>(max);
+		long after = conv.readRecent(cursor.after, max, frames);
+		if(after == cursor.after)
+			server.getStats().recentHit();
+		else
+			server.getStats().recentMiss();
+		if(after == cursor.after || (after >= 0 && conv.getLog() == null)) {
+			// IMs added since the replay began may follow the ones wanted.
+			long wanted = Math.max(0, cursor.end - after);
+			while(frames.size() > wanted)
+				frames.remove(frames.size() - 1);
+			cursor.after = Math.min(cursor.end, after + frames.size());
+		}
+		else {
+			List<LogRecord> records = new ArrayList<LogRecord>(max);
+			try {
+				conv.getLog().read(cursor.after + 1, max, records);
+			} catch(IOException e) {
+				server.getStats().historyFailed();
+				historyCursors.remove(conv.getName());
+				return false;
+			}
+			frames.clear();
+			for(LogRecord record : records)
+				frames.add(historyFrame(conv.getName(), record));
+			if(!records.isEmpty())
+				cursor.after = records.get(records.size() - 1).getSequence();
+			else
+				cursor.after = cursor.end;
+		}
+		for(Frame frame : frames)
+			sendFrame(frame);
+		long remaining = frames.size() < max ? 0 : cursor.end - cursor.after;
+		if(remaining == 0)
+			historyCursors.remove(conv.getName());
+		sendFrame(historyEndFrame(conv.getName(), cursor.after, remaining));
+		return true;
+	}
+
+	/**
+	 * Stops this User: interrupts this.thread, if there is one, and closes
+	 * this.connection so that a read blocked on it returns.
+	 */
+	void interrupt() {
+		Thread t = thread;
+		if(t != null)
+			t.interrupt();
+		connection.close();
+	}
+	
 	/**
 	 * Removes this from every Conversation it is a participant of (i.e., all
-	 * Conversations in this.conversations).
+	 * Conversations in this.conversations), as it leaves the server (see
+	 * IMServer.departConversation).  this.lock is not held while doing
+	 * so, since each Conversation calls back into removeConversation.
 	 */
-	private synchronized void removeFromAllConversations() {
-		Object[] convCopy = conversations.toArray();
+	private void removeFromAllConversations() {
+		Object[] convCopy;
+		lock.lock();
+		try {
+			convCopy = conversations.toArray();
+		} finally {
+			lock.unlock();
+		}
 		for(Object c : convCopy)
-			server.removeFromConversation(name, ((Conversation)c).getName());
+			server.departConversation(name, ((Conversation)c).getName());
+	}
+	
+	/**
+	 * Returns whether the client has already had the IM numbered messageId
+	 * relayed to conv, as recorded by relayed, and so is sending it again.
+	 * 
+	 * @param conv The Conversation the IM is sent to, non-null.
+	 * @param messageId The client's ID for the IM.
+	 * @return True if the IM has been relayed, or its ID is too old to tell;
+	 * 		   false otherwise.
+	 */
+	boolean isRetransmit(Conversation conv, int messageId) {
+		lock.lock();
+		try {
+			MessageIdWindow window = sentIds.get(conv);
+			return window != null && window.contains(messageId);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Records that the IM numbered messageId has been relayed to conv, if the
+	 * server deduplicates IMs and this is still in conv.
+	 * 
+	 * @param conv The Conversation the IM was sent to, non-null.
+	 * @param messageId The client's ID for the IM.
+	 */
+	void relayed(Conversation conv, int messageId) {
+		int size = server.getConfig().getDedupWindow();
+		if(size == 0)
+			return;
+		lock.lock();
+		try {
+			MessageIdWindow window = sentIds.get(conv);
+			if(window == null) {
+				if(!conversations.contains(conv))
+					return;
+				window = new MessageIdWindow(size);
+				sentIds.put(conv, window);
+			}
+			window.add(messageId);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the other Users in the Conversations this is in, by identity.
+	 * 
+	 * @return A new set of Users, not including this.
+	 */
+	Set<User> peers() {
+		Object[] convCopy;
+		lock.lock();
+		try {
+			convCopy = conversations.toArray();
+		} finally {
+			lock.unlock();
+		}
+		Set<User> peers = PresenceIndex.newUserSet();
+		for(Object c : convCopy) {
+			for(Object v : ((Conversation)c).toArray()) {
+				if(v != this)
+					peers.add((User)v);
+			}
+		}
+		return peers;
 	}
 	
 	/**
@@ -297,11 +1067,29 @@ public class User extends Thread {
 	 * @param conv The Conversation to add to this.conversations.
 	 * @return True if the Conversation was added to this.conversations; false otherwise.
 	 */
-	synchronized boolean addConversation(Conversation conv) {
-		boolean b = conversations.add(conv);
-		if (!b) return false;
-		sendEnteredConvMessage(conv);
-		return true;
+	boolean addConversation(Conversation conv) {
+		return addConversation(conv, enteredConvFrame(conv.toString()));
+	}
+	
+	/**
+	 * Adds conv to this.conversations and, if it was not already there, sends entered
+	 * to the client corresponding to this, as addConversation(conv) does.  Used by
+	 * conv when this is about to join it, and entered lists the new membership.
+	 * 
+	 * @param conv The Conversation to add to this.conversations, non-null.
+	 * @param entered The entered conversation message for conv, non-null.
+	 * @return True if the Conversation was added to this.conversations; false otherwise.
+	 */
+	boolean addConversation(Conversation conv, Frame entered) {
+		lock.lock();
+		try {
+			boolean b = conversations.add(conv);
+			if (!b) return false;
+			sendFrame(entered);
+			return true;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -315,8 +1103,14 @@ public class User extends Thread {
 	 * @param conv The Conversation to remove from this.conversations.
 	 * @return True if the Conversation was removed from this.conversations; false otherwise.
 	 */
-	synchronized boolean removeConversation(Conversation conv) {
-		return conversations.remove(conv);
+	boolean removeConversation(Conversation conv) {
+		lock.lock();
+		try {
+			sentIds.remove(conv);
+			return conversations.remove(conv);
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
@@ -345,8 +1139,18 @@ public class User extends Thread {
 	 * @param conv A non-null Conversation whose name to send.
 	 */
 	void sendEnteredConvMessage(Conversation conv) {
-		String message = NetworkConstants.ENTERED_CONV + "\t" + conv.toString();
-		send(message);
+		sendFrame(enteredConvFrame(conv.toString()));
+	}
+	
+	/**
+	 * Builds an entered conversation message.
+	 * 
+	 * @param content The conversation name and member names, as given by
+	 * 		  Conversation.toString.
+	 * @return The encoded message.
+	 */
+	static Frame enteredConvFrame(String content) {
+		return new Frame(NetworkConstants.ENTERED_CONV + "\t" + content);
 	}
 	
 	/**
@@ -357,9 +1161,19 @@ public class User extends Thread {
 	 * @param convName The name of the conversation to send, non-null.
 	 */
 	void sendAddedToConvMessage(User u, String convName) {
-		String message = NetworkConstants.ADDED_TO_CONV + "\t" + u.getUsername()
-				+ "\t" + convName;
-		send(message);
+		sendFrame(addedToConvFrame(u, convName));
+	}
+	
+	/**
+	 * Builds the added to conversation message that sendAddedToConvMessage sends.
+	 * 
+	 * @param u A non-null User whose name to send.
+	 * @param convName The name of the conversation to send, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame addedToConvFrame(User u, String convName) {
+		return new Frame(NetworkConstants.ADDED_TO_CONV + "\t" + u.getUsername()
+				+ "\t" + convName);
 	}
 	
 	/**
@@ -370,10 +1184,21 @@ public class User extends Thread {
 	 * @param convName The name of the conversation to send, non-null.
 	 */
 	void sendRemovedFromConvMessage(User u, String convName) {
-		String message = NetworkConstants.REMOVED_FROM_CONV + "\t"
+		sendFrame(removedFromConvFrame(u, convName));
+	}
+	
+	/**
+	 * Builds the removed from conversation message that sendRemovedFromConvMessage
+	 * sends.
+	 * 
+	 * @param u A non-null User whose name to send.
+	 * @param convName The name of the conversation to send, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame removedFromConvFrame(User u, String convName) {
+		return new Frame(NetworkConstants.REMOVED_FROM_CONV + "\t"
 				+ u.getUsername() + "\t"
-				+ convName;
-		send(message);
+				+ convName);
 	}
 	
 	/**
@@ -383,8 +1208,162 @@ public class User extends Thread {
 	 * @param u A non-null User whose name to send.
 	 */
 	void sendConnectedMessage(User u) {
-		String message = NetworkConstants.CONNECTED + "\t" + u.getUsername();
-		send(message);
+		sendFrame(connectedFrame(u));
+	}
+	
+	/**
+	 * Builds the connected message that sendConnectedMessage sends.
+	 * 
+	 * @param u A non-null User whose name to send.
+	 * @return The encoded message.
+	 */
+	static Frame connectedFrame(User u) {
+		return new Frame(NetworkConstants.CONNECTED + "\t" + u.getUsername());
+	}
+
+	/**
+	 * Builds a presence message, which tells a client of logins and logouts that
+	 * a PresenceCoalescer has collected: the number of users now online, then
+	 * their names, then the names of the users now offline.
+	 * 
+	 * @param online The names of users that are online, non-null.
+	 * @param offline The names of users that are offline, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame presenceFrame(List<String> online, List<String> offline) {
+		StringBuilder message = new StringBuilder(NetworkConstants.PRESENCE);
+		message.append("\t").append(online.size());
+		for(String name : online)
+			message.append("\t").append(name);
+		for(String name : offline)
+			message.append("\t").append(name);
+		return new Frame(message.toString());
+	}
+
+	/**
+	 * Builds a users page message, one page of the users list sent to a client
+	 * that asked for it in pages.
+	 * 
+	 * @param count The number of other users online, all pages together.
+	 * @param cursor The cursor with which to ask for the next page, or "" if
+	 * 		  this page is the last.  Non-null.
+	 * @param names The names on this page, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame usersPageFrame(int count, String cursor, List<String> names) {
+		StringBuilder message = new StringBuilder(NetworkConstants.USERS_PAGE);
+		message.append("\t").append(count).append("\t").append(cursor);
+		for(String name : names)
+			message.append("\t").append(name);
+		return new Frame(message.toString());
+	}
+
+	/**
+	 * Builds a membership message, which tells a member of a conversation of
+	 * the joins and leaves the conversation has collected: the number of users
+	 * now in it, then their names, then the names of the users now out of it.
+	 * 
+	 * @param convName The name of the conversation, non-null.
+	 * @param in The names of users in the conversation, non-null.
+	 * @param out The names of users out of the conversation, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame membershipFrame(String convName, List<String> in, List<String> out) {
+		StringBuilder message = new StringBuilder(NetworkConstants.MEMBERSHIP);
+		message.append("\t").append(convName).append("\t").append(in.size());
+		for(String name : in)
+			message.append("\t").append(name);
+		for(String name : out)
+			message.append("\t").append(name);
+		return new Frame(message.toString());
+	}
+
+	/**
+	 * Builds a participants diff message, which tells a member of a
+	 * conversation how the participants stand as of a membership version: the
+	 * version it is relative to, the new version, the number of users now in
+	 * the conversation, then their names, then the names of the users now out
+	 * of it.  If since is 0, the lists are empty and the participants follow in
+	 * members page messages.
+	 * 
+	 * @param convName The name of the conversation, non-null.
+	 * @param since The version the message is relative to, or 0.
+	 * @param version The conversation's membership version, positive.
+	 * @param in The names of users in the conversation, non-null.
+	 * @param out The names of users out of the conversation, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame participantsDiffFrame(String convName, long since, long version, List<String> in,
+			List<String> out) {
+		StringBuilder message = new StringBuilder(NetworkConstants.PARTICIPANTS_DIFF);
+		message.append("\t").append(convName).append("\t").append(since).append("\t").append(version)
+				.append("\t").append(in.size());
+		for(String name : in)
+			message.append("\t").append(name);
+		for(String name : out)
+			message.append("\t").append(name);
+		return new Frame(message.toString());
+	}
+
+	/**
+	 * Builds a members page message, one page of the members of a
+	 * conversation sent to a client that entered it.
+	 * 
+	 * @param convName The name of the conversation, non-null.
+	 * @param count The number of other members, all pages together.
+	 * @param cursor The cursor with which to ask for the next page, or "" if
+	 * 		  this page is the last.  Non-null.
+	 * @param names The names on this page, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame membersPageFrame(String convName, int count, String cursor, List<String> names) {
+		StringBuilder message = new StringBuilder(NetworkConstants.MEMBERS_PAGE);
+		message.append("\t").append(convName).append("\t").append(count).append("\t").append(cursor);
+		for(String name : names)
+			message.append("\t").append(name);
+		return new Frame(message.toString());
+	}
+
+	/**
+	 * Builds a history message, one IM replayed from a conversation's log.
+	 * 
+	 * @param convName The name of the conversation, non-null.
+	 * @param record The IM, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame historyFrame(String convName, LogRecord record) {
+		return new Frame(NetworkConstants.HISTORY + "\t"
+				+ convName + "\t"
+				+ record.getSequence() + "\t"
+				+ record.getTimestamp() + "\t"
+				+ record.getSender() + "\t"
+				+ record.getMessageId() + "\t"
+				+ record.getText());
+	}
+
+	/**
+	 * Builds a history end message, which follows each chunk of IMs replayed.
+	 * 
+	 * @param convName The name of the conversation, non-null.
+	 * @param last The sequence number of the last IM sent.
+	 * @param remaining The number of IMs still to replay.
+	 * @return The encoded message.
+	 */
+	static Frame historyEndFrame(String convName, long last, long remaining) {
+		return new Frame(NetworkConstants.HISTORY_END + "\t" + convName + "\t" + last + "\t" + remaining);
+	}
+
+	/**
+	 * Builds an unread message, sent in place of the IMs withheld from a
+	 * client that lowered its SubscriptionLevel in a conversation.
+	 * 
+	 * @param convName The name of the conversation, non-null.
+	 * @param count The number of IMs withheld.
+	 * @param latest The sequence number of the latest IM withheld, or 0.
+	 * @return The encoded message.
+	 */
+	static Frame unreadFrame(String convName, long count, long latest) {
+		return new Frame(NetworkConstants.UNREAD + "\t" + convName + "\t" + count + "\t" + latest);
 	}
 
 	/**
@@ -394,8 +1373,17 @@ public class User extends Thread {
 	 * @param u A non-null User whose name to send.
 	 */
 	void sendDisconnectedMessage(User u) {
-		String message = NetworkConstants.DISCONNECTED + "\t" + u.getUsername();
-		send(message);
+		sendFrame(disconnectedFrame(u));
+	}
+	
+	/**
+	 * Builds the disconnected message that sendDisconnectedMessage sends.
+	 * 
+	 * @param u A non-null User whose name to send.
+	 * @return The encoded message.
+	 */
+	static Frame disconnectedFrame(User u) {
+		return new Frame(NetworkConstants.DISCONNECTED + "\t" + u.getUsername());
 	}
 
 	/**
@@ -408,12 +1396,91 @@ public class User extends Thread {
 	 * @param convName The name of the conversation to send, non-null.
 	 */
 	void sendIMMessage(User u, String m, int messageId, String convName) {
-		String message = NetworkConstants.IM + "\t"
-				+ u.getUsername() + "\t"
+		sendFrame(imFrame(u, m, messageId, convName));
+	}
+	
+	/**
+	 * Builds the IM message that sendIMMessage sends.
+	 * 
+	 * @param u A non-null User whose name to send (the sender of the message).
+	 * @param m The message text to send, non-null.
+	 * @param messageId The ID of this message, unique among all messages sent by u to convName.
+	 * @param convName The name of the conversation to send, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame imFrame(User u, String m, int messageId, String convName) {
+		return imFrame(u.getUsername(), m, messageId, convName);
+	}
+	
+	/**
+	 * Acknowledges an IM the client sent again, after it had been relayed, by
+	 * sending the client alone its own IM back, as it would have been echoed.
+	 * The sequenced form carries sequence number and timestamp 0, since they
+	 * are not kept, as does the ack message sent instead to a client that
+	 * asked for acks.
+	 * 
+	 * @param m The message text, non-null.
+	 * @param messageId The client's ID for the IM.
+	 * @param convName The name of the conversation, non-null.
+	 */
+	void acknowledgeRetransmit(String m, int messageId, String convName) {
+		if(acks)
+			sendFrame(ackFrame(convName, messageId, 0));
+		else if(sequencedIMs)
+			sendFrame(sequencedIMFrame(new LogRecord(0, 0, name, messageId, m), convName));
+		else
+			sendFrame(imFrame(name, m, messageId, convName));
+	}
+	
+	/**
+	 * Builds the IM message that sendIMMessage sends, for a sender known only
+	 * by name, as when the IM was held for the client while it was away.
+	 * 
+	 * @param sender The name of the sender of the message, non-null.
+	 * @param m The message text to send, non-null.
+	 * @param messageId The ID of this message, unique among all messages sent by sender to convName.
+	 * @param convName The name of the conversation to send, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame imFrame(String sender, String m, int messageId, String convName) {
+		return new Frame(NetworkConstants.IM + "\t"
+				+ sender + "\t"
 				+ convName + "\t"
 				+ messageId + "\t" +
-				m;
-		send(message);
+				m);
+	}
+	
+	/**
+	 * Builds the IM message sent to clients that asked for sequenced IMs: an
+	 * IM message with the sequence number and timestamp of record before the
+	 * text.
+	 * 
+	 * @param record The IM, as its Conversation numbered it, non-null.
+	 * @param convName The name of the conversation to send, non-null.
+	 * @return The encoded message.
+	 */
+	static Frame sequencedIMFrame(LogRecord record, String convName) {
+		return new Frame(NetworkConstants.IM + "\t"
+				+ record.getSender() + "\t"
+				+ convName + "\t"
+				+ record.getMessageId() + "\t"
+				+ record.getSequence() + "\t"
+				+ record.getTimestamp() + "\t"
+				+ record.getText());
+	}
+	
+	/**
+	 * Builds the ack message sent, instead of its own IM, to a client that
+	 * asked for acks.
+	 * 
+	 * @param convName The name of the conversation, non-null.
+	 * @param messageId The client's ID for the IM.
+	 * @param sequence The sequence number the conversation gave the IM, or 0
+	 * 		  if it is not known.
+	 * @return The encoded message.
+	 */
+	static Frame ackFrame(String convName, int messageId, long sequence) {
+		return new Frame(NetworkConstants.ACK + "\t" + convName + "\t" + messageId + "\t" + sequence);
 	}
 	
 	/**
@@ -456,11 +1523,54 @@ public class User extends Thread {
 		return name;
 	}
 	
+	/**
+	 * Accessor method for this.pagedUsersList.
+	 * @return True if the client asked for the users list in pages.
+	 */
+	boolean isPagedUsersList() {
+		return pagedUsersList;
+	}
+	
+	/**
+	 * Accessor method for this.sequencedIMs.
+	 * @return True if the client asked for IMs with sequence numbers and
+	 * 		   timestamps.
+	 */
+	boolean isSequencedIMs() {
+		return sequencedIMs;
+	}
+	
+	/**
+	 * Accessor method for this.acks.
+	 * @return True if the client asked for an ack message for each of its own
+	 * 		   IMs rather than the IM itself.
+	 */
+	boolean isAcks() {
+		return acks;
+	}
+	
+	/**
+	 * Accessor method for this.shard.
+	 * @return The shard of the server's FanoutPool this User falls in.
+	 */
+	int getShard() {
+		return shard;
+	}
+	
+	/**
+	 * Sets this.shard.  Called once, as this is added to its server.
+	 * 
+	 * @param shard The shard, from 0 to the FanoutPool's getShards() - 1.
+	 */
+	void setShard(int shard) {
+		this.shard = shard;
+	}
+	
 	/**
 	 * Sets this.name to the given string.
 	 * 
 	 * Should not be called when this has been added to server.users or on
-	 * any thread other than this.
+	 * any thread other than the one running this.
 	 * 
 	 * @param username The string to which to set this.name. Must contain no
 	 * 		  newlines or tabs and must be non-null.  Also,
@@ -492,6 +492,40 @@ public class UserTest {
 		}
 	}
 	
+	/**
+	 * Expect that sendIMMessage sends message text outside of ASCII intact, since
+	 * messages are encoded in NetworkConstants.CHARSET on both ends.
+	 */
+	@Test(timeout=1000) public void sendIMMessageNonAsciiTest() {
+		ServerSocket serverSocket = null;
+		TestClient client = null;
+		User u = null;
+		try {
+			serverSocket = new ServerSocket(NetworkConstants.DEFAULT_PORT);
+			client = new TestClient(NetworkConstants.DEFAULT_PORT);
+			u = new User(null, serverSocket.accept());
+			u.setUsername("us\u00e9r");
+			u.sendIMMessage(u, "\u00fcber \u4f60\u597d \ud83d\ude00", 7, "conv");
+			assertEquals(NetworkConstants.IM + "\tus\u00e9r\tconv\t7\t\u00fcber \u4f60\u597d \ud83d\ude00",
+					client.readLine());
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+			assertFalse(true);
+		} catch (IOException e) {
+			e.printStackTrace();
+			assertFalse(true);
+		} finally {
+			try {
+				if(client != null)
+					client.close();
+				if(serverSocket != null)
+					serverSocket.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
 	/**
 	 * Expect that sendParticipantsMessage properly sends a participants message,
 	 * following the grammar, when given an empty array.
@@ -0,0 +1,56 @@
+package server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Starts virtual threads for ConnectionMode.VIRTUAL_THREAD.  guichat is built
+ * against older Java releases, so Thread.startVirtualThread (Java 21) is looked up
+ * reflectively; on older JVMs isSupported() returns false.
+ */
+class VirtualThreads {
+
+	private static final Method START_VIRTUAL_THREAD = lookup();
+
+	private VirtualThreads() {}
+
+	private static Method lookup() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch(NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether this JVM can start virtual threads.
+	 *
+	 * @return True if start may be called; false otherwise.
+	 */
+	static boolean isSupported() {
+		return START_VIRTUAL_THREAD != null;
+	}
+
+	/**
+	 * Starts a new virtual thread running task.
+	 *
+	 * Requires that isSupported() is true.
+	 *
+	 * @param task The task to run, non-null.
+	 * @return The started thread.
+	 */
+	static Thread start(Runnable task) {
+		try {
+			return (Thread) START_VIRTUAL_THREAD.invoke(null, task);
+		} catch(IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch(InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import network.NetworkConstants;
+
+import server.ConnectionMode;
+import server.IMServer;
+import server.ServerConfig;
+
+/**
+ * Measures how long an IM posted to a broadcast channel with a great many
+ * listeners takes to reach the last of them.  Starts a SELECTOR server in this
+ * JVM, with presence scoped so that the logins themselves broadcast nothing,
+ * has a publisher create a channel, and has every listener connect and enter
+ * it.  Then the publisher posts one IM at a time, each once every listener
+ * has the one before, and the time from posting each to the last listener
+ * reading it is reported.  Usage:
+ *
+ *   java test.ChannelFanoutBenchmark [listeners] [fanoutThreads] [rounds] [port]
+ *
+ * where listeners defaults to 100000, fanoutThreads, the server's
+ * ServerConfig.setFanoutThreads, defaults to the number of processors, and
+ * rounds defaults to 20; the first few rounds warm up the JIT, and are
+ * reported with the rest.  Run with fanoutThreads 1 and again with more to
+ * see what sharding the fan-out buys.  The listeners are read by
+ * READER_THREADS threads of this process, so on a machine with few cores the
+ * times include the clients' reading as much as the server's writing.  As in
+ * IdleConnectionBenchmark, both ends of every connection live in this
+ * process, so the open file limit (ulimit -n) must be more than twice
+ * listeners.
+ */
+public class ChannelFanoutBenchmark {
+
+	private static final int CONNECTIONS_PER_SOURCE_ADDRESS = 20000;
+	private static final int READER_THREADS = 4;
+	private static final String CHANNEL = "channel";
+	private static final int IM_TYPE = Integer.parseInt(NetworkConstants.IM);
+	private static final int ENTERED_TYPE = Integer.parseInt(NetworkConstants.ENTERED_CONV);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int listeners = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 4448;
+
+		IMServer server = new IMServer(port, new ServerConfig().setConnectionMode(ConnectionMode.SELECTOR)
+				.setScopedPresence(true).setFanoutThreads(threads));
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		Socket socket = new Socket("localhost", port);
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), NetworkConstants.CHARSET));
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), NetworkConstants.CHARSET));
+		out.println(NetworkConstants.CONNECT + "\tpublisher");
+		out.println(NetworkConstants.NEW_CHANNEL + "\t" + CHANNEL);
+		out.flush();
+		in.readLine();
+		in.readLine();
+
+		Readers readers = new Readers(listeners);
+		long start = System.nanoTime();
+		int n = 0;
+		try {
+			for(; n < listeners; ++n) {
+				SocketChannel channel = SocketChannel.open();
+				String source = "127.0.0." + (2 + n / CONNECTIONS_PER_SOURCE_ADDRESS);
+				channel.socket().bind(new InetSocketAddress(source, 0));
+				channel.connect(new InetSocketAddress("127.0.0.1", port));
+				String lines = NetworkConstants.CONNECT + "\tlistener" + n + "\n"
+						+ NetworkConstants.ENTER_CONV + "\t" + CHANNEL + "\n";
+				ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(NetworkConstants.CHARSET));
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+				readers.add(channel);
+			}
+		} catch(IOException e) {
+			System.out.println("Stopped after " + n + " connections: " + e);
+		}
+		readers.start();
+		readers.awaitEntered(n);
+		System.out.println(n + " listeners entered in " + (System.nanoTime() - start) / 1000000 + " ms, "
+				+ threads + " fan-out threads, " + Runtime.getRuntime().availableProcessors() + " processors");
+
+		double[] millis = new double[rounds];
+		for(int r = 0; r < rounds; ++r) {
+			CountDownLatch delivered = readers.expect(n);
+			long posted = System.nanoTime();
+			out.println(NetworkConstants.IM + "\t" + CHANNEL + "\t" + r + "\tround " + r);
+			out.flush();
+			delivered.await();
+			millis[r] = (System.nanoTime() - posted) / 1e6;
+			in.readLine();
+			System.out.println(String.format("round %3d   %9.1f ms to the last listener", r, millis[r]));
+		}
+		Arrays.sort(millis);
+		System.out.println(String.format("min %.1f ms, median %.1f ms, max %.1f ms", millis[0],
+				millis[rounds / 2], millis[rounds - 1]));
+		System.exit(0);
+	}
+
+	/**
+	 * The threads reading the listeners' connections, each over a Selector of
+	 * its own, counting the entered conversation messages and IMs read.
+	 */
+	private static class Readers {
+		private final Selector[] selectors = new Selector[READER_THREADS];
+		private final List<List<SocketChannel>> channels = new ArrayList<List<SocketChannel>>();
+		private final AtomicInteger entered = new AtomicInteger();
+		private final AtomicInteger remaining = new AtomicInteger();
+		private volatile CountDownLatch delivered;
+		private int added;
+
+		Readers(int listeners) throws IOException {
+			for(int i = 0; i < READER_THREADS; ++i) {
+				selectors[i] = Selector.open();
+				channels.add(new ArrayList<SocketChannel>(listeners / READER_THREADS + 1));
+			}
+		}
+
+		void add(SocketChannel channel) {
+			channels.get(added++ % READER_THREADS).add(channel);
+		}
+
+		void start() throws IOException {
+			for(int i = 0; i < READER_THREADS; ++i) {
+				final Selector selector = selectors[i];
+				for(SocketChannel channel : channels.get(i)) {
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, new LineState());
+				}
+				Thread t = new Thread("reader-" + i) {
+					public void run() {
+						try {
+							read(selector);
+						} catch(IOException e) {
+							e.printStackTrace();
+						}
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+
+		void awaitEntered(int n) throws InterruptedException {
+			while(entered.get() < n)
+				Thread.sleep(10);
+		}
+
+		/**
+		 * Returns a latch released once n more IMs have been read.
+		 */
+		CountDownLatch expect(int n) {
+			CountDownLatch latch = new CountDownLatch(1);
+			remaining.set(n);
+			delivered = latch;
+			return latch;
+		}
+
+		private void read(Selector selector) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			while(true) {
+				selector.select();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					buffer.clear();
+					if(((SocketChannel) key.channel()).read(buffer) < 0) {
+						key.cancel();
+						continue;
+					}
+					buffer.flip();
+					LineState state = (LineState) key.attachment();
+					while(buffer.hasRemaining()) {
+						int type = state.next(buffer.get());
+						if(type == ENTERED_TYPE)
+							entered.incrementAndGet();
+						else if(type == IM_TYPE && remaining.decrementAndGet() == 0)
+							delivered.countDown();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Where one listener's connection is in the line being read: the message
+	 * type, as far as it has been read, and whether it has all been read.
+	 */
+	private static class LineState {
+		private int type;
+		private boolean typeRead;
+
+		/**
+		 * Takes in the next byte, and returns the type of the message it ends,
+		 * if it is a newline, or -1.
+		 */
+		int next(byte b) {
+			if(b == '\n') {
+				int t = type;
+				type = 0;
+				typeRead = false;
+				return t;
+			}
+			if(!typeRead) {
+				if(b == '\t')
+					typeRead = true;
+				else
+					type = 10 * type + (b - '0');
+			}
+			return -1;
+		}
+	}
+}
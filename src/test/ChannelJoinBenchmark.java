@@ -0,0 +1,123 @@
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import network.NetworkConstants;
+
+import server.ConnectionMode;
+import server.IMServer;
+import server.ServerConfig;
+
+/**
+ * Measures how long listeners take to join a broadcast channel as it fills
+ * up.  Starts a SELECTOR server in this JVM, with presence scoped so that the
+ * logins themselves broadcast nothing, has a publisher create a channel, and
+ * has listeners connect and enter it a batch at a time, each batch once every
+ * listener of the one before has been told it has entered.  The time each
+ * batch takes is reported: if joining costs the same however many listeners
+ * there are already, the last batch takes no longer than the first.  Usage:
+ *
+ *   java test.ChannelJoinBenchmark [listeners] [batch] [port]
+ *
+ * where listeners defaults to 100000 and batch to 10000.  As in
+ * ChannelFanoutBenchmark, both ends of every connection live in this process,
+ * so the open file limit (ulimit -n) must be more than twice listeners.
+ */
+public class ChannelJoinBenchmark {
+
+	private static final int CONNECTIONS_PER_SOURCE_ADDRESS = 20000;
+	private static final String CHANNEL = "channel";
+	private static final String ENTERED_PREFIX = NetworkConstants.ENTERED_CONV + "\t";
+
+	public static void main(String[] args) throws IOException {
+		int listeners = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int batch = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 4448;
+
+		IMServer server = new IMServer(port, new ServerConfig().setConnectionMode(ConnectionMode.SELECTOR)
+				.setScopedPresence(true));
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		Socket socket = new Socket("localhost", port);
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), NetworkConstants.CHARSET));
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), NetworkConstants.CHARSET));
+		out.println(NetworkConstants.CONNECT + "\tpublisher");
+		out.println(NetworkConstants.NEW_CHANNEL + "\t" + CHANNEL);
+		out.flush();
+		in.readLine();
+		in.readLine();
+
+		List<SocketChannel> channels = new ArrayList<SocketChannel>(listeners);
+		long start = System.nanoTime();
+		long first = 0;
+		long last = 0;
+		int n = 0;
+		try {
+			while(n < listeners) {
+				long began = System.nanoTime();
+				int from = n;
+				for(; n < listeners && n - from < batch; ++n) {
+					SocketChannel channel = SocketChannel.open();
+					String source = "127.0.0." + (2 + n / CONNECTIONS_PER_SOURCE_ADDRESS);
+					channel.socket().bind(new InetSocketAddress(source, 0));
+					channel.connect(new InetSocketAddress("127.0.0.1", port));
+					String lines = NetworkConstants.CONNECT + "\tlistener" + n + "\n"
+							+ NetworkConstants.ENTER_CONV + "\t" + CHANNEL + "\n";
+					ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(NetworkConstants.CHARSET));
+					while(buffer.hasRemaining())
+						channel.write(buffer);
+					channels.add(channel);
+				}
+				for(int i = from; i < n; ++i)
+					awaitEntered(channels.get(i));
+				long millis = (System.nanoTime() - began) / 1000000;
+				if(from == 0)
+					first = millis;
+				last = millis;
+				System.out.println(String.format("listeners %7d to %7d joined in %6d ms", from, n, millis));
+			}
+		} catch(IOException e) {
+			System.out.println("Stopped after " + n + " connections: " + e);
+		}
+		System.out.println(n + " listeners joined in " + (System.nanoTime() - start) / 1000000
+				+ " ms; last batch took " + String.format("%.2f", (double) last / Math.max(1, first))
+				+ " times as long as the first");
+		System.exit(0);
+	}
+
+	/**
+	 * Reads from channel, blocking, until it has been sent a whole entered
+	 * conversation message.
+	 */
+	private static void awaitEntered(SocketChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		StringBuilder line = new StringBuilder();
+		while(true) {
+			buffer.clear();
+			if(channel.read(buffer) < 0)
+				throw new IOException("connection closed before entering " + CHANNEL);
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				char c = (char) buffer.get();
+				if(c != '\n')
+					line.append(c);
+				else if(line.toString().startsWith(ENTERED_PREFIX))
+					return;
+				else
+					line.setLength(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.ConnectionMode;
+import server.IMServer;
+import server.ServerConfig;
+
+/**
+ * Measures what it costs an IMServer to hold a large number of idle client
+ * connections in a given ConnectionMode.  Starts a server in this JVM, opens the
+ * requested number of connections to it (over non-blocking channels, so the
+ * clients themselves use no threads), lets the server settle, and reports the
+ * live platform thread count, heap in use, and resident set size before and
+ * after.
+ *
+ * The clients never send a connect message, so no broadcasts are generated;
+ * the numbers are the per-connection cost of the server's User and its
+ * transport alone.  Usage:
+ *
+ *   java test.IdleConnectionBenchmark [mode] [clients] [port]
+ *
+ * where mode is THREAD_PER_USER (the default), VIRTUAL_THREAD or SELECTOR, and
+ * clients defaults to 50000.  Run each mode in a fresh JVM.  Both ends of every
+ * connection live in this process, so the open file limit (ulimit -n) must be
+ * more than twice clients; connections are spread over several loopback source
+ * addresses so that the ephemeral port range is not exhausted.
+ */
+public class IdleConnectionBenchmark {
+
+	private static final int CONNECTIONS_PER_SOURCE_ADDRESS = 20000;
+	private static final long SETTLE_MILLIS = 5000;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		ConnectionMode mode = args.length > 0 ? ConnectionMode.valueOf(args[0]) : ConnectionMode.THREAD_PER_USER;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 4446;
+
+		IMServer server = new IMServer(port, new ServerConfig().setConnectionMode(mode));
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		Sample before = Sample.take();
+		List<SocketChannel> channels = new ArrayList<SocketChannel>(clients);
+		long start = System.nanoTime();
+		try {
+			for(int i = 0; i < clients; ++i) {
+				SocketChannel channel = SocketChannel.open();
+				String source = "127.0.0." + (2 + i / CONNECTIONS_PER_SOURCE_ADDRESS);
+				channel.socket().bind(new InetSocketAddress(source, 0));
+				channel.connect(new InetSocketAddress("127.0.0.1", port));
+				channels.add(channel);
+			}
+		} catch(IOException e) {
+			System.out.println("Stopped after " + channels.size() + " connections: " + e);
+		}
+		long connectMillis = (System.nanoTime() - start) / 1000000;
+		Thread.sleep(SETTLE_MILLIS);
+		Sample after = Sample.take();
+
+		int n = channels.size();
+		System.out.println("mode              " + mode);
+		System.out.println("connections       " + n + " (" + connectMillis + " ms to open)");
+		System.out.println("platform threads  " + before.threads + " -> " + after.threads
+				+ " (peak " + after.peakThreads + ")");
+		System.out.println("heap used (MB)    " + mb(before.heapUsed) + " -> " + mb(after.heapUsed));
+		System.out.println("resident (MB)     " + mb(before.rss) + " -> " + mb(after.rss));
+		if(n > 0) {
+			System.out.println("heap per conn (B) " + (after.heapUsed - before.heapUsed) / n);
+			if(after.rss >= 0)
+				System.out.println("rss per conn (B)  " + (after.rss - before.rss) / n);
+		}
+
+		for(SocketChannel channel : channels)
+			channel.close();
+		System.exit(0);
+	}
+
+	private static String mb(long bytes) {
+		return bytes < 0 ? "n/a" : String.valueOf(bytes / (1024 * 1024));
+	}
+
+	/**
+	 * One measurement of this JVM's thread count and memory use.
+	 */
+	private static class Sample {
+		int threads;
+		int peakThreads;
+		long heapUsed;
+		long rss;
+
+		static Sample take() {
+			System.gc();
+			Sample s = new Sample();
+			ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+			MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+			s.threads = threadBean.getThreadCount();
+			s.peakThreads = threadBean.getPeakThreadCount();
+			s.heapUsed = memoryBean.getHeapMemoryUsage().getUsed();
+			s.rss = residentSetSize();
+			return s;
+		}
+
+		/**
+		 * Returns this process's resident set size in bytes, read from
+		 * /proc/self/status, or -1 where that is unavailable.
+		 */
+		static long residentSetSize() {
+			BufferedReader in = null;
+			try {
+				in = new BufferedReader(new FileReader("/proc/self/status"));
+				for(String line = in.readLine(); line != null; line = in.readLine()) {
+					if(line.startsWith("VmRSS:"))
+						return 1024 * Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			} catch(IOException e) {
+			} finally {
+				if(in != null) {
+					try { in.close(); }
+					catch(IOException ee) {}
+				}
+			}
+			return -1;
+		}
+	}
+}
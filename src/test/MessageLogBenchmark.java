@@ -0,0 +1,109 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+
+import server.MessageLog;
+
+/**
+ * Measures the rate at which a MessageLog takes IMs, with several threads
+ * appending to many conversations at once as a busy server's users would, and
+ * how long the log takes to recover when reopened.  For contrast, also times
+ * writing a few thousand IMs to a plain file with an fsync apiece, which is
+ * what group commit (see MessageLog) saves.  The log is written to a fresh
+ * directory under dir, deleted afterwards, which should be on the disk being
+ * judged.  Usage:
+ *
+ *   java test.MessageLogBenchmark [messages] [conversations] [threads] [syncMillis] [dir]
+ *
+ * where messages defaults to 1000000, conversations to 100, threads to 4,
+ * syncMillis to 20, and dir to the system's temporary directory.  IMs are of
+ * 100 characters, a little longer than most.
+ */
+public class MessageLogBenchmark {
+
+	private static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		final int conversations = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		long syncMillis = args.length > 3 ? Long.parseLong(args[3]) : 20;
+		File parent = new File(args.length > 4 ? args[4] : System.getProperty("java.io.tmpdir"));
+		File dir = Files.createTempDirectory(parent.toPath(), "messagelog").toFile();
+		StringBuilder b = new StringBuilder();
+		for(int i = 0; i < 100; ++i)
+			b.append((char) ('a' + i % 26));
+		final String text = b.toString();
+
+		try {
+			final MessageLog log = new MessageLog(dir, SEGMENT_BYTES, syncMillis);
+			final CountDownLatch done = new CountDownLatch(threads);
+			long start = System.nanoTime();
+			for(int t = 0; t < threads; ++t) {
+				final int first = t;
+				final int stride = threads;
+				new Thread() {
+					public void run() {
+						try {
+							for(int i = first; i < messages; i += stride)
+								log.append("conversation" + (i % conversations), "user" + (i % 1000), i, text);
+						} catch(IOException e) {
+							e.printStackTrace();
+						}
+						done.countDown();
+					}
+				}.start();
+			}
+			done.await();
+			long appended = System.nanoTime();
+			log.close();
+			long closed = System.nanoTime();
+			System.out.println(String.format("%d IMs to %d conversations from %d threads, sync every %d ms",
+					messages, conversations, threads, syncMillis));
+			System.out.println(String.format("append: %.0f IMs/s, %.1f MB/s, %.2f us/IM; %d syncs, final sync %.1f ms",
+					log.getAppends() / ((appended - start) / 1e9),
+					log.getBytesAppended() / ((appended - start) / 1e3),
+					(appended - start) / 1e3 / log.getAppends(), log.getSyncs(), (closed - appended) / 1e6));
+
+			start = System.nanoTime();
+			MessageLog reopened = new MessageLog(dir, SEGMENT_BYTES, syncMillis);
+			long recovered = System.nanoTime();
+			long last = reopened.getLastSequence("conversation0");
+			reopened.close();
+			System.out.println(String.format("recover: %.1f ms, conversation0 ends at %d",
+					(recovered - start) / 1e6, last));
+
+			int n = Math.min(messages, 2000);
+			File plain = new File(dir, "fsync-per-message");
+			RandomAccessFile raf = new RandomAccessFile(plain, "rw");
+			byte[] record = text.getBytes("UTF-8");
+			start = System.nanoTime();
+			try {
+				for(int i = 0; i < n; ++i) {
+					raf.write(record);
+					raf.getChannel().force(false);
+				}
+			} finally {
+				raf.close();
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.println(String.format("fsync per IM: %.0f IMs/s over %d IMs", n / (elapsed / 1e9), n));
+		} finally {
+			delete(dir);
+		}
+		System.exit(0);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,180 @@
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import network.NetworkConstants;
+
+import server.ConnectionMode;
+import server.IMServer;
+import server.ServerConfig;
+import server.ServerStats;
+
+/**
+ * A scaled-up ServerTest.largeNumberOfUsersLoginTest: measures what a login
+ * storm and a logout storm cost the server, with presence changes sent one
+ * message apiece, and coalesced over a window (see
+ * ServerConfig.setPresenceWindowMillis).  For each setting, starts a server in
+ * this JVM, has every client connect at once and read until it knows every
+ * other client is online, then has half of them disconnect at once while the
+ * other half read until they know those are gone.  Reports how long each storm
+ * took to settle, and how many messages and bytes the server wrote.  Usage:
+ *
+ *   java test.PresenceStormBenchmark [clients] [windowMillis] [mode] [port]
+ *
+ * where clients defaults to 1000, windowMillis, the coalescing window compared
+ * against none, defaults to 50, and mode defaults to SELECTOR, which keeps the
+ * server's thread count down.  Each client has a thread of its own, so the
+ * client count is bounded by how many threads the machine will run.
+ */
+public class PresenceStormBenchmark {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long window = args.length > 1 ? Long.parseLong(args[1]) : 50;
+		ConnectionMode mode = args.length > 2 ? ConnectionMode.valueOf(args[2]) : ConnectionMode.SELECTOR;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 4447;
+
+		System.out.println(clients + " clients, mode " + mode);
+		System.out.println("window ms   storm    settled ms     messages        bytes");
+		run(clients, 0, mode, port);
+		run(clients, window, mode, port + 1);
+		System.exit(0);
+	}
+
+	/**
+	 * Runs both storms against a new server with the given presence window.
+	 */
+	private static void run(int n, long window, ConnectionMode mode, int port)
+			throws IOException, InterruptedException {
+		IMServer server = new IMServer(port, new ServerConfig().setConnectionMode(mode)
+				.setPresenceWindowMillis(window));
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+		ServerStats stats = server.getStats();
+
+		final CountDownLatch loggedIn = new CountDownLatch(n);
+		final CountDownLatch leave = new CountDownLatch(1);
+		final CountDownLatch loggedOut = new CountDownLatch(n - n / 2);
+		final Client[] clients = new Client[n];
+		for(int i = 0; i < n; ++i)
+			clients[i] = new Client(port, "storm" + i);
+
+		long messages = stats.getMessagesWritten();
+		long bytes = stats.getBytesWritten();
+		long start = System.nanoTime();
+		for(int i = 0; i < n; ++i) {
+			final Client client = clients[i];
+			final boolean leaving = i < n / 2;
+			final int total = n;
+			new Thread() {
+				public void run() {
+					try {
+						client.login();
+						client.awaitOnline(total);
+						loggedIn.countDown();
+						leave.await();
+						if(leaving)
+							client.logout();
+						else {
+							client.awaitOnline(total - total / 2);
+							loggedOut.countDown();
+						}
+					} catch(IOException e) {
+						e.printStackTrace();
+					} catch(InterruptedException e) {
+					}
+				}
+			}.start();
+		}
+		loggedIn.await();
+		report(window, "login", start, stats, messages, bytes);
+
+		messages = stats.getMessagesWritten();
+		bytes = stats.getBytesWritten();
+		start = System.nanoTime();
+		leave.countDown();
+		loggedOut.await();
+		report(window, "logout", start, stats, messages, bytes);
+
+		for(Client client : clients)
+			client.close();
+		serverThread.interrupt();
+	}
+
+	private static void report(long window, String storm, long start, ServerStats stats, long messages,
+			long bytes) {
+		System.out.println(String.format("%9d   %-6s %11.0f %12d %12d", window, storm,
+				(System.nanoTime() - start) / 1e6, stats.getMessagesWritten() - messages,
+				stats.getBytesWritten() - bytes));
+	}
+
+	/**
+	 * One client, which keeps track of who it knows to be online.
+	 */
+	private static class Client {
+		private final Socket socket;
+		private final PrintWriter out;
+		private final BufferedReader in;
+		private final String name;
+		private final Set<String> online = new HashSet<String>();
+
+		Client(int port, String name) throws IOException {
+			socket = new Socket("localhost", port);
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), NetworkConstants.CHARSET));
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), NetworkConstants.CHARSET));
+			this.name = name;
+		}
+
+		void login() {
+			out.println(NetworkConstants.CONNECT + "\t" + name);
+			out.flush();
+		}
+
+		void logout() {
+			out.println(NetworkConstants.DISCONNECT_NO_TAB);
+			out.flush();
+		}
+
+		/**
+		 * Reads presence messages until exactly n users, this one included, are
+		 * known to be online.
+		 */
+		void awaitOnline(int n) throws IOException {
+			while(online.size() != n) {
+				String line = in.readLine();
+				if(line == null)
+					throw new IOException("server closed the connection");
+				String[] fields = line.split("\t", -1);
+				String type = fields[0];
+				if(type.equals(NetworkConstants.INIT_USERS_LIST) || type.equals(NetworkConstants.CONNECTED)) {
+					for(int i = 1; i < fields.length; ++i)
+						online.add(fields[i]);
+				} else if(type.equals(NetworkConstants.DISCONNECTED))
+					online.remove(fields[1]);
+				else if(type.equals(NetworkConstants.PRESENCE)) {
+					int count = Integer.parseInt(fields[1]);
+					for(int i = 2; i < fields.length; ++i) {
+						if(i < 2 + count)
+							online.add(fields[i]);
+						else
+							online.remove(fields[i]);
+					}
+				}
+			}
+		}
+
+		void close() {
+			try { socket.close(); }
+			catch(IOException ee) {}
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import network.NetworkConstants;
+
+import server.ConnectionMode;
+import server.IMServer;
+import server.ServerConfig;
+
+/**
+ * Measures how an IMServer's request throughput scales with the number of
+ * clients making requests at once, which is bounded by contention on the
+ * server's shared state (its user and conversation registries above all) once
+ * there are enough cores.  Starts a server in this JVM, then for 1, 2, 4, ...
+ * up to the requested number of client threads, has each thread connect, create
+ * a conversation of its own, and then issue requests as fast as the server
+ * answers them: IMs to its conversation and participants requests for it,
+ * alternately, WINDOW at a time.  Every request looks up the sending user and
+ * the conversation, but no two clients share a conversation, so the only shared
+ * state the requests touch is the registries.  Usage:
+ *
+ *   java test.RegistryContentionBenchmark [mode] [maxThreads] [seconds] [port]
+ *
+ * where mode is THREAD_PER_USER (the default), VIRTUAL_THREAD or SELECTOR,
+ * maxThreads defaults to 32, and seconds, the measuring time for each thread
+ * count, defaults to 5.  Clients and server share the machine, so the scaling
+ * reported is only meaningful with at least twice maxThreads cores; on fewer,
+ * compare runs of the same thread count before and after a change instead.
+ */
+public class RegistryContentionBenchmark {
+
+	private static final int WINDOW = 32;
+	private static final long WARMUP_MILLIS = 1000;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		ConnectionMode mode = args.length > 0 ? ConnectionMode.valueOf(args[0]) : ConnectionMode.THREAD_PER_USER;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 4446;
+
+		IMServer server = new IMServer(port, new ServerConfig().setConnectionMode(mode));
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		System.out.println("mode " + mode + ", " + Runtime.getRuntime().availableProcessors()
+				+ " processors, " + seconds + " s per run");
+		System.out.println("threads   requests/s   speedup");
+		double base = 0;
+		for(int threads = 1; threads <= maxThreads; threads *= 2) {
+			double rate = run(port, threads, seconds);
+			if(base == 0)
+				base = rate;
+			System.out.println(String.format("%7d %12.0f %9.2f", threads, rate, rate / base));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Runs one measurement with the given number of client threads.
+	 *
+	 * @return The number of requests answered per second, over all clients.
+	 */
+	private static double run(int port, int threads, int seconds) throws IOException, InterruptedException {
+		final AtomicLong answered = new AtomicLong();
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final List<Client> clients = new ArrayList<Client>();
+		for(int i = 0; i < threads; ++i)
+			clients.add(new Client(port, "bench" + threads + "_" + i));
+		for(final Client client : clients) {
+			new Thread() {
+				public void run() {
+					try {
+						client.setUp();
+						ready.countDown();
+						while(!client.stopped)
+							answered.addAndGet(client.exchange());
+					} catch(IOException e) {
+						e.printStackTrace();
+						ready.countDown();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		ready.await();
+		Thread.sleep(WARMUP_MILLIS);
+		long before = answered.get();
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long count = answered.get() - before;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		for(Client client : clients)
+			client.stopped = true;
+		done.await();
+		for(Client client : clients)
+			client.close();
+		return count / elapsed;
+	}
+
+	/**
+	 * One benchmark client: a connection, logged in as name, with a conversation
+	 * of its own.
+	 */
+	private static class Client {
+		private final Socket socket;
+		private final PrintWriter out;
+		private final BufferedReader in;
+		private final String name;
+		private final String conv;
+		private int messageId;
+		volatile boolean stopped;
+
+		Client(int port, String name) throws IOException {
+			socket = new Socket("localhost", port);
+			socket.setTcpNoDelay(true);
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), NetworkConstants.CHARSET));
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), NetworkConstants.CHARSET));
+			this.name = name;
+			this.conv = name + "-conv";
+		}
+
+		/**
+		 * Connects and creates this client's conversation.
+		 */
+		void setUp() throws IOException {
+			out.println(NetworkConstants.CONNECT + "\t" + name);
+			out.println(NetworkConstants.NEW_CONV + "\t" + conv);
+			out.flush();
+			awaitType(NetworkConstants.ENTERED_CONV);
+		}
+
+		/**
+		 * Sends WINDOW requests and waits for all of their answers.
+		 *
+		 * @return The number of requests answered.
+		 */
+		int exchange() throws IOException {
+			for(int i = 0; i < WINDOW; ++i) {
+				if(i % 2 == 0)
+					out.println(NetworkConstants.IM + "\t" + conv + "\t" + messageId++ + "\thello");
+				else
+					out.println(NetworkConstants.RETRIEVE_PARTICIPANTS + "\t" + conv);
+			}
+			out.flush();
+			int answered = 0;
+			while(answered < WINDOW) {
+				String line = in.readLine();
+				if(line == null)
+					throw new IOException("server closed the connection");
+				if(line.startsWith(NetworkConstants.IM + "\t")
+						|| line.startsWith(NetworkConstants.PARTICIPANTS + "\t"))
+					++answered;
+				else if(line.startsWith(NetworkConstants.ERROR + "\t"))
+					throw new IOException("server rejected a request: " + line);
+			}
+			return answered;
+		}
+
+		/**
+		 * Reads lines until one of the given message type, skipping presence
+		 * messages about other clients.
+		 */
+		private void awaitType(String type) throws IOException {
+			for(String line = in.readLine(); line != null; line = in.readLine()) {
+				if(line.startsWith(type + "\t"))
+					return;
+				if(line.startsWith(NetworkConstants.ERROR + "\t"))
+					throw new IOException("server rejected a request: " + line);
+			}
+			throw new IOException("server closed the connection");
+		}
+
+		void close() {
+			out.println(NetworkConstants.DISCONNECT_NO_TAB);
+			out.flush();
+			try { socket.close(); }
+			catch(IOException ee) {}
+		}
+	}
+}
@@ -3,6 +3,7 @@ package test;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -30,8 +31,10 @@ public class TestClient {
  	 */
 	public TestClient(int port) throws UnknownHostException, IOException {
 		socket = new Socket("localhost", port);
-		out = new PrintWriter(socket.getOutputStream(), true);
-		in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
+				NetworkConstants.CHARSET), true);
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+				NetworkConstants.CHARSET));
 	}
 
 	/**
@@ -3,6 +3,7 @@ package test;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -26,8 +27,10 @@ public class TestUtility {
  	 */
 	public TestUtility(int port) throws UnknownHostException, IOException {
 		socket = new Socket("localhost", port);
-		out = new PrintWriter(socket.getOutputStream(), true);
-		in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
+				NetworkConstants.CHARSET), true);
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+				NetworkConstants.CHARSET));
 	}
 
 	/**
@@ -0,0 +1,169 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import network.BinaryCodec;
+import network.MessageDecoder;
+import network.NetworkConstants;
+
+/**
+ * Compares the text protocol with binary framing (see network.BinaryCodec) on
+ * the size of messages on the wire and the cost of encoding and decoding them.
+ * Builds a fixed, pseudo-random mix of server-to-client messages (mostly IMs,
+ * with presence, membership, and participants lists) and of client-to-server
+ * requests, encodes each mix into one stream per framing, and decodes the
+ * stream back into messages with a MessageDecoder, 4096 bytes at a time, as a
+ * connection reading from a socket would.  Both decoders produce the same text
+ * form of each message, so what is compared is the framing alone.  Usage:
+ *
+ *   java test.WireProtocolBenchmark [messages] [rounds]
+ *
+ * where messages, the size of each mix, defaults to 200000, and rounds, the
+ * number of timed passes (the best of which is reported, after as many
+ * untimed ones), defaults to 10.
+ */
+public class WireProtocolBenchmark {
+
+	private static final int CHUNK_BYTES = 4096;
+
+	public static void main(String[] args) throws IOException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		Random random = new Random(9);
+		List<String> fromServer = new ArrayList<String>();
+		List<String> fromClient = new ArrayList<String>();
+		for(int i = 0; i < messages; ++i) {
+			fromServer.add(serverMessage(random, i));
+			fromClient.add(clientMessage(random, i));
+		}
+
+		System.out.println(messages + " messages each way, best of " + rounds + " rounds");
+		System.out.println("direction  framing   bytes/msg   encode ns/msg   decode ns/msg");
+		report("to client", fromServer, true, rounds);
+		report("to server", fromClient, false, rounds);
+	}
+
+	/**
+	 * Measures and prints one mix of messages in both framings.
+	 */
+	private static void report(String direction, List<String> mix, boolean fromServer, int rounds)
+			throws IOException {
+		for(boolean binary : new boolean[] { false, true }) {
+			byte[] stream = null;
+			long encode = Long.MAX_VALUE;
+			long decode = Long.MAX_VALUE;
+			for(int round = -rounds; round < rounds; ++round) {
+				long start = System.nanoTime();
+				stream = encode(mix, fromServer, binary);
+				long encoded = System.nanoTime();
+				int n = decode(stream, fromServer, binary);
+				long decoded = System.nanoTime();
+				if(n != mix.size())
+					throw new IllegalStateException("decoded " + n + " of " + mix.size() + " messages");
+				if(round >= 0) {
+					encode = Math.min(encode, encoded - start);
+					decode = Math.min(decode, decoded - encoded);
+				}
+			}
+			System.out.println(String.format("%-10s %-8s %10.1f %15.1f %15.1f", direction,
+					binary ? "binary" : "text", (double) stream.length / mix.size(),
+					(double) encode / mix.size(), (double) decode / mix.size()));
+		}
+	}
+
+	/**
+	 * Encodes every message in mix, in order, into one stream.
+	 */
+	private static byte[] encode(List<String> mix, boolean fromServer, boolean binary) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(String message : mix) {
+			if(binary)
+				out.write(BinaryCodec.encode(message, fromServer));
+			else
+				out.write((message + "\n").getBytes(NetworkConstants.CHARSET));
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes stream a chunk at a time.
+	 *
+	 * @return The number of messages decoded.
+	 */
+	private static int decode(byte[] stream, boolean fromServer, boolean binary) throws IOException {
+		MessageDecoder decoder = new MessageDecoder(fromServer, Integer.MAX_VALUE);
+		if(binary)
+			decoder.useBinary();
+		int n = 0;
+		for(int offset = 0; offset < stream.length; offset += CHUNK_BYTES) {
+			ByteBuffer chunk = ByteBuffer.wrap(stream, offset, Math.min(CHUNK_BYTES, stream.length - offset));
+			while(decoder.next(chunk) != null)
+				++n;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns a random server-to-client message; IM IDs grow with i, as a
+	 * client's do.
+	 */
+	private static String serverMessage(Random random, int i) {
+		int kind = random.nextInt(10);
+		if(kind < 6)
+			return NetworkConstants.IM + "\t" + name(random) + "\t" + conv(random) + "\t" + i + "\t"
+					+ text(random);
+		if(kind < 8)
+			return (kind == 6 ? NetworkConstants.CONNECTED : NetworkConstants.DISCONNECTED) + "\t"
+					+ name(random);
+		if(kind < 9)
+			return (random.nextBoolean() ? NetworkConstants.ADDED_TO_CONV : NetworkConstants.REMOVED_FROM_CONV)
+					+ "\t" + name(random) + "\t" + conv(random);
+		StringBuilder b = new StringBuilder(NetworkConstants.PARTICIPANTS + "\t" + conv(random));
+		for(int j = 2 + random.nextInt(19); j > 0; --j)
+			b.append('\t').append(name(random));
+		return b.toString();
+	}
+
+	/**
+	 * Returns a random client-to-server request.
+	 */
+	private static String clientMessage(Random random, int i) {
+		int kind = random.nextInt(10);
+		if(kind < 8)
+			return NetworkConstants.IM + "\t" + conv(random) + "\t" + i + "\t" + text(random);
+		if(kind < 9)
+			return NetworkConstants.RETRIEVE_PARTICIPANTS + "\t" + conv(random);
+		return (random.nextBoolean() ? NetworkConstants.ENTER_CONV : NetworkConstants.EXIT_CONV) + "\t"
+				+ conv(random);
+	}
+
+	private static String name(Random random) {
+		return "user" + random.nextInt(10000);
+	}
+
+	private static String conv(Random random) {
+		return "conversation" + random.nextInt(1000);
+	}
+
+	/**
+	 * Returns message text of 1 to 200 characters, one message in ten with some
+	 * non-ASCII ones.
+	 */
+	private static String text(Random random) {
+		int length = 1 + random.nextInt(200);
+		boolean wide = random.nextInt(10) == 0;
+		StringBuilder b = new StringBuilder(length);
+		for(int j = 0; j < length; ++j) {
+			if(wide && j % 4 == 0)
+				b.append('\u00e9');
+			else
+				b.append((char) ('a' + random.nextInt(26)));
+		}
+		return b.toString();
+	}
+}